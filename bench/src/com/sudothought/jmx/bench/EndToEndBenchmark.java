@@ -0,0 +1,95 @@
+package com.sudothought.jmx.bench;
+
+import com.sudothought.jmx.JmxAgent;
+import com.sudothought.jmx.Stopper;
+import com.sudothought.jmx.TestClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXServiceURL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A getAttribute call through the agent's SSL RMI connector on loopback,
+ * as started by {@link JmxAgent#startAgent}.
+ * <p/>
+ * The keystore defaults to {@code ./ssl/jmx-agent.jks}, so the benchmark
+ * must be run from the project directory unless the {@code javax.net.ssl.*}
+ * properties are given.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    private static final String KEYSTORE = "./ssl/jmx-agent.jks";
+    private static final String PASSWORD = "secret";
+
+    private JMXConnectorServer server;
+    private JMXConnector connector;
+    private MBeanServerConnection connection;
+    private ObjectName runtime;
+
+    @Setup
+    public void setup() throws Exception {
+        setDefault("javax.net.ssl.keyStore", KEYSTORE);
+        setDefault("javax.net.ssl.keyStorePassword", PASSWORD);
+        setDefault("javax.net.ssl.trustStore", KEYSTORE);
+        setDefault("javax.net.ssl.trustStorePassword", PASSWORD);
+        setDefault(JmxAgent.RMI_HOSTNAME, "localhost");
+
+        server = JmxAgent.startAgent(null, true);
+        final JMXServiceURL url = new JMXServiceURL(JmxAgent.getServiceUrl("localhost", JmxAgent.getServerPort()));
+        connector = TestClient.getJmxConnector(url, true);
+        connection = connector.getMBeanServerConnection();
+        runtime = new ObjectName("java.lang:type=Runtime");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        try {
+            Stopper.stopServer(connector);
+        }
+        finally {
+            try {
+                connector.close();
+            }
+            catch (Exception x) {
+                // the server is already gone.
+            }
+            if (server.isActive()) server.stop();
+        }
+    }
+
+    @Benchmark
+    public Object getAttribute() throws Exception {
+        return connection.getAttribute(runtime, "VmName");
+    }
+
+    @Benchmark
+    public Object getMBeanCount() throws Exception {
+        return connection.getMBeanCount();
+    }
+
+    private static void setDefault(String property, String value) {
+        final String v = System.getProperty(property);
+        if (v == null || v.length() == 0)
+            System.setProperty(property, value);
+    }
+}
@@ -0,0 +1,82 @@
+package com.sudothought.jmx.bench;
+
+import com.sudothought.jmx.ForwardingInterceptor;
+import com.sudothought.jmx.InvokeOperationInterceptor;
+import com.sudothought.jmx.Stopper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.MBeanServerForwarder;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the forwarders compared to a raw MBeanServer call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ForwarderBenchmark {
+
+    private MBeanServer server;
+    private MBeanServerForwarder direct;
+    private MBeanServerForwarder proxy;
+    private ObjectName runtime;
+
+    @Setup
+    public void setup() throws Exception {
+        server = ManagementFactory.getPlatformMBeanServer();
+        runtime = new ObjectName("java.lang:type=Runtime");
+
+        // the same interceptor as the stoppable agent.
+        final InvokeOperationInterceptor stopper =
+                new InvokeOperationInterceptor(Stopper.getDefaultStopperName(), Stopper.STOP);
+        direct = ForwardingInterceptor.newForwardingInterceptor(
+                new ForwardingInterceptor(server, stopper));
+        proxy = ForwardingInterceptor.newProxyForwardingInterceptor(
+                new ForwardingInterceptor(server, stopper));
+    }
+
+    @Benchmark
+    public Object getAttributeRaw() throws Exception {
+        return server.getAttribute(runtime, "VmName");
+    }
+
+    @Benchmark
+    public Object getAttributeDirectForwarder() throws Exception {
+        return direct.getAttribute(runtime, "VmName");
+    }
+
+    @Benchmark
+    public Object getAttributeProxyForwarder() throws Exception {
+        return proxy.getAttribute(runtime, "VmName");
+    }
+
+    @Benchmark
+    public boolean isRegisteredRaw() {
+        return server.isRegistered(runtime);
+    }
+
+    @Benchmark
+    public boolean isRegisteredDirectForwarder() {
+        return direct.isRegistered(runtime);
+    }
+
+    @Benchmark
+    public boolean isRegisteredProxyForwarder() {
+        return proxy.isRegistered(runtime);
+    }
+}
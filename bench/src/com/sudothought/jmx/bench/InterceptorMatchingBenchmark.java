@@ -0,0 +1,113 @@
+package com.sudothought.jmx.bench;
+
+import com.sudothought.jmx.InterceptorRegistry;
+import com.sudothought.jmx.InvokeOperationInterceptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the interceptor for an invoke() call as the number of
+ * registered interceptors grows, compared with a plain list scan.
+ * <p/>
+ * Half of the interceptors are registered for exact names, the other half
+ * for property patterns in their own domain. The miss targets an MBean that
+ * no interceptor matches, which is the common case on the hot path; the hit
+ * targets the last exact name registered.
+ * <p/>
+ * Both sides only do the matching: the registry is indexed the way
+ * ForwardingInterceptor indexes its InvokeOperationInterceptors, and no
+ * call reaches an MBeanServer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InterceptorMatchingBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int interceptors;
+
+    // The same indexing as ForwardingInterceptor's, which is private to it.
+    private static final class Registry extends InterceptorRegistry<InvokeOperationInterceptor> {
+        @Override
+        protected ObjectName mbeanOf(InvokeOperationInterceptor c) {
+            return c.mbeanName;
+        }
+
+        @Override
+        protected String memberOf(InvokeOperationInterceptor c) {
+            return c.methodName;
+        }
+
+        @Override
+        protected boolean matches(InvokeOperationInterceptor c, ObjectName name, String operation) {
+            if (!c.matches(name)) return false;
+            return operation == null || c.matches(operation);
+        }
+    }
+
+    private Registry registry;
+    private List<InvokeOperationInterceptor> list;
+    private ObjectName missed;
+    private ObjectName hit;
+
+    @Setup
+    public void setup() throws Exception {
+        registry = new Registry();
+        list = new ArrayList<InvokeOperationInterceptor>();
+        for (int i = 0; i < interceptors; i++) {
+            final ObjectName name = i % 2 == 0
+                                    ? new ObjectName("app:type=Policy,id=" + i)
+                                    : new ObjectName("app" + i + ":type=Policy,*");
+            final InvokeOperationInterceptor c = new InvokeOperationInterceptor(name, "reset");
+            registry.add(c);
+            list.add(c);
+        }
+        missed = new ObjectName("java.lang:type=Runtime");
+        hit = new ObjectName("app:type=Policy,id=" + ((interceptors - 1) & ~1));
+    }
+
+    @Benchmark
+    public InvokeOperationInterceptor registryMiss() {
+        return registry.find(missed, "reset");
+    }
+
+    @Benchmark
+    public InvokeOperationInterceptor registryHit() {
+        return registry.find(hit, "reset");
+    }
+
+    @Benchmark
+    public InvokeOperationInterceptor listScanMiss() {
+        return scan(missed, "reset");
+    }
+
+    @Benchmark
+    public InvokeOperationInterceptor listScanHit() {
+        return scan(hit, "reset");
+    }
+
+    // The matching done by ForwardingInterceptor before the registry.
+    private InvokeOperationInterceptor scan(ObjectName name, String operation) {
+        for (InvokeOperationInterceptor c : list) {
+            if (c.matches(name) && c.matches(operation)) return c;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+package com.sudothought.jmx.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.ObjectName;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ObjectName.apply for the kinds of names interceptors are
+ * registered with.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ObjectNameApplyBenchmark {
+
+    private ObjectName candidate;
+    private ObjectName exact;
+    private ObjectName propertyListPattern;
+    private ObjectName propertyValuePattern;
+    private ObjectName domainPattern;
+
+    @Setup
+    public void setup() throws Exception {
+        candidate = new ObjectName("java.lang:type=GarbageCollector,name=G1 Young Generation");
+        exact = new ObjectName("java.lang:type=GarbageCollector,name=G1 Young Generation");
+        propertyListPattern = new ObjectName("java.lang:type=GarbageCollector,*");
+        propertyValuePattern = new ObjectName("java.lang:type=GarbageCollector,name=G1*");
+        domainPattern = new ObjectName("java.*:*");
+    }
+
+    @Benchmark
+    public boolean exact() {
+        return exact.apply(candidate);
+    }
+
+    @Benchmark
+    public boolean propertyListPattern() {
+        return propertyListPattern.apply(candidate);
+    }
+
+    @Benchmark
+    public boolean propertyValuePattern() {
+        return propertyValuePattern.apply(candidate);
+    }
+
+    @Benchmark
+    public boolean domainPattern() {
+        return domainPattern.apply(candidate);
+    }
+
+    @Benchmark
+    public boolean equalsExact() {
+        return exact.equals(candidate);
+    }
+}
@@ -0,0 +1,101 @@
+package com.sudothought.jmx;
+
+/**
+ * The connections of one remote address, as published by
+ * {@link ConnectionAccountingMXBean}. Bytes are counted on the wire, TLS
+ * included; handshake times are in microseconds.
+ */
+public class AddressStats {
+
+    private final long openSockets;
+    private final long acceptedSockets;
+    private final double acceptRate;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long handshakes;
+    private final long failedHandshakes;
+    private final double meanHandshakeTime;
+    private final double maxHandshakeTime;
+    private final long connections;
+    private final String[] connectionIds;
+
+    public AddressStats(long openSockets, long acceptedSockets, double acceptRate, long bytesIn, long bytesOut,
+                        long handshakes, long failedHandshakes, double meanHandshakeTime, double maxHandshakeTime,
+                        long connections, String[] connectionIds) {
+        this.openSockets = openSockets;
+        this.acceptedSockets = acceptedSockets;
+        this.acceptRate = acceptRate;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.handshakes = handshakes;
+        this.failedHandshakes = failedHandshakes;
+        this.meanHandshakeTime = meanHandshakeTime;
+        this.maxHandshakeTime = maxHandshakeTime;
+        this.connections = connections;
+        this.connectionIds = connectionIds;
+    }
+
+    public long getOpenSockets() {
+        return openSockets;
+    }
+
+    public long getAcceptedSockets() {
+        return acceptedSockets;
+    }
+
+    /**
+     * Sockets accepted per second, over the last minute.
+     */
+    public double getAcceptRate() {
+        return acceptRate;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Completed handshakes, full or resumed.
+     */
+    public long getHandshakes() {
+        return handshakes;
+    }
+
+    public long getFailedHandshakes() {
+        return failedHandshakes;
+    }
+
+    public double getMeanHandshakeTime() {
+        return meanHandshakeTime;
+    }
+
+    public double getMaxHandshakeTime() {
+        return maxHandshakeTime;
+    }
+
+    /**
+     * JMX connections opened from this address.
+     */
+    public long getConnections() {
+        return connections;
+    }
+
+    /**
+     * The IDs of the JMX connections currently open from this address.
+     */
+    public String[] getConnectionIds() {
+        return connectionIds.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "open=" + openSockets + " accepted=" + acceptedSockets + " rate=" + acceptRate + "/s in="
+               + bytesIn + " out=" + bytesOut + " handshakes=" + handshakes + " failed=" + failedHandshakes
+               + " mean=" + meanHandshakeTime + "us max=" + maxHandshakeTime + "us connections=" + connections
+               + " open connections=" + connectionIds.length;
+    }
+}
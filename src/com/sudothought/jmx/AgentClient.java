@@ -0,0 +1,275 @@
+package com.sudothought.jmx;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A client that keeps one open SSL JMXConnector per agent, so that a
+ * long-lived process (see {@code Attach daemon}) can ask many agents for
+ * their status without paying for a new connection and a new TLS handshake
+ * on every request.
+ * <p/>
+ * All connections use the default SSLContext, whose client session cache
+ * lets a reconnection to the same agent resume its previous TLS session.
+ * <p/>
+ * A pooled connection that fails with an IOException is closed, reopened
+ * once, and the call is retried. For each target, the client records how
+ * long connecting and the TLS handshake of the registry lookup took; see
+ * {@link #getTargetStats()}.
+ */
+public class AgentClient implements Closeable {
+
+    /**
+     * Connection statistics of one agent.
+     */
+    public static class TargetStats {
+        private final String url;
+        private final boolean connected;
+        private final long connects;
+        private final long failures;
+        private final long fullHandshakes;
+        private final long resumedHandshakes;
+        private final double lastConnectMillis;
+        private final double lastHandshakeMillis;
+
+        TargetStats(Target t) {
+            this.url = t.url.toString();
+            this.connected = t.connector != null;
+            this.connects = t.connects;
+            this.failures = t.failures;
+            this.fullHandshakes = t.fullHandshakes;
+            this.resumedHandshakes = t.resumedHandshakes;
+            this.lastConnectMillis = t.lastConnectNanos / 1e6;
+            this.lastHandshakeMillis = t.lastHandshakeNanos < 0 ? -1 : t.lastHandshakeNanos / 1e6;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public long getConnects() {
+            return connects;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getFullHandshakes() {
+            return fullHandshakes;
+        }
+
+        public long getResumedHandshakes() {
+            return resumedHandshakes;
+        }
+
+        /**
+         * Duration of the last successful connect, TLS handshake included.
+         */
+        public double getLastConnectMillis() {
+            return lastConnectMillis;
+        }
+
+        /**
+         * Duration of the last TLS handshake, or -1 if the last connect
+         * reused an already open socket.
+         */
+        public double getLastHandshakeMillis() {
+            return lastHandshakeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s connected=%s connects=%d failures=%d handshakes(full=%d, resumed=%d)"
+                                 + " lastConnect=%.2fms lastHandshake=%.2fms",
+                                 url, connected, connects, failures, fullHandshakes, resumedHandshakes,
+                                 lastConnectMillis, lastHandshakeMillis);
+        }
+    }
+
+    private static final class Target {
+        final JMXServiceURL url;
+        JMXConnector connector;
+        long connects;
+        long failures;
+        long fullHandshakes;
+        long resumedHandshakes;
+        long lastConnectNanos;
+        long lastHandshakeNanos = -1;
+
+        Target(JMXServiceURL url) {
+            this.url = url;
+        }
+    }
+
+    private final ConcurrentHashMap<JMXServiceURL, Target> targets = new ConcurrentHashMap<JMXServiceURL, Target>();
+    private final Map<String, ?> environment;
+    private volatile boolean closed;
+
+    public AgentClient() {
+        this(Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * @param environment added to the environment of each connection, e.g.
+     *                    {@code jmx.remote.x.notification.fetch.timeout}.
+     */
+    public AgentClient(Map<String, ?> environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Returns the pooled connection to the given agent, connecting if
+     * needed.
+     */
+    public MBeanServerConnection getConnection(JMXServiceURL url) throws IOException {
+        return getConnector(url).getMBeanServerConnection();
+    }
+
+    /**
+     * Returns the pooled connector to the given agent, connecting if
+     * needed. The connector must not be closed by the caller; use
+     * {@link #close(JMXServiceURL)}.
+     */
+    public JMXConnector getConnector(JMXServiceURL url) throws IOException {
+        if (closed) throw new IOException("client closed");
+        final Target t = target(url);
+        synchronized (t) {
+            if (t.connector == null) t.connector = connect(t);
+            return t.connector;
+        }
+    }
+
+    private Target target(JMXServiceURL url) {
+        Target t = targets.get(url);
+        if (t == null) {
+            final Target created = new Target(url);
+            t = targets.putIfAbsent(url, created);
+            if (t == null) t = created;
+        }
+        return t;
+    }
+
+    // Called with the target locked.
+    private JMXConnector connect(Target t) throws IOException {
+        final Map<String, Object> env = new HashMap<String, Object>(environment);
+        final Compression compression = Compression.createFromProperties();
+        env.put("com.sun.jndi.rmi.factory.socket", compression == null ? new TimingSslRMIClientSocketFactory()
+                                                                      : new CompressingSslRMIClientSocketFactory(compression));
+
+        final TimingSslRMIClientSocketFactory.Timing timing = TimingSslRMIClientSocketFactory.begin();
+        final long start = System.nanoTime();
+        final JMXConnector c;
+        try {
+            c = JMXConnectorFactory.connect(t.url, env);
+        }
+        catch (IOException x) {
+            t.failures++;
+            throw x;
+        }
+        finally {
+            TimingSslRMIClientSocketFactory.end();
+        }
+        t.lastConnectNanos = System.nanoTime() - start;
+        t.lastHandshakeNanos = timing.getHandshakeNanos();
+        t.connects++;
+        if (timing.getHandshakeNanos() >= 0) {
+            if (timing.isResumed()) t.resumedHandshakes++;
+            else t.fullHandshakes++;
+        }
+        return c;
+    }
+
+    /**
+     * Returns the number of MBeans registered in the agent, reconnecting
+     * once if the pooled connection is broken.
+     */
+    public Integer status(JMXServiceURL url) throws IOException {
+        try {
+            return getConnection(url).getMBeanCount();
+        }
+        catch (IOException x) {
+            close(url);
+            return getConnection(url).getMBeanCount();
+        }
+    }
+
+    /**
+     * Stops the agent through its {@link Stopper} MBean and closes the
+     * pooled connection.
+     */
+    public void stop(JMXServiceURL url) throws IOException {
+        JMXConnector c;
+        try {
+            c = getConnector(url);
+            c.getConnectionId();
+        }
+        catch (IOException x) {
+            close(url);
+            c = getConnector(url);
+        }
+        try {
+            Stopper.stopServer(c);
+        }
+        finally {
+            close(url);
+        }
+    }
+
+    /**
+     * Closes the pooled connection to the given agent, if any. Statistics
+     * are kept.
+     */
+    public void close(JMXServiceURL url) {
+        final Target t = targets.get(url);
+        if (t == null) return;
+        synchronized (t) {
+            if (t.connector != null) {
+                try {
+                    t.connector.close();
+                }
+                catch (IOException x) {
+                    // the connection is already broken
+                }
+                t.connector = null;
+            }
+        }
+    }
+
+    /**
+     * Closes all pooled connections.
+     */
+    public void close() {
+        closed = true;
+        for (JMXServiceURL url : targets.keySet())
+            close(url);
+    }
+
+    /**
+     * Returns the connection statistics of every target this client has
+     * connected to.
+     */
+    public List<TargetStats> getTargetStats() {
+        final List<TargetStats> result = new ArrayList<TargetStats>();
+        for (Target t : targets.values()) {
+            synchronized (t) {
+                result.add(new TargetStats(t));
+            }
+        }
+        return result;
+    }
+}
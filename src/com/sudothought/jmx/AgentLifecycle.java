@@ -0,0 +1,275 @@
+package com.sudothought.jmx;
+
+import javax.management.remote.JMXConnectorServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.rmi.NoSuchObjectException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops the agent's connector when the application is done, published as
+ * {@code com.sudothought.jmx:type=Lifecycle}. It replaces the
+ * {@link JmxAgent.CleanThread}.
+ * <p/>
+ * The connector keeps a non-daemon "RMI Reaper" thread alive, which would
+ * prevent the JVM from exiting when the application's threads are done.
+ * {@link #watch(Thread)} starts a daemon thread that first joins the
+ * application's main thread, then watches the number of live non-daemon
+ * threads reported by the ThreadMXBean, which costs neither an allocation
+ * nor a thread enumeration. When only JDK threads (those of the "system"
+ * thread group, such as the RMI Reaper) and the launcher's DestroyJavaVM
+ * thread are left by that count, all threads are enumerated once to confirm
+ * it, and the connector is stopped.
+ * <p/>
+ * The agent is also stopped by a JVM shutdown hook, e.g. on System.exit()
+ * or SIGTERM. Either way, the connector, the registry and the other services
+ * are stopped by a separate thread, which is given at most
+ * {@code jmx.agent.shutdown.timeout} milliseconds (default 5000).
+ * <pre>
+ * jmx.agent.shutdown.timeout  maximum time to stop the connector, in ms
+ * jmx.agent.shutdown.poll     interval between two thread counts, in ms (default 500)
+ * </pre>
+ */
+public class AgentLifecycle implements AgentLifecycleMXBean, Closeable {
+
+    public static final String SHUTDOWN_TIMEOUT_PROPERTY = "jmx.agent.shutdown.timeout";
+    public static final String SHUTDOWN_POLL_PROPERTY    = "jmx.agent.shutdown.poll";
+
+    public static final String RUNNING  = "RUNNING";
+    public static final String STOPPING = "STOPPING";
+    public static final String STOPPED  = "STOPPED";
+
+    // The launcher's thread that waits for the non-daemon threads to end.
+    private static final String DESTROY_JAVA_VM = "DestroyJavaVM";
+
+    private final JMXConnectorServer connector;
+    private final Registry registry;
+    private final List<Closeable> services = new CopyOnWriteArrayList<Closeable>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final ThreadGroup systemGroup = systemGroup();
+    private final AtomicReference<String> state = new AtomicReference<String>(RUNNING);
+    private final Thread hook;
+    private volatile Thread watcher;
+    private volatile long shutdownTimeout;
+    private final long pollInterval;
+    private volatile String stopReason;
+    private volatile double stopMillis = -1;
+    private volatile boolean stopTimedOut;
+    private volatile long checks;
+    private volatile long enumerations;
+
+    /**
+     * Creates the lifecycle of a connector and installs its shutdown hook.
+     *
+     * @param connector the connector to stop.
+     * @param registry  the registry to unexport, may be null.
+     */
+    public AgentLifecycle(JMXConnectorServer connector, Registry registry) {
+        this.connector = connector;
+        this.registry = registry;
+        this.shutdownTimeout = Long.parseLong(System.getProperty(SHUTDOWN_TIMEOUT_PROPERTY, "5000"));
+        this.pollInterval = Long.parseLong(System.getProperty(SHUTDOWN_POLL_PROPERTY, "500"));
+        this.hook = new Thread("JMX Agent Shutdown") {
+            public void run() {
+                AgentLifecycle.this.stop("shutdown");
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    private static ThreadGroup systemGroup() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        while (group.getParent() != null)
+            group = group.getParent();
+        return group;
+    }
+
+    /**
+     * Adds a service to close when the agent stops, after the connector.
+     */
+    public void addService(Closeable service) {
+        services.add(service);
+    }
+
+    /**
+     * Starts a daemon thread that stops the agent once {@code main} and all
+     * other application threads have ended.
+     *
+     * @param main the application's main thread.
+     */
+    public void watch(final Thread main) {
+        final Thread t = new Thread("JMX Agent Lifecycle") {
+            public void run() {
+                try {
+                    main.join();
+                    waitForApplicationThreads();
+                    AgentLifecycle.this.stop("idle");
+                }
+                catch (InterruptedException x) {
+                    // the agent was stopped by other means
+                }
+            }
+        };
+        t.setDaemon(true);
+        watcher = t;
+        t.start();
+    }
+
+    private void waitForApplicationThreads() throws InterruptedException {
+        // Non-daemon count at which an enumeration last found application
+        // threads: don't enumerate again until the count drops below it.
+        int notDone = Integer.MAX_VALUE;
+        while (true) {
+            checks++;
+            final int nonDaemon = threads.getThreadCount() - threads.getDaemonThreadCount();
+            if (nonDaemon < notDone && nonDaemon <= systemNonDaemonCount() + 1) {
+                enumerations++;
+                if (!hasApplicationThreads()) return;
+                notDone = nonDaemon;
+            }
+            Thread.sleep(pollInterval);
+        }
+    }
+
+    // Non-daemon threads directly in the system group: a handful of threads.
+    private int systemNonDaemonCount() {
+        final Thread[] all = new Thread[systemGroup.activeCount() + 4];
+        final int count = systemGroup.enumerate(all, false);
+        int nonDaemon = 0;
+        for (int i = 0; i < count; i++) {
+            if (!all[i].isDaemon()) nonDaemon++;
+        }
+        return nonDaemon;
+    }
+
+    private boolean hasApplicationThreads() {
+        final Thread[] all = new Thread[threads.getThreadCount() + 16];
+        final int count = systemGroup.enumerate(all, true);
+        for (int i = 0; i < count; i++) {
+            final Thread t = all[i];
+            if (t.isDaemon() || t.getThreadGroup() == systemGroup) continue;
+            if (DESTROY_JAVA_VM.equals(t.getName())) continue;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops the connector, unexports the registry and closes the services,
+     * waiting at most for the shutdown timeout. Does nothing if the agent is
+     * already stopping or stopped.
+     *
+     * @param reason why the agent is stopped.
+     * @return false if the agent was already stopping or stopped.
+     */
+    public boolean stop(String reason) {
+        if (!state.compareAndSet(RUNNING, STOPPING)) return false;
+        stopReason = reason;
+        final long start = System.nanoTime();
+        final Thread stopper = new Thread("JMX Agent Stopper") {
+            public void run() {
+                stopAll();
+            }
+        };
+        stopper.setDaemon(true);
+        stopper.start();
+        try {
+            stopper.join(shutdownTimeout);
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        stopTimedOut = stopper.isAlive();
+        stopMillis = (System.nanoTime() - start) / 1e6;
+        state.set(STOPPED);
+
+        if (Thread.currentThread() != hook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            }
+            catch (IllegalStateException x) {
+                // the JVM is already shutting down
+            }
+        }
+        final Thread w = watcher;
+        if (w != null && w != Thread.currentThread()) w.interrupt();
+
+        System.out.println("JMX agent stopped (" + reason + ") in " + stopMillis + "ms"
+                           + (stopTimedOut ? ", connector stop timed out" : ""));
+        return true;
+    }
+
+    private void stopAll() {
+        try {
+            connector.stop();
+        }
+        catch (IOException x) {
+            x.printStackTrace();
+        }
+        if (registry != null) {
+            try {
+                UnicastRemoteObject.unexportObject(registry, true);
+            }
+            catch (NoSuchObjectException x) {
+                // already unexported, e.g. by the Stopper
+            }
+        }
+        for (Closeable service : services) {
+            try {
+                service.close();
+            }
+            catch (IOException x) {
+                x.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the agent, see {@link #stop(String)}.
+     */
+    public void close() {
+        stop("close");
+    }
+
+    public String getState() {
+        return state.get();
+    }
+
+    public String getStopReason() {
+        return stopReason;
+    }
+
+    public double getStopMillis() {
+        return stopMillis;
+    }
+
+    public boolean isStopTimedOut() {
+        return stopTimedOut;
+    }
+
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(long millis) {
+        this.shutdownTimeout = millis;
+    }
+
+    public int getNonDaemonThreadCount() {
+        return threads.getThreadCount() - threads.getDaemonThreadCount();
+    }
+
+    public long getChecks() {
+        return checks;
+    }
+
+    public long getEnumerations() {
+        return enumerations;
+    }
+}
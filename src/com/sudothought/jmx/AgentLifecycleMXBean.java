@@ -0,0 +1,53 @@
+package com.sudothought.jmx;
+
+/**
+ * Management interface of the {@link AgentLifecycle}, registered as
+ * {@code com.sudothought.jmx:type=Lifecycle}.
+ */
+public interface AgentLifecycleMXBean {
+
+    /**
+     * RUNNING, STOPPING or STOPPED.
+     */
+    String getState();
+
+    /**
+     * What stopped the agent: "idle" (only the connector's threads were
+     * left), "shutdown" (JVM shutdown hook) or "close"; null while running.
+     */
+    String getStopReason();
+
+    /**
+     * Duration of the stop, in milliseconds, or -1 while running.
+     */
+    double getStopMillis();
+
+    /**
+     * Whether the connector did not stop within the shutdown timeout.
+     */
+    boolean isStopTimedOut();
+
+    /**
+     * Maximum time the agent waits for the connector to stop, in
+     * milliseconds.
+     */
+    long getShutdownTimeout();
+
+    void setShutdownTimeout(long millis);
+
+    /**
+     * Live non-daemon threads, the connector's included.
+     */
+    int getNonDaemonThreadCount();
+
+    /**
+     * Number of times the watcher checked whether the application was done.
+     */
+    long getChecks();
+
+    /**
+     * Number of times the watcher had to enumerate all threads to confirm
+     * that the application was done.
+     */
+    long getEnumerations();
+}
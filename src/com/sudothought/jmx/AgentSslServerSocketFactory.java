@@ -0,0 +1,285 @@
+package com.sudothought.jmx;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.rmi.ssl.SslRMIServerSocketFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The server socket factory used by the agent for both the RMI registry and
+ * the connector, so that they share a single port.
+ * <p/>
+ * Compared to the default SslRMIServerSocketFactory, it lets the enabled
+ * protocols, the preferred cipher suites (the server's order wins), the
+ * server session cache and session resumption be configured, and it counts
+ * full and resumed handshakes in a {@link TlsStats}.
+ * <p/>
+ * The handshake of an accepted connection is started by the RMI thread that
+ * serves it, the first time it asks for the socket streams, so that it is
+ * timed without adding a thread per connection. The remote address is not
+ * resolved.
+ * <p/>
+ * Configuration, from system properties (or agent args):
+ * <pre>
+ * jmx.agent.tls.protocols          enabled protocols, e.g. TLSv1.3
+ * jmx.agent.tls.ciphers            enabled cipher suites, most preferred first
+ * jmx.agent.tls.session.cacheSize  server session cache size (0 = no limit)
+ * jmx.agent.tls.session.timeout    server session timeout in seconds
+ * jmx.agent.tls.resumption         false to refuse session resumption
+ * </pre>
+ * With a {@link Compression}, the accepted connections are compressed under
+ * TLS, and the clients must use a matching
+ * {@link CompressingSslRMIClientSocketFactory}.
+ * When the session cache is configured, or resumption is disabled, the
+ * factory uses its own SSLContext, initialized from the
+ * {@code javax.net.ssl.keyStore} properties, rather than changing the JVM's
+ * default one. Clients pick their own protocols and cipher suites through
+ * the {@code javax.rmi.ssl.client.enabledProtocols} and
+ * {@code javax.rmi.ssl.client.enabledCipherSuites} properties.
+ */
+public class AgentSslServerSocketFactory extends SslRMIServerSocketFactory {
+
+    public static final String PROTOCOLS_PROPERTY          = "jmx.agent.tls.protocols";
+    public static final String CIPHERS_PROPERTY            = "jmx.agent.tls.ciphers";
+    public static final String SESSION_CACHE_SIZE_PROPERTY = "jmx.agent.tls.session.cacheSize";
+    public static final String SESSION_TIMEOUT_PROPERTY    = "jmx.agent.tls.session.timeout";
+    public static final String RESUMPTION_PROPERTY         = "jmx.agent.tls.resumption";
+
+    private final SSLContext context;
+    private final SSLSocketFactory sslSocketFactory;
+    private final String[] protocols;
+    private final String[] ciphers;
+    private final boolean resumption;
+    private final TlsStats stats;
+    private final Compression compression;
+    private volatile ConnectionAccounting accounting;
+
+    /**
+     * @param context    the SSLContext to use.
+     * @param ciphers    the enabled cipher suites, most preferred first, or
+     *                   null for the defaults.
+     * @param protocols  the enabled protocols, or null for the defaults.
+     * @param resumption false to refuse session resumption.
+     * @throws IllegalArgumentException if a protocol or a cipher suite is not
+     *                                  supported.
+     */
+    public AgentSslServerSocketFactory(SSLContext context, String[] ciphers, String[] protocols, boolean resumption) {
+        this(context, ciphers, protocols, resumption, null);
+    }
+
+    /**
+     * @param compression the compression of the accepted connections, or
+     *                    null for none.
+     */
+    public AgentSslServerSocketFactory(SSLContext context, String[] ciphers, String[] protocols, boolean resumption,
+                                       Compression compression) {
+        super(context, ciphers, protocols, false);
+        this.context = context;
+        this.sslSocketFactory = context.getSocketFactory();
+        this.protocols = protocols == null ? null : protocols.clone();
+        this.ciphers = ciphers == null ? null : ciphers.clone();
+        this.resumption = resumption;
+        this.stats = new TlsStats(this);
+        this.compression = compression;
+    }
+
+    /**
+     * Creates a factory configured from the {@code jmx.agent.tls} and
+     * {@code jmx.agent.compress} system properties.
+     */
+    public static AgentSslServerSocketFactory createFromProperties() throws IOException {
+        final String cacheSize = System.getProperty(SESSION_CACHE_SIZE_PROPERTY);
+        final String timeout = System.getProperty(SESSION_TIMEOUT_PROPERTY);
+        final boolean resumption = Boolean.valueOf(System.getProperty(RESUMPTION_PROPERTY, "true")).booleanValue();
+
+        final SSLContext context;
+        if (cacheSize == null && timeout == null && resumption) {
+            try {
+                context = SSLContext.getDefault();
+            }
+            catch (NoSuchAlgorithmException x) {
+                throw new IOException("can't get default SSL context: " + x, x);
+            }
+        }
+        else {
+            context = createContext();
+            if (cacheSize != null)
+                context.getServerSessionContext().setSessionCacheSize(Integer.parseInt(cacheSize));
+            if (timeout != null)
+                context.getServerSessionContext().setSessionTimeout(Integer.parseInt(timeout));
+        }
+        return new AgentSslServerSocketFactory(context, split(System.getProperty(CIPHERS_PROPERTY)),
+                                               split(System.getProperty(PROTOCOLS_PROPERTY)), resumption,
+                                               Compression.createFromProperties());
+    }
+
+    private static String[] split(String value) {
+        if (value == null || value.trim().length() == 0) return null;
+        return value.trim().split("\\s*,\\s*");
+    }
+
+    // A context with the keys of the javax.net.ssl.keyStore properties and
+    // the default trust managers.
+    private static SSLContext createContext() throws IOException {
+        final String keyStore = System.getProperty("javax.net.ssl.keyStore");
+        final String password = System.getProperty("javax.net.ssl.keyStorePassword");
+        final char[] pw = password == null ? null : password.toCharArray();
+        try {
+            final KeyStore ks = KeyStore.getInstance(System.getProperty("javax.net.ssl.keyStoreType",
+                                                                        KeyStore.getDefaultType()));
+            final InputStream in = keyStore == null ? null : new FileInputStream(keyStore);
+            try {
+                ks.load(in, pw);
+            }
+            finally {
+                if (in != null) in.close();
+            }
+            final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, pw);
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
+        }
+        catch (GeneralSecurityException x) {
+            throw new IOException("can't create SSL context: " + x, x);
+        }
+    }
+
+    public SSLContext getSSLContext() {
+        return context;
+    }
+
+    public boolean isResumptionEnabled() {
+        return resumption;
+    }
+
+    public TlsStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sets the accounting of the accepted connections, before the factory
+     * creates its server socket.
+     */
+    public void setAccounting(ConnectionAccounting accounting) {
+        this.accounting = accounting;
+    }
+
+    public ConnectionAccounting getAccounting() {
+        return accounting;
+    }
+
+    /**
+     * The compression of the accepted connections, or null.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        return new ServerSocket(port) {
+            @Override
+            public Socket accept() throws IOException {
+                final Socket socket = super.accept();
+                final ConnectionAccounting a = accounting;
+                return wrap(a == null ? socket : a.accepted(socket));
+            }
+        };
+    }
+
+    /**
+     * Layers TLS over an accepted socket. Subclasses may wrap the returned
+     * socket further.
+     */
+    protected Socket wrap(Socket socket) throws IOException {
+        final SSLSocket ssl = (SSLSocket)sslSocketFactory.createSocket(
+                socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        ssl.setUseClientMode(false);
+        final SSLParameters params = ssl.getSSLParameters();
+        if (ciphers != null) {
+            params.setCipherSuites(ciphers);
+            params.setUseCipherSuitesOrder(true);
+        }
+        if (protocols != null)
+            params.setProtocols(protocols);
+        params.setNeedClientAuth(false);
+        ssl.setSSLParameters(params);
+        final Socket handshaking = new HandshakingSocket(ssl);
+        return compression == null ? handshaking : compression.wrap(handshaking);
+    }
+
+    /**
+     * Called once the handshake of an accepted socket has completed.
+     *
+     * @param socket the TLS socket.
+     * @param nanos  the duration of the handshake.
+     */
+    protected void handshakeCompleted(SSLSocket socket, long nanos, boolean resumed) {
+        stats.handshakeCompleted(nanos, resumed);
+        final ConnectionAccounting a = accounting;
+        if (a != null) a.handshakeCompleted(socket, nanos);
+    }
+
+    /**
+     * Called when the handshake of an accepted socket has failed.
+     */
+    protected void handshakeFailed(SSLSocket socket, long nanos, IOException x) {
+        stats.handshakeFailed(nanos);
+        final ConnectionAccounting a = accounting;
+        if (a != null) a.handshakeFailed(socket);
+    }
+
+    private class HandshakingSocket extends DelegatingSocket {
+        private boolean handshaken;
+
+        HandshakingSocket(SSLSocket delegate) {
+            super(delegate);
+        }
+
+        private synchronized void handshake() throws IOException {
+            if (handshaken) return;
+            handshaken = true;
+            final SSLSocket ssl = (SSLSocket)getDelegate();
+            final long startMillis = System.currentTimeMillis();
+            final long start = System.nanoTime();
+            try {
+                ssl.startHandshake();
+            }
+            catch (IOException x) {
+                handshakeFailed(ssl, System.nanoTime() - start, x);
+                throw x;
+            }
+            final long nanos = System.nanoTime() - start;
+            final SSLSession session = ssl.getSession();
+            // A resumed session keeps the creation time of the original one.
+            final boolean resumed = session.getCreationTime() < startMillis;
+            if (!resumption) session.invalidate();
+            handshakeCompleted(ssl, nanos, resumed);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            handshake();
+            return super.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            handshake();
+            return super.getOutputStream();
+        }
+    }
+}
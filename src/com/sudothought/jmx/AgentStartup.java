@@ -0,0 +1,113 @@
+package com.sudothought.jmx;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times the phases of the agent's startup, published as
+ * {@code com.sudothought.jmx:type=Startup}.
+ * <p/>
+ * A phase ends when {@link #phase} is called and lasts since the end of the
+ * previous phase, so the phases add up to the total startup time.
+ */
+public class AgentStartup implements AgentStartupMXBean {
+
+    public static final String STARTING = "STARTING";
+    public static final String STARTED  = "STARTED";
+    public static final String FAILED   = "FAILED";
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Double> phases = new LinkedHashMap<String, Double>();
+    private long lastNanos = startNanos;
+    private volatile boolean async;
+    private volatile String state = STARTING;
+    private volatile double premainMillis = -1;
+    private volatile double totalMillis = -1;
+    private volatile String error;
+    private volatile int port;
+    private volatile String serviceUrl;
+
+    /**
+     * Ends the current phase.
+     *
+     * @param name the name of the phase that ends.
+     */
+    public synchronized void phase(String name) {
+        final long now = System.nanoTime();
+        phases.put(name, (now - lastNanos) / 1e6);
+        lastNanos = now;
+    }
+
+    void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Called when premain/agentmain returns.
+     */
+    void premainReturned() {
+        premainMillis = (System.nanoTime() - startNanos) / 1e6;
+    }
+
+    void started() {
+        totalMillis = (System.nanoTime() - startNanos) / 1e6;
+        state = STARTED;
+    }
+
+    void failed(Throwable x) {
+        error = x.toString();
+        state = FAILED;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public synchronized Map<String, Double> getPhases() {
+        return new LinkedHashMap<String, Double>(phases);
+    }
+
+    public double getPremainMillis() {
+        return premainMillis;
+    }
+
+    public double getTotalMillis() {
+        return totalMillis;
+    }
+
+    public String getServiceUrl() {
+        if (serviceUrl == null) {
+            try {
+                serviceUrl = JmxAgent.getServiceUrl(getHostname(), port);
+            }
+            catch (UnknownHostException x) {
+                return null;
+            }
+        }
+        return serviceUrl;
+    }
+
+    /**
+     * The host name clients use to reach this JVM: the value of
+     * {@code java.rmi.server.hostname} if set, otherwise the local host
+     * name, which may require a DNS lookup.
+     */
+    public static String getHostname() throws UnknownHostException {
+        final String hostname = System.getProperty(JmxAgent.RMI_HOSTNAME);
+        return hostname != null ? hostname : InetAddress.getLocalHost().getHostName();
+    }
+
+    public String getError() {
+        return error;
+    }
+}
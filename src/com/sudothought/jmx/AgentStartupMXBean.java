@@ -0,0 +1,48 @@
+package com.sudothought.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link AgentStartup}, registered as
+ * {@code com.sudothought.jmx:type=Startup}.
+ */
+public interface AgentStartupMXBean {
+
+    /**
+     * STARTING, STARTED or FAILED.
+     */
+    String getState();
+
+    /**
+     * Whether the connector was started on a background thread.
+     */
+    boolean isAsync();
+
+    /**
+     * Duration of each startup phase, in milliseconds.
+     */
+    Map<String, Double> getPhases();
+
+    /**
+     * Time spent in premain/agentmain, i.e. the delay added to the
+     * application's startup, in milliseconds.
+     */
+    double getPremainMillis();
+
+    /**
+     * Time from the start of the agent until the connector was started, in
+     * milliseconds.
+     */
+    double getTotalMillis();
+
+    /**
+     * The URL clients can use to connect. The local host name is looked up
+     * on first use unless {@code java.rmi.server.hostname} is set.
+     */
+    String getServiceUrl();
+
+    /**
+     * The error that made the startup fail, or null.
+     */
+    String getError();
+}
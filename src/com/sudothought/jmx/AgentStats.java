@@ -0,0 +1,189 @@
+package com.sudothought.jmx;
+
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency statistics of the calls received by the connector, recorded by a
+ * {@link StatsForwarder} and published as
+ * {@code com.sudothought.jmx:type=AgentStats}.
+ * <p/>
+ * Each MBeanServer method has its own {@link LatencyHistogram}, created on
+ * first use. Optionally, calls that target an MBean are also recorded by
+ * ObjectName domain; the number of tracked domains is bounded, calls on
+ * further domains are recorded under {@code "<other>"}.
+ */
+public class AgentStats implements AgentStatsMXBean {
+
+    public static final String STATS_PROPERTY         = "jmx.agent.stats";
+    public static final String STATS_DOMAINS_PROPERTY = "jmx.agent.stats.domains";
+    public static final int    MAX_DOMAINS            = 64;
+    public static final String OTHER_DOMAIN           = "<other>";
+
+    /**
+     * The recorded MBeanServer methods. Overloads share the same entry.
+     */
+    public enum Op {
+        CREATE_MBEAN("createMBean"),
+        REGISTER_MBEAN("registerMBean"),
+        UNREGISTER_MBEAN("unregisterMBean"),
+        GET_OBJECT_INSTANCE("getObjectInstance"),
+        QUERY_MBEANS("queryMBeans"),
+        QUERY_NAMES("queryNames"),
+        IS_REGISTERED("isRegistered"),
+        GET_MBEAN_COUNT("getMBeanCount"),
+        GET_ATTRIBUTE("getAttribute"),
+        GET_ATTRIBUTES("getAttributes"),
+        SET_ATTRIBUTE("setAttribute"),
+        SET_ATTRIBUTES("setAttributes"),
+        INVOKE("invoke"),
+        GET_DEFAULT_DOMAIN("getDefaultDomain"),
+        GET_DOMAINS("getDomains"),
+        ADD_NOTIFICATION_LISTENER("addNotificationListener"),
+        REMOVE_NOTIFICATION_LISTENER("removeNotificationListener"),
+        GET_MBEAN_INFO("getMBeanInfo"),
+        IS_INSTANCE_OF("isInstanceOf"),
+        INSTANTIATE("instantiate"),
+        DESERIALIZE("deserialize"),
+        GET_CLASS_LOADER_FOR("getClassLoaderFor"),
+        GET_CLASS_LOADER("getClassLoader"),
+        GET_CLASS_LOADER_REPOSITORY("getClassLoaderRepository");
+
+        private final String methodName;
+
+        Op(String methodName) {
+            this.methodName = methodName;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+    }
+
+    private static final Op[] OPS = Op.values();
+
+    private static final class DomainStats {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final AtomicReferenceArray<LatencyHistogram> byOp = new AtomicReferenceArray<LatencyHistogram>(OPS.length);
+    private final LongAdder[] errorsByOp = new LongAdder[OPS.length];
+    private final ConcurrentHashMap<String, DomainStats> byDomain = new ConcurrentHashMap<String, DomainStats>();
+    private volatile boolean domainStats;
+
+    public AgentStats(boolean domainStats) {
+        this.domainStats = domainStats;
+        for (int i = 0; i < OPS.length; i++)
+            errorsByOp[i] = new LongAdder();
+    }
+
+    /**
+     * Creates an AgentStats configured from the {@code jmx.agent.stats}
+     * system properties, or returns null if statistics are disabled
+     * ({@code jmx.agent.stats=false}).
+     */
+    public static AgentStats createFromProperties() {
+        if (!Boolean.valueOf(System.getProperty(STATS_PROPERTY, "true")).booleanValue())
+            return null;
+        return new AgentStats(Boolean.valueOf(System.getProperty(STATS_DOMAINS_PROPERTY, "false")).booleanValue());
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param op      the called method.
+     * @param name    the target MBean, or null.
+     * @param startNanos the {@link System#nanoTime()} at the start of the
+     *                call.
+     * @param success false if the call threw an exception.
+     */
+    public void record(Op op, ObjectName name, long startNanos, boolean success) {
+        final long nanos = System.nanoTime() - startNanos;
+        final int i = op.ordinal();
+        LatencyHistogram h = byOp.get(i);
+        if (h == null) {
+            byOp.compareAndSet(i, null, new LatencyHistogram());
+            h = byOp.get(i);
+        }
+        h.record(nanos);
+        if (!success) errorsByOp[i].increment();
+
+        if (domainStats && name != null) {
+            final DomainStats d = domainStats(name.getDomain());
+            d.latencies.record(nanos);
+            if (!success) d.errors.increment();
+        }
+    }
+
+    private DomainStats domainStats(String domain) {
+        final DomainStats d = byDomain.get(domain);
+        if (d != null) return d;
+        synchronized (byDomain) {
+            if (byDomain.size() >= MAX_DOMAINS && !byDomain.containsKey(domain)) domain = OTHER_DOMAIN;
+            DomainStats created = byDomain.get(domain);
+            if (created == null) {
+                created = new DomainStats();
+                byDomain.put(domain, created);
+            }
+            return created;
+        }
+    }
+
+    public Map<String, OperationStats> getOperations() {
+        final Map<String, OperationStats> result = new TreeMap<String, OperationStats>();
+        for (int i = 0; i < OPS.length; i++) {
+            final LatencyHistogram h = byOp.get(i);
+            if (h != null)
+                result.put(OPS[i].getMethodName(), new OperationStats(h.snapshot(), errorsByOp[i].sum()));
+        }
+        return result;
+    }
+
+    public Map<String, OperationStats> getDomains() {
+        final Map<String, OperationStats> result = new TreeMap<String, OperationStats>();
+        for (Map.Entry<String, DomainStats> e : byDomain.entrySet()) {
+            final DomainStats d = e.getValue();
+            result.put(e.getKey(), new OperationStats(d.latencies.snapshot(), d.errors.sum()));
+        }
+        return result;
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < OPS.length; i++) {
+            final LatencyHistogram h = byOp.get(i);
+            if (h != null) total += h.snapshot().getCount();
+        }
+        return total;
+    }
+
+    public long getTotalErrors() {
+        long total = 0;
+        for (LongAdder errors : errorsByOp) total += errors.sum();
+        return total;
+    }
+
+    public boolean isDomainStatsEnabled() {
+        return domainStats;
+    }
+
+    public void setDomainStatsEnabled(boolean enabled) {
+        this.domainStats = enabled;
+    }
+
+    public void reset() {
+        for (int i = 0; i < OPS.length; i++) {
+            final LatencyHistogram h = byOp.get(i);
+            if (h != null) h.reset();
+            errorsByOp[i].reset();
+        }
+        synchronized (byDomain) {
+            byDomain.clear();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.sudothought.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link AgentStats}, registered as
+ * {@code com.sudothought.jmx:type=AgentStats}.
+ */
+public interface AgentStatsMXBean {
+
+    /**
+     * Latency statistics by MBeanServer method (e.g. "getAttribute").
+     * Methods that were never called are omitted.
+     */
+    Map<String, OperationStats> getOperations();
+
+    /**
+     * Latency statistics by ObjectName domain, for calls that target an
+     * MBean. Empty unless domain statistics are enabled.
+     */
+    Map<String, OperationStats> getDomains();
+
+    long getTotalCount();
+
+    long getTotalErrors();
+
+    boolean isDomainStatsEnabled();
+
+    void setDomainStatsEnabled(boolean enabled);
+
+    void reset();
+}
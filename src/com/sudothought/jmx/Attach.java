@@ -35,11 +35,14 @@ package com.sudothought.jmx;
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
 
+import javax.management.InstanceNotFoundException;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 import javax.rmi.ssl.SslRMIClientSocketFactory;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -48,6 +51,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Create a secure connector that can be accessed remotely through the
@@ -59,6 +63,12 @@ import java.util.Map;
  * <p/>
  * You can query whether the connector is still running using {@code [status]}.
  * <p/>
+ * {@code [fleet start|status|stop <pids|regex>]} does the same on many
+ * JVMs in parallel, see {@link Fleet}.
+ * <p/>
+ * {@code [daemon]} keeps running and answers status/stop commands read from
+ * standard input, over connections kept open by an {@link AgentClient}.
+ * <p/>
  * Use {@code [help]} for more info.
  *
  * @author dfuchs
@@ -79,6 +89,14 @@ public class Attach {
     public static JMXServiceURL getUrlForClient() throws UnknownHostException, MalformedURLException {
         final String hostname = InetAddress.getLocalHost().getHostName();
         final int port = JmxAgent.getServerPort();
+        return getUrlForClient(hostname, port);
+    }
+
+    /**
+     * Builds the JMXServiceURL of the agent listening on the given host and
+     * port.
+     */
+    public static JMXServiceURL getUrlForClient(String hostname, int port) throws MalformedURLException {
         return new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + hostname + ":" + port + "/jmxrmi");
     }
 
@@ -90,7 +108,7 @@ public class Attach {
      * @throws java.io.IOException
      */
     public static JMXConnector connect(JMXServiceURL url) throws IOException {
-        final SslRMIClientSocketFactory csf = new SslRMIClientSocketFactory();
+        final SslRMIClientSocketFactory csf = CompressingSslRMIClientSocketFactory.createFromProperties();
         final Map<String, Object> env = new HashMap<String, Object>();
         env.put("com.sun.jndi.rmi.factory.socket", csf);
 
@@ -113,12 +131,20 @@ public class Attach {
      * @return
      */
     public static String getAgentArgs() {
+        return getAgentArgs(JmxAgent.getServerPort());
+    }
+
+    /**
+     * Builds the agentArgs string of an agent listening on the given port.
+     * Used by {@link Fleet}.
+     */
+    public static String getAgentArgs(int port) {
         final StringBuilder builder = new StringBuilder();
         builder.append(Stopper.STOPPER_PROPERTY).append("=");
         builder.append(System.getProperty(Stopper.STOPPER_PROPERTY, Stopper.STOPPER_NAME));
         builder.append(";");
         builder.append(JmxAgent.PORT_PROPERTY).append("=");
-        builder.append(System.getProperty(JmxAgent.PORT_PROPERTY, JmxAgent.DEFAULT_PORT));
+        builder.append(port);
         final String sendssl = System.getProperty(SEND_SSL_PROPERTIES, "false");
 
         if (Boolean.valueOf(sendssl).booleanValue()) {
@@ -160,6 +186,27 @@ public class Attach {
      * @throws java.lang.Exception
      */
     public static JMXServiceURL start(String pid) throws Exception {
+        final AgentClient client = new AgentClient();
+        try {
+            return start(pid, client);
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Attach to the given PID, and starts a secure StoppableAgent. The
+     * connection used to check that the agent is running is left open in
+     * {@code client}.
+     *
+     * @param pid    the pid to attach to.
+     * @param client the client used to connect to the started agent.
+     * @return the JMXServiceURL to use in order to connect to the created
+     *         connector server.
+     * @throws java.lang.Exception
+     */
+    public static JMXServiceURL start(String pid, AgentClient client) throws Exception {
 
         // attach to the target application
         final VirtualMachine vm;
@@ -176,23 +223,26 @@ public class Attach {
             throw new IllegalArgumentException(pid, x);
         }
 
-        final URL agent = JmxStoppableAgent.class.getProtectionDomain().getCodeSource().getLocation();
-        System.out.println("loading " + agent.getFile());
-        vm.loadAgent(agent.getFile(), getAgentArgs());
-
-        final SslRMIClientSocketFactory csf = new SslRMIClientSocketFactory();
-        final Map<String, Object> env = new HashMap<String, Object>();
-        env.put("com.sun.jndi.rmi.factory.socket", csf);
+        final String agent = getAgentFile();
+        System.out.println("loading " + agent);
+        vm.loadAgent(agent, getAgentArgs());
 
         // Check that we can connect
         final JMXServiceURL url = getUrlForClient();
-        final JMXConnector c = JMXConnectorFactory.connect(url, env);
-        c.close();
+        client.status(url);
 
         return url;
     }
 
 
+    /**
+     * The jar of the StoppableAgent, loaded into the target processes.
+     */
+    static String getAgentFile() {
+        final URL agent = JmxStoppableAgent.class.getProtectionDomain().getCodeSource().getLocation();
+        return agent.getFile();
+    }
+
     /**
      * Stops a connector server created by start(). It is important to
      * give the same set of System properties when invoking start and stop.
@@ -211,6 +261,89 @@ public class Attach {
         }
     }
 
+    /**
+     * Samples the stacks of the agent's JVM with its Profiler, and prints
+     * them as collapsed stacks, for flame graphs. Found like stop(). The
+     * agent must have been started with {@code jmx.agent.profiler=true}.
+     *
+     * @param seconds the sampling time.
+     * @throws java.lang.Exception
+     */
+    public static void profile(long seconds) throws Exception {
+        final JMXServiceURL url = getUrlForClient();
+        final JMXConnector c = connect(url);
+        try {
+            System.out.print(c.getMBeanServerConnection().invoke(
+                    JmxAgent.getAgentMBeanName("Profiler"), "profile",
+                    new Object[]{Long.valueOf(TimeUnit.SECONDS.toMillis(seconds))}, new String[]{"long"}));
+        }
+        catch (InstanceNotFoundException x) {
+            throw new IOException("the agent has no profiler: start it with -D" + Profiler.PROFILER_PROPERTY
+                                  + "=true", x);
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Answers commands read from standard input, one per line, until
+     * {@code quit} or end of input. Connections to the agents are kept open
+     * between commands.
+     * <ul>
+     * <li>{@code status [host:]port} prints the number of MBeans of the agent</li>
+     * <li>{@code stop [host:]port} stops the agent</li>
+     * <li>{@code stats} prints the connect and handshake timings of each agent</li>
+     * <li>{@code quit}</li>
+     * </ul>
+     * The host defaults to the local host.
+     *
+     * @throws java.io.IOException
+     */
+    public static void daemon() throws IOException {
+        final AgentClient client = new AgentClient();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] words = line.trim().split("\\s+");
+                if (words[0].length() == 0) continue;
+                if ("quit".equals(words[0])) break;
+                if ("stats".equals(words[0])) {
+                    for (AgentClient.TargetStats s : client.getTargetStats())
+                        System.out.println(s);
+                    System.out.println("OK");
+                    continue;
+                }
+                if (words.length != 2 || !("status".equals(words[0]) || "stop".equals(words[0]))) {
+                    System.out.println("ERROR unrecognized command: " + line);
+                    continue;
+                }
+                try {
+                    final JMXServiceURL url = getUrlForTarget(words[1]);
+                    if ("status".equals(words[0]))
+                        System.out.println("OK " + client.status(url));
+                    else {
+                        client.stop(url);
+                        System.out.println("OK");
+                    }
+                }
+                catch (Exception x) {
+                    System.out.println("ERROR " + x);
+                }
+            }
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    private static JMXServiceURL getUrlForTarget(String target) throws UnknownHostException, MalformedURLException {
+        final int colon = target.lastIndexOf(':');
+        final String hostname = colon < 0 ? InetAddress.getLocalHost().getHostName() : target.substring(0, colon);
+        return getUrlForClient(hostname, Integer.parseInt(target.substring(colon + 1)));
+    }
+
     /**
      * Prints crude help string.
      */
@@ -232,6 +365,13 @@ public class Attach {
      * <p/>
      * {@code stop} stops the connector server created by start.
      * <p/>
+     * {@code daemon} answers status and stop commands read from standard
+     * input, see {@link #daemon()}.
+     * <p/>
+     * {@code fleet start|status|stop <pids|regex>} runs the command on many
+     * JVMs in parallel, chosen by a comma separated list of PIDs or a
+     * regular expression on their display names, see {@link Fleet}.
+     * <p/>
      * For all the above methods, the following System properties are needed:
      * {@code
      * -Djavax.net.ssl.keyStore=<keystore>
@@ -271,6 +411,26 @@ public class Attach {
             return;
         }
 
+        if ("daemon".equals(args[0])) {
+            daemon();
+            return;
+        }
+
+        if ("fleet".equals(args[0])) {
+            if (args.length != 3 || !args[1].matches("start|status|stop"))
+                syntaxError(args, args.length < 3 ? args.length : 1);
+            if (!Fleet.main(args[1], args[2]))
+                throw new IllegalStateException("some JVMs failed");
+            return;
+        }
+
+        if ("profile".equals(args[0])) {
+            if (args.length != 2)
+                syntaxError(args, args.length < 2 ? 1 : 2);
+            profile(Long.parseLong(args[1]));
+            return;
+        }
+
         if ("help".equals(args[0])) {
             help();
             return;
@@ -294,7 +454,7 @@ public class Attach {
         syntaxError(args, 0);
     }
 
-    private final static String SYNTAX = Attach.class.getSimpleName() + " {start <pid> | stop | status | list | help}";
+    private final static String SYNTAX = Attach.class.getSimpleName() + " {start <pid> | stop | status | profile <seconds> | daemon | fleet {start|status|stop} <pids|regex> | list | help}";
 
     private static void syntaxError(String[] args, int i) {
         String msg;
@@ -0,0 +1,426 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link AttributeInterceptor} that serves repeated reads of the same
+ * attribute from a bounded cache, so that many clients polling the same
+ * MBeans cost one underlying read per TTL window.
+ * <p/>
+ * Each attribute can be given its own TTL with {@link #setTtl}; attributes
+ * without a specific TTL use the default TTL. A TTL of 0 disables caching
+ * for that attribute. Concurrent misses on the same attribute are coalesced
+ * into a single read. Writing an attribute through the forwarder invalidates
+ * its cached value; a batch read that overlapped the write does not cache
+ * what it read, as it may be the old value.
+ * <p/>
+ * The entries are kept in access order: when the cache is full, the least
+ * recently used entry is dropped.
+ */
+public class AttributeCache extends AttributeInterceptor implements AttributeCacheMXBean {
+
+    public static final String CACHE_TTL_PROPERTY        = "jmx.agent.cache.ttl";
+    public static final String CACHE_SIZE_PROPERTY       = "jmx.agent.cache.size";
+    public static final String CACHE_MBEANS_PROPERTY     = "jmx.agent.cache.mbeans";
+    public static final String CACHE_ATTRIBUTES_PROPERTY = "jmx.agent.cache.attributes";
+    public static final String DEFAULT_CACHE_SIZE        = "10000";
+
+    private static final class Key {
+        final ObjectName name;
+        final String attribute;
+        final int hash;
+
+        Key(ObjectName name, String attribute) {
+            this.name = name;
+            this.attribute = attribute;
+            this.hash = 31 * name.hashCode() + attribute.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key k = (Key)o;
+            return attribute.equals(k.attribute) && name.equals(k.name);
+        }
+    }
+
+    private static final class Slot {
+        final FutureTask<Object> value;
+        volatile long expires;
+
+        Slot(FutureTask<Object> value) {
+            this.value = value;
+        }
+
+        boolean isLive(long now) {
+            return !value.isDone() || now - expires < 0;
+        }
+    }
+
+    // Invalidation generations, striped by key hash. A stripe is bumped
+    // after each write of one of its keys.
+    private static final int GENERATION_STRIPES = 256;
+
+    // Guarded by itself.
+    private final LinkedHashMap<Key, Slot> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final ConcurrentHashMap<String, Long> ttls = new ConcurrentHashMap<String, Long>();
+    private final int maxSize;
+    private volatile long defaultTtl;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Create a new AttributeCache.
+     *
+     * @param mbean      the MBean(s) whose attributes are cached, null for
+     *                   all MBeans.
+     * @param defaultTtl the default time to live of a cached value, in
+     *                   milliseconds.
+     * @param maxSize    the maximum number of cached attribute values.
+     */
+    public AttributeCache(ObjectName mbean, long defaultTtl, int maxSize) {
+        super(mbean, null);
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize: " + maxSize);
+        this.defaultTtl = defaultTtl;
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<Key, Slot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Slot> eldest) {
+                if (size() <= AttributeCache.this.maxSize) return false;
+                if (eldest.getValue().isLive(System.nanoTime())) evictions.increment();
+                else expirations.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Creates an AttributeCache configured from the {@code jmx.agent.cache.*}
+     * system properties, or returns null if {@code jmx.agent.cache.ttl} is
+     * not set.
+     * {@code jmx.agent.cache.attributes} holds per-attribute TTLs, as in
+     * {@code HeapMemoryUsage=5000,ThreadCount=1000}.
+     */
+    public static AttributeCache createFromProperties() {
+        final String ttl = System.getProperty(CACHE_TTL_PROPERTY);
+        if (ttl == null || ttl.length() == 0) return null;
+        final String mbeans = System.getProperty(CACHE_MBEANS_PROPERTY);
+        final int size = Integer.parseInt(System.getProperty(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE));
+        try {
+            final ObjectName pattern = mbeans == null || mbeans.length() == 0 ? null : ObjectName.getInstance(mbeans);
+            final AttributeCache cache = new AttributeCache(pattern, Long.parseLong(ttl), size);
+            final String attributes = System.getProperty(CACHE_ATTRIBUTES_PROPERTY);
+            if (attributes != null && attributes.length() > 0) {
+                for (String s : attributes.split(",")) {
+                    final int eq = s.indexOf('=');
+                    if (eq < 0) throw new IllegalArgumentException(CACHE_ATTRIBUTES_PROPERTY + ": " + s);
+                    cache.setTtl(s.substring(0, eq).trim(), Long.parseLong(s.substring(eq + 1).trim()));
+                }
+            }
+            return cache;
+        }
+        catch (MalformedObjectNameException x) {
+            throw new IllegalArgumentException(mbeans, x);
+        }
+    }
+
+    /**
+     * The agent's own MBeans (such as this cache) are never cached.
+     */
+    @Override
+    public boolean matches(ObjectName name) {
+        if (name != null && JmxAgent.AGENT_DOMAIN.equals(name.getDomain())) return false;
+        return super.matches(name);
+    }
+
+    /**
+     * Sets the TTL of the given attribute, in milliseconds. 0 disables
+     * caching of that attribute.
+     */
+    public void setTtl(String attribute, long ttlMillis) {
+        ttls.put(attribute, Long.valueOf(ttlMillis));
+    }
+
+    public long getTtl(String attribute) {
+        final Long ttl = ttls.get(attribute);
+        return ttl == null ? defaultTtl : ttl.longValue();
+    }
+
+    @Override
+    public Object getAttribute(final MBeanServer server, final ObjectName mbean, final String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        final long ttl = getTtl(attribute);
+        if (ttl <= 0)
+            return server.getAttribute(mbean, attribute);
+
+        final Key key = new Key(mbean, attribute);
+        while (true) {
+            final long now = System.nanoTime();
+            final Slot slot = slot(key);
+            if (slot != null && slot.isLive(now)) {
+                hits.increment();
+                return get(slot);
+            }
+
+            final Slot load = new Slot(new FutureTask<Object>(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return server.getAttribute(mbean, attribute);
+                }
+            }));
+            synchronized (cache) {
+                if (cache.get(key) != slot) continue;
+                cache.put(key, load);
+            }
+            if (slot != null) expirations.increment();
+
+            misses.increment();
+            load.value.run();
+            load.expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl);
+            try {
+                return get(load);
+            }
+            catch (MBeanException x) {
+                remove(key, load);
+                throw x;
+            }
+            catch (AttributeNotFoundException x) {
+                remove(key, load);
+                throw x;
+            }
+            catch (InstanceNotFoundException x) {
+                remove(key, load);
+                throw x;
+            }
+            catch (ReflectionException x) {
+                remove(key, load);
+                throw x;
+            }
+            catch (RuntimeException x) {
+                remove(key, load);
+                throw x;
+            }
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(MBeanServer server, ObjectName mbean, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        final long now = System.nanoTime();
+        final Map<String, Attribute> values = new HashMap<String, Attribute>();
+        final List<String> missing = new ArrayList<String>();
+        for (String attribute : attributes) {
+            if (getTtl(attribute) <= 0) {
+                missing.add(attribute);
+                continue;
+            }
+            final Slot slot = slot(new Key(mbean, attribute));
+            if (slot != null && slot.value.isDone() && slot.isLive(now)) {
+                try {
+                    values.put(attribute, new Attribute(attribute, slot.value.get()));
+                    hits.increment();
+                    continue;
+                }
+                catch (Exception x) {
+                    // failed read, not cached: read it again below.
+                }
+            }
+            misses.increment();
+            missing.add(attribute);
+        }
+
+        if (!missing.isEmpty()) {
+            final long[] before = new long[missing.size()];
+            for (int i = 0; i < before.length; i++)
+                before[i] = generations.get(stripe(new Key(mbean, missing.get(i))));
+            final AttributeList read = server.getAttributes(mbean, missing.toArray(new String[missing.size()]));
+            for (Attribute a : read.asList()) {
+                values.put(a.getName(), a);
+                final int i = missing.indexOf(a.getName());
+                final long ttl = getTtl(a.getName());
+                if (i >= 0 && ttl > 0) put(new Key(mbean, a.getName()), a.getValue(), ttl, before[i]);
+            }
+        }
+
+        final AttributeList result = new AttributeList(values.size());
+        for (String attribute : attributes) {
+            final Attribute a = values.get(attribute);
+            if (a != null) result.add(a);
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(MBeanServer server, ObjectName mbean, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException {
+        final Key key = new Key(mbean, attribute.getName());
+        invalidate(key);
+        try {
+            server.setAttribute(mbean, attribute);
+        }
+        finally {
+            // a read started before the write may have cached the old value.
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public AttributeList setAttributes(MBeanServer server, ObjectName mbean, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        invalidate(mbean, attributes);
+        try {
+            return server.setAttributes(mbean, attributes);
+        }
+        finally {
+            invalidate(mbean, attributes);
+        }
+    }
+
+    private void invalidate(ObjectName mbean, AttributeList attributes) {
+        for (Attribute a : attributes.asList())
+            invalidate(new Key(mbean, a.getName()));
+    }
+
+    // The generation is bumped before the entry is removed, so that a batch
+    // read either sees the new generation or has its entry removed.
+    private void invalidate(Key key) {
+        generations.incrementAndGet(stripe(key));
+        synchronized (cache) {
+            cache.remove(key);
+        }
+    }
+
+    private static int stripe(Key key) {
+        return (key.hash ^ (key.hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    private Slot slot(Key key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private void remove(Key key, Slot slot) {
+        synchronized (cache) {
+            if (cache.get(key) == slot) cache.remove(key);
+        }
+    }
+
+    /**
+     * Caches a value read by a batch, unless its key was invalidated since
+     * the generation {@code before} was taken.
+     */
+    private void put(Key key, Object value, long ttl, long before) {
+        final FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+            public void run() {
+            }
+        }, value);
+        task.run();
+        final Slot slot = new Slot(task);
+        slot.expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl);
+        final int stripe = stripe(key);
+        if (generations.get(stripe) != before) return;
+        synchronized (cache) {
+            cache.put(key, slot);
+        }
+        // a write may have completed its invalidation before the put.
+        if (generations.get(stripe) != before) remove(key, slot);
+    }
+
+    private static Object get(Slot slot)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        try {
+            return slot.value.get();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new ReflectionException(x, "interrupted while reading attribute");
+        }
+        catch (ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof MBeanException) throw (MBeanException)cause;
+            if (cause instanceof AttributeNotFoundException) throw (AttributeNotFoundException)cause;
+            if (cause instanceof InstanceNotFoundException) throw (InstanceNotFoundException)cause;
+            if (cause instanceof ReflectionException) throw (ReflectionException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new ReflectionException((Exception)cause, "attribute read failed: " + cause);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public double getHitRate() {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double)h / total;
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getDefaultTtl() {
+        return defaultTtl;
+    }
+
+    public void setDefaultTtl(long ttlMillis) {
+        this.defaultTtl = ttlMillis;
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.sudothought.jmx;
+
+/**
+ * Management interface of the {@link AttributeCache}, registered as
+ * {@code com.sudothought.jmx:type=AttributeCache}.
+ */
+public interface AttributeCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    /**
+     * Entries dropped because the cache was full.
+     */
+    long getEvictions();
+
+    /**
+     * Entries dropped because their TTL expired.
+     */
+    long getExpirations();
+
+    double getHitRate();
+
+    int getSize();
+
+    int getMaxSize();
+
+    long getDefaultTtl();
+
+    void setDefaultTtl(long ttlMillis);
+
+    void clear();
+}
@@ -0,0 +1,121 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * An interceptor that can be used to intercept get/set attribute calls on a
+ * (set of) MBeans. This is the attribute counterpart of
+ * {@link InvokeOperationInterceptor}.
+ * This class is intended to be subclassed in order to implement specific
+ * behaviour. By default it acts as a pass-through.
+ * Instances of this class (or of its subclasses) can then be added to
+ * a {@link ForwardingInterceptor}.
+ * <p/>
+ * When a {@code getAttributes} or {@code setAttributes} call names several
+ * attributes, the {@link ForwardingInterceptor} splits it: each interceptor
+ * receives only the attributes it matches, and the remaining attributes are
+ * read or written directly on the MBeanServer.
+ * <p/>
+ * See {@link AttributeCache} for a concrete example.
+ */
+public class AttributeInterceptor {
+
+    /**
+     * The names of the MBeans on which attribute calls should be intercepted.
+     * This can be a single MBean name, or a pattern. A null ObjectName is
+     * equivalent to a wildcard.
+     */
+    public final ObjectName mbeanName;
+
+    /**
+     * The name of the intercepted attribute. This must be the exact
+     * attribute name, or null for all attributes.
+     */
+    public final String attributeName;
+
+    /**
+     * Create a new AttributeInterceptor.
+     *
+     * @param mbean     the MBean(s) on which attribute calls will be
+     *                  intercepted.
+     * @param attribute the name of the attribute to intercept (e.g.
+     *                  "HeapMemoryUsage"), or null for all attributes.
+     */
+    public AttributeInterceptor(ObjectName mbean, String attribute) {
+        this.mbeanName = mbean;
+        this.attributeName = attribute;
+    }
+
+    /**
+     * True if the given MBean is matched by this interceptor.
+     *
+     * @param name the candidate MBean.
+     * @return true if the MBean is matched by this interceptor.
+     */
+    public boolean matches(ObjectName name) {
+        if (mbeanName == null) {
+            return true;
+        }
+        return mbeanName.apply(name);
+    }
+
+    /**
+     * True if the given attribute name is matched by this interceptor.
+     *
+     * @param attribute the candidate attribute.
+     * @return true if the attribute name is matched by this interceptor.
+     */
+    public boolean matches(String attribute) {
+        if (attributeName == null) {
+            return true;
+        }
+        return attributeName.equals(attribute);
+    }
+
+    /**
+     * Intercept an attribute read. By default simply calls
+     * {@code server.getAttribute(mbean, attribute)}.
+     */
+    public Object getAttribute(MBeanServer server, ObjectName mbean, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        return server.getAttribute(mbean, attribute);
+    }
+
+    /**
+     * Intercept a bulk attribute read. {@code attributes} only contains the
+     * attributes matched by this interceptor. By default simply calls
+     * {@code server.getAttributes(mbean, attributes)}.
+     */
+    public AttributeList getAttributes(MBeanServer server, ObjectName mbean, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        return server.getAttributes(mbean, attributes);
+    }
+
+    /**
+     * Intercept an attribute write. By default simply calls
+     * {@code server.setAttribute(mbean, attribute)}.
+     */
+    public void setAttribute(MBeanServer server, ObjectName mbean, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException {
+        server.setAttribute(mbean, attribute);
+    }
+
+    /**
+     * Intercept a bulk attribute write. {@code attributes} only contains the
+     * attributes matched by this interceptor. By default simply calls
+     * {@code server.setAttributes(mbean, attributes)}.
+     */
+    public AttributeList setAttributes(MBeanServer server, ObjectName mbean, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        return server.setAttributes(mbean, attributes);
+    }
+}
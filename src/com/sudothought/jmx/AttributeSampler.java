@@ -0,0 +1,383 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples numeric attributes inside the agent, at a period down to 100ms,
+ * into fixed-size ring buffers. Published as
+ * {@code com.sudothought.jmx:type=Sampler}; the samples are pulled through
+ * the {@code samples(long)} operation of the "fake"
+ * {@code JMImplementation:type=JMXAgentSampler} MBean, which, as with the
+ * {@link Stopper} MBean, is only recognized by the MBeanServerForwarder.
+ * <p/>
+ * The sampled attributes are given by rules, one per line:
+ * <pre>
+ * &lt;ObjectName pattern&gt; &lt;attribute&gt;[.&lt;CompositeData key&gt;]
+ *
+ * java.lang:type=Memory HeapMemoryUsage.used
+ * java.lang:type=MemoryPool,* Usage.used
+ * </pre>
+ * Patterns are resolved once, when the sampler is created: each matching
+ * MBean gives a series. Lines starting with {@code #} are comments.
+ * <p/>
+ * All buffers are allocated up front: one {@code long[]} of timestamps
+ * shared by all series, and one {@code double[]} per series, written in
+ * place. Each sample reads every MBean with a single getAttributes call on
+ * the platform MBeanServer, outside of the connector's forwarders. Values
+ * that can't be read are stored as NaN.
+ * <pre>
+ * jmx.agent.sampler            true to enable
+ * jmx.agent.sampler.period     interval between samples, in ms (default 1000, minimum 100)
+ * jmx.agent.sampler.capacity   samples kept per series (default 600)
+ * jmx.agent.sampler.rules      file of rules (default: heap, threads, memory pools, CPU load)
+ * </pre>
+ */
+public class AttributeSampler implements AttributeSamplerMXBean, Closeable {
+
+    public static final String SAMPLER_PROPERTY  = "jmx.agent.sampler";
+    public static final String PERIOD_PROPERTY   = "jmx.agent.sampler.period";
+    public static final String CAPACITY_PROPERTY = "jmx.agent.sampler.capacity";
+    public static final String RULES_PROPERTY    = "jmx.agent.sampler.rules";
+    public static final String SAMPLES           = "samples";
+    public static final long   MIN_PERIOD        = 100;
+
+    public static final String[] DEFAULT_RULES = {
+            "java.lang:type=Memory HeapMemoryUsage.used",
+            "java.lang:type=Memory NonHeapMemoryUsage.used",
+            "java.lang:type=Threading ThreadCount",
+            "java.lang:type=MemoryPool,* Usage.used",
+            "java.lang:type=OperatingSystem ProcessCpuLoad",
+    };
+
+    private static final String[] SIGNATURE = {
+            long.class.getName()
+    };
+
+    // The series read from one MBean.
+    private static final class Target {
+        final ObjectName name;
+        final String[] attributes;
+        // By series of this MBean: its attribute, key and index.
+        final int[] attributeOf;
+        final String[] keyOf;
+        final int[] seriesOf;
+
+        Target(ObjectName name, List<String> attributes, List<String> series) {
+            this.name = name;
+            final List<String> unique = new ArrayList<String>();
+            this.attributeOf = new int[attributes.size()];
+            this.keyOf = new String[attributes.size()];
+            this.seriesOf = new int[attributes.size()];
+            for (int i = 0; i < attributes.size(); i++) {
+                final String attribute = attributes.get(i);
+                final int dot = attribute.indexOf('.');
+                final String attributeName = dot < 0 ? attribute : attribute.substring(0, dot);
+                if (!unique.contains(attributeName)) unique.add(attributeName);
+                attributeOf[i] = unique.indexOf(attributeName);
+                keyOf[i] = dot < 0 ? null : attribute.substring(dot + 1);
+                seriesOf[i] = series.indexOf(name.getCanonicalName() + " " + attribute);
+            }
+            this.attributes = unique.toArray(new String[unique.size()]);
+        }
+    }
+
+    private final MBeanServer server;
+    private final long period;
+    private final int capacity;
+    private final String[] series;
+    private final Target[] targets;
+    private final long[] timestamps;
+    private final double[][] values;
+    // The values of the sample being read.
+    private final double[] current;
+    private final ScheduledExecutorService scheduler;
+    // Guarded by this.
+    private long count;
+    private volatile long overruns;
+    private volatile long readErrors;
+    private volatile double lastSampleMicros;
+
+    /**
+     * Resolves the rules and allocates the buffers. The sampler is not
+     * started.
+     *
+     * @param server   the MBeanServer to read.
+     * @param rules    the rules, see above.
+     * @param period   interval between samples, in milliseconds.
+     * @param capacity samples kept per series.
+     * @throws IllegalArgumentException if a rule is invalid.
+     */
+    public AttributeSampler(MBeanServer server, List<String> rules, long period, int capacity) {
+        if (period < MIN_PERIOD) throw new IllegalArgumentException("period must be at least " + MIN_PERIOD + "ms");
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.server = server;
+        this.period = period;
+        this.capacity = capacity;
+
+        final Map<ObjectName, List<String>> byName = new LinkedHashMap<ObjectName, List<String>>();
+        final List<String> series = new ArrayList<String>();
+        for (String rule : rules) {
+            rule = rule.trim();
+            if (rule.length() == 0 || rule.startsWith("#")) continue;
+            final int space = rule.lastIndexOf(' ');
+            if (space < 0) throw new IllegalArgumentException("invalid sampler rule: " + rule);
+            final String attribute = rule.substring(space + 1);
+            final ObjectName pattern;
+            try {
+                pattern = ObjectName.getInstance(rule.substring(0, space).trim());
+            }
+            catch (MalformedObjectNameException x) {
+                throw new IllegalArgumentException("invalid sampler rule: " + rule, x);
+            }
+            for (ObjectName name : server.queryNames(pattern, null)) {
+                final String s = name.getCanonicalName() + " " + attribute;
+                if (series.contains(s)) continue;
+                series.add(s);
+                List<String> attributes = byName.get(name);
+                if (attributes == null) {
+                    attributes = new ArrayList<String>();
+                    byName.put(name, attributes);
+                }
+                attributes.add(attribute);
+            }
+        }
+        this.series = series.toArray(new String[series.size()]);
+        this.targets = new Target[byName.size()];
+        int i = 0;
+        for (Map.Entry<ObjectName, List<String>> e : byName.entrySet())
+            targets[i++] = new Target(e.getKey(), e.getValue(), series);
+
+        this.timestamps = new long[capacity];
+        this.values = new double[this.series.length][capacity];
+        this.current = new double[this.series.length];
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "JMX Agent Sampler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Creates a sampler configured from the {@code jmx.agent.sampler}
+     * system properties, or returns null if it is not enabled.
+     *
+     * @param server the MBeanServer to read.
+     */
+    public static AttributeSampler createFromProperties(MBeanServer server) throws IOException {
+        if (!Boolean.valueOf(System.getProperty(SAMPLER_PROPERTY, "false")).booleanValue())
+            return null;
+        final long period = Long.parseLong(System.getProperty(PERIOD_PROPERTY, "1000"));
+        final int capacity = Integer.parseInt(System.getProperty(CAPACITY_PROPERTY, "600"));
+        final String file = System.getProperty(RULES_PROPERTY);
+        if (file == null)
+            return new AttributeSampler(server, Arrays.asList(DEFAULT_RULES), period, capacity);
+
+        final List<String> rules = new ArrayList<String>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                rules.add(line);
+        }
+        finally {
+            in.close();
+        }
+        return new AttributeSampler(server, rules, period, capacity);
+    }
+
+    /**
+     * Starts sampling.
+     */
+    public void start() {
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling. The buffered samples can still be pulled.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void sample() {
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        Arrays.fill(current, Double.NaN);
+        for (Target target : targets) {
+            final AttributeList list;
+            try {
+                list = server.getAttributes(target.name, target.attributes);
+            }
+            catch (Exception x) {
+                readErrors++;
+                continue;
+            }
+            for (Attribute a : list.asList()) {
+                final String name = a.getName();
+                for (int i = 0; i < target.seriesOf.length; i++) {
+                    if (target.attributes[target.attributeOf[i]].equals(name))
+                        current[target.seriesOf[i]] = toDouble(a.getValue(), target.keyOf[i]);
+                }
+            }
+        }
+
+        synchronized (this) {
+            final int slot = (int)(count % capacity);
+            timestamps[slot] = now;
+            for (int s = 0; s < current.length; s++)
+                values[s][slot] = current[s];
+            count++;
+        }
+
+        final long nanos = System.nanoTime() - start;
+        lastSampleMicros = nanos / 1e3;
+        if (nanos > TimeUnit.MILLISECONDS.toNanos(period)) overruns++;
+    }
+
+    private static double toDouble(Object value, String key) {
+        if (key != null) {
+            if (!(value instanceof CompositeData)) return Double.NaN;
+            final CompositeData cd = (CompositeData)value;
+            if (!cd.containsKey(key)) return Double.NaN;
+            value = cd.get(key);
+        }
+        if (value instanceof Number) return ((Number)value).doubleValue();
+        if (value instanceof Boolean) return ((Boolean)value).booleanValue() ? 1 : 0;
+        return Double.NaN;
+    }
+
+    /**
+     * Copies the buffered samples, from the given sequence number on.
+     *
+     * @param since the sequence number of the first sample wanted: 0 for
+     *              all buffered samples, or the {@link
+     *              SampleSeries#getNextSequence()} of the previous pull.
+     */
+    public synchronized SampleSeries samples(long since) {
+        final long first = Math.min(Math.max(since, Math.max(0, count - capacity)), count);
+        final int n = (int)(count - first);
+        final long[] t = new long[n];
+        final double[][] v = new double[series.length][n];
+        for (int i = 0; i < n; i++) {
+            final int slot = (int)((first + i) % capacity);
+            t[i] = timestamps[slot];
+            for (int s = 0; s < series.length; s++)
+                v[s][i] = values[s][slot];
+        }
+        return new SampleSeries(series, first, t, v);
+    }
+
+    /**
+     * Creates an interceptor for the {@code samples(long)} operation of the
+     * "fake" Sampler MBean.
+     *
+     * @param sampler the sampler to pull from.
+     * @return the sampler interceptor.
+     */
+    public static InvokeOperationInterceptor createInterceptorFor(final AttributeSampler sampler) {
+
+        return new InvokeOperationInterceptor(getSamplerName(), SAMPLES) {
+
+            @Override
+            public Object intercept(MBeanServer server, ObjectName mbean,
+                                    String invoke, Object[] args, String[] signature) throws Exception {
+                if (args == null || args.length != 1 || !(args[0] instanceof Long))
+                    throw new IllegalArgumentException("Expected (long since)");
+                return sampler.samples(((Long)args[0]).longValue()).toCompositeData();
+            }
+
+            @Override
+            public ClassLoader getClassLoaderFor(MBeanServer server, ObjectName mbean) {
+                return AttributeSampler.class.getClassLoader();
+            }
+        };
+    }
+
+    /**
+     * Get the "fake" sampler MBean name.
+     *
+     * @return {@code JMImplementation:type=JMXAgentSampler}
+     */
+    public static ObjectName getSamplerName() {
+        try {
+            return ObjectName.getInstance("JMImplementation:type=JMXAgentSampler");
+        }
+        catch (MalformedObjectNameException x) {
+            throw new IllegalArgumentException(x);
+        }
+    }
+
+    /**
+     * Pulls the samples buffered by the agent to which {@code c} is
+     * connected, in a single round trip. Works only if the agent was
+     * configured with a sampler.
+     *
+     * @param c     a connection to the agent.
+     * @param since the sequence number of the first sample wanted.
+     */
+    public static SampleSeries samples(MBeanServerConnection c, long since) throws IOException {
+        try {
+            return SampleSeries.from((CompositeData)c.invoke(getSamplerName(), SAMPLES, new Object[]{since},
+                                                             SIGNATURE));
+        }
+        catch (JMException x) {
+            throw new IOException("can't pull samples: " + x, x);
+        }
+    }
+
+    public List<String> getSeries() {
+        return Collections.unmodifiableList(Arrays.asList(series));
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getSampleCount() {
+        return count;
+    }
+
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public long getReadErrors() {
+        return readErrors;
+    }
+
+    public double getLastSampleMicros() {
+        return lastSampleMicros;
+    }
+}
@@ -0,0 +1,47 @@
+package com.sudothought.jmx;
+
+import java.util.List;
+
+/**
+ * Management interface of the {@link AttributeSampler}, registered as
+ * {@code com.sudothought.jmx:type=Sampler}. The samples themselves are
+ * pulled through {@link AttributeSampler#samples}.
+ */
+public interface AttributeSamplerMXBean {
+
+    /**
+     * The sampled series, named {@code <ObjectName> <attribute>[.<key>]}.
+     */
+    List<String> getSeries();
+
+    /**
+     * Interval between two samples, in milliseconds.
+     */
+    long getPeriod();
+
+    /**
+     * Number of samples kept per series.
+     */
+    int getCapacity();
+
+    /**
+     * Number of samples taken since the sampler started; also the sequence
+     * number of the next sample.
+     */
+    long getSampleCount();
+
+    /**
+     * Samples that took longer than the period.
+     */
+    long getOverruns();
+
+    /**
+     * Reads of an MBean that failed.
+     */
+    long getReadErrors();
+
+    /**
+     * Duration of the last sample, in microseconds.
+     */
+    double getLastSampleMicros();
+}
@@ -0,0 +1,346 @@
+package com.sudothought.jmx;
+
+import javax.management.JMRuntimeException;
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the MBean calls of a {@link BoundedForwarder} on separate threads,
+ * with a deadline per call and a bulkhead per ObjectName domain. Published
+ * as {@code com.sudothought.jmx:type=BoundedExecutor}.
+ * <p/>
+ * Each domain may run a limited number of calls at once. A call waits for a
+ * slot in its domain until its deadline, then is rejected. A slot is held
+ * until the MBean returns, even if the caller has timed out, so that a hung
+ * MBean can only tie up the slots of its own domain. The number of tracked
+ * domains is bounded; calls on further domains share the {@code "<other>"}
+ * bulkhead.
+ * <p/>
+ * Calls run on virtual threads when the JDK has them, otherwise on a bounded
+ * pool of daemon threads. Rejections and timeouts are reported to the
+ * client as JMRuntimeExceptions, which any JMX client can deserialize.
+ * <p/>
+ * The calls don't run in the caller's access control context: with a
+ * security manager, MBeans see the permissions of the agent.
+ * <pre>
+ * jmx.agent.bounded              true to enable
+ * jmx.agent.bounded.timeout      deadline of a call, in ms (default 10000)
+ * jmx.agent.bounded.domainLimit  concurrent calls per domain (default 8)
+ * jmx.agent.bounded.limits       per domain limits, e.g. java.lang=16,com.acme=2
+ * jmx.agent.bounded.virtual      false to never use virtual threads
+ * jmx.agent.bounded.threads      size of the platform thread pool (default 32)
+ * jmx.agent.bounded.queue        size of its queue (default 256)
+ * </pre>
+ */
+public class BoundedExecutor implements BoundedExecutorMXBean, Closeable {
+
+    public static final String BOUNDED_PROPERTY      = "jmx.agent.bounded";
+    public static final String TIMEOUT_PROPERTY      = "jmx.agent.bounded.timeout";
+    public static final String DOMAIN_LIMIT_PROPERTY = "jmx.agent.bounded.domainLimit";
+    public static final String LIMITS_PROPERTY       = "jmx.agent.bounded.limits";
+    public static final String VIRTUAL_PROPERTY      = "jmx.agent.bounded.virtual";
+    public static final String THREADS_PROPERTY      = "jmx.agent.bounded.threads";
+    public static final String QUEUE_PROPERTY        = "jmx.agent.bounded.queue";
+    public static final int    MAX_DOMAINS           = AgentStats.MAX_DOMAINS;
+
+    private static final class Bulkhead {
+        final int limit;
+        final Semaphore slots;
+        final AtomicInteger waiting = new AtomicInteger();
+        final LongAdder rejections = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+
+        Bulkhead(int limit) {
+            this.limit = limit;
+            this.slots = new Semaphore(limit);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final int defaultDomainLimit;
+    private final Map<String, Integer> limits;
+    private final ConcurrentHashMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+    private volatile long timeoutNanos;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    /**
+     * @param timeout            deadline of a call, in milliseconds.
+     * @param defaultDomainLimit concurrent calls per domain.
+     * @param limits             per domain limits, overriding the default.
+     * @param useVirtualThreads  whether to use virtual threads if available.
+     * @param threads            size of the thread pool, if used.
+     * @param queue              size of the thread pool's queue.
+     */
+    public BoundedExecutor(long timeout, int defaultDomainLimit, Map<String, Integer> limits,
+                           boolean useVirtualThreads, int threads, int queue) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.defaultDomainLimit = defaultDomainLimit;
+        this.limits = new HashMap<String, Integer>(limits);
+        final ExecutorService virtualExecutor = useVirtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        this.executor = virtual ? virtualExecutor : newThreadPool(threads, queue);
+    }
+
+    /**
+     * Creates a BoundedExecutor configured from the
+     * {@code jmx.agent.bounded} system properties, or returns null if it is
+     * not enabled.
+     */
+    public static BoundedExecutor createFromProperties() {
+        if (!Boolean.valueOf(System.getProperty(BOUNDED_PROPERTY, "false")).booleanValue())
+            return null;
+        final Map<String, Integer> limits = new HashMap<String, Integer>();
+        final String s = System.getProperty(LIMITS_PROPERTY);
+        if (s != null && s.length() > 0) {
+            for (String limit : s.split(",")) {
+                final int eq = limit.lastIndexOf('=');
+                if (eq < 0) throw new IllegalArgumentException(LIMITS_PROPERTY + ": " + limit);
+                limits.put(limit.substring(0, eq).trim(), Integer.valueOf(limit.substring(eq + 1).trim()));
+            }
+        }
+        return new BoundedExecutor(Long.parseLong(System.getProperty(TIMEOUT_PROPERTY, "10000")),
+                                   Integer.parseInt(System.getProperty(DOMAIN_LIMIT_PROPERTY, "8")),
+                                   limits,
+                                   Boolean.valueOf(System.getProperty(VIRTUAL_PROPERTY, "true")).booleanValue(),
+                                   Integer.parseInt(System.getProperty(THREADS_PROPERTY, "32")),
+                                   Integer.parseInt(System.getProperty(QUEUE_PROPERTY, "256")));
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() exists from Java 21 on.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            final Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        }
+        catch (Exception x) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newThreadPool(int threads, int queue) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queue),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "JMX Agent Call " + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private Bulkhead bulkhead(String domain) {
+        final Bulkhead b = bulkheads.get(domain);
+        if (b != null) return b;
+        synchronized (bulkheads) {
+            if (bulkheads.size() >= MAX_DOMAINS && !bulkheads.containsKey(domain)) domain = AgentStats.OTHER_DOMAIN;
+            Bulkhead created = bulkheads.get(domain);
+            if (created == null) {
+                final Integer limit = limits.get(domain);
+                created = new Bulkhead(limit != null ? limit.intValue() : defaultDomainLimit);
+                bulkheads.put(domain, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Runs a call on behalf of the caller, and waits for its result until
+     * its deadline.
+     *
+     * @param domain the domain of the called MBean.
+     * @param task   the call.
+     * @return the result of the call.
+     * @throws Exception           the exception thrown by the call.
+     * @throws JMRuntimeException if the call was rejected or timed out.
+     */
+    public <T> T call(String domain, Callable<T> task) throws Exception {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        final Bulkhead bulkhead = bulkhead(domain);
+
+        bulkhead.waiting.incrementAndGet();
+        waiting.incrementAndGet();
+        final boolean acquired;
+        try {
+            acquired = bulkhead.slots.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new JMRuntimeException("interrupted while waiting to call domain " + domain);
+        }
+        finally {
+            bulkhead.waiting.decrementAndGet();
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            bulkhead.rejections.increment();
+            rejections.increment();
+            throw new JMRuntimeException("rejected: too many concurrent calls on domain " + domain);
+        }
+
+        final Call<T> call = new Call<T>(task, bulkhead, Thread.currentThread().getContextClassLoader());
+        final Future<T> future;
+        try {
+            future = executor.submit(call);
+        }
+        catch (RejectedExecutionException x) {
+            bulkhead.slots.release();
+            rejections.increment();
+            throw new JMRuntimeException("rejected: no thread available");
+        }
+
+        try {
+            return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException x) {
+            call.cancel(future);
+            bulkhead.timeouts.increment();
+            timeouts.increment();
+            throw new JMRuntimeException("timed out after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos)
+                                         + "ms calling domain " + domain);
+        }
+        catch (InterruptedException x) {
+            call.cancel(future);
+            Thread.currentThread().interrupt();
+            throw new JMRuntimeException("interrupted while calling domain " + domain);
+        }
+        catch (ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof Exception) throw (Exception)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw x;
+        }
+    }
+
+    // Runs a task in its domain's slot, and gives the slot back when the task
+    // returns - or when the task is cancelled before it started.
+    private final class Call<T> implements Callable<T> {
+        private final Callable<T> task;
+        private final Bulkhead bulkhead;
+        private final ClassLoader loader;
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Call(Callable<T> task, Bulkhead bulkhead, ClassLoader loader) {
+            this.task = task;
+            this.bulkhead = bulkhead;
+            this.loader = loader;
+        }
+
+        public T call() throws Exception {
+            if (!started.compareAndSet(false, true)) return null;
+            final Thread thread = Thread.currentThread();
+            final ClassLoader previous = thread.getContextClassLoader();
+            thread.setContextClassLoader(loader);
+            active.increment();
+            try {
+                return task.call();
+            }
+            finally {
+                thread.setContextClassLoader(previous);
+                active.decrement();
+                completed.increment();
+                bulkhead.slots.release();
+            }
+        }
+
+        void cancel(Future<T> future) {
+            future.cancel(true);
+            if (started.compareAndSet(false, true)) bulkhead.slots.release();
+        }
+    }
+
+    public String getThreadType() {
+        return virtual ? "virtual" : "platform";
+    }
+
+    public int getQueueDepth() {
+        final int queued = executor instanceof ThreadPoolExecutor
+                           ? ((ThreadPoolExecutor)executor).getQueue().size()
+                           : 0;
+        return waiting.get() + queued;
+    }
+
+    public long getActive() {
+        return active.sum();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    public void setTimeout(long millis) {
+        if (millis <= 0) throw new IllegalArgumentException("timeout must be positive: " + millis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public int getDefaultDomainLimit() {
+        return defaultDomainLimit;
+    }
+
+    public Map<String, BulkheadStats> getDomains() {
+        final Map<String, BulkheadStats> result = new TreeMap<String, BulkheadStats>();
+        for (Map.Entry<String, Bulkhead> e : bulkheads.entrySet()) {
+            final Bulkhead b = e.getValue();
+            result.put(e.getKey(), new BulkheadStats(b.limit, b.limit - b.slots.availablePermits(), b.waiting.get(),
+                                                     b.rejections.sum(), b.timeouts.sum()));
+        }
+        return result;
+    }
+
+    public void resetCounters() {
+        completed.reset();
+        rejections.reset();
+        timeouts.reset();
+        for (Bulkhead b : bulkheads.values()) {
+            b.rejections.reset();
+            b.timeouts.reset();
+        }
+    }
+
+    /**
+     * Stops the executor. Calls in progress are interrupted.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
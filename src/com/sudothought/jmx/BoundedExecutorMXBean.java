@@ -0,0 +1,58 @@
+package com.sudothought.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link BoundedExecutor}, registered as
+ * {@code com.sudothought.jmx:type=BoundedExecutor}.
+ */
+public interface BoundedExecutorMXBean {
+
+    /**
+     * "virtual" if calls run on virtual threads, "platform" otherwise.
+     */
+    String getThreadType();
+
+    /**
+     * Calls waiting for a slot in their domain, plus calls queued in the
+     * thread pool.
+     */
+    int getQueueDepth();
+
+    /**
+     * Calls running, including timed out calls the MBean has not returned
+     * from yet.
+     */
+    long getActive();
+
+    long getCompleted();
+
+    /**
+     * Calls refused because their domain or the thread pool was full.
+     */
+    long getRejections();
+
+    /**
+     * Calls that did not complete before their deadline.
+     */
+    long getTimeouts();
+
+    /**
+     * Deadline of a call, in milliseconds.
+     */
+    long getTimeout();
+
+    void setTimeout(long millis);
+
+    /**
+     * The concurrency limit of domains without a configured limit.
+     */
+    int getDefaultDomainLimit();
+
+    /**
+     * Load of each domain that received calls.
+     */
+    Map<String, BulkheadStats> getDomains();
+
+    void resetCounters();
+}
@@ -0,0 +1,247 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * An MBeanServerForwarder that runs the calls that reach into MBean code -
+ * attribute reads and writes, operations, MBeanInfo, and queries with a
+ * QueryExp - through a {@link BoundedExecutor}, so that a slow or hung MBean
+ * cannot hold the connector's threads beyond the executor's deadline.
+ * <p/>
+ * Calls that don't reach into MBeans, such as registration checks or plain
+ * name queries, are forwarded directly.
+ */
+public class BoundedForwarder extends DelegatingForwarder {
+
+    // Domain of the bulkhead of queries on all domains.
+    private static final String ALL_DOMAINS = "*";
+
+    private final BoundedExecutor executor;
+
+    public BoundedForwarder(BoundedExecutor executor) {
+        if (executor == null) throw new IllegalArgumentException("executor is null");
+        this.executor = executor;
+    }
+
+    public BoundedExecutor getExecutor() {
+        return executor;
+    }
+
+    private static String domainOf(ObjectName name) {
+        return name == null ? ALL_DOMAINS : name.getDomain();
+    }
+
+    // Runs a call that only throws the exceptions of the MBeanServer methods
+    // below, and rethrows them.
+    private <T> T call(ObjectName name, Callable<T> task)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException, IntrospectionException {
+        try {
+            return executor.call(domainOf(name), task);
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (AttributeNotFoundException x) {
+            throw x;
+        }
+        catch (InvalidAttributeValueException x) {
+            throw x;
+        }
+        catch (MBeanException x) {
+            throw x;
+        }
+        catch (ReflectionException x) {
+            throw x;
+        }
+        catch (IntrospectionException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw new MBeanException(x);
+        }
+    }
+
+    // For the calls that don't throw some of the above.
+    private static RuntimeException unexpected(Exception x) {
+        return new IllegalStateException("unexpected exception", x);
+    }
+
+    @Override
+    public Set<ObjectInstance> queryMBeans(final ObjectName name, final QueryExp query) {
+        if (query == null) return super.queryMBeans(name, query);
+        try {
+            return call(name, new Callable<Set<ObjectInstance>>() {
+                public Set<ObjectInstance> call() {
+                    return BoundedForwarder.super.queryMBeans(name, query);
+                }
+            });
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public Set<ObjectName> queryNames(final ObjectName name, final QueryExp query) {
+        if (query == null) return super.queryNames(name, query);
+        try {
+            return call(name, new Callable<Set<ObjectName>>() {
+                public Set<ObjectName> call() {
+                    return BoundedForwarder.super.queryNames(name, query);
+                }
+            });
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public Object getAttribute(final ObjectName name, final String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        try {
+            return call(name, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return BoundedForwarder.super.getAttribute(name, attribute);
+                }
+            });
+        }
+        catch (InvalidAttributeValueException x) {
+            throw unexpected(x);
+        }
+        catch (IntrospectionException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(final ObjectName name, final String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        try {
+            return call(name, new Callable<AttributeList>() {
+                public AttributeList call() throws Exception {
+                    return BoundedForwarder.super.getAttributes(name, attributes);
+                }
+            });
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (ReflectionException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public void setAttribute(final ObjectName name, final Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException {
+        try {
+            call(name, new Callable<Void>() {
+                public Void call() throws Exception {
+                    BoundedForwarder.super.setAttribute(name, attribute);
+                    return null;
+                }
+            });
+        }
+        catch (IntrospectionException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public AttributeList setAttributes(final ObjectName name, final AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        try {
+            return call(name, new Callable<AttributeList>() {
+                public AttributeList call() throws Exception {
+                    return BoundedForwarder.super.setAttributes(name, attributes);
+                }
+            });
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (ReflectionException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public Object invoke(final ObjectName name, final String operationName, final Object[] params,
+                         final String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        try {
+            return call(name, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return BoundedForwarder.super.invoke(name, operationName, params, signature);
+                }
+            });
+        }
+        catch (AttributeNotFoundException x) {
+            throw unexpected(x);
+        }
+        catch (InvalidAttributeValueException x) {
+            throw unexpected(x);
+        }
+        catch (IntrospectionException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(final ObjectName name)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        try {
+            return call(name, new Callable<MBeanInfo>() {
+                public MBeanInfo call() throws Exception {
+                    return BoundedForwarder.super.getMBeanInfo(name);
+                }
+            });
+        }
+        catch (AttributeNotFoundException x) {
+            throw unexpected(x);
+        }
+        catch (InvalidAttributeValueException x) {
+            throw unexpected(x);
+        }
+        catch (MBeanException x) {
+            throw unexpected(x);
+        }
+    }
+}
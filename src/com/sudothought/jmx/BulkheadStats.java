@@ -0,0 +1,57 @@
+package com.sudothought.jmx;
+
+/**
+ * The load of one ObjectName domain in a {@link BoundedExecutor}, as
+ * published by {@link BoundedExecutorMXBean}.
+ */
+public class BulkheadStats {
+
+    private final int limit;
+    private final int active;
+    private final int waiting;
+    private final long rejections;
+    private final long timeouts;
+
+    public BulkheadStats(int limit, int active, int waiting, long rejections, long timeouts) {
+        this.limit = limit;
+        this.active = active;
+        this.waiting = waiting;
+        this.rejections = rejections;
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * Maximum number of concurrent calls on the domain.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Calls running, or timed out but not yet returned by the MBean.
+     */
+    public int getActive() {
+        return active;
+    }
+
+    /**
+     * Calls waiting for a free slot.
+     */
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public long getRejections() {
+        return rejections;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    @Override
+    public String toString() {
+        return "limit=" + limit + " active=" + active + " waiting=" + waiting
+               + " rejections=" + rejections + " timeouts=" + timeouts;
+    }
+}
@@ -0,0 +1,61 @@
+package com.sudothought.jmx;
+
+/**
+ * The calls of one client of a {@link RateLimiter}, as published by
+ * {@link RateLimiterMXBean}.
+ */
+public class ClientRateStats {
+
+    private final long admitted;
+    private final long delayed;
+    private final long queryRejections;
+    private final long readRejections;
+    private final long writeRejections;
+    private final long invokeRejections;
+
+    public ClientRateStats(long admitted, long delayed, long queryRejections, long readRejections,
+                           long writeRejections, long invokeRejections) {
+        this.admitted = admitted;
+        this.delayed = delayed;
+        this.queryRejections = queryRejections;
+        this.readRejections = readRejections;
+        this.writeRejections = writeRejections;
+        this.invokeRejections = invokeRejections;
+    }
+
+    /**
+     * Calls let through, including delayed calls.
+     */
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * Calls let through after waiting for their budget.
+     */
+    public long getDelayed() {
+        return delayed;
+    }
+
+    public long getQueryRejections() {
+        return queryRejections;
+    }
+
+    public long getReadRejections() {
+        return readRejections;
+    }
+
+    public long getWriteRejections() {
+        return writeRejections;
+    }
+
+    public long getInvokeRejections() {
+        return invokeRejections;
+    }
+
+    @Override
+    public String toString() {
+        return "admitted=" + admitted + " delayed=" + delayed + " rejected query=" + queryRejections
+               + " read=" + readRejections + " write=" + writeRejections + " invoke=" + invokeRejections;
+    }
+}
@@ -0,0 +1,62 @@
+package com.sudothought.jmx;
+
+import javax.rmi.ssl.SslRMIClientSocketFactory;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * The client socket factory of an agent whose connections are compressed:
+ * the sockets it creates compress over TLS, as the agent's
+ * {@link AgentSslServerSocketFactory} does. It goes into the agent's stubs,
+ * so clients of such an agent need this class on their classpath, and must
+ * use the same factory to look up the registry.
+ * <p/>
+ * Only the string form of the compression is serialized, since the
+ * registry's deserialization filter accepts the factory and strings but
+ * no other class of the agent.
+ */
+public class CompressingSslRMIClientSocketFactory extends TimingSslRMIClientSocketFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String compression;
+    private transient volatile Compression parsed;
+
+    public CompressingSslRMIClientSocketFactory(Compression compression) {
+        if (compression == null) throw new IllegalArgumentException("compression is null");
+        this.compression = compression.toString();
+        this.parsed = compression;
+    }
+
+    /**
+     * Creates the client socket factory for the compression configured by
+     * the {@code jmx.agent.compress} system properties: a plain
+     * SslRMIClientSocketFactory if there is none.
+     */
+    public static SslRMIClientSocketFactory createFromProperties() {
+        final Compression compression = Compression.createFromProperties();
+        return compression == null ? new SslRMIClientSocketFactory()
+                                   : new CompressingSslRMIClientSocketFactory(compression);
+    }
+
+    public Compression getCompression() {
+        Compression c = parsed;
+        if (c == null) parsed = c = Compression.valueOf(compression);
+        return c;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return getCompression().wrap(super.createSocket(host, port));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && compression.equals(((CompressingSslRMIClientSocketFactory)o).compression);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode() * 31 + compression.hashCode();
+    }
+}
@@ -0,0 +1,176 @@
+package com.sudothought.jmx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compression of the agent's connections: RMI's streams are compressed
+ * before TLS encrypts them, with deflate at a given level, or with the
+ * faster {@link LzCodec}.
+ * <p/>
+ * It is set on the agent's {@link AgentSslServerSocketFactory} and on the
+ * {@link CompressingSslRMIClientSocketFactory} that goes into its stubs,
+ * so both ends of every connection - registry and connector, on the single
+ * port - compress alike. Clients must enable the same compression to look
+ * up the registry.
+ * <pre>
+ * jmx.agent.compress         deflate or fast (default none)
+ * jmx.agent.compress.level   deflate level, 1 to 9 (default 6)
+ * </pre>
+ * Note that compressing before encrypting lets an eavesdropper learn
+ * something from the lengths of the messages if part of them is under the
+ * control of an attacker.
+ */
+public class Compression {
+
+    public static final String COMPRESS_PROPERTY = "jmx.agent.compress";
+    public static final String LEVEL_PROPERTY    = "jmx.agent.compress.level";
+
+    /**
+     * The byte counts of the compressed connections of this JVM.
+     */
+    public static final CompressionStats STATS = new CompressionStats();
+
+    public enum Algorithm {DEFLATE, FAST}
+
+    private final Algorithm algorithm;
+    private final int level;
+
+    /**
+     * @param algorithm the compression algorithm.
+     * @param level     the deflate level, ignored by FAST.
+     */
+    public Compression(Algorithm algorithm, int level) {
+        if (algorithm == null) throw new IllegalArgumentException("algorithm is null");
+        if (algorithm == Algorithm.DEFLATE && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("invalid deflate level: " + level);
+        this.algorithm = algorithm;
+        this.level = algorithm == Algorithm.DEFLATE ? level : 0;
+    }
+
+    /**
+     * Creates the compression configured by the {@code jmx.agent.compress}
+     * system properties, or returns null if there is none.
+     */
+    public static Compression createFromProperties() {
+        final String s = System.getProperty(COMPRESS_PROPERTY, "none").trim();
+        if (s.length() == 0 || "none".equalsIgnoreCase(s)) return null;
+        return new Compression(Algorithm.valueOf(s.toUpperCase()),
+                               Integer.parseInt(System.getProperty(LEVEL_PROPERTY, "6")));
+    }
+
+    /**
+     * Parses the string form of a compression, as returned by
+     * {@link #toString()}.
+     */
+    public static Compression valueOf(String s) {
+        final int colon = s.indexOf(':');
+        final Algorithm algorithm = Algorithm.valueOf((colon < 0 ? s : s.substring(0, colon)).toUpperCase());
+        return new Compression(algorithm, colon < 0 ? 6 : Integer.parseInt(s.substring(colon + 1)));
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Layers compression over a connected socket.
+     */
+    public Socket wrap(Socket socket) {
+        STATS.sockets.increment();
+        return new CompressingSocket(socket);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Compression)) return false;
+        final Compression c = (Compression)o;
+        return algorithm == c.algorithm && level == c.level;
+    }
+
+    @Override
+    public int hashCode() {
+        return algorithm.hashCode() * 31 + level;
+    }
+
+    @Override
+    public String toString() {
+        return algorithm == Algorithm.DEFLATE ? "deflate:" + level : "fast";
+    }
+
+    /**
+     * A socket whose streams compress what is written and decompress what
+     * is read. Flushing the output stream sends all that was written, so
+     * that RMI's request and reply boundaries are kept.
+     */
+    private final class CompressingSocket extends DelegatingSocket {
+        private InputStream in;
+        private OutputStream out;
+        private Deflater deflater;
+        private Inflater inflater;
+
+        CompressingSocket(Socket delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                final InputStream received = new CountingInputStream(super.getInputStream(), STATS.received);
+                final InputStream decompressed;
+                if (algorithm == Algorithm.DEFLATE) {
+                    inflater = new Inflater(true);
+                    decompressed = new InflaterInputStream(received, inflater, 8192) {
+                        // InflaterInputStream answers 1 until the end of
+                        // the stream: don't let RMI think it can read.
+                        @Override
+                        public int available() {
+                            return 0;
+                        }
+                    };
+                }
+                else decompressed = new LzCodec.LzInputStream(received);
+                in = new CountingInputStream(decompressed, STATS.read);
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                final OutputStream sent = new CountingOutputStream(super.getOutputStream(), STATS.sent);
+                final OutputStream compressed;
+                if (algorithm == Algorithm.DEFLATE) {
+                    deflater = new Deflater(level, true);
+                    compressed = new DeflaterOutputStream(sent, deflater, 8192, true);
+                }
+                else compressed = new LzCodec.LzOutputStream(sent);
+                out = new CountingOutputStream(compressed, STATS.written);
+            }
+            return out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                synchronized (this) {
+                    if (deflater != null) deflater.end();
+                    if (inflater != null) inflater.end();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.sudothought.jmx;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte counts of the compressed connections of a JVM, before and after
+ * compression, in both directions. There is a single instance,
+ * {@link Compression#STATS}, since client socket factories are
+ * deserialized from the agent's stubs.
+ */
+public class CompressionStats implements CompressionStatsMXBean {
+
+    private volatile String compression = "none";
+    final LongAdder sockets = new LongAdder();
+    final LongAdder written = new LongAdder();
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder read = new LongAdder();
+
+    CompressionStats() {
+    }
+
+    void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public long getSockets() {
+        return sockets.sum();
+    }
+
+    public long getBytesWritten() {
+        return written.sum();
+    }
+
+    public long getBytesSent() {
+        return sent.sum();
+    }
+
+    public long getBytesReceived() {
+        return received.sum();
+    }
+
+    public long getBytesRead() {
+        return read.sum();
+    }
+
+    public double getSentRatio() {
+        final long w = written.sum();
+        return w == 0 ? 1 : (double)sent.sum() / w;
+    }
+
+    public double getReceivedRatio() {
+        final long r = read.sum();
+        return r == 0 ? 1 : (double)received.sum() / r;
+    }
+
+    public void resetCounters() {
+        sockets.reset();
+        written.reset();
+        sent.reset();
+        received.reset();
+        read.reset();
+    }
+}
@@ -0,0 +1,51 @@
+package com.sudothought.jmx;
+
+/**
+ * Management interface of the {@link CompressionStats}, registered as
+ * {@code com.sudothought.jmx:type=Compression}.
+ */
+public interface CompressionStatsMXBean {
+
+    /**
+     * The compression of the agent's connections, e.g. "deflate:6" or
+     * "fast".
+     */
+    String getCompression();
+
+    /**
+     * Compressed connections opened.
+     */
+    long getSockets();
+
+    /**
+     * Bytes written by RMI, before compression.
+     */
+    long getBytesWritten();
+
+    /**
+     * Bytes sent to TLS, after compression.
+     */
+    long getBytesSent();
+
+    /**
+     * Bytes received from TLS, before decompression.
+     */
+    long getBytesReceived();
+
+    /**
+     * Bytes read by RMI, after decompression.
+     */
+    long getBytesRead();
+
+    /**
+     * Bytes sent per byte written, 1 if nothing was written.
+     */
+    double getSentRatio();
+
+    /**
+     * Bytes received per byte read, 1 if nothing was read.
+     */
+    double getReceivedRatio();
+
+    void resetCounters();
+}
@@ -0,0 +1,299 @@
+package com.sudothought.jmx;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts for the connections accepted by the agent's
+ * {@link AgentSslServerSocketFactory}, by remote address, and publishes
+ * them as {@code com.sudothought.jmx:type=Connections}.
+ * <p/>
+ * Accepted sockets are wrapped before TLS is layered over them, so bytes
+ * are counted as they go on the wire. The factory reports the handshake of
+ * each socket. Open sockets, accepts over the last minute, bytes in and
+ * out, and handshake times are kept per address in LongAdders, so the
+ * reading and writing threads of RMI don't contend on them.
+ * <p/>
+ * It also listens to the connection notifications of the connector server,
+ * whose connection IDs start with the client's address as RMI sees it
+ * (e.g. "rmi://10.0.0.1 user 12"), so that the JMX connections open from
+ * each address can be told apart from its sockets: RMI multiplexes the
+ * calls of all the connections of a client over a pool of sockets.
+ * <p/>
+ * The number of tracked addresses is bounded; further addresses share the
+ * {@code "<other>"} entry.
+ * <pre>
+ * jmx.agent.connections   true to enable
+ * </pre>
+ */
+public class ConnectionAccounting implements ConnectionAccountingMXBean, NotificationListener {
+
+    public static final String CONNECTIONS_PROPERTY = "jmx.agent.connections";
+    public static final int    MAX_ADDRESSES        = 256;
+    public static final String OTHER_ADDRESS        = "<other>";
+    public static final String UNKNOWN_ADDRESS      = "<unknown>";
+
+    private static final class Address {
+        final LongAdder open = new LongAdder();
+        final LongAdder accepted = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder handshakes = new LongAdder();
+        final LongAdder failedHandshakes = new LongAdder();
+        final LongAdder handshakeNanos = new LongAdder();
+        final AtomicLong maxHandshakeNanos = new AtomicLong();
+        final LongAdder connections = new LongAdder();
+        final Set<String> connectionIds = ConcurrentHashMap.newKeySet();
+        final RateWindow accepts = new RateWindow();
+
+        void reset() {
+            accepted.reset();
+            bytesIn.reset();
+            bytesOut.reset();
+            handshakes.reset();
+            failedHandshakes.reset();
+            handshakeNanos.reset();
+            maxHandshakeNanos.set(0);
+            connections.reset();
+            accepts.reset();
+        }
+
+        boolean isIdle() {
+            return open.sum() == 0 && connectionIds.isEmpty();
+        }
+    }
+
+    private final Map<String, Address> addresses = new ConcurrentHashMap<String, Address>();
+    private final RateWindow accepts = new RateWindow();
+
+    /**
+     * Creates a ConnectionAccounting if it is enabled by the
+     * {@code jmx.agent.connections} system property, or returns null.
+     */
+    public static ConnectionAccounting createFromProperties() {
+        if (!Boolean.valueOf(System.getProperty(CONNECTIONS_PROPERTY, "false")).booleanValue())
+            return null;
+        return new ConnectionAccounting();
+    }
+
+    static String addressOf(Socket socket) {
+        return socket.getInetAddress() == null ? UNKNOWN_ADDRESS : socket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * The client address of a JMX connection ID, e.g. "10.0.0.1" for
+     * "rmi://10.0.0.1 user 12".
+     */
+    static String addressOf(String connectionId) {
+        final int start = connectionId.indexOf("//");
+        if (start < 0) return UNKNOWN_ADDRESS;
+        final int end = connectionId.indexOf(' ', start);
+        return end < 0 ? connectionId.substring(start + 2) : connectionId.substring(start + 2, end);
+    }
+
+    private Address address(String key) {
+        final Address a = addresses.get(key);
+        if (a != null) return a;
+        synchronized (addresses) {
+            if (addresses.size() >= MAX_ADDRESSES && !addresses.containsKey(key)) key = OTHER_ADDRESS;
+            Address created = addresses.get(key);
+            if (created == null) {
+                created = new Address();
+                addresses.put(key, created);
+            }
+            return created;
+        }
+    }
+
+    // True if a is still the Address of key, or of the shared "<other>"
+    // entry key falls back to.
+    private boolean isTracked(String key, Address a) {
+        return addresses.get(key) == a || addresses.get(OTHER_ADDRESS) == a;
+    }
+
+    /**
+     * Records an accepted socket.
+     *
+     * @return the socket, wrapped to count its bytes and its closing.
+     */
+    public Socket accepted(Socket socket) {
+        final String key = addressOf(socket);
+        Address a;
+        while (true) {
+            a = address(key);
+            a.open.increment();
+            // resetCounters() may have dropped it as idle in the meantime.
+            if (isTracked(key, a)) break;
+            a.open.decrement();
+        }
+        final long second = RateWindow.currentSecond();
+        a.accepted.increment();
+        a.accepts.record(second);
+        accepts.record(second);
+        return new AccountedSocket(socket, a);
+    }
+
+    void handshakeCompleted(Socket socket, long nanos) {
+        final Address a = address(addressOf(socket));
+        a.handshakes.increment();
+        a.handshakeNanos.add(nanos);
+        while (true) {
+            final long max = a.maxHandshakeNanos.get();
+            if (max >= nanos || a.maxHandshakeNanos.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    void handshakeFailed(Socket socket) {
+        address(addressOf(socket)).failedHandshakes.increment();
+    }
+
+    /**
+     * Tracks the JMX connections opened and closed by the connector server.
+     */
+    public void handleNotification(Notification notification, Object handback) {
+        if (!(notification instanceof JMXConnectionNotification)) return;
+        final String id = ((JMXConnectionNotification)notification).getConnectionId();
+        final String type = notification.getType();
+        if (JMXConnectionNotification.OPENED.equals(type)) {
+            final String key = addressOf(id);
+            Address a;
+            while (true) {
+                a = address(key);
+                a.connectionIds.add(id);
+                if (isTracked(key, a)) break;
+                a.connectionIds.remove(id);
+            }
+            a.connections.increment();
+        }
+        else if (JMXConnectionNotification.CLOSED.equals(type) || JMXConnectionNotification.FAILED.equals(type)) {
+            address(addressOf(id)).connectionIds.remove(id);
+        }
+    }
+
+    public long getOpenSockets() {
+        long sum = 0;
+        for (Address a : addresses.values())
+            sum += a.open.sum();
+        return sum;
+    }
+
+    public long getAcceptedSockets() {
+        long sum = 0;
+        for (Address a : addresses.values())
+            sum += a.accepted.sum();
+        return sum;
+    }
+
+    public double getAcceptRate() {
+        return accepts.rate(RateWindow.currentSecond());
+    }
+
+    public long getBytesIn() {
+        long sum = 0;
+        for (Address a : addresses.values())
+            sum += a.bytesIn.sum();
+        return sum;
+    }
+
+    public long getBytesOut() {
+        long sum = 0;
+        for (Address a : addresses.values())
+            sum += a.bytesOut.sum();
+        return sum;
+    }
+
+    public int getOpenConnections() {
+        int sum = 0;
+        for (Address a : addresses.values())
+            sum += a.connectionIds.size();
+        return sum;
+    }
+
+    public Map<String, AddressStats> getAddresses() {
+        final long second = RateWindow.currentSecond();
+        final Map<String, AddressStats> result = new TreeMap<String, AddressStats>();
+        for (Map.Entry<String, Address> e : addresses.entrySet()) {
+            final Address a = e.getValue();
+            final long handshakes = a.handshakes.sum();
+            result.put(e.getKey(), new AddressStats(a.open.sum(), a.accepted.sum(), a.accepts.rate(second),
+                                                    a.bytesIn.sum(), a.bytesOut.sum(), handshakes,
+                                                    a.failedHandshakes.sum(),
+                                                    handshakes == 0 ? 0 : a.handshakeNanos.sum() / 1000.0 / handshakes,
+                                                    a.maxHandshakeNanos.get() / 1000.0, a.connections.sum(),
+                                                    a.connectionIds.toArray(new String[0])));
+        }
+        return result;
+    }
+
+    public Map<String, String> getConnections() {
+        final Map<String, String> result = new TreeMap<String, String>();
+        for (Map.Entry<String, Address> e : addresses.entrySet()) {
+            for (String id : e.getValue().connectionIds)
+                result.put(id, e.getKey());
+        }
+        return result;
+    }
+
+    public void resetCounters() {
+        accepts.reset();
+        synchronized (addresses) {
+            for (Map.Entry<String, Address> e : addresses.entrySet()) {
+                final Address a = e.getValue();
+                // A socket or connection being recorded on it meanwhile
+                // notices that it was dropped, and records on a new one.
+                if (a.isIdle()) addresses.remove(e.getKey(), a);
+                else a.reset();
+            }
+        }
+    }
+
+    /**
+     * An accepted socket that counts its bytes in its address, and its
+     * closing, once.
+     */
+    private static final class AccountedSocket extends DelegatingSocket {
+        private final Address address;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private InputStream in;
+        private OutputStream out;
+
+        AccountedSocket(Socket delegate, Address address) {
+            super(delegate);
+            this.address = address;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) in = new CountingInputStream(super.getInputStream(), address.bytesIn);
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) out = new CountingOutputStream(super.getOutputStream(), address.bytesOut);
+            return out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                if (closed.compareAndSet(false, true)) address.open.decrement();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.sudothought.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link ConnectionAccounting}, registered as
+ * {@code com.sudothought.jmx:type=Connections}.
+ */
+public interface ConnectionAccountingMXBean {
+
+    long getOpenSockets();
+
+    long getAcceptedSockets();
+
+    /**
+     * Sockets accepted per second, over the last minute.
+     */
+    double getAcceptRate();
+
+    /**
+     * Bytes received on the wire, TLS included.
+     */
+    long getBytesIn();
+
+    /**
+     * Bytes sent on the wire, TLS included.
+     */
+    long getBytesOut();
+
+    /**
+     * JMX connections currently open.
+     */
+    int getOpenConnections();
+
+    /**
+     * Counters by remote address, for the addresses seen since the last
+     * reset. Addresses beyond the maximum share the "&lt;other&gt;" entry.
+     */
+    Map<String, AddressStats> getAddresses();
+
+    /**
+     * The remote address of each open JMX connection, by connection ID.
+     */
+    Map<String, String> getConnections();
+
+    /**
+     * Resets the counters, and forgets the addresses that have neither
+     * open sockets nor open connections.
+     */
+    void resetCounters();
+}
@@ -0,0 +1,390 @@
+package com.sudothought.jmx;
+
+import javax.management.remote.rmi.RMIConnection;
+import javax.management.remote.rmi.RMIConnectionImpl;
+import javax.management.remote.rmi.RMIConnectorServer;
+import javax.management.remote.rmi.RMIJRMPServerImpl;
+import javax.management.remote.rmi.RMIServerImpl;
+import javax.security.auth.Subject;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the JMX connections of the agent's connector, and with them the
+ * threads, notification buffers and exported objects the connector keeps
+ * for each client: a maximum number of open connections, a maximum per
+ * client address, and an idle timeout after which a connection is closed.
+ * Published as {@code com.sudothought.jmx:type=ConnectionLimiter}.
+ * <p/>
+ * The connector server is given an RMIServerImpl, from
+ * {@link #createServer}, that checks the limits when a client connects,
+ * and refuses the connection with an IOException when one is reached. The
+ * RMIConnection of an admitted client is exported through a proxy that
+ * records the time of its last call, with the same deserialization filter
+ * ({@code jmx.remote.rmi.server.serial.filter.pattern}) as the connector
+ * would have applied to the RMIConnection; a custom RMI exporter is not
+ * supported. A reaper thread closes the connections
+ * that have been idle longer than the timeout, with no call in progress,
+ * as if their client had closed them.
+ * <p/>
+ * The client's heartbeat (getDefaultDomain) and its notification fetches
+ * are not counted as calls: a client that was leaked with its connection
+ * open keeps making them. A client that only listens to notifications is
+ * therefore closed after the timeout too.
+ * <p/>
+ * The client address is the one that starts the connection ID, as seen by
+ * RMI.
+ * <pre>
+ * jmx.agent.connections.max          max open JMX connections (default 0, no limit)
+ * jmx.agent.connections.perAddress   max open JMX connections per address (default 0)
+ * jmx.agent.connections.idle         idle timeout in ms (default 0, never)
+ * </pre>
+ * The limiter is enabled when one of these is set.
+ */
+public class ConnectionLimiter implements ConnectionLimiterMXBean, Closeable {
+
+    public static final String MAX_PROPERTY         = "jmx.agent.connections.max";
+    public static final String PER_ADDRESS_PROPERTY = "jmx.agent.connections.perAddress";
+    public static final String IDLE_PROPERTY        = "jmx.agent.connections.idle";
+
+    // The environment key of the RMIExporter of RMIJRMPServerImpl, whose
+    // type is internal to the JDK.
+    private static final String EXPORTER_ATTRIBUTE = "com.sun.jmx.remote.rmi.exporter";
+
+    // How often the reaper looks for idle connections.
+    private static final long REAPER_PERIOD = 1000;
+
+    // Calls that a leaked client keeps making.
+    private static final Set<String> KEEPALIVE_METHODS =
+            new HashSet<String>(Arrays.asList("getDefaultDomain", "fetchNotifications"));
+
+    /**
+     * One admitted connection: the handler of the proxy exported in place
+     * of its RMIConnectionImpl.
+     */
+    private final class Connection implements InvocationHandler {
+        final String id;
+        final String address;
+        final AtomicInteger calls = new AtomicInteger();
+        volatile long lastCall = System.nanoTime();
+        volatile boolean reaped;
+        RMIConnectionImpl impl;
+        RMIConnection proxy;
+
+        Connection(String id, String address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) return Boolean.valueOf(proxy == args[0]);
+                if ("hashCode".equals(method.getName())) return Integer.valueOf(System.identityHashCode(proxy));
+                return "Connection[" + id + "]";
+            }
+            final boolean counted = !KEEPALIVE_METHODS.contains(method.getName());
+            if (counted) calls.incrementAndGet();
+            try {
+                return method.invoke(impl, args);
+            }
+            catch (InvocationTargetException x) {
+                throw x.getCause();
+            }
+            finally {
+                if (counted) {
+                    lastCall = System.nanoTime();
+                    calls.decrementAndGet();
+                }
+            }
+        }
+
+        long idleNanos(long now) {
+            return calls.get() > 0 ? 0 : now - lastCall;
+        }
+    }
+
+    /**
+     * The connector's RMIServerImpl: admits new clients, and exports their
+     * connections through a {@link Connection} proxy.
+     */
+    private final class LimitingServer extends RMIJRMPServerImpl {
+        private final int port;
+        private final RMIClientSocketFactory csf;
+        private final RMIServerSocketFactory ssf;
+        private final Map<String, ?> env;
+        // The filter RMIJRMPServerImpl applies to the parameters of an
+        // RMIConnection, applied to the proxy exported in its place.
+        private final ObjectInputFilter filter;
+
+        LimitingServer(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf, Map<String, ?> env)
+                throws IOException {
+            super(port, csf, ssf, env);
+            if (env != null && env.get(EXPORTER_ATTRIBUTE) != null)
+                throw new IllegalArgumentException("connection limits can't be used with a custom RMI exporter");
+            final String pattern = env == null ? null : (String)env.get(RMIConnectorServer.SERIAL_FILTER_PATTERN);
+            this.port = port;
+            this.csf = csf;
+            this.ssf = ssf;
+            this.env = env;
+            this.filter = pattern == null || pattern.length() == 0 ? null
+                          : ObjectInputFilter.Config.createFilter(pattern);
+        }
+
+        @Override
+        protected RMIConnection makeClient(String connectionId, Subject subject) throws IOException {
+            final Connection c = admit(connectionId, ConnectionAccounting.addressOf(connectionId));
+            try {
+                c.impl = new RMIConnectionImpl(this, connectionId, getDefaultClassLoader(), subject, env);
+                c.proxy = (RMIConnection)Proxy.newProxyInstance(RMIConnection.class.getClassLoader(),
+                                                                 new Class<?>[]{RMIConnection.class}, c);
+                UnicastRemoteObject.exportObject(c.proxy, port, csf, ssf, filter);
+                return c.proxy;
+            }
+            catch (IOException x) {
+                release(c, false);
+                throw x;
+            }
+            catch (RuntimeException x) {
+                release(c, false);
+                throw x;
+            }
+        }
+
+        // Called with the RMIConnectionImpl, when it is closed by its client,
+        // by the reaper or when the server is closed.
+        @Override
+        protected void closeClient(RMIConnection client) throws IOException {
+            Connection closed = null;
+            for (Connection c : connections.values()) {
+                if (c.impl == client || c.proxy == client) {
+                    closed = c;
+                    break;
+                }
+            }
+            if (closed == null) {
+                super.closeClient(client);
+                return;
+            }
+            release(closed, closed.reaped);
+            UnicastRemoteObject.unexportObject(closed.proxy, true);
+        }
+    }
+
+    private final Map<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+    // Guarded by this.
+    private final Map<String, Integer> byAddress = new TreeMap<String, Integer>();
+    private final ScheduledThreadPoolExecutor reaper;
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    private final RateWindow opens = new RateWindow();
+    private final RateWindow closes = new RateWindow();
+    private volatile int maxConnections;
+    private volatile int maxConnectionsPerAddress;
+    private volatile long idleTimeoutNanos;
+
+    /**
+     * @param maxConnections           max open connections, 0 for no limit.
+     * @param maxConnectionsPerAddress max open connections per address, 0
+     *                                 for no limit.
+     * @param idleTimeout              idle timeout in ms, 0 for none.
+     */
+    public ConnectionLimiter(int maxConnections, int maxConnectionsPerAddress, long idleTimeout) {
+        setMaxConnections(maxConnections);
+        setMaxConnectionsPerAddress(maxConnectionsPerAddress);
+        setIdleTimeout(idleTimeout);
+        this.reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "JMX Agent Connection Reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reap();
+            }
+        }, REAPER_PERIOD, REAPER_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a ConnectionLimiter configured from the
+     * {@code jmx.agent.connections} system properties, or returns null if
+     * none of them is set.
+     */
+    public static ConnectionLimiter createFromProperties() {
+        final String max = System.getProperty(MAX_PROPERTY);
+        final String perAddress = System.getProperty(PER_ADDRESS_PROPERTY);
+        final String idle = System.getProperty(IDLE_PROPERTY);
+        if (max == null && perAddress == null && idle == null) return null;
+        return new ConnectionLimiter(max == null ? 0 : Integer.parseInt(max),
+                                     perAddress == null ? 0 : Integer.parseInt(perAddress),
+                                     idle == null ? 0 : Long.parseLong(idle));
+    }
+
+    /**
+     * Creates the RMIServerImpl to give to the connector server, exported
+     * on the given port with the given socket factories.
+     */
+    public RMIServerImpl createServer(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf,
+                                      Map<String, ?> env) throws IOException {
+        return new LimitingServer(port, csf, ssf, env);
+    }
+
+    private synchronized Connection admit(String id, String address) throws IOException {
+        final int max = maxConnections;
+        if (max > 0 && connections.size() >= max) {
+            rejected.increment();
+            throw new IOException("too many JMX connections: " + max);
+        }
+        final Integer count = byAddress.get(address);
+        final int perAddress = maxConnectionsPerAddress;
+        if (perAddress > 0 && count != null && count.intValue() >= perAddress) {
+            rejected.increment();
+            throw new IOException("too many JMX connections from " + address + ": " + perAddress);
+        }
+        byAddress.put(address, count == null ? 1 : count.intValue() + 1);
+        final Connection c = new Connection(id, address);
+        connections.put(id, c);
+        opened.increment();
+        opens.record(RateWindow.currentSecond());
+        return c;
+    }
+
+    private synchronized void release(Connection c, boolean reaped) {
+        if (connections.remove(c.id) == null) return;
+        final Integer count = byAddress.get(c.address);
+        if (count == null || count.intValue() <= 1) byAddress.remove(c.address);
+        else byAddress.put(c.address, count.intValue() - 1);
+        closed.increment();
+        closes.record(RateWindow.currentSecond());
+        if (reaped) this.reaped.increment();
+    }
+
+    // Closes the connections idle for longer than the timeout.
+    private void reap() {
+        final long timeout = idleTimeoutNanos;
+        if (timeout == 0) return;
+        final long now = System.nanoTime();
+        final List<Connection> idle = new ArrayList<Connection>();
+        for (Connection c : connections.values()) {
+            if (c.impl != null && c.idleNanos(now) > timeout) idle.add(c);
+        }
+        for (Connection c : idle) {
+            // Closing the connection releases it, through closeClient.
+            c.reaped = true;
+            try {
+                c.impl.close();
+            }
+            catch (Exception x) {
+                System.out.println("Can't close idle JMX connection " + c.id + ": " + x);
+            }
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int max) {
+        if (max < 0) throw new IllegalArgumentException("invalid max: " + max);
+        this.maxConnections = max;
+    }
+
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    public void setMaxConnectionsPerAddress(int max) {
+        if (max < 0) throw new IllegalArgumentException("invalid max: " + max);
+        this.maxConnectionsPerAddress = max;
+    }
+
+    public long getIdleTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+    }
+
+    public void setIdleTimeout(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("invalid timeout: " + millis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    public long getClosed() {
+        return closed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    public double getOpenRate() {
+        return opens.rate(RateWindow.currentSecond());
+    }
+
+    public double getCloseRate() {
+        return closes.rate(RateWindow.currentSecond());
+    }
+
+    public synchronized Map<String, Integer> getConnectionsByAddress() {
+        return new TreeMap<String, Integer>(byAddress);
+    }
+
+    public Map<String, Long> getIdleTimes() {
+        final long now = System.nanoTime();
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (Connection c : connections.values())
+            result.put(c.id, TimeUnit.NANOSECONDS.toMillis(c.idleNanos(now)));
+        return result;
+    }
+
+    public void resetCounters() {
+        opened.reset();
+        closed.reset();
+        rejected.reset();
+        reaped.reset();
+        opens.reset();
+        closes.reset();
+    }
+
+    /**
+     * Stops the reaper. Open connections are closed by the connector
+     * server.
+     */
+    public void close() {
+        reaper.shutdownNow();
+    }
+}
@@ -0,0 +1,80 @@
+package com.sudothought.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link ConnectionLimiter}, registered as
+ * {@code com.sudothought.jmx:type=ConnectionLimiter}.
+ */
+public interface ConnectionLimiterMXBean {
+
+    /**
+     * Maximum number of open JMX connections, 0 for no limit. Lowering it
+     * does not close open connections.
+     */
+    int getMaxConnections();
+
+    void setMaxConnections(int max);
+
+    /**
+     * Maximum number of open JMX connections per client address, 0 for no
+     * limit.
+     */
+    int getMaxConnectionsPerAddress();
+
+    void setMaxConnectionsPerAddress(int max);
+
+    /**
+     * Time after which a connection without calls is closed, in
+     * milliseconds, 0 to never close idle connections.
+     */
+    long getIdleTimeout();
+
+    void setIdleTimeout(long millis);
+
+    int getOpenConnections();
+
+    /**
+     * Connections opened since the last reset.
+     */
+    long getOpened();
+
+    /**
+     * Connections closed since the last reset, by their client, by the
+     * reaper or on failure.
+     */
+    long getClosed();
+
+    /**
+     * Connections refused because of a limit.
+     */
+    long getRejected();
+
+    /**
+     * Connections closed because they were idle.
+     */
+    long getReaped();
+
+    /**
+     * Connections opened per second, over the last minute.
+     */
+    double getOpenRate();
+
+    /**
+     * Connections closed per second, over the last minute.
+     */
+    double getCloseRate();
+
+    /**
+     * The number of open connections, by client address.
+     */
+    Map<String, Integer> getConnectionsByAddress();
+
+    /**
+     * How long each open connection has been idle, in milliseconds, by
+     * connection ID.
+     */
+    Map<String, Long> getIdleTimes();
+
+    void resetCounters();
+}
@@ -0,0 +1,33 @@
+package com.sudothought.jmx;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes read from a stream into a LongAdder.
+ */
+class CountingInputStream extends FilterInputStream {
+
+    private final LongAdder count;
+
+    CountingInputStream(InputStream in, LongAdder count) {
+        super(in);
+        this.count = count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b >= 0) count.increment();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int n = in.read(b, off, len);
+        if (n > 0) count.add(n);
+        return n;
+    }
+}
@@ -0,0 +1,31 @@
+package com.sudothought.jmx;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes written to a stream into a LongAdder.
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+    private final LongAdder count;
+
+    CountingOutputStream(OutputStream out, LongAdder count) {
+        super(out);
+        this.count = count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count.increment();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count.add(len);
+    }
+}
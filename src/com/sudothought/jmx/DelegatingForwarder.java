@@ -0,0 +1,241 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.NotCompliantMBeanException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.OperationsException;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.loading.ClassLoaderRepository;
+import javax.management.remote.MBeanServerForwarder;
+import java.io.ObjectInputStream;
+import java.util.Set;
+
+/**
+ * A hand-written MBeanServerForwarder that forwards every MBeanServer method
+ * directly to the wrapped MBeanServer, without going through reflection.
+ * <p/>
+ * This class is intended to be subclassed: a subclass only needs to override
+ * the methods it wants to intercept, and can call {@code super} to forward
+ * the call. See {@link InterceptingForwarder} for a concrete example.
+ */
+public class DelegatingForwarder implements MBeanServerForwarder {
+
+    private volatile MBeanServer server;
+
+    public DelegatingForwarder() {
+        this(null);
+    }
+
+    public DelegatingForwarder(MBeanServer server) {
+        this.server = server;
+    }
+
+    public MBeanServer getMBeanServer() {
+        return server;
+    }
+
+    public void setMBeanServer(MBeanServer mbs) {
+        this.server = mbs;
+    }
+
+    public ObjectInstance createMBean(String className, ObjectName name)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException {
+        return getMBeanServer().createMBean(className, name);
+    }
+
+    public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException, InstanceNotFoundException {
+        return getMBeanServer().createMBean(className, name, loaderName);
+    }
+
+    public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException {
+        return getMBeanServer().createMBean(className, name, params, signature);
+    }
+
+    public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName,
+                                      Object[] params, String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException, InstanceNotFoundException {
+        return getMBeanServer().createMBean(className, name, loaderName, params, signature);
+    }
+
+    public ObjectInstance registerMBean(Object object, ObjectName name)
+            throws InstanceAlreadyExistsException, MBeanRegistrationException, NotCompliantMBeanException {
+        return getMBeanServer().registerMBean(object, name);
+    }
+
+    public void unregisterMBean(ObjectName name)
+            throws InstanceNotFoundException, MBeanRegistrationException {
+        getMBeanServer().unregisterMBean(name);
+    }
+
+    public ObjectInstance getObjectInstance(ObjectName name)
+            throws InstanceNotFoundException {
+        return getMBeanServer().getObjectInstance(name);
+    }
+
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        return getMBeanServer().queryMBeans(name, query);
+    }
+
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        return getMBeanServer().queryNames(name, query);
+    }
+
+    public boolean isRegistered(ObjectName name) {
+        return getMBeanServer().isRegistered(name);
+    }
+
+    public Integer getMBeanCount() {
+        return getMBeanServer().getMBeanCount();
+    }
+
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        return getMBeanServer().getAttribute(name, attribute);
+    }
+
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        return getMBeanServer().getAttributes(name, attributes);
+    }
+
+    public void setAttribute(ObjectName name, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException {
+        getMBeanServer().setAttribute(name, attribute);
+    }
+
+    public AttributeList setAttributes(ObjectName name, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        return getMBeanServer().setAttributes(name, attributes);
+    }
+
+    public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        return getMBeanServer().invoke(name, operationName, params, signature);
+    }
+
+    public String getDefaultDomain() {
+        return getMBeanServer().getDefaultDomain();
+    }
+
+    public String[] getDomains() {
+        return getMBeanServer().getDomains();
+    }
+
+    public void addNotificationListener(ObjectName name, NotificationListener listener,
+                                        NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException {
+        getMBeanServer().addNotificationListener(name, listener, filter, handback);
+    }
+
+    public void addNotificationListener(ObjectName name, ObjectName listener,
+                                        NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException {
+        getMBeanServer().addNotificationListener(name, listener, filter, handback);
+    }
+
+    public void removeNotificationListener(ObjectName name, ObjectName listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        getMBeanServer().removeNotificationListener(name, listener);
+    }
+
+    public void removeNotificationListener(ObjectName name, ObjectName listener,
+                                           NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        getMBeanServer().removeNotificationListener(name, listener, filter, handback);
+    }
+
+    public void removeNotificationListener(ObjectName name, NotificationListener listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        getMBeanServer().removeNotificationListener(name, listener);
+    }
+
+    public void removeNotificationListener(ObjectName name, NotificationListener listener,
+                                           NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        getMBeanServer().removeNotificationListener(name, listener, filter, handback);
+    }
+
+    public MBeanInfo getMBeanInfo(ObjectName name)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        return getMBeanServer().getMBeanInfo(name);
+    }
+
+    public boolean isInstanceOf(ObjectName name, String className)
+            throws InstanceNotFoundException {
+        return getMBeanServer().isInstanceOf(name, className);
+    }
+
+    public Object instantiate(String className)
+            throws ReflectionException, MBeanException {
+        return getMBeanServer().instantiate(className);
+    }
+
+    public Object instantiate(String className, ObjectName loaderName)
+            throws ReflectionException, MBeanException, InstanceNotFoundException {
+        return getMBeanServer().instantiate(className, loaderName);
+    }
+
+    public Object instantiate(String className, Object[] params, String[] signature)
+            throws ReflectionException, MBeanException {
+        return getMBeanServer().instantiate(className, params, signature);
+    }
+
+    public Object instantiate(String className, ObjectName loaderName, Object[] params, String[] signature)
+            throws ReflectionException, MBeanException, InstanceNotFoundException {
+        return getMBeanServer().instantiate(className, loaderName, params, signature);
+    }
+
+    @Deprecated
+    public ObjectInputStream deserialize(ObjectName name, byte[] data)
+            throws InstanceNotFoundException, OperationsException {
+        return getMBeanServer().deserialize(name, data);
+    }
+
+    @Deprecated
+    public ObjectInputStream deserialize(String className, byte[] data)
+            throws OperationsException, ReflectionException {
+        return getMBeanServer().deserialize(className, data);
+    }
+
+    @Deprecated
+    public ObjectInputStream deserialize(String className, ObjectName loaderName, byte[] data)
+            throws InstanceNotFoundException, OperationsException, ReflectionException {
+        return getMBeanServer().deserialize(className, loaderName, data);
+    }
+
+    public ClassLoader getClassLoaderFor(ObjectName mbeanName)
+            throws InstanceNotFoundException {
+        return getMBeanServer().getClassLoaderFor(mbeanName);
+    }
+
+    public ClassLoader getClassLoader(ObjectName loaderName)
+            throws InstanceNotFoundException {
+        return getMBeanServer().getClassLoader(loaderName);
+    }
+
+    public ClassLoaderRepository getClassLoaderRepository() {
+        return getMBeanServer().getClassLoaderRepository();
+    }
+}
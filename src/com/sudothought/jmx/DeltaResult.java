@@ -0,0 +1,167 @@
+package com.sudothought.jmx;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The result of a {@link DeltaSnapshot}: the attribute values that changed
+ * since the client's previous scrape, and the MBeans that were added or
+ * removed since then.
+ * <p/>
+ * {@link #getValues()} holds only the changed attributes of each MBean, and
+ * all attributes of the added MBeans. If {@link #isFull()} is true, the
+ * agent could not compute a delta from the given sequence number (first
+ * scrape, the agent forgot that far back, or the sequence number is from
+ * another epoch, i.e. another pattern or an earlier run of the agent):
+ * {@link #getValues()} then holds every MBean that could be read, and a
+ * client must drop the MBeans it holds that are neither in it nor in
+ * {@link #getFailures()}.
+ * <p/>
+ * On the wire, the result is sent as {@link CompositeData}, with the items
+ * of a {@link SnapshotResult} plus the epoch, sequence number and MBeans
+ * added and removed.
+ */
+public class DeltaResult extends SnapshotResult {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] ITEMS = {"timestamp", "values", "failures", "epoch", "sequence", "full",
+                                           "added", "removed", "unchanged"};
+
+    static final CompositeType TYPE;
+
+    static {
+        try {
+            final ArrayType<ObjectName[]> names = ArrayType.getArrayType(SimpleType.OBJECTNAME);
+            TYPE = new CompositeType("DeltaSnapshot", "The result of a delta snapshot", ITEMS,
+                                     new String[]{"Time of the snapshot, in ms since the epoch",
+                                                  "The attribute values that changed",
+                                                  "The MBeans that could not be read",
+                                                  "The epoch to pass to the next scrape",
+                                                  "The sequence number to pass to the next scrape",
+                                                  "True if the values are not a delta",
+                                                  "The MBeans added since the previous scrape",
+                                                  "The MBeans removed since the previous scrape",
+                                                  "The number of values not sent because unchanged"},
+                                     new OpenType<?>[]{SimpleType.LONG, VALUES_TYPE, FAILURES_TYPE,
+                                                       SimpleType.LONG, SimpleType.LONG, SimpleType.BOOLEAN,
+                                                       names, names, SimpleType.INTEGER});
+        }
+        catch (OpenDataException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private final long epoch;
+    private final long sequence;
+    private final boolean full;
+    private final Set<ObjectName> added;
+    private final Set<ObjectName> removed;
+    private int unchanged;
+
+    public DeltaResult(long timestamp, long epoch, long sequence, boolean full) {
+        super(timestamp);
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.full = full;
+        this.added = new LinkedHashSet<ObjectName>();
+        this.removed = new LinkedHashSet<ObjectName>();
+    }
+
+    /**
+     * Identifies the pattern and agent run that numbered this scrape, to
+     * pass to the next one.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * The sequence number of this scrape, to pass to the next one.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * The MBeans that appeared since the previous scrape.
+     */
+    public Set<ObjectName> getAdded() {
+        return Collections.unmodifiableSet(added);
+    }
+
+    /**
+     * The MBeans that disappeared since the previous scrape.
+     */
+    public Set<ObjectName> getRemoved() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    /**
+     * The number of attribute values that were not sent because they did
+     * not change.
+     */
+    public int getUnchangedCount() {
+        return unchanged;
+    }
+
+    void addAdded(ObjectName name) {
+        added.add(name);
+    }
+
+    void addRemoved(ObjectName name) {
+        removed.add(name);
+    }
+
+    void addUnchanged(int count) {
+        unchanged += count;
+    }
+
+    @Override
+    public CompositeData toCompositeData() {
+        try {
+            return new CompositeDataSupport(TYPE, ITEMS, new Object[]{
+                    getTimestamp(), encodeValues(), encodeFailures(), epoch, sequence, full,
+                    added.toArray(new ObjectName[added.size()]), removed.toArray(new ObjectName[removed.size()]),
+                    unchanged});
+        }
+        catch (OpenDataException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /**
+     * Decodes a result encoded by {@link #toCompositeData()}.
+     */
+    public static DeltaResult from(CompositeData data) {
+        final DeltaResult result = new DeltaResult((Long)data.get("timestamp"), (Long)data.get("epoch"),
+                                                   (Long)data.get("sequence"), (Boolean)data.get("full"));
+        result.decode(data);
+        result.added.addAll(Arrays.asList((ObjectName[])data.get("added")));
+        result.removed.addAll(Arrays.asList((ObjectName[])data.get("removed")));
+        result.unchanged = (Integer)data.get("unchanged");
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DeltaResult[#" + Long.toHexString(epoch) + ":" + sequence + (full ? " full, " : ", ")
+               + getValues().size() + " MBeans, "
+               + added.size() + " added, " + removed.size() + " removed, " + unchanged + " unchanged, "
+               + getFailures().size() + " failures]";
+    }
+}
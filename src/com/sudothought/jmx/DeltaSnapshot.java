@@ -0,0 +1,342 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Versioned snapshots: like a {@link Snapshot}, but only the attribute
+ * values that changed since the client's previous scrape are returned,
+ * along with the MBeans added and removed since then.
+ * <p/>
+ * It is the {@code delta(ObjectName, String[], long, long)} operation of the
+ * "fake" {@code JMImplementation:type=JMXAgentSnapshot} MBean. Each call
+ * scrapes the MBeans and is given a sequence number, which the client
+ * passes to its next call along with the epoch of the result. The agent
+ * remembers, for each pattern and list of attributes, the last value of
+ * every attribute and the sequence number at which it last changed, so
+ * that any number of clients can scrape the same MBeans at their own pace.
+ * The epoch is drawn at random when the agent starts remembering a pattern
+ * and list of attributes: a sequence number is only valid with the epoch
+ * it came with, and a client passing another epoch (the first scrape,
+ * another pattern, or an earlier run of the agent) gets a full result.
+ * Values are compared with {@code equals}, arrays by content. An MBean
+ * that cannot be read is reported in {@link DeltaResult#getFailures()}, and
+ * all its attributes are sent again once it can be read.
+ * <p/>
+ * The agent remembers at most {@value #MAX_QUERIES} patterns, and
+ * {@value #MAX_REMOVED} removed MBeans per pattern; a client whose
+ * sequence number is too old for them gets a full result.
+ * {@link View} keeps a client side copy up to date.
+ */
+public class DeltaSnapshot {
+
+    public static final String DELTA       = "delta";
+    public static final int    MAX_QUERIES = 16;
+    public static final int    MAX_REMOVED = 1024;
+
+    private static final String[] SIGNATURE = {
+            ObjectName.class.getName(),
+            String[].class.getName(),
+            long.class.getName(),
+            long.class.getName()
+    };
+
+    private static final class Value {
+        Object value;
+        long changed;
+
+        Value(Object value, long changed) {
+            this.value = value;
+            this.changed = changed;
+        }
+    }
+
+    private static final class MBeanState {
+        final long added;
+        final Map<String, Value> values = new HashMap<String, Value>();
+
+        MBeanState(long added) {
+            this.added = added;
+        }
+    }
+
+    // What the agent remembers of one pattern and list of attributes.
+    private static final class State {
+        // Never 0, which is what a client that has not scraped yet passes.
+        final long epoch;
+        // Deltas can be computed from this sequence number on.
+        long oldest;
+        final Map<ObjectName, MBeanState> mbeans = new HashMap<ObjectName, MBeanState>();
+        // Removed MBeans, with the sequence number of their removal.
+        final LinkedHashMap<ObjectName, Long> removed = new LinkedHashMap<ObjectName, Long>();
+
+        State(long epoch, long created) {
+            this.epoch = epoch;
+            this.oldest = created;
+        }
+    }
+
+    private final ForwardingInterceptor owner;
+    private final Random random = new Random();
+    // Shared by all patterns; the epoch of each State is what keeps a
+    // sequence number from one pattern from being used with another.
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, State> states = new LinkedHashMap<String, State>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+            return size() > MAX_QUERIES;
+        }
+    };
+
+    /**
+     * @param owner the ForwardingInterceptor used to read the attributes.
+     */
+    public DeltaSnapshot(ForwardingInterceptor owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Creates an interceptor for the {@code delta(ObjectName, String[],
+     * long, long)} operation of the "fake" Snapshot MBean.
+     *
+     * @param owner the ForwardingInterceptor used to read the attributes.
+     * @return the delta interceptor.
+     */
+    public static InvokeOperationInterceptor createInterceptorFor(final ForwardingInterceptor owner) {
+
+        final DeltaSnapshot deltas = new DeltaSnapshot(owner);
+        return new InvokeOperationInterceptor(Snapshot.getSnapshotName(), DELTA) {
+
+            @Override
+            public Object intercept(MBeanServer server, ObjectName mbean,
+                                    String invoke, Object[] args, String[] signature) throws Exception {
+                if (args == null || args.length != 4 || !(args[2] instanceof Long) || !(args[3] instanceof Long))
+                    throw new IllegalArgumentException(
+                            "Expected (ObjectName pattern, String[] attributes, long epoch, long since)");
+                return deltas.delta((ObjectName)args[0], (String[])args[1], ((Long)args[2]).longValue(),
+                                    ((Long)args[3]).longValue()).toCompositeData();
+            }
+
+            @Override
+            public ClassLoader getClassLoaderFor(MBeanServer server, ObjectName mbean) {
+                return DeltaSnapshot.class.getClassLoader();
+            }
+        };
+    }
+
+    private State state(ObjectName pattern, String[] attributes) {
+        final String key = pattern.getCanonicalName() + " "
+                           + (attributes == null || attributes.length == 0 ? "*" : Arrays.toString(attributes));
+        synchronized (states) {
+            State state = states.get(key);
+            if (state == null) {
+                long epoch;
+                do {
+                    epoch = random.nextLong();
+                }
+                while (epoch == 0);
+                state = new State(epoch, sequence.get() + 1);
+                states.put(key, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Scrapes the given attributes of every MBean matching the pattern, and
+     * returns what changed since the scrape numbered {@code since}.
+     *
+     * @param pattern    the MBeans to read.
+     * @param attributes the attributes to read, all readable attributes if
+     *                   null or empty.
+     * @param epoch      the epoch of the client's previous scrape of the
+     *                   same pattern and attributes.
+     * @param since      the sequence number of the client's previous
+     *                   scrape, 0 for a full result.
+     */
+    public DeltaResult delta(ObjectName pattern, String[] attributes, long epoch, long since) {
+        final State state = state(pattern, attributes);
+        final MBeanServer server = owner.getMBeanServer();
+        synchronized (state) {
+            final long seq = sequence.incrementAndGet();
+            final boolean full = epoch != state.epoch || since <= 0 || since < state.oldest || since >= seq;
+            final DeltaResult result = new DeltaResult(System.currentTimeMillis(), state.epoch, seq, full);
+
+            final Set<ObjectName> names = owner.queryNames(pattern, null);
+            for (ObjectName name : names) {
+                MBeanState mbean = state.mbeans.get(name);
+                if (mbean == null) {
+                    mbean = new MBeanState(seq);
+                    state.mbeans.put(name, mbean);
+                    state.removed.remove(name);
+                }
+                final boolean added = mbean.added > since;
+                if (added && !full) result.addAdded(name);
+
+                final AttributeList values;
+                try {
+                    final String[] read = attributes == null || attributes.length == 0
+                                          ? Snapshot.getReadableAttributes(server, name)
+                                          : attributes;
+                    values = owner.getAttributes(name, read);
+                }
+                catch (Exception x) {
+                    // Forget the values, so that all of them are sent
+                    // again once the MBean can be read.
+                    mbean.values.clear();
+                    result.addFailure(name, x);
+                    continue;
+                }
+
+                final AttributeList changed = new AttributeList();
+                final Set<String> read = new HashSet<String>();
+                int unchanged = 0;
+                for (Attribute a : values.asList()) {
+                    read.add(a.getName());
+                    Value v = mbean.values.get(a.getName());
+                    if (v == null) {
+                        v = new Value(a.getValue(), seq);
+                        mbean.values.put(a.getName(), v);
+                    }
+                    else if (!same(v.value, a.getValue())) {
+                        v.value = a.getValue();
+                        v.changed = seq;
+                    }
+                    if (full || v.changed > since) changed.add(a);
+                    else unchanged++;
+                }
+                // Same for the attributes that could not be read this time.
+                mbean.values.keySet().retainAll(read);
+                if (full || added || !changed.isEmpty()) result.addValues(name, changed);
+                result.addUnchanged(unchanged);
+            }
+
+            for (Iterator<ObjectName> i = state.mbeans.keySet().iterator(); i.hasNext(); ) {
+                final ObjectName name = i.next();
+                if (names.contains(name)) continue;
+                i.remove();
+                state.removed.put(name, seq);
+            }
+            while (state.removed.size() > MAX_REMOVED) {
+                final Iterator<Map.Entry<ObjectName, Long>> i = state.removed.entrySet().iterator();
+                state.oldest = Math.max(state.oldest, i.next().getValue().longValue());
+                i.remove();
+            }
+            if (!full) {
+                for (Map.Entry<ObjectName, Long> e : state.removed.entrySet()) {
+                    if (e.getValue().longValue() > since) result.addRemoved(e.getKey());
+                }
+            }
+            return result;
+        }
+    }
+
+    private static boolean same(Object a, Object b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        if (a.getClass().isArray()) return Arrays.deepEquals(new Object[]{a}, new Object[]{b});
+        return a.equals(b);
+    }
+
+    /**
+     * Scrapes the agent to which {@code c} is connected, in a single round
+     * trip. Works only if the agent was configured with a snapshot
+     * interceptor.
+     *
+     * @param c          a connection to the agent.
+     * @param pattern    the MBeans to read.
+     * @param epoch      the {@link DeltaResult#getEpoch()} of the previous
+     *                   scrape.
+     * @param since      the {@link DeltaResult#getSequence()} of the
+     *                   previous scrape, 0 for a full result.
+     * @param attributes the attributes to read, all readable attributes if
+     *                   none are given.
+     */
+    public static DeltaResult delta(MBeanServerConnection c, ObjectName pattern, long epoch, long since,
+                                    String... attributes) throws IOException {
+        try {
+            return DeltaResult.from((CompositeData)c.invoke(Snapshot.getSnapshotName(), DELTA,
+                                                            new Object[]{pattern, attributes, epoch, since},
+                                                            SIGNATURE));
+        }
+        catch (JMException x) {
+            throw new IOException("can't take delta snapshot: " + x, x);
+        }
+    }
+
+    /**
+     * A client side copy of the attributes of the MBeans matching a
+     * pattern, kept up to date by delta scrapes.
+     */
+    public static class View {
+
+        private final ObjectName pattern;
+        private final String[] attributes;
+        private final Map<ObjectName, Map<String, Object>> mbeans = new HashMap<ObjectName, Map<String, Object>>();
+        private long epoch;
+        private long sequence;
+
+        public View(ObjectName pattern, String... attributes) {
+            this.pattern = pattern;
+            this.attributes = attributes;
+        }
+
+        /**
+         * Scrapes the agent and applies the delta.
+         *
+         * @return the delta that was applied.
+         */
+        public synchronized DeltaResult update(MBeanServerConnection c) throws IOException {
+            final DeltaResult delta = delta(c, pattern, epoch, sequence, attributes);
+            if (delta.isFull()) {
+                // MBeans that could not be read are still there.
+                final Set<ObjectName> present = new HashSet<ObjectName>(delta.getValues().keySet());
+                present.addAll(delta.getFailures().keySet());
+                mbeans.keySet().retainAll(present);
+            }
+            for (ObjectName name : delta.getRemoved())
+                mbeans.remove(name);
+            for (Map.Entry<ObjectName, AttributeList> e : delta.getValues().entrySet()) {
+                Map<String, Object> values = delta.isFull() ? null : mbeans.get(e.getKey());
+                if (values == null) {
+                    values = new HashMap<String, Object>();
+                    mbeans.put(e.getKey(), values);
+                }
+                for (Attribute a : e.getValue().asList())
+                    values.put(a.getName(), a.getValue());
+            }
+            epoch = delta.getEpoch();
+            sequence = delta.getSequence();
+            return delta;
+        }
+
+        /**
+         * The current attribute values, by MBean.
+         */
+        public synchronized Map<ObjectName, Map<String, Object>> getValues() {
+            final Map<ObjectName, Map<String, Object>> copy = new HashMap<ObjectName, Map<String, Object>>();
+            for (Map.Entry<ObjectName, Map<String, Object>> e : mbeans.entrySet())
+                copy.put(e.getKey(), new HashMap<String, Object>(e.getValue()));
+            return copy;
+        }
+
+        public synchronized long getSequence() {
+            return sequence;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.sudothought.jmx;
+
+/**
+ * The state of one agent mounted by a {@link Federation}, as published by
+ * {@link FederationMXBean}.
+ */
+public class FederatedTargetStats {
+
+    private final String url;
+    private final boolean up;
+    private final boolean snapshots;
+    private final long calls;
+    private final long failures;
+    private final long timeouts;
+    private final double lastCallMillis;
+
+    public FederatedTargetStats(String url, boolean up, boolean snapshots, long calls, long failures,
+                                long timeouts, double lastCallMillis) {
+        this.url = url;
+        this.up = up;
+        this.snapshots = snapshots;
+        this.calls = calls;
+        this.failures = failures;
+        this.timeouts = timeouts;
+        this.lastCallMillis = lastCallMillis;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Whether the agent answered its last call.
+     */
+    public boolean isUp() {
+        return up;
+    }
+
+    /**
+     * Whether the agent takes snapshots in one round trip.
+     */
+    public boolean isSnapshots() {
+        return snapshots;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * Calls that failed to reach the agent.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Calls that did not complete before their deadline.
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Duration of the last completed call, -1 if none.
+     */
+    public double getLastCallMillis() {
+        return lastCallMillis;
+    }
+
+    @Override
+    public String toString() {
+        return url + (up ? " up" : " down") + " calls=" + calls + " failures=" + failures
+               + " timeouts=" + timeouts + " last=" + lastCallMillis + "ms";
+    }
+}
@@ -0,0 +1,575 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotCompliantMBeanException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.RuntimeOperationsException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An MBeanServerForwarder that serves the MBeans mounted by a
+ * {@link Federation}: calls on a name of the form
+ * {@code <namespace>//<name>} go to the agent mounted in the namespace,
+ * and queries on all domains, or on namespaces, go to all the matching
+ * agents at once. Other calls are forwarded directly.
+ * <p/>
+ * Listeners added on mounted MBeans receive the notifications with their
+ * source as named in their own agent. Listeners given by ObjectName, and
+ * MBeans registered as objects, can't be mounted.
+ */
+public class FederatingForwarder extends DelegatingForwarder {
+
+    private final Federation federation;
+
+    public FederatingForwarder(Federation federation) {
+        if (federation == null) throw new IllegalArgumentException("federation is null");
+        this.federation = federation;
+    }
+
+    public Federation getFederation() {
+        return federation;
+    }
+
+    // Calls the agent of a mounted name, and rethrows the exceptions of the
+    // MBeanServer methods below.
+    private <T> T call(Federation.Target target, Federation.RemoteCall<T> call)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException, IntrospectionException {
+        try {
+            return federation.call(target, call);
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (AttributeNotFoundException x) {
+            throw x;
+        }
+        catch (InvalidAttributeValueException x) {
+            throw x;
+        }
+        catch (MBeanException x) {
+            throw x;
+        }
+        catch (ReflectionException x) {
+            throw x;
+        }
+        catch (IntrospectionException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw new MBeanException(x);
+        }
+    }
+
+    // For the calls that don't throw some of the above.
+    private static RuntimeException unexpected(Exception x) {
+        return new IllegalStateException("unexpected exception", x);
+    }
+
+    private static RuntimeException notMountable(String what) {
+        return new RuntimeOperationsException(new IllegalArgumentException(what + " can't be mounted"));
+    }
+
+    private static ObjectInstance mount(Federation.Target target, ObjectInstance instance) {
+        return new ObjectInstance(Federation.mount(target, instance.getObjectName()), instance.getClassName());
+    }
+
+    @Override
+    public ObjectInstance createMBean(final String className, final ObjectName name, final ObjectName loaderName,
+                                      final Object[] params, final String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException, InstanceNotFoundException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.createMBean(className, name, loaderName, params, signature);
+        try {
+            return mount(target, federation.call(target, new Federation.RemoteCall<ObjectInstance>() {
+                public ObjectInstance call(MBeanServerConnection c) throws Exception {
+                    final ObjectName remote = Federation.unmount(name);
+                    return loaderName == null
+                           ? c.createMBean(className, remote, params, signature)
+                           : c.createMBean(className, remote, Federation.unmount(loaderName), params, signature);
+                }
+            }));
+        }
+        catch (ReflectionException x) {
+            throw x;
+        }
+        catch (InstanceAlreadyExistsException x) {
+            throw x;
+        }
+        catch (MBeanException x) {
+            throw x;
+        }
+        catch (NotCompliantMBeanException x) {
+            throw x;
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException {
+        if (federation.route(name) == null) return super.createMBean(className, name);
+        try {
+            return createMBean(className, name, null, null, null);
+        }
+        catch (InstanceNotFoundException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException, InstanceNotFoundException {
+        if (federation.route(name) == null) return super.createMBean(className, name, loaderName);
+        return createMBean(className, name, loaderName, null, null);
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException {
+        if (federation.route(name) == null) return super.createMBean(className, name, params, signature);
+        try {
+            return createMBean(className, name, null, params, signature);
+        }
+        catch (InstanceNotFoundException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public ObjectInstance registerMBean(Object object, ObjectName name)
+            throws InstanceAlreadyExistsException, MBeanRegistrationException, NotCompliantMBeanException {
+        if (federation.route(name) != null) throw notMountable("a local object");
+        return super.registerMBean(object, name);
+    }
+
+    @Override
+    public void unregisterMBean(final ObjectName name) throws InstanceNotFoundException, MBeanRegistrationException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) {
+            super.unregisterMBean(name);
+            return;
+        }
+        try {
+            federation.call(target, new Federation.RemoteCall<Void>() {
+                public Void call(MBeanServerConnection c) throws Exception {
+                    c.unregisterMBean(Federation.unmount(name));
+                    return null;
+                }
+            });
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (MBeanRegistrationException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public ObjectInstance getObjectInstance(final ObjectName name) throws InstanceNotFoundException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.getObjectInstance(name);
+        try {
+            return mount(target, call(target, new Federation.RemoteCall<ObjectInstance>() {
+                public ObjectInstance call(MBeanServerConnection c) throws Exception {
+                    return c.getObjectInstance(Federation.unmount(name));
+                }
+            }));
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public Set<ObjectInstance> queryMBeans(ObjectName name, final QueryExp query) {
+        final Set<ObjectInstance> result = federation.includesLocal(name)
+                                           ? new LinkedHashSet<ObjectInstance>(super.queryMBeans(name, query))
+                                           : new LinkedHashSet<ObjectInstance>();
+        final ObjectName remote = Federation.unmount(name);
+        for (Map.Entry<Federation.Target, Set<ObjectInstance>> e : federation.fanOut(
+                federation.match(name), new Federation.RemoteCall<Set<ObjectInstance>>() {
+            public Set<ObjectInstance> call(MBeanServerConnection c) throws Exception {
+                return c.queryMBeans(remote, query);
+            }
+        }).entrySet()) {
+            for (ObjectInstance instance : e.getValue())
+                result.add(mount(e.getKey(), instance));
+        }
+        return result;
+    }
+
+    @Override
+    public Set<ObjectName> queryNames(ObjectName name, final QueryExp query) {
+        final Set<ObjectName> result = federation.includesLocal(name)
+                                       ? new LinkedHashSet<ObjectName>(super.queryNames(name, query))
+                                       : new LinkedHashSet<ObjectName>();
+        final ObjectName remote = Federation.unmount(name);
+        for (Map.Entry<Federation.Target, Set<ObjectName>> e : federation.fanOut(
+                federation.match(name), new Federation.RemoteCall<Set<ObjectName>>() {
+            public Set<ObjectName> call(MBeanServerConnection c) throws Exception {
+                return c.queryNames(remote, query);
+            }
+        }).entrySet()) {
+            for (ObjectName n : e.getValue())
+                result.add(Federation.mount(e.getKey(), n));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isRegistered(final ObjectName name) {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.isRegistered(name);
+        try {
+            return call(target, new Federation.RemoteCall<Boolean>() {
+                public Boolean call(MBeanServerConnection c) throws Exception {
+                    return c.isRegistered(Federation.unmount(name));
+                }
+            }).booleanValue();
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    /**
+     * The local MBeans plus those of the agents that answer in time.
+     */
+    @Override
+    public Integer getMBeanCount() {
+        int count = super.getMBeanCount().intValue();
+        for (Integer i : federation.fanOut(federation.match(null), new Federation.RemoteCall<Integer>() {
+            public Integer call(MBeanServerConnection c) throws Exception {
+                return c.getMBeanCount();
+            }
+        }).values())
+            count += i.intValue();
+        return count;
+    }
+
+    /**
+     * The local domains, plus the domains of the agents that answer in
+     * time, in their namespaces.
+     */
+    @Override
+    public String[] getDomains() {
+        final Set<String> domains = new LinkedHashSet<String>(Arrays.asList(super.getDomains()));
+        for (Map.Entry<Federation.Target, String[]> e : federation.fanOut(
+                federation.match(null), new Federation.RemoteCall<String[]>() {
+            public String[] call(MBeanServerConnection c) throws Exception {
+                return c.getDomains();
+            }
+        }).entrySet()) {
+            for (String domain : e.getValue())
+                domains.add(e.getKey().namespace + Federation.SEPARATOR + domain);
+        }
+        return domains.toArray(new String[domains.size()]);
+    }
+
+    @Override
+    public Object getAttribute(final ObjectName name, final String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.getAttribute(name, attribute);
+        try {
+            return call(target, new Federation.RemoteCall<Object>() {
+                public Object call(MBeanServerConnection c) throws Exception {
+                    return c.getAttribute(Federation.unmount(name), attribute);
+                }
+            });
+        }
+        catch (InvalidAttributeValueException x) {
+            throw unexpected(x);
+        }
+        catch (IntrospectionException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(final ObjectName name, final String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.getAttributes(name, attributes);
+        try {
+            return call(target, new Federation.RemoteCall<AttributeList>() {
+                public AttributeList call(MBeanServerConnection c) throws Exception {
+                    return c.getAttributes(Federation.unmount(name), attributes);
+                }
+            });
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (ReflectionException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public void setAttribute(final ObjectName name, final Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) {
+            super.setAttribute(name, attribute);
+            return;
+        }
+        try {
+            call(target, new Federation.RemoteCall<Void>() {
+                public Void call(MBeanServerConnection c) throws Exception {
+                    c.setAttribute(Federation.unmount(name), attribute);
+                    return null;
+                }
+            });
+        }
+        catch (IntrospectionException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public AttributeList setAttributes(final ObjectName name, final AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.setAttributes(name, attributes);
+        try {
+            return call(target, new Federation.RemoteCall<AttributeList>() {
+                public AttributeList call(MBeanServerConnection c) throws Exception {
+                    return c.setAttributes(Federation.unmount(name), attributes);
+                }
+            });
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (ReflectionException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public Object invoke(final ObjectName name, final String operationName, final Object[] params,
+                         final String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.invoke(name, operationName, params, signature);
+        try {
+            return call(target, new Federation.RemoteCall<Object>() {
+                public Object call(MBeanServerConnection c) throws Exception {
+                    return c.invoke(Federation.unmount(name), operationName, params, signature);
+                }
+            });
+        }
+        catch (AttributeNotFoundException x) {
+            throw unexpected(x);
+        }
+        catch (InvalidAttributeValueException x) {
+            throw unexpected(x);
+        }
+        catch (IntrospectionException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(final ObjectName name)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.getMBeanInfo(name);
+        try {
+            return call(target, new Federation.RemoteCall<MBeanInfo>() {
+                public MBeanInfo call(MBeanServerConnection c) throws Exception {
+                    return c.getMBeanInfo(Federation.unmount(name));
+                }
+            });
+        }
+        catch (AttributeNotFoundException x) {
+            throw unexpected(x);
+        }
+        catch (InvalidAttributeValueException x) {
+            throw unexpected(x);
+        }
+        catch (MBeanException x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public boolean isInstanceOf(final ObjectName name, final String className) throws InstanceNotFoundException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) return super.isInstanceOf(name, className);
+        try {
+            return call(target, new Federation.RemoteCall<Boolean>() {
+                public Boolean call(MBeanServerConnection c) throws Exception {
+                    return c.isInstanceOf(Federation.unmount(name), className);
+                }
+            }).booleanValue();
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    /**
+     * The classes of the parameters sent to mounted MBeans must be known to
+     * this agent.
+     */
+    @Override
+    public ClassLoader getClassLoaderFor(ObjectName mbeanName) throws InstanceNotFoundException {
+        if (federation.route(mbeanName) == null) return super.getClassLoaderFor(mbeanName);
+        return FederatingForwarder.class.getClassLoader();
+    }
+
+    @Override
+    public void addNotificationListener(final ObjectName name, final NotificationListener listener,
+                                        final NotificationFilter filter, final Object handback)
+            throws InstanceNotFoundException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) {
+            super.addNotificationListener(name, listener, filter, handback);
+            return;
+        }
+        try {
+            call(target, new Federation.RemoteCall<Void>() {
+                public Void call(MBeanServerConnection c) throws Exception {
+                    c.addNotificationListener(Federation.unmount(name), listener, filter, handback);
+                    return null;
+                }
+            });
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+
+    @Override
+    public void addNotificationListener(ObjectName name, ObjectName listener,
+                                        NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException {
+        if (federation.route(name) != null || federation.route(listener) != null)
+            throw notMountable("a listener MBean");
+        super.addNotificationListener(name, listener, filter, handback);
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        removeNotificationListener(name, listener, null, null, false);
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener,
+                                           NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        removeNotificationListener(name, listener, filter, handback, true);
+    }
+
+    private void removeNotificationListener(final ObjectName name, final NotificationListener listener,
+                                            final NotificationFilter filter, final Object handback,
+                                            final boolean exact)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        final Federation.Target target = federation.route(name);
+        if (target == null) {
+            if (exact) super.removeNotificationListener(name, listener, filter, handback);
+            else super.removeNotificationListener(name, listener);
+            return;
+        }
+        try {
+            federation.call(target, new Federation.RemoteCall<Void>() {
+                public Void call(MBeanServerConnection c) throws Exception {
+                    if (exact) c.removeNotificationListener(Federation.unmount(name), listener, filter, handback);
+                    else c.removeNotificationListener(Federation.unmount(name), listener);
+                    return null;
+                }
+            });
+        }
+        catch (ListenerNotFoundException x) {
+            throw x;
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw unexpected(x);
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package com.sudothought.jmx;
+
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMRuntimeException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXServiceURL;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Mounts the MBeans of other agents in this agent, through a
+ * {@link FederatingForwarder}, so that a collector needs a single
+ * connection per host instead of one per JVM. Published as
+ * {@code com.sudothought.jmx:type=Federation}.
+ * <p/>
+ * Each agent gets a namespace: its MBean {@code java.lang:type=Memory}
+ * appears as {@code <namespace>//java.lang:type=Memory}. Queries whose
+ * domain is {@code <pattern>//<domain pattern>} go to the agents whose
+ * namespace matches, and queries on all domains ({@code null} or
+ * {@code *:...}) go to all agents as well as to the local MBeans. Queries
+ * and snapshots are sent to all the agents at once, each within the
+ * deadline; an agent that misses it, or can't be reached, is left out of
+ * the result. An agent that can't be reached, or misses a deadline, is not
+ * tried again for {@code retry} milliseconds, and at most {@code perAgent}
+ * calls to an agent are in flight at once, so that a hung agent holds a few
+ * threads instead of all of them.
+ * <p/>
+ * Each call is made through a timed Future, so its caller waits at most
+ * until the deadline. The thread making a call blocked on a hung agent is
+ * only freed when the agent answers or the connection breaks: it keeps its
+ * slot in the agent's {@code perAgent} calls until then, so that a hung
+ * agent holds at most {@code perAgent} threads, and further calls to it
+ * fail at once. The JVM-wide {@code sun.rmi.transport.tcp.responseTimeout}
+ * is left alone; setting it frees such threads too, but for every RMI call
+ * of the JVM. Notifications are fetched within half of {@code readTimeout}.
+ * <p/>
+ * Agents are listed as {@code [namespace=][host:]port}, the namespace
+ * defaulting to the port; a range of local ports can be mounted too, for
+ * instance the ports a {@link Fleet} gives out.
+ * <pre>
+ * jmx.agent.federate              agents to mount: app1=3500,app2=otherhost:3501,3502
+ * jmx.agent.federate.ports        range of local ports to mount: 3500-3599
+ * jmx.agent.federate.timeout      deadline of a call, in ms (default 2000)
+ * jmx.agent.federate.retry        delay before trying an unreachable agent again, in ms (default 10000)
+ * jmx.agent.federate.threads      threads calling the agents (default 32)
+ * jmx.agent.federate.perAgent     calls in flight per agent (default 4)
+ * jmx.agent.federate.readTimeout  notifications are fetched within half of it, in ms (default 30000)
+ * </pre>
+ */
+public class Federation implements FederationMXBean, Closeable {
+
+    public static final String FEDERATE_PROPERTY         = "jmx.agent.federate";
+    public static final String PORTS_PROPERTY            = "jmx.agent.federate.ports";
+    public static final String TIMEOUT_PROPERTY          = "jmx.agent.federate.timeout";
+    public static final String RETRY_PROPERTY            = "jmx.agent.federate.retry";
+    public static final String THREADS_PROPERTY          = "jmx.agent.federate.threads";
+    public static final String PER_AGENT_PROPERTY        = "jmx.agent.federate.perAgent";
+    public static final String READ_TIMEOUT_PROPERTY     = "jmx.agent.federate.readTimeout";
+    public static final String FETCH_TIMEOUT_PROPERTY    = "jmx.remote.x.notification.fetch.timeout";
+    public static final String SEPARATOR                 = "//";
+
+    /**
+     * A call made on the connection to a mounted agent.
+     */
+    public interface RemoteCall<T> {
+        T call(MBeanServerConnection c) throws Exception;
+    }
+
+    static final class Target {
+        final String namespace;
+        final JMXServiceURL url;
+        volatile boolean up;
+        volatile long retryAt;
+        // Null until known.
+        volatile Boolean snapshots;
+        volatile long lastCallNanos = -1;
+        final LongAdder calls = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Target(String namespace, JMXServiceURL url) {
+            this.namespace = namespace;
+            this.url = url;
+        }
+    }
+
+    private final Map<String, Target> targets;
+    private final AgentClient client;
+    private final ThreadPoolExecutor executor;
+    private volatile long timeoutNanos;
+    private final long retryNanos;
+    private final int perAgent;
+
+    /**
+     * @param targets     agents to mount, by namespace.
+     * @param timeout     deadline of a call, in milliseconds.
+     * @param retry       delay before trying an unreachable agent again, in
+     *                    milliseconds.
+     * @param threads     threads calling the agents.
+     * @param perAgent    calls in flight per agent.
+     * @param readTimeout notifications are fetched within half of it, in
+     *                    milliseconds.
+     */
+    public Federation(Map<String, JMXServiceURL> targets, long timeout, long retry, int threads, int perAgent,
+                      long readTimeout) {
+        if (perAgent < 1) throw new IllegalArgumentException("invalid calls per agent: " + perAgent);
+        final Map<String, Target> t = new LinkedHashMap<String, Target>();
+        for (Map.Entry<String, JMXServiceURL> e : targets.entrySet()) {
+            if (e.getKey().length() == 0 || e.getKey().contains(SEPARATOR) || e.getKey().contains(":")
+                || e.getKey().indexOf('*') >= 0 || e.getKey().indexOf('?') >= 0)
+                throw new IllegalArgumentException("invalid namespace: " + e.getKey());
+            t.put(e.getKey(), new Target(e.getKey(), e.getValue()));
+        }
+        this.targets = Collections.unmodifiableMap(t);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retry);
+        this.perAgent = perAgent;
+        this.client = new AgentClient(Collections.singletonMap(FETCH_TIMEOUT_PROPERTY,
+                                                               Long.valueOf(readTimeout / 2)));
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "JMX Agent Federation " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Creates a Federation configured from the {@code jmx.agent.federate}
+     * system properties, or returns null if no agent is to be mounted.
+     */
+    public static Federation createFromProperties() throws IOException {
+        final Map<String, JMXServiceURL> targets = new LinkedHashMap<String, JMXServiceURL>();
+        final String localhost = InetAddress.getLocalHost().getHostName();
+
+        final String ports = System.getProperty(PORTS_PROPERTY);
+        if (ports != null && ports.length() > 0) {
+            final int dash = ports.indexOf('-');
+            final int first = Integer.parseInt(ports.substring(0, dash < 0 ? ports.length() : dash).trim());
+            final int last = dash < 0 ? first : Integer.parseInt(ports.substring(dash + 1).trim());
+            final int own = JmxAgent.getServerPort();
+            for (int port = first; port <= last; port++) {
+                if (port != own) targets.put(String.valueOf(port), Attach.getUrlForClient(localhost, port));
+            }
+        }
+
+        final String s = System.getProperty(FEDERATE_PROPERTY);
+        if (s != null && s.length() > 0) {
+            for (String target : s.split(",")) {
+                target = target.trim();
+                final int eq = target.indexOf('=');
+                final String address = target.substring(eq + 1);
+                final int colon = address.lastIndexOf(':');
+                final String port = address.substring(colon + 1);
+                targets.put(eq < 0 ? port : target.substring(0, eq),
+                            Attach.getUrlForClient(colon < 0 ? localhost : address.substring(0, colon),
+                                                   Integer.parseInt(port)));
+            }
+        }
+
+        if (targets.isEmpty()) return null;
+        return new Federation(targets,
+                              Long.parseLong(System.getProperty(TIMEOUT_PROPERTY, "2000")),
+                              Long.parseLong(System.getProperty(RETRY_PROPERTY, "10000")),
+                              Integer.parseInt(System.getProperty(THREADS_PROPERTY, "32")),
+                              Integer.parseInt(System.getProperty(PER_AGENT_PROPERTY, "4")),
+                              Long.parseLong(System.getProperty(READ_TIMEOUT_PROPERTY, "30000")));
+    }
+
+    /**
+     * Returns the agent that a name is mounted from, or null if the name is
+     * local or a pattern on namespaces.
+     */
+    Target route(ObjectName name) {
+        if (name == null) return null;
+        final String domain = name.getDomain();
+        final int i = domain.indexOf(SEPARATOR);
+        return i < 0 ? null : targets.get(domain.substring(0, i));
+    }
+
+    /**
+     * Whether a query pattern matches local MBeans.
+     */
+    boolean includesLocal(ObjectName pattern) {
+        return pattern == null || !pattern.getDomain().contains(SEPARATOR);
+    }
+
+    /**
+     * Returns the agents a query pattern applies to.
+     */
+    List<Target> match(ObjectName pattern) {
+        if (pattern == null || "*".equals(pattern.getDomain())) return new ArrayList<Target>(targets.values());
+        final String domain = pattern.getDomain();
+        final int i = domain.indexOf(SEPARATOR);
+        if (i < 0) return Collections.emptyList();
+        final String namespace = domain.substring(0, i);
+        final List<Target> result = new ArrayList<Target>();
+        if (namespace.indexOf('*') < 0 && namespace.indexOf('?') < 0) {
+            final Target t = targets.get(namespace);
+            if (t != null) result.add(t);
+            return result;
+        }
+        final Pattern p = Pattern.compile(
+                Pattern.quote(namespace).replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q"));
+        for (Target t : targets.values()) {
+            if (p.matcher(t.namespace).matches()) result.add(t);
+        }
+        return result;
+    }
+
+    /**
+     * The name of a mounted MBean in its own agent. A pattern on all
+     * domains, or on namespaces, stays a pattern on all remote domains.
+     */
+    static ObjectName unmount(ObjectName name) {
+        if (name == null) return null;
+        final String s = name.toString();
+        final int i = name.getDomain().indexOf(SEPARATOR);
+        try {
+            return ObjectName.getInstance(i < 0 ? s : s.substring(i + SEPARATOR.length()));
+        }
+        catch (MalformedObjectNameException x) {
+            throw new IllegalArgumentException(x);
+        }
+    }
+
+    /**
+     * The name of an MBean of a mounted agent in this agent.
+     */
+    static ObjectName mount(Target target, ObjectName name) {
+        try {
+            return ObjectName.getInstance(target.namespace + SEPARATOR + name);
+        }
+        catch (MalformedObjectNameException x) {
+            throw new IllegalArgumentException(x);
+        }
+    }
+
+    /**
+     * Calls a mounted agent, and waits for the result until the deadline.
+     *
+     * @throws Exception          the exception thrown by the agent.
+     * @throws JMRuntimeException if the agent could not be reached in time.
+     */
+    <T> T call(Target target, RemoteCall<T> call) throws Exception {
+        return get(target, submit(target, call), System.nanoTime() + timeoutNanos);
+    }
+
+    /**
+     * Calls the given agents at once, and returns the results of those that
+     * answered before the deadline, by agent.
+     */
+    <T> Map<Target, T> fanOut(List<Target> targets, RemoteCall<T> call) {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        final Map<Target, Future<T>> futures = new LinkedHashMap<Target, Future<T>>();
+        for (Target t : targets) {
+            if (t.retryAt != 0 && t.retryAt - System.nanoTime() > 0) continue;
+            try {
+                futures.put(t, submit(t, call));
+            }
+            catch (JMRuntimeException x) {
+                // rejected, counted
+            }
+        }
+        final Map<Target, T> results = new LinkedHashMap<Target, T>();
+        for (Map.Entry<Target, Future<T>> e : futures.entrySet()) {
+            try {
+                results.put(e.getKey(), get(e.getKey(), e.getValue(), deadline));
+            }
+            catch (Exception x) {
+                // left out
+            }
+        }
+        return results;
+    }
+
+    private <T> Future<T> submit(final Target target, final RemoteCall<T> call) {
+        if (target.retryAt != 0 && target.retryAt - System.nanoTime() > 0)
+            throw new JMRuntimeException("agent " + target.namespace + " is unreachable");
+        if (target.inFlight.incrementAndGet() > perAgent) {
+            target.inFlight.decrementAndGet();
+            target.failures.increment();
+            throw new JMRuntimeException("agent " + target.namespace + " has " + perAgent + " calls in flight");
+        }
+        target.calls.increment();
+        // The call is in flight until it returns, or is cancelled before it
+        // started: whichever claims it first releases it.
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            public T call() throws Exception {
+                if (!claimed.compareAndSet(false, true)) return null;
+                try {
+                    final long start = System.nanoTime();
+                    final T result = call.call(client.getConnection(target.url));
+                    target.lastCallNanos = System.nanoTime() - start;
+                    target.up = true;
+                    target.retryAt = 0;
+                    return result;
+                }
+                finally {
+                    target.inFlight.decrementAndGet();
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (claimed.compareAndSet(false, true)) target.inFlight.decrementAndGet();
+            }
+        };
+        try {
+            executor.execute(task);
+            return task;
+        }
+        catch (RejectedExecutionException x) {
+            task.cancel(false);
+            target.failures.increment();
+            throw new JMRuntimeException("federation closed");
+        }
+    }
+
+    // Leaves an agent alone for the retry delay.
+    private void backOff(Target target) {
+        target.up = false;
+        target.retryAt = System.nanoTime() + retryNanos;
+    }
+
+    private <T> T get(Target target, Future<T> future, long deadline) throws Exception {
+        try {
+            return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException x) {
+            future.cancel(true);
+            target.timeouts.increment();
+            backOff(target);
+            throw new JMRuntimeException("agent " + target.namespace + " did not answer within "
+                                         + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+        }
+        catch (InterruptedException x) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new JMRuntimeException("interrupted while calling agent " + target.namespace);
+        }
+        catch (ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                target.failures.increment();
+                backOff(target);
+                client.close(target.url);
+                final JMRuntimeException e = new JMRuntimeException("can't reach agent " + target.namespace
+                                                                    + ": " + cause);
+                e.initCause(cause);
+                throw e;
+            }
+            if (cause instanceof Exception) throw (Exception)cause;
+            throw (Error)cause;
+        }
+    }
+
+    /**
+     * Reads the given attributes of every mounted MBean matching the
+     * pattern, from all the matching agents at once. Agents with a
+     * {@link Snapshot} interceptor are read in one round trip, the others
+     * with one call per MBean. An agent that can't be read within the
+     * deadline shows as a failure of the pattern in its namespace.
+     */
+    public SnapshotResult snapshot(final ObjectName pattern, final String[] attributes) {
+        final SnapshotResult result = new SnapshotResult(System.currentTimeMillis());
+        final List<Target> matched = match(pattern);
+        if (matched.isEmpty()) return result;
+
+        final ObjectName remote = pattern == null ? null : unmount(pattern);
+        final Map<Target, Future<SnapshotResult>> futures = new LinkedHashMap<Target, Future<SnapshotResult>>();
+        final long deadline = System.nanoTime() + timeoutNanos;
+        for (final Target t : matched) {
+            if (t.retryAt != 0 && t.retryAt - System.nanoTime() > 0) continue;
+            try {
+                futures.put(t, submit(t, new RemoteCall<SnapshotResult>() {
+                    public SnapshotResult call(MBeanServerConnection c) throws Exception {
+                        return snapshot(t, c, remote, attributes);
+                    }
+                }));
+            }
+            catch (JMRuntimeException x) {
+                // rejected, counted
+            }
+        }
+        for (Map.Entry<Target, Future<SnapshotResult>> e : futures.entrySet()) {
+            final Target t = e.getKey();
+            try {
+                final SnapshotResult r = get(t, e.getValue(), deadline);
+                for (Map.Entry<ObjectName, AttributeList> v : r.getValues().entrySet())
+                    result.addValues(mount(t, v.getKey()), v.getValue());
+                for (Map.Entry<ObjectName, String> f : r.getFailures().entrySet())
+                    result.addFailure(mount(t, f.getKey()), f.getValue());
+            }
+            catch (Exception x) {
+                result.addFailure(mount(t, remote == null ? ObjectName.WILDCARD : remote), x);
+            }
+        }
+        return result;
+    }
+
+    // Called on an executor thread.
+    private static SnapshotResult snapshot(Target t, MBeanServerConnection c, ObjectName pattern,
+                                           String[] attributes) throws Exception {
+        if (!Boolean.FALSE.equals(t.snapshots)) {
+            try {
+                final SnapshotResult result = SnapshotResult.from((CompositeData)c.invoke(
+                        Snapshot.getSnapshotName(), Snapshot.SNAPSHOT, new Object[]{pattern, attributes},
+                        new String[]{ObjectName.class.getName(), String[].class.getName()}));
+                t.snapshots = Boolean.TRUE;
+                return result;
+            }
+            catch (InstanceNotFoundException x) {
+                t.snapshots = Boolean.FALSE;
+            }
+        }
+        final SnapshotResult result = new SnapshotResult(System.currentTimeMillis());
+        for (ObjectName name : c.queryNames(pattern, null)) {
+            try {
+                String[] read = attributes;
+                if (read == null || read.length == 0) {
+                    final List<String> readable = new ArrayList<String>();
+                    for (MBeanAttributeInfo info : c.getMBeanInfo(name).getAttributes()) {
+                        if (info.isReadable()) readable.add(info.getName());
+                    }
+                    read = readable.toArray(new String[readable.size()]);
+                }
+                result.addValues(name, c.getAttributes(name, read));
+            }
+            catch (IOException x) {
+                throw x;
+            }
+            catch (Exception x) {
+                result.addFailure(name, x);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes the connections to the agents.
+     */
+    public void close() {
+        executor.shutdownNow();
+        client.close();
+    }
+
+    public Map<String, FederatedTargetStats> getTargets() {
+        final Map<String, FederatedTargetStats> result = new TreeMap<String, FederatedTargetStats>();
+        for (Target t : targets.values()) {
+            result.put(t.namespace, new FederatedTargetStats(
+                    t.url.toString(), t.up, Boolean.TRUE.equals(t.snapshots), t.calls.sum(), t.failures.sum(),
+                    t.timeouts.sum(), t.lastCallNanos < 0 ? -1 : t.lastCallNanos / 1e6));
+        }
+        return result;
+    }
+
+    public int getTargetsUp() {
+        int up = 0;
+        for (Target t : targets.values()) {
+            if (t.up) up++;
+        }
+        return up;
+    }
+
+    public long getTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    public void setTimeout(long millis) {
+        if (millis <= 0) throw new IllegalArgumentException("invalid timeout: " + millis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getRetryDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(retryNanos);
+    }
+
+    public void resetCounters() {
+        for (Target t : targets.values()) {
+            t.calls.reset();
+            t.failures.reset();
+            t.timeouts.reset();
+        }
+    }
+}
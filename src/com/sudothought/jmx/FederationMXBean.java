@@ -0,0 +1,35 @@
+package com.sudothought.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link Federation}, registered as
+ * {@code com.sudothought.jmx:type=Federation}.
+ */
+public interface FederationMXBean {
+
+    /**
+     * The mounted agents, by namespace.
+     */
+    Map<String, FederatedTargetStats> getTargets();
+
+    /**
+     * Number of mounted agents that answered their last call.
+     */
+    int getTargetsUp();
+
+    /**
+     * Deadline of a call to a mounted agent, in milliseconds.
+     */
+    long getTimeout();
+
+    void setTimeout(long millis);
+
+    /**
+     * Time after which an agent that could not be reached is tried again,
+     * in milliseconds.
+     */
+    long getRetryDelay();
+
+    void resetCounters();
+}
@@ -0,0 +1,487 @@
+package com.sudothought.jmx;
+
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+import com.sun.tools.attach.spi.AttachProvider;
+
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Starts, checks or stops the stoppable agent in many local JVMs at once.
+ * <p/>
+ * The JVMs are chosen by a regular expression on their display name, or by
+ * a list of PIDs; the JVM running the fleet is never included. Up to
+ * {@code parallel} JVMs are handled at the same time, each within its own
+ * timeout. Every agent started gets its own port, the first free one in
+ * the configured range. The port of a running agent is read from the
+ * target's {@code jmx.agent.port} system property, which the agent args
+ * set, so status and stop need no bookkeeping between runs.
+ * <p/>
+ * Each target yields a {@link Result}, with the time spent in each phase:
+ * {@code attach}, {@code load}, {@code connect}, {@code verify} and
+ * {@code stop}.
+ * <pre>
+ * jmx.agent.fleet.ports      port range of the started agents (default 3500-3599)
+ * jmx.agent.fleet.parallel   JVMs handled at the same time (default 8)
+ * jmx.agent.fleet.timeout    timeout of each JVM, in ms (default 30000)
+ * </pre>
+ * A target that times out is reported as such at once, but the attach
+ * call it is stuck in can only be abandoned, not interrupted.
+ */
+public class Fleet {
+
+    public static final String PORTS_PROPERTY    = "jmx.agent.fleet.ports";
+    public static final String PARALLEL_PROPERTY = "jmx.agent.fleet.parallel";
+    public static final String TIMEOUT_PROPERTY  = "jmx.agent.fleet.timeout";
+
+    public enum Command {START, STATUS, STOP}
+
+    public enum Outcome {
+        /**
+         * The agent was started.
+         */
+        STARTED,
+        /**
+         * The agent answers.
+         */
+        RUNNING,
+        /**
+         * The agent was stopped, or was started once and no longer answers.
+         */
+        STOPPED,
+        /**
+         * The agent was never started in the JVM.
+         */
+        NOT_STARTED,
+        FAILED,
+        TIMEOUT
+    }
+
+    /**
+     * The outcome of a command on one JVM.
+     */
+    public static class Result {
+        private final String pid;
+        private final String displayName;
+        // Guarded by this: filled by the worker, read once it is done or
+        // has timed out.
+        private int port = -1;
+        private Outcome outcome;
+        private String message = "";
+        private Integer mbeanCount;
+        private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+        private String phase;
+        private long phaseStart;
+        private final long start = System.nanoTime();
+        private long total = -1;
+
+        Result(String pid, String displayName) {
+            this.pid = pid;
+            this.displayName = displayName;
+        }
+
+        synchronized void begin(String phase) {
+            end();
+            this.phase = phase;
+            this.phaseStart = System.nanoTime();
+        }
+
+        synchronized void end() {
+            if (phase != null) phases.put(phase, System.nanoTime() - phaseStart);
+            phase = null;
+        }
+
+        synchronized void finish(Outcome outcome, String message) {
+            if (this.outcome != null) return;
+            if (outcome == Outcome.TIMEOUT || outcome == Outcome.FAILED) {
+                if (phase != null) message = phase + ": " + message;
+            }
+            else end();
+            this.outcome = outcome;
+            this.message = message;
+            this.total = System.nanoTime() - start;
+        }
+
+        synchronized void setPort(int port) {
+            this.port = port;
+        }
+
+        synchronized void setMBeanCount(Integer count) {
+            this.mbeanCount = count;
+        }
+
+        public String getPid() {
+            return pid;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * The port of the agent, -1 if unknown.
+         */
+        public synchronized int getPort() {
+            return port;
+        }
+
+        public synchronized Outcome getOutcome() {
+            return outcome;
+        }
+
+        public synchronized String getMessage() {
+            return message;
+        }
+
+        /**
+         * The number of MBeans of the agent, if it was checked.
+         */
+        public synchronized Integer getMBeanCount() {
+            return mbeanCount;
+        }
+
+        /**
+         * The duration of each completed phase, in nanoseconds.
+         */
+        public synchronized Map<String, Long> getPhaseNanos() {
+            return new LinkedHashMap<String, Long>(phases);
+        }
+
+        public synchronized long getTotalNanos() {
+            return total;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return pid + " " + outcome + (port < 0 ? "" : " port " + port) + " " + phases + " " + message;
+        }
+    }
+
+    private static final String[] PHASES = {"attach", "load", "connect", "verify", "stop"};
+
+    private final int firstPort;
+    private final int lastPort;
+    private final int parallel;
+    private final long timeout;
+    // Ports given out by this fleet, guarded by itself.
+    private final Set<Integer> assigned = new HashSet<Integer>();
+
+    /**
+     * @param firstPort first port of the range of the started agents.
+     * @param lastPort  last port of the range, inclusive.
+     * @param parallel  JVMs handled at the same time.
+     * @param timeout   timeout of each JVM, in milliseconds.
+     */
+    public Fleet(int firstPort, int lastPort, int parallel, long timeout) {
+        if (firstPort <= 0 || lastPort < firstPort)
+            throw new IllegalArgumentException("invalid port range: " + firstPort + "-" + lastPort);
+        if (parallel <= 0) throw new IllegalArgumentException("invalid parallelism: " + parallel);
+        this.firstPort = firstPort;
+        this.lastPort = lastPort;
+        this.parallel = parallel;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Creates a fleet configured from the {@code jmx.agent.fleet} system
+     * properties.
+     */
+    public static Fleet createFromProperties() {
+        final String ports = System.getProperty(PORTS_PROPERTY, "3500-3599");
+        final int dash = ports.indexOf('-');
+        final int first = Integer.parseInt(ports.substring(0, dash < 0 ? ports.length() : dash).trim());
+        final int last = dash < 0 ? first : Integer.parseInt(ports.substring(dash + 1).trim());
+        return new Fleet(first, last, Integer.parseInt(System.getProperty(PARALLEL_PROPERTY, "8")),
+                         Long.parseLong(System.getProperty(TIMEOUT_PROPERTY, "30000")));
+    }
+
+    /**
+     * Selects the JVMs whose display name matches a regular expression.
+     */
+    public static List<VirtualMachineDescriptor> select(Pattern displayName) {
+        final String self = selfPid();
+        final List<VirtualMachineDescriptor> result = new ArrayList<VirtualMachineDescriptor>();
+        for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+            if (!vmd.id().equals(self) && displayName.matcher(vmd.displayName()).find()) result.add(vmd);
+        }
+        return result;
+    }
+
+    /**
+     * Selects the JVMs with the given PIDs. PIDs of JVMs that are not
+     * running are kept, and fail at attach time.
+     */
+    public static List<VirtualMachineDescriptor> select(Collection<String> pids) {
+        final String self = selfPid();
+        final Map<String, VirtualMachineDescriptor> running = new LinkedHashMap<String, VirtualMachineDescriptor>();
+        for (VirtualMachineDescriptor vmd : VirtualMachine.list())
+            running.put(vmd.id(), vmd);
+        final List<VirtualMachineDescriptor> result = new ArrayList<VirtualMachineDescriptor>();
+        for (String pid : pids) {
+            if (pid.equals(self)) continue;
+            final VirtualMachineDescriptor vmd = running.get(pid);
+            if (vmd != null) result.add(vmd);
+            else if (!AttachProvider.providers().isEmpty())
+                result.add(new VirtualMachineDescriptor(AttachProvider.providers().get(0), pid, "?"));
+        }
+        return result;
+    }
+
+    private static String selfPid() {
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        final int at = name.indexOf('@');
+        return at < 0 ? name : name.substring(0, at);
+    }
+
+    /**
+     * Runs a command on the given JVMs.
+     *
+     * @return the results, in the order of {@code targets}.
+     */
+    public List<Result> run(final Command command, List<VirtualMachineDescriptor> targets) throws IOException {
+        final String hostname = InetAddress.getLocalHost().getHostName();
+        final AgentClient client = new AgentClient();
+        final ThreadFactory threads = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "JMX Agent Fleet " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        // Workers bound the number of JVMs handled at once; each runs its
+        // target on a separate thread, which it abandons on timeout.
+        final ExecutorService workers = Executors.newFixedThreadPool(parallel, threads);
+        final ExecutorService calls = Executors.newCachedThreadPool(threads);
+        try {
+            final List<Result> results = new ArrayList<Result>();
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final VirtualMachineDescriptor vmd : targets) {
+                final Result result = new Result(vmd.id(), vmd.displayName());
+                results.add(result);
+                futures.add(workers.submit(new Runnable() {
+                    public void run() {
+                        final Future<?> call = calls.submit(new Runnable() {
+                            public void run() {
+                                runTarget(command, vmd.id(), hostname, client, result);
+                            }
+                        });
+                        try {
+                            call.get(timeout, TimeUnit.MILLISECONDS);
+                        }
+                        catch (TimeoutException x) {
+                            call.cancel(true);
+                            result.finish(Outcome.TIMEOUT, "no answer within " + timeout + "ms");
+                        }
+                        catch (ExecutionException x) {
+                            result.finish(Outcome.FAILED, String.valueOf(x.getCause()));
+                        }
+                        catch (InterruptedException x) {
+                            call.cancel(true);
+                            result.finish(Outcome.FAILED, "interrupted");
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                }
+                catch (InterruptedException x) {
+                    throw new IOException("interrupted", x);
+                }
+                catch (ExecutionException x) {
+                    // reported in the result
+                }
+            }
+            return results;
+        }
+        finally {
+            workers.shutdownNow();
+            calls.shutdownNow();
+            client.close();
+        }
+    }
+
+    private void runTarget(Command command, String pid, String hostname, AgentClient client, Result result) {
+        try {
+            result.begin("attach");
+            final VirtualMachine vm = VirtualMachine.attach(pid);
+            int port = -1;
+            try {
+                final String p = vm.getSystemProperties().getProperty(JmxAgent.PORT_PROPERTY);
+                if (p != null) port = Integer.parseInt(p);
+
+                final boolean running = port > 0 && answers(client, hostname, port, result);
+                if (command != Command.START || running) {
+                    if (port < 0) {
+                        result.finish(Outcome.NOT_STARTED, "");
+                        return;
+                    }
+                    result.setPort(port);
+                    if (!running) {
+                        result.finish(Outcome.STOPPED, "");
+                        return;
+                    }
+                    if (command == Command.STOP) {
+                        result.begin("stop");
+                        client.stop(Attach.getUrlForClient(hostname, port));
+                        result.finish(Outcome.STOPPED, "");
+                    }
+                    else result.finish(Outcome.RUNNING, "");
+                    return;
+                }
+
+                port = allocatePort();
+                result.setPort(port);
+                result.begin("load");
+                try {
+                    vm.loadAgent(Attach.getAgentFile(), Attach.getAgentArgs(port));
+                }
+                catch (Exception x) {
+                    release(port);
+                    throw x;
+                }
+            }
+            finally {
+                vm.detach();
+            }
+            if (!answers(client, hostname, port, result))
+                throw new IOException("agent started but does not answer on port " + port);
+            result.finish(Outcome.STARTED, "");
+        }
+        catch (Exception x) {
+            result.finish(Outcome.FAILED, x.toString());
+        }
+    }
+
+    // Connects to the agent and counts its MBeans.
+    private static boolean answers(AgentClient client, String hostname, int port, Result result) {
+        try {
+            final JMXServiceURL url = Attach.getUrlForClient(hostname, port);
+            result.begin("connect");
+            client.getConnection(url);
+            result.begin("verify");
+            result.setMBeanCount(client.status(url));
+            result.end();
+            return true;
+        }
+        catch (IOException x) {
+            result.end();
+            return false;
+        }
+    }
+
+    // The first port of the range that neither this fleet nor anything
+    // else on the host is using.
+    private int allocatePort() throws IOException {
+        synchronized (assigned) {
+            for (int port = firstPort; port <= lastPort; port++) {
+                if (assigned.contains(port)) continue;
+                try {
+                    new ServerSocket(port).close();
+                }
+                catch (IOException x) {
+                    continue;
+                }
+                assigned.add(port);
+                return port;
+            }
+        }
+        throw new IOException("no free port in " + firstPort + "-" + lastPort);
+    }
+
+    private void release(int port) {
+        synchronized (assigned) {
+            assigned.remove(port);
+        }
+    }
+
+    /**
+     * Prints the results as a table, with the duration of each phase in
+     * milliseconds.
+     */
+    public static void print(List<Result> results, PrintStream out) {
+        final StringBuilder header = new StringBuilder(String.format("%-8s %-30s %-5s %-11s", "PID", "NAME", "PORT",
+                                                                     "RESULT"));
+        for (String phase : PHASES)
+            header.append(String.format(" %8s", phase));
+        header.append(String.format(" %8s %6s  %s", "total", "MBEANS", "MESSAGE"));
+        out.println(header);
+
+        final Map<Outcome, Integer> counts = new LinkedHashMap<Outcome, Integer>();
+        for (Result r : results) {
+            final String name = r.getDisplayName();
+            final StringBuilder line = new StringBuilder(String.format(
+                    "%-8s %-30s %-5s %-11s", r.getPid(), name.length() > 30 ? name.substring(0, 30) : name,
+                    r.getPort() < 0 ? "-" : String.valueOf(r.getPort()), r.getOutcome()));
+            final Map<String, Long> phases = r.getPhaseNanos();
+            for (String phase : PHASES)
+                line.append(String.format(" %8s", millis(phases.get(phase))));
+            line.append(String.format(" %8s %6s  %s", millis(r.getTotalNanos() < 0 ? null : r.getTotalNanos()),
+                                      r.getMBeanCount() == null ? "-" : r.getMBeanCount(), r.getMessage()));
+            out.println(line);
+            final Integer c = counts.get(r.getOutcome());
+            counts.put(r.getOutcome(), c == null ? 1 : c + 1);
+        }
+        out.println(results.size() + " JVMs: " + counts);
+    }
+
+    private static String millis(Long nanos) {
+        return nanos == null ? "-" : String.format("%.1f", nanos / 1e6);
+    }
+
+    /**
+     * Parses a target argument: a comma separated list of PIDs, or else a
+     * regular expression on the display names.
+     */
+    public static List<VirtualMachineDescriptor> select(String targets) {
+        if (targets.matches("\\d+(,\\d+)*"))
+            return select(Arrays.asList(targets.split(",")));
+        return select(Pattern.compile(targets));
+    }
+
+    /**
+     * Runs {@code start}, {@code status} or {@code stop} on the JVMs chosen by
+     * {@code targets} and prints the results.
+     *
+     * @return true if no JVM failed or timed out.
+     */
+    public static boolean main(String command, String targets) throws IOException {
+        final Command c = Command.valueOf(command.toUpperCase());
+        final List<VirtualMachineDescriptor> vms = select(targets);
+        if (vms.isEmpty()) {
+            System.out.println("No JVM matches " + targets);
+            return true;
+        }
+        final List<Result> results = createFromProperties().run(c, vms);
+        print(results, System.out);
+        for (Result r : results) {
+            if (r.getOutcome() == Outcome.FAILED || r.getOutcome() == Outcome.TIMEOUT) return false;
+        }
+        return true;
+    }
+}
@@ -32,22 +32,43 @@
 
 package com.sudothought.jmx;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
 import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
 import javax.management.remote.MBeanServerForwarder;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * An invocation handler that implement an intercepting MBeanServerForwarder.
  * The MBeanServerForwarder can be configured with a set of {@link
  * InvokeOperationInterceptor} that can intercept a specific method call
- * invoke on an MBean (or a set of MBeans defined by a pattern).
+ * invoke on an MBean (or a set of MBeans defined by a pattern), and with a
+ * set of {@link AttributeInterceptor} that can intercept get/set attribute
+ * calls. Queries can be served from a {@link QueryCache}, and the calls of
+ * each client can be limited by a {@link RateLimiter}.
+ * <p/>
+ * By default {@link #newForwardingInterceptor(ForwardingInterceptor)} returns
+ * an {@link InterceptingForwarder}, which dispatches every MBeanServer method
+ * directly, without reflection. The {@link Proxy} based forwarder is still
+ * available through {@link #newProxyForwardingInterceptor}, or by setting
+ * the {@code jmx.agent.forwarder} system property to {@code proxy}.
  * <p/>
  * See {@link Stopper} for a concrete example.
  *
@@ -55,31 +76,65 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class ForwardingInterceptor implements InvocationHandler {
 
+    public static final String FORWARDER_PROPERTY = "jmx.agent.forwarder";
+    public static final String PROXY_FORWARDER    = "proxy";
+    public static final String DIRECT_FORWARDER   = "direct";
+
     private final static class Methods {
         final static Method invokeMethod;
         final static Method getClassLoaderForMethod;
+        final static Method getAttributeMethod;
+        final static Method getAttributesMethod;
+        final static Method setAttributeMethod;
+        final static Method setAttributesMethod;
+        final static Method queryNamesMethod;
+        final static Method queryMBeansMethod;
         final static Method setMBeanServerMethod;
         final static Method getMBeanServerMethod;
 
         static {
             try {
                 invokeMethod = MBeanServer.class.getMethod("invoke",
-                                                           new Class[]{
+                                                           new Class<?>[]{
                                                                    ObjectName.class, // MBean
                                                                    String.class, // Method name
                                                                    Object[].class, // Parameters
                                                                    String[].class    // Signature
                                                            });
                 getClassLoaderForMethod = MBeanServer.class.getMethod(
-                        "getClassLoaderFor", new Class[]{
+                        "getClassLoaderFor", new Class<?>[]{
                                 ObjectName.class
                         });
+                getAttributeMethod = MBeanServer.class.getMethod(
+                        "getAttribute", new Class<?>[]{
+                                ObjectName.class, String.class
+                        });
+                getAttributesMethod = MBeanServer.class.getMethod(
+                        "getAttributes", new Class<?>[]{
+                                ObjectName.class, String[].class
+                        });
+                setAttributeMethod = MBeanServer.class.getMethod(
+                        "setAttribute", new Class<?>[]{
+                                ObjectName.class, Attribute.class
+                        });
+                setAttributesMethod = MBeanServer.class.getMethod(
+                        "setAttributes", new Class<?>[]{
+                                ObjectName.class, AttributeList.class
+                        });
+                queryNamesMethod = MBeanServer.class.getMethod(
+                        "queryNames", new Class<?>[]{
+                                ObjectName.class, QueryExp.class
+                        });
+                queryMBeansMethod = MBeanServer.class.getMethod(
+                        "queryMBeans", new Class<?>[]{
+                                ObjectName.class, QueryExp.class
+                        });
                 setMBeanServerMethod = MBeanServerForwarder.class.getMethod(
-                        "setMBeanServer", new Class[]{
+                        "setMBeanServer", new Class<?>[]{
                                 MBeanServer.class
                         });
                 getMBeanServerMethod = MBeanServerForwarder.class.getMethod(
-                        "getMBeanServer", new Class[]{});
+                        "getMBeanServer", new Class<?>[]{});
             }
             catch (NoSuchMethodException x) {
                 throw new ExceptionInInitializerError(x);
@@ -87,13 +142,81 @@ public class ForwardingInterceptor implements InvocationHandler {
         }
     }
 
+    /**
+     * Indexes InvokeOperationInterceptors by their {@code mbeanName} and
+     * {@code methodName}. Candidates are still confirmed through
+     * {@link InvokeOperationInterceptor#matches}, and interceptors that
+     * override it are checked on every call.
+     */
+    private static final class InvokeRegistry extends InterceptorRegistry<InvokeOperationInterceptor> {
+        @Override
+        protected ObjectName mbeanOf(InvokeOperationInterceptor c) {
+            return c.mbeanName;
+        }
+
+        @Override
+        protected String memberOf(InvokeOperationInterceptor c) {
+            return c.methodName;
+        }
+
+        @Override
+        protected boolean matches(InvokeOperationInterceptor c, ObjectName name, String operation) {
+            if (!c.matches(name)) return false;
+            return operation == null || c.matches(operation);
+        }
+
+        @Override
+        protected boolean indexable(InvokeOperationInterceptor c) {
+            final Class<?> base = InvokeOperationInterceptor.class;
+            return !overrides(c.getClass(), base, "matches", ObjectName.class)
+                && !overrides(c.getClass(), base, "matches", String.class);
+        }
+    }
+
+    /**
+     * Indexes AttributeInterceptors by their {@code mbeanName} and
+     * {@code attributeName}. Candidates are still confirmed through
+     * {@link AttributeInterceptor#matches}, and interceptors that override
+     * it are checked on every call.
+     */
+    private static final class AttributeRegistry extends InterceptorRegistry<AttributeInterceptor> {
+        @Override
+        protected ObjectName mbeanOf(AttributeInterceptor c) {
+            return c.mbeanName;
+        }
+
+        @Override
+        protected String memberOf(AttributeInterceptor c) {
+            return c.attributeName;
+        }
+
+        @Override
+        protected boolean matches(AttributeInterceptor c, ObjectName name, String attribute) {
+            if (!c.matches(name)) return false;
+            return attribute == null || c.matches(attribute);
+        }
+
+        @Override
+        protected boolean indexable(AttributeInterceptor c) {
+            final Class<?> base = AttributeInterceptor.class;
+            return !overrides(c.getClass(), base, "matches", ObjectName.class)
+                && !overrides(c.getClass(), base, "matches", String.class);
+        }
+    }
+
     private volatile MBeanServer server = null;
-    private final List<InvokeOperationInterceptor> interceptedCalls;
+    private final InterceptorRegistry<InvokeOperationInterceptor> interceptedCalls;
+    private final InterceptorRegistry<AttributeInterceptor> interceptedAttributes;
+    private volatile QueryCache queryCache = null;
+    private volatile Federation federation = null;
+    private volatile RateLimiter rateLimiter = null;
 
     public ForwardingInterceptor(MBeanServer server, InvokeOperationInterceptor... intercepted) {
         this.server = server;
-        this.interceptedCalls = new CopyOnWriteArrayList<InvokeOperationInterceptor>();
-        this.interceptedCalls.addAll(Arrays.asList(intercepted));
+        this.interceptedCalls = new InvokeRegistry();
+        this.interceptedAttributes = new AttributeRegistry();
+        for (InvokeOperationInterceptor c : intercepted)
+            this.interceptedCalls.add(c);
     }
 
     public void addInterceptedCall(InvokeOperationInterceptor call) {
@@ -104,6 +227,92 @@ public class ForwardingInterceptor implements InvocationHandler {
         return interceptedCalls.remove(call);
     }
 
+    /**
+     * The configured InvokeOperationInterceptors, in registration order.
+     */
+    public List<InvokeOperationInterceptor> getInterceptedCalls() {
+        return interceptedCalls.list();
+    }
+
+    public void addInterceptedAttribute(AttributeInterceptor attribute) {
+        interceptedAttributes.add(attribute);
+    }
+
+    public boolean removeInterceptedAttribute(AttributeInterceptor attribute) {
+        return interceptedAttributes.remove(attribute);
+    }
+
+    /**
+     * The configured AttributeInterceptors, in registration order.
+     */
+    public List<AttributeInterceptor> getInterceptedAttributes() {
+        return interceptedAttributes.list();
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Sets the cache used for queryNames/queryMBeans calls without a
+     * QueryExp. The cache must be bound to the wrapped MBeanServer.
+     *
+     * @param cache the cache, or null to disable caching.
+     */
+    public void setQueryCache(QueryCache cache) {
+        this.queryCache = cache;
+    }
+
+    public Federation getFederation() {
+        return federation;
+    }
+
+    /**
+     * Sets the federation mounted below this interceptor. The query cache
+     * only holds local MBeans: queries that can match mounted MBeans are
+     * not answered from it.
+     *
+     * @param federation the federation, or null if none is mounted.
+     */
+    public void setFederation(Federation federation) {
+        this.federation = federation;
+    }
+
+    // True if the query cache can answer a query on this pattern.
+    private boolean cacheable(ObjectName name) {
+        final Federation f = federation;
+        return f == null || (f.includesLocal(name) && f.match(name).isEmpty());
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets the rate limiter applied to invoke, get/set attribute(s) and
+     * query calls, before any interceptor or cache.
+     *
+     * @param limiter the rate limiter, or null to disable rate limiting.
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.rateLimiter = limiter;
+    }
+
+    /**
+     * Takes a call on {@code mbean} from the client's budget. Calls on the
+     * agent's own MBeans are not limited, so that a throttled client can
+     * still stop the agent or change the limits. Neither are operations and
+     * attribute reads answered by an interceptor, such as the Stopper and
+     * Snapshot "fake" MBeans or cached attributes: the reads a snapshot
+     * makes are charged one by one instead.
+     */
+    private void acquire(RateLimiter.OpClass c, ObjectName mbean) {
+        final RateLimiter limiter = rateLimiter;
+        if (limiter == null) return;
+        if (mbean != null && !mbean.isDomainPattern() && JmxAgent.AGENT_DOMAIN.equals(mbean.getDomain())) return;
+        limiter.acquire(c);
+    }
+
     public Object invoke(Object proxy, Method method, Object[] args)
             throws Throwable {
         final Class declaring = method.getDeclaringClass();
@@ -119,25 +328,240 @@ public class ForwardingInterceptor implements InvocationHandler {
         throw new IllegalArgumentException(method.getName());
     }
 
-    private Object intercept(InvokeOperationInterceptor c, Method method, Object on, Object[] args) throws Throwable {
-        return c.intercept(server, (ObjectName)args[0], (String)args[1], (Object[])args[2], (String[])args[3]);
+    /**
+     * Invokes an operation on the wrapped MBeanServer, unless one of the
+     * configured {@link InvokeOperationInterceptor}s intercepts it.
+     * Checked exceptions thrown by an interceptor that are not declared by
+     * {@link MBeanServer#invoke} are wrapped in an {@link MBeanException}.
+     */
+    public Object invokeOperation(ObjectName mbean, String operation, Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        final InvokeOperationInterceptor c = interceptedCalls.find(mbean, operation);
+        if (c != null)
+            return intercept(c, mbean, operation, params, signature);
+        acquire(RateLimiter.OpClass.INVOKE, mbean);
+        return server.invoke(mbean, operation, params, signature);
     }
 
-    private Object invokeOnServer(Object proxy, Method method, Object[] args) throws Throwable {
-        try {
-            if (method.equals(Methods.invokeMethod)) {
-                for (InvokeOperationInterceptor c : interceptedCalls) {
-                    if (isIntercepting(c, method, args))
-                        return intercept(c, method, server, args);
-                }
+    /**
+     * Returns the ClassLoader used to deserialize the parameters of an
+     * operation invoked on {@code mbean}. The first {@link
+     * InvokeOperationInterceptor} matching {@code mbean} is asked for it,
+     * otherwise the wrapped MBeanServer is.
+     */
+    public ClassLoader getClassLoaderFor(ObjectName mbean)
+            throws InstanceNotFoundException {
+        final InvokeOperationInterceptor c = interceptedCalls.find(mbean);
+        if (c != null)
+            return c.getClassLoaderFor(server, mbean);
+        return server.getClassLoaderFor(mbean);
+    }
+
+    /**
+     * Reads an attribute from the wrapped MBeanServer, unless one of the
+     * configured {@link AttributeInterceptor}s intercepts it.
+     */
+    public Object getAttribute(ObjectName mbean, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        final AttributeInterceptor c = attribute == null ? null : interceptedAttributes.find(mbean, attribute);
+        if (c != null)
+            return c.getAttribute(server, mbean, attribute);
+        acquire(RateLimiter.OpClass.READ, mbean);
+        return server.getAttribute(mbean, attribute);
+    }
+
+    /**
+     * Reads several attributes. Attributes matched by an
+     * {@link AttributeInterceptor} are handed to that interceptor, the
+     * others are read from the wrapped MBeanServer in a single call.
+     */
+    public AttributeList getAttributes(ObjectName mbean, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        if (attributes == null || interceptedAttributes.size() == 0) {
+            acquire(RateLimiter.OpClass.READ, mbean);
+            return server.getAttributes(mbean, attributes);
+        }
+
+        Map<AttributeInterceptor, List<String>> split = null;
+        final List<String> direct = new ArrayList<String>(attributes.length);
+        for (String attribute : attributes) {
+            final AttributeInterceptor c = attribute == null ? null : interceptedAttributes.find(mbean, attribute);
+            if (c == null) {
+                direct.add(attribute);
+                continue;
+            }
+            if (split == null) split = new LinkedHashMap<AttributeInterceptor, List<String>>();
+            List<String> names = split.get(c);
+            if (names == null) {
+                names = new ArrayList<String>();
+                split.put(c, names);
+            }
+            names.add(attribute);
+        }
+        if (split == null) {
+            acquire(RateLimiter.OpClass.READ, mbean);
+            return server.getAttributes(mbean, attributes);
+        }
+        if (direct.isEmpty() && split.size() == 1) {
+            final Map.Entry<AttributeInterceptor, List<String>> e = split.entrySet().iterator().next();
+            return e.getKey().getAttributes(server, mbean, attributes);
+        }
+
+        final Map<String, Attribute> values = new HashMap<String, Attribute>();
+        if (!direct.isEmpty()) {
+            acquire(RateLimiter.OpClass.READ, mbean);
+            collect(values, server.getAttributes(mbean, direct.toArray(new String[direct.size()])));
+        }
+        for (Map.Entry<AttributeInterceptor, List<String>> e : split.entrySet()) {
+            final List<String> names = e.getValue();
+            collect(values, e.getKey().getAttributes(server, mbean, names.toArray(new String[names.size()])));
+        }
+        final AttributeList result = new AttributeList(values.size());
+        for (String attribute : attributes) {
+            final Attribute a = values.get(attribute);
+            if (a != null) result.add(a);
+        }
+        return result;
+    }
+
+    /**
+     * Writes an attribute on the wrapped MBeanServer, unless one of the
+     * configured {@link AttributeInterceptor}s intercepts it.
+     */
+    public void setAttribute(ObjectName mbean, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException {
+        acquire(RateLimiter.OpClass.WRITE, mbean);
+        final AttributeInterceptor c = attribute == null ? null : interceptedAttributes.find(mbean, attribute.getName());
+        if (c != null)
+            c.setAttribute(server, mbean, attribute);
+        else
+            server.setAttribute(mbean, attribute);
+    }
+
+    /**
+     * Writes several attributes. Attributes matched by an
+     * {@link AttributeInterceptor} are handed to that interceptor, the
+     * others are written on the wrapped MBeanServer in a single call.
+     */
+    public AttributeList setAttributes(ObjectName mbean, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        acquire(RateLimiter.OpClass.WRITE, mbean);
+        if (attributes == null || interceptedAttributes.size() == 0)
+            return server.setAttributes(mbean, attributes);
+
+        Map<AttributeInterceptor, AttributeList> split = null;
+        final AttributeList direct = new AttributeList();
+        for (Attribute attribute : attributes.asList()) {
+            final AttributeInterceptor c = interceptedAttributes.find(mbean, attribute.getName());
+            if (c == null) {
+                direct.add(attribute);
+                continue;
             }
-            else if (method.equals(Methods.getClassLoaderForMethod)) {
-                final ObjectName mbean = (ObjectName)args[0];
-                for (InvokeOperationInterceptor c : interceptedCalls) {
-                    if (c.matches(mbean))
-                        return c.getClassLoaderFor(server, mbean);
-                }
+            if (split == null) split = new LinkedHashMap<AttributeInterceptor, AttributeList>();
+            AttributeList list = split.get(c);
+            if (list == null) {
+                list = new AttributeList();
+                split.put(c, list);
             }
+            list.add(attribute);
+        }
+        if (split == null)
+            return server.setAttributes(mbean, attributes);
+
+        final Map<String, Attribute> values = new HashMap<String, Attribute>();
+        if (!direct.isEmpty())
+            collect(values, server.setAttributes(mbean, direct));
+        for (Map.Entry<AttributeInterceptor, AttributeList> e : split.entrySet())
+            collect(values, e.getKey().setAttributes(server, mbean, e.getValue()));
+        final AttributeList result = new AttributeList(values.size());
+        for (Attribute attribute : attributes.asList()) {
+            final Attribute a = values.get(attribute.getName());
+            if (a != null) result.add(a);
+        }
+        return result;
+    }
+
+    /**
+     * Queries MBean names, from the {@link QueryCache} if one is configured,
+     * {@code query} is null and the pattern can't match mounted MBeans.
+     */
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        acquire(RateLimiter.OpClass.QUERY, name);
+        final QueryCache cache = queryCache;
+        if (cache != null && query == null && cacheable(name))
+            return cache.queryNames(name);
+        return server.queryNames(name, query);
+    }
+
+    /**
+     * Queries MBeans, from the {@link QueryCache} if one is configured,
+     * {@code query} is null and the pattern can't match mounted MBeans.
+     */
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        acquire(RateLimiter.OpClass.QUERY, name);
+        final QueryCache cache = queryCache;
+        if (cache != null && query == null && cacheable(name))
+            return cache.queryMBeans(name);
+        return server.queryMBeans(name, query);
+    }
+
+    private static void collect(Map<String, Attribute> values, AttributeList list) {
+        if (list == null) return;
+        for (Attribute a : list.asList())
+            values.put(a.getName(), a);
+    }
+
+    private Object intercept(InvokeOperationInterceptor c, ObjectName mbean, String operation,
+                             Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        try {
+            return c.intercept(server, mbean, operation, params, signature);
+        }
+        catch (InstanceNotFoundException x) {
+            throw x;
+        }
+        catch (MBeanException x) {
+            throw x;
+        }
+        catch (ReflectionException x) {
+            throw x;
+        }
+        catch (RuntimeException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            throw new MBeanException(x, "interceptor failed: " + x);
+        }
+    }
+
+    private Object invokeOnServer(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.equals(Methods.invokeMethod)) {
+            return invokeOperation((ObjectName)args[0], (String)args[1], (Object[])args[2], (String[])args[3]);
+        }
+        else if (method.equals(Methods.getClassLoaderForMethod)) {
+            return getClassLoaderFor((ObjectName)args[0]);
+        }
+        else if (method.equals(Methods.getAttributeMethod)) {
+            return getAttribute((ObjectName)args[0], (String)args[1]);
+        }
+        else if (method.equals(Methods.getAttributesMethod)) {
+            return getAttributes((ObjectName)args[0], (String[])args[1]);
+        }
+        else if (method.equals(Methods.setAttributeMethod)) {
+            setAttribute((ObjectName)args[0], (Attribute)args[1]);
+            return null;
+        }
+        else if (method.equals(Methods.setAttributesMethod)) {
+            return setAttributes((ObjectName)args[0], (AttributeList)args[1]);
+        }
+        else if (method.equals(Methods.queryNamesMethod)) {
+            return queryNames((ObjectName)args[0], (QueryExp)args[1]);
+        }
+        else if (method.equals(Methods.queryMBeansMethod)) {
+            return queryMBeans((ObjectName)args[0], (QueryExp)args[1]);
+        }
+        try {
             return method.invoke(server, args);
         }
         catch (InvocationTargetException ex) {
@@ -170,13 +594,6 @@ public class ForwardingInterceptor implements InvocationHandler {
         return server;
     }
 
-    private boolean isIntercepting(InvokeOperationInterceptor c, Method method, Object[] args) {
-        if (!method.equals(Methods.invokeMethod)) return false;
-        if (!c.matches((ObjectName)args[0])) return false;
-        if (!c.matches((String)args[1])) return false;
-        return true;
-    }
-
 
     public static MBeanServerForwarder newForwardingInterceptor() {
         return newForwardingInterceptor(null, new InvokeOperationInterceptor[0]);
@@ -195,23 +612,58 @@ public class ForwardingInterceptor implements InvocationHandler {
         return newForwardingInterceptor(new ForwardingInterceptor(server, interceptors));
     }
 
+    /**
+     * Creates an MBeanServerForwarder for the given interceptor. Returns an
+     * {@link InterceptingForwarder}, unless the {@code jmx.agent.forwarder}
+     * system property is set to {@code proxy}.
+     */
     public static MBeanServerForwarder newForwardingInterceptor(ForwardingInterceptor interceptor) {
+        final String kind = System.getProperty(FORWARDER_PROPERTY, DIRECT_FORWARDER);
+        if (PROXY_FORWARDER.equalsIgnoreCase(kind))
+            return newProxyForwardingInterceptor(interceptor);
+        return new InterceptingForwarder(interceptor);
+    }
+
+    /**
+     * Creates a {@link Proxy} based MBeanServerForwarder for the given
+     * interceptor. Every call goes through reflection, this is kept as a
+     * fallback for the {@link InterceptingForwarder}.
+     */
+    public static MBeanServerForwarder newProxyForwardingInterceptor(ForwardingInterceptor interceptor) {
         return (MBeanServerForwarder)Proxy.newProxyInstance(null, new Class[]{MBeanServerForwarder.class}, interceptor);
     }
 
+    /**
+     * Returns the ForwardingInterceptor behind a forwarder created by one of
+     * the {@code newForwardingInterceptor} methods.
+     *
+     * @throws IllegalArgumentException if the forwarder was not created by
+     *                                  this class.
+     */
+    public static ForwardingInterceptor getForwardingInterceptor(Object forwarder) {
+        if (forwarder instanceof InterceptingForwarder)
+            return ((InterceptingForwarder)forwarder).getForwardingInterceptor();
+        if (forwarder != null && Proxy.isProxyClass(forwarder.getClass())) {
+            final InvocationHandler h = Proxy.getInvocationHandler(forwarder);
+            if (h instanceof ForwardingInterceptor)
+                return (ForwardingInterceptor)h;
+        }
+        throw new IllegalArgumentException("Forwarder not handled by a " + ForwardingInterceptor.class.getName());
+    }
+
     public static void addInterceptor(Object proxy, InvokeOperationInterceptor interceptor) {
-        final InvocationHandler h = Proxy.getInvocationHandler(proxy);
-        if (!(h instanceof ForwardingInterceptor))
-            throw new IllegalArgumentException("Proxy not handled by a " + ForwardingInterceptor.class.getName());
-        ForwardingInterceptor i = (ForwardingInterceptor)h;
-        i.addInterceptedCall(interceptor);
+        getForwardingInterceptor(proxy).addInterceptedCall(interceptor);
     }
 
     public static boolean removeInterceptor(Object proxy, InvokeOperationInterceptor interceptor) {
-        final InvocationHandler h = Proxy.getInvocationHandler(proxy);
-        if (!(h instanceof ForwardingInterceptor))
-            throw new IllegalArgumentException("Proxy not handled by a " + ForwardingInterceptor.class.getName());
-        ForwardingInterceptor i = (ForwardingInterceptor)h;
-        return i.removeInterceptedCall(interceptor);
+        return getForwardingInterceptor(proxy).removeInterceptedCall(interceptor);
+    }
+
+    public static void addInterceptor(Object proxy, AttributeInterceptor interceptor) {
+        getForwardingInterceptor(proxy).addInterceptedAttribute(interceptor);
+    }
+
+    public static boolean removeInterceptor(Object proxy, AttributeInterceptor interceptor) {
+        return getForwardingInterceptor(proxy).removeInterceptedAttribute(interceptor);
     }
 }
@@ -0,0 +1,429 @@
+package com.sudothought.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.OperationsException;
+import javax.management.ReflectionException;
+import javax.management.RuntimeOperationsException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An HTTP endpoint that serves JSON for collectors that can't speak RMI.
+ * <p/>
+ * Requests are made against the MBeanServer of the connector server, i.e.
+ * through the same chain of MBeanServerForwarders (interceptors, caches,
+ * statistics) as RMI clients. Parameters are given in the query string or
+ * as a form-encoded POST body:
+ * <pre>
+ * /jmx/read?mbean=java.lang:type=Memory&attribute=HeapMemoryUsage
+ * /jmx/read?mbean=java.lang:type=GarbageCollector,*     (bulk read: one entry per MBean)
+ * /jmx/search?mbean=java.lang:*
+ * /jmx/exec?mbean=java.lang:type=Memory&operation=gc    (one arg=... per parameter)
+ * </pre>
+ * The answer is {@code {"status":200,"value":...}}, or
+ * {@code {"status":<code>,"error_type":...,"error":...}} with the same HTTP
+ * status on failure. In a bulk read, an MBean that can't be read is
+ * reported in place of its attributes and doesn't fail the request.
+ * <p/>
+ * The server is the JDK's selector-based {@code com.sun.net.httpserver}:
+ * connections are kept alive, and requests pipelined on a connection are
+ * answered in order. Responses are sent chunked and encoded by a
+ * {@link JsonWriter} while values are traversed, so large results are never
+ * buffered. With SSL (the default), it uses the agent's SSLContext, i.e. the
+ * {@code javax.net.ssl.keyStore} properties and the {@code jmx.agent.tls}
+ * settings.
+ * <pre>
+ * jmx.agent.http.port      port of the endpoint; enables it
+ * jmx.agent.http.ssl       false for plain HTTP (default true)
+ * jmx.agent.http.threads   number of request threads (default 2)
+ * </pre>
+ */
+public class HttpConnector implements Closeable {
+
+    public static final String HTTP_PORT_PROPERTY    = "jmx.agent.http.port";
+    public static final String HTTP_SSL_PROPERTY     = "jmx.agent.http.ssl";
+    public static final String HTTP_THREADS_PROPERTY = "jmx.agent.http.threads";
+    public static final String CONTEXT               = "/jmx";
+
+    private static final String JSON_TYPE = "application/json; charset=UTF-8";
+
+    // Read once by the JDK server. Without it, the small writes of a chunked
+    // response meet delayed ACKs and each request takes ~40ms.
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private final MBeanServer server;
+    private final HttpServer http;
+    private final ExecutorService executor;
+
+    /**
+     * Creates an endpoint. It is not started.
+     *
+     * @param server    the MBeanServer to which requests are made.
+     * @param port      the port to listen on.
+     * @param ssl       the socket factory whose TLS configuration is used,
+     *                  or null for plain HTTP.
+     * @param threads   the number of request threads.
+     */
+    public HttpConnector(MBeanServer server, int port, final AgentSslServerSocketFactory ssl, int threads)
+            throws IOException {
+        this.server = server;
+        if (System.getProperty(NODELAY_PROPERTY) == null)
+            System.setProperty(NODELAY_PROPERTY, "true");
+        if (ssl == null) {
+            http = HttpServer.create(new InetSocketAddress(port), 0);
+        }
+        else {
+            final HttpsServer https = HttpsServer.create(new InetSocketAddress(port), 0);
+            https.setHttpsConfigurator(new HttpsConfigurator(ssl.getSSLContext()) {
+                @Override
+                public void configure(HttpsParameters params) {
+                    final SSLContext context = getSSLContext();
+                    final SSLParameters sslParams = context.getDefaultSSLParameters();
+                    if (ssl.getEnabledProtocols() != null)
+                        sslParams.setProtocols(ssl.getEnabledProtocols());
+                    if (ssl.getEnabledCipherSuites() != null) {
+                        sslParams.setCipherSuites(ssl.getEnabledCipherSuites());
+                        sslParams.setUseCipherSuitesOrder(true);
+                    }
+                    params.setSSLParameters(sslParams);
+                }
+            });
+            http = https;
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "JMX Agent HTTP " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        http.setExecutor(executor);
+        http.createContext(CONTEXT, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                HttpConnector.this.handle(exchange);
+            }
+        });
+    }
+
+    /**
+     * Creates an endpoint configured from the {@code jmx.agent.http} system
+     * properties, or returns null if {@code jmx.agent.http.port} is not set.
+     *
+     * @param server the MBeanServer to which requests are made.
+     * @param ssl    the agent's server socket factory.
+     */
+    public static HttpConnector createFromProperties(MBeanServer server, AgentSslServerSocketFactory ssl)
+            throws IOException {
+        final String port = System.getProperty(HTTP_PORT_PROPERTY);
+        if (port == null) return null;
+        final boolean useSsl = Boolean.valueOf(System.getProperty(HTTP_SSL_PROPERTY, "true")).booleanValue();
+        final int threads = Integer.parseInt(System.getProperty(HTTP_THREADS_PROPERTY, "2"));
+        return new HttpConnector(server, Integer.parseInt(port), useSsl ? ssl : null, threads);
+    }
+
+    /**
+     * Serves another handler next to {@code /jmx}, e.g. the
+     * {@link MetricsExporter}.
+     *
+     * @param path    the path of the handler, e.g. "/metrics".
+     * @param handler the handler, called on the endpoint's request threads.
+     */
+    public void addContext(String path, HttpHandler handler) {
+        http.createContext(path, handler);
+    }
+
+    public InetSocketAddress getAddress() {
+        return http.getAddress();
+    }
+
+    /**
+     * Starts the endpoint. Its dispatcher thread inherits the daemon status
+     * of the caller, so it is started from a daemon thread: the endpoint
+     * must not keep the JVM alive.
+     */
+    public void start() {
+        final Thread starter = new Thread("JMX Agent HTTP starter") {
+            public void run() {
+                http.start();
+            }
+        };
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the endpoint, waiting at most one second for the requests in
+     * progress.
+     */
+    public void close() {
+        http.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String path = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+            if (!"/read".equals(path) && !"/search".equals(path) && !"/exec".equals(path)) {
+                error(exchange, 404, "NotFound", "unknown request: " + path);
+                exchange.close();
+                return;
+            }
+            final Map<String, List<String>> params = getParameters(exchange);
+            final ObjectName name = ObjectName.getInstance(required(params, "mbean"));
+
+            if ("/read".equals(path)) {
+                if (name.isPattern()) bulkRead(exchange, name, params.get("attribute"));
+                else read(exchange, name, params.get("attribute"));
+            }
+            else if ("/search".equals(path)) {
+                final Set<ObjectName> names = server.queryNames(name, null);
+                final JsonWriter json = begin(exchange);
+                json.value(names);
+                end(json);
+            }
+            else {
+                exec(exchange, name, required(params, "operation"), params.get("arg"), params.get("signature"));
+            }
+        }
+        catch (Exception x) {
+            if (exchange.getResponseCode() != -1) {
+                // The 200 response was already started: throwing makes the
+                // server drop the connection without the final chunk, so
+                // that the client sees a truncated response rather than a
+                // complete one.
+                throw new IOException("response aborted: " + x, x);
+            }
+            error(exchange, x);
+        }
+        exchange.close();
+    }
+
+    private void read(HttpExchange exchange, ObjectName name, List<String> attributes) throws Exception {
+        if (attributes != null && attributes.size() == 1) {
+            final Object value = server.getAttribute(name, attributes.get(0));
+            final JsonWriter json = begin(exchange);
+            json.value(value);
+            end(json);
+            return;
+        }
+        final AttributeList values = server.getAttributes(name, attributeNames(name, attributes));
+        final JsonWriter json = begin(exchange);
+        writeAttributes(json, values);
+        end(json);
+    }
+
+    private void bulkRead(HttpExchange exchange, ObjectName pattern, List<String> attributes) throws Exception {
+        final Set<ObjectName> names = server.queryNames(pattern, null);
+        final JsonWriter json = begin(exchange);
+        json.beginObject();
+        for (ObjectName name : names) {
+            json.name(name.getCanonicalName());
+            try {
+                writeAttributes(json, server.getAttributes(name, attributeNames(name, attributes)));
+            }
+            catch (Exception x) {
+                json.beginObject().name("error_type").value(x.getClass().getName())
+                        .name("error").value(String.valueOf(x.getMessage())).endObject();
+            }
+        }
+        json.endObject();
+        end(json);
+    }
+
+    private static void writeAttributes(JsonWriter json, AttributeList values) throws IOException {
+        json.beginObject();
+        for (Attribute a : values.asList())
+            json.name(a.getName()).value(a.getValue());
+        json.endObject();
+    }
+
+    private String[] attributeNames(ObjectName name, List<String> attributes) throws JMException {
+        if (attributes != null && !attributes.isEmpty())
+            return attributes.toArray(new String[attributes.size()]);
+        final MBeanAttributeInfo[] infos = server.getMBeanInfo(name).getAttributes();
+        final List<String> readable = new ArrayList<String>(infos.length);
+        for (MBeanAttributeInfo info : infos) {
+            if (info.isReadable()) readable.add(info.getName());
+        }
+        return readable.toArray(new String[readable.size()]);
+    }
+
+    private void exec(HttpExchange exchange, ObjectName name, String operation, List<String> args,
+                      List<String> signature) throws Exception {
+        final int count = args == null ? 0 : args.size();
+        final String[] types = signature != null ? signature.toArray(new String[signature.size()])
+                                                 : findSignature(name, operation, count);
+        if (types.length != count)
+            throw new IllegalArgumentException("expected " + types.length + " arguments, got " + count);
+        final Object[] values = new Object[count];
+        for (int i = 0; i < count; i++)
+            values[i] = convert(args.get(i), types[i]);
+
+        final Object result = server.invoke(name, operation, values, types);
+        final JsonWriter json = begin(exchange);
+        json.value(result);
+        end(json);
+    }
+
+    private String[] findSignature(ObjectName name, String operation, int count) throws JMException {
+        String[] found = null;
+        for (MBeanOperationInfo info : server.getMBeanInfo(name).getOperations()) {
+            final MBeanParameterInfo[] params = info.getSignature();
+            if (!info.getName().equals(operation) || params.length != count) continue;
+            if (found != null)
+                throw new IllegalArgumentException("ambiguous operation " + operation + ", give its signature");
+            found = new String[count];
+            for (int i = 0; i < count; i++)
+                found[i] = params[i].getType();
+        }
+        if (found == null)
+            throw new IllegalArgumentException("no operation " + operation + " with " + count + " arguments");
+        return found;
+    }
+
+    private static Object convert(String value, String type) throws MalformedObjectNameException {
+        if ("java.lang.String".equals(type)) return value;
+        if ("int".equals(type) || "java.lang.Integer".equals(type)) return Integer.valueOf(value);
+        if ("long".equals(type) || "java.lang.Long".equals(type)) return Long.valueOf(value);
+        if ("boolean".equals(type) || "java.lang.Boolean".equals(type)) return Boolean.valueOf(value);
+        if ("double".equals(type) || "java.lang.Double".equals(type)) return Double.valueOf(value);
+        if ("float".equals(type) || "java.lang.Float".equals(type)) return Float.valueOf(value);
+        if ("short".equals(type) || "java.lang.Short".equals(type)) return Short.valueOf(value);
+        if ("byte".equals(type) || "java.lang.Byte".equals(type)) return Byte.valueOf(value);
+        if ("javax.management.ObjectName".equals(type)) return ObjectName.getInstance(value);
+        if (("char".equals(type) || "java.lang.Character".equals(type)) && value.length() == 1)
+            return Character.valueOf(value.charAt(0));
+        throw new IllegalArgumentException("can't convert argument to " + type);
+    }
+
+    private static String required(Map<String, List<String>> params, String name) {
+        final List<String> values = params.get(name);
+        if (values == null || values.isEmpty())
+            throw new IllegalArgumentException("missing parameter: " + name);
+        return values.get(0);
+    }
+
+    private static Map<String, List<String>> getParameters(HttpExchange exchange) throws IOException {
+        final Map<String, List<String>> params = new HashMap<String, List<String>>();
+        parse(exchange.getRequestURI().getRawQuery(), params);
+        if ("POST".equals(exchange.getRequestMethod())) {
+            final InputStream in = exchange.getRequestBody();
+            final StringBuilder body = new StringBuilder();
+            final byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                body.append(new String(buf, 0, n, "UTF-8"));
+            parse(body.toString(), params);
+        }
+        return params;
+    }
+
+    private static void parse(String query, Map<String, List<String>> params) throws UnsupportedEncodingException {
+        if (query == null || query.length() == 0) return;
+        for (String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            final String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            final String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            List<String> values = params.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                params.put(name, values);
+            }
+            values.add(value);
+        }
+    }
+
+    // Starts a chunked 200 response, up to the "value" member.
+    private static JsonWriter begin(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+        exchange.sendResponseHeaders(200, 0);
+        final JsonWriter json = new JsonWriter(
+                new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"), 8192));
+        json.beginObject().name("status").value(200).name("value");
+        return json;
+    }
+
+    private static void end(JsonWriter json) throws IOException {
+        json.endObject();
+        json.flush();
+    }
+
+    private static void error(HttpExchange exchange, Exception x) throws IOException {
+        Throwable cause = x;
+        while ((cause instanceof MBeanException || cause instanceof ReflectionException
+                || cause instanceof RuntimeOperationsException) && cause.getCause() != null)
+            cause = cause.getCause();
+        final int status;
+        if (x instanceof InstanceNotFoundException || x instanceof AttributeNotFoundException)
+            status = 404;
+        else if (x instanceof IllegalArgumentException || x instanceof OperationsException
+                 || x instanceof RuntimeOperationsException)
+            status = 400;
+        else if (x instanceof SecurityException)
+            status = 403;
+        else
+            status = 500;
+        error(exchange, status, cause.getClass().getName(), String.valueOf(cause.getMessage()));
+    }
+
+    private static void error(HttpExchange exchange, int status, String type, String message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+        exchange.sendResponseHeaders(status, 0);
+        final JsonWriter json = new JsonWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"));
+        json.beginObject().name("status").value(status)
+                .name("error_type").value(type)
+                .name("error").value(message)
+                .endObject();
+        json.flush();
+    }
+}
@@ -0,0 +1,101 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import java.util.Set;
+
+/**
+ * The default MBeanServerForwarder returned by
+ * {@link ForwardingInterceptor#newForwardingInterceptor(ForwardingInterceptor)}.
+ * Calls to {@code invoke}, {@code getClassLoaderFor}, the get/set
+ * attribute methods and the query methods are handed to the {@link ForwardingInterceptor}, which
+ * applies its {@link InvokeOperationInterceptor}s and
+ * {@link AttributeInterceptor}s. All other calls are forwarded directly
+ * to the wrapped MBeanServer.
+ * <p/>
+ * Unlike the {@link java.lang.reflect.Proxy} based forwarder, no reflection
+ * is involved: each call is a plain virtual method call.
+ */
+public class InterceptingForwarder extends DelegatingForwarder {
+
+    private final ForwardingInterceptor interceptor;
+
+    public InterceptingForwarder(ForwardingInterceptor interceptor) {
+        if (interceptor == null)
+            throw new IllegalArgumentException("interceptor is null");
+        this.interceptor = interceptor;
+    }
+
+    public ForwardingInterceptor getForwardingInterceptor() {
+        return interceptor;
+    }
+
+    // The wrapped MBeanServer is held by the ForwardingInterceptor, so that
+    // both the proxy and the direct forwarder share the same state.
+    //
+    @Override
+    public MBeanServer getMBeanServer() {
+        return interceptor.getMBeanServer();
+    }
+
+    @Override
+    public void setMBeanServer(MBeanServer mbs) {
+        interceptor.setMBeanServer(mbs);
+    }
+
+    @Override
+    public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        return interceptor.invokeOperation(name, operationName, params, signature);
+    }
+
+    @Override
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        return interceptor.getAttribute(name, attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        return interceptor.getAttributes(name, attributes);
+    }
+
+    @Override
+    public void setAttribute(ObjectName name, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException {
+        interceptor.setAttribute(name, attribute);
+    }
+
+    @Override
+    public AttributeList setAttributes(ObjectName name, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        return interceptor.setAttributes(name, attributes);
+    }
+
+    @Override
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        return interceptor.queryNames(name, query);
+    }
+
+    @Override
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        return interceptor.queryMBeans(name, query);
+    }
+
+    @Override
+    public ClassLoader getClassLoaderFor(ObjectName mbeanName)
+            throws InstanceNotFoundException {
+        return interceptor.getClassLoaderFor(mbeanName);
+    }
+}
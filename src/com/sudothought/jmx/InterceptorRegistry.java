@@ -0,0 +1,224 @@
+package com.sudothought.jmx;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An indexed set of interceptors, used by {@link ForwardingInterceptor} to
+ * find the interceptor for a call without scanning every registered
+ * interceptor.
+ * <p/>
+ * Interceptors are indexed by the MBean name and member name (operation or
+ * attribute) they were registered for:
+ * <ul>
+ * <li>exact MBean names are looked up in a hash map keyed by ObjectName
+ * (domain plus key properties),</li>
+ * <li>property patterns with a non-pattern domain, such as
+ * {@code java.lang:type=GarbageCollector,*}, are grouped by domain,</li>
+ * <li>domain patterns and null (wildcard) names are only checked as a
+ * fallback.</li>
+ * </ul>
+ * Within each group, interceptors are further indexed by member name.
+ * Interceptors that decide for themselves what they match (see
+ * {@link #indexable}) are not indexed and are checked on every lookup.
+ * When several interceptors match a call, the one registered first wins,
+ * as it did with a plain list.
+ * <p/>
+ * Lookups are lock free: the index is rebuilt on each registration change
+ * and published through a volatile reference.
+ *
+ * @param <T> the interceptor type.
+ */
+public abstract class InterceptorRegistry<T> {
+
+    private static final class Entry<T> {
+        final T interceptor;
+        final long order;
+
+        Entry(T interceptor, long order) {
+            this.interceptor = interceptor;
+            this.order = order;
+        }
+    }
+
+    private static final class Bucket<T> {
+        final Map<String, List<Entry<T>>> byMember = new HashMap<String, List<Entry<T>>>();
+        final List<Entry<T>> anyMember = new ArrayList<Entry<T>>();
+        final List<Entry<T>> all = new ArrayList<Entry<T>>();
+    }
+
+    private static final class Index<T> {
+        final Map<ObjectName, Bucket<T>> exact = new HashMap<ObjectName, Bucket<T>>();
+        final Map<String, Bucket<T>> byDomain = new HashMap<String, Bucket<T>>();
+        final Bucket<T> fallback = new Bucket<T>();
+        List<T> ordered = Collections.emptyList();
+    }
+
+    private final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+    private long counter = 0;
+    private volatile Index<T> index = new Index<T>();
+
+    /**
+     * The MBean name (or pattern) the interceptor was registered for.
+     * Null means all MBeans.
+     */
+    protected abstract ObjectName mbeanOf(T interceptor);
+
+    /**
+     * The member (operation or attribute) name the interceptor was
+     * registered for. Null means all members.
+     */
+    protected abstract String memberOf(T interceptor);
+
+    /**
+     * Final check on a candidate found through the index. {@code member}
+     * is null when any member should match.
+     */
+    protected abstract boolean matches(T interceptor, ObjectName name, String member);
+
+    /**
+     * False if the interceptor may match MBeans or members other than the
+     * ones returned by {@link #mbeanOf} and {@link #memberOf}, typically
+     * because its class overrides its {@code matches} methods. Such
+     * interceptors are kept in the fallback group under any member, so
+     * that {@link #matches} is consulted for every call.
+     */
+    protected boolean indexable(T interceptor) {
+        return true;
+    }
+
+    /**
+     * True if {@code type} overrides the public method {@code name(param)}
+     * declared by {@code base}.
+     */
+    protected static boolean overrides(Class<?> type, Class<?> base, String name, Class<?> param) {
+        try {
+            return type.getMethod(name, param).getDeclaringClass() != base;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    public synchronized void add(T interceptor) {
+        if (interceptor == null) throw new IllegalArgumentException("null interceptor");
+        entries.add(new Entry<T>(interceptor, counter++));
+        rebuild();
+    }
+
+    public synchronized boolean remove(T interceptor) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).interceptor.equals(interceptor)) {
+                entries.remove(i);
+                rebuild();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The registered interceptors, in registration order.
+     */
+    public List<T> list() {
+        return index.ordered;
+    }
+
+    public int size() {
+        return index.ordered.size();
+    }
+
+    /**
+     * Finds the first registered interceptor matching both the MBean and
+     * the member name.
+     *
+     * @return the interceptor, or null if none match.
+     */
+    public T find(ObjectName name, String member) {
+        final Index<T> idx = index;
+        if (idx.ordered.isEmpty()) return null;
+        Entry<T> best = null;
+        best = first(idx.exact.get(name), name, member, best);
+        if (name != null)
+            best = first(idx.byDomain.get(name.getDomain()), name, member, best);
+        best = first(idx.fallback, name, member, best);
+        return best == null ? null : best.interceptor;
+    }
+
+    /**
+     * Finds the first registered interceptor matching the MBean, whatever
+     * member it was registered for.
+     *
+     * @return the interceptor, or null if none match.
+     */
+    public T find(ObjectName name) {
+        return find(name, null);
+    }
+
+    private Entry<T> first(Bucket<T> bucket, ObjectName name, String member, Entry<T> best) {
+        if (bucket == null) return best;
+        if (member == null)
+            return first(bucket.all, name, null, best);
+        best = first(bucket.byMember.get(member), name, member, best);
+        return first(bucket.anyMember, name, member, best);
+    }
+
+    // Lists are sorted by registration order, so the first match in a list
+    // is the best candidate of that list.
+    private Entry<T> first(List<Entry<T>> list, ObjectName name, String member, Entry<T> best) {
+        if (list == null) return best;
+        for (Entry<T> e : list) {
+            if (best != null && e.order > best.order) return best;
+            if (matches(e.interceptor, name, member)) return e;
+        }
+        return best;
+    }
+
+    private void rebuild() {
+        final Index<T> idx = new Index<T>();
+        final List<T> ordered = new ArrayList<T>(entries.size());
+        for (Entry<T> e : entries) {
+            final boolean indexable = indexable(e.interceptor);
+            final ObjectName mbean = mbeanOf(e.interceptor);
+            final Bucket<T> bucket;
+            if (!indexable || mbean == null || mbean.isDomainPattern()) {
+                bucket = idx.fallback;
+            }
+            else if (mbean.isPattern()) {
+                bucket = bucket(idx.byDomain, mbean.getDomain());
+            }
+            else {
+                bucket = bucket(idx.exact, mbean);
+            }
+            final String member = indexable ? memberOf(e.interceptor) : null;
+            if (member == null) {
+                bucket.anyMember.add(e);
+            }
+            else {
+                List<Entry<T>> list = bucket.byMember.get(member);
+                if (list == null) {
+                    list = new ArrayList<Entry<T>>();
+                    bucket.byMember.put(member, list);
+                }
+                list.add(e);
+            }
+            bucket.all.add(e);
+            ordered.add(e.interceptor);
+        }
+        idx.ordered = Collections.unmodifiableList(ordered);
+        index = idx;
+    }
+
+    private static <K, T> Bucket<T> bucket(Map<K, Bucket<T>> map, K key) {
+        Bucket<T> bucket = map.get(key);
+        if (bucket == null) {
+            bucket = new Bucket<T>();
+            map.put(key, bucket);
+        }
+        return bucket;
+    }
+}
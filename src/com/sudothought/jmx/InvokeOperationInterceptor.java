@@ -39,7 +39,7 @@ import javax.management.ObjectName;
 /**
  * An interceptor that can be used to intercept an operation call on a (set of)
  * MBeans. Can only be used to intercept operations. get/set attribute calls
- * are not supported.
+ * can be intercepted with an {@link AttributeInterceptor}.
  * This class is intended to be subclassed in order to implement specific
  * behaviour. By default it acts as a pass-through.
  * Instances of this class (or of its subclasses) can then be added to
@@ -68,7 +68,8 @@ public class InvokeOperationInterceptor {
      * @param mbean  the MBean(s) on which the operations will be intercepted.
      * @param method the name of the operation to intercept (e.g. "stop"). Can
      *               only be used to intercept operations (MBeanServer.invoke).
-     *               Intercepting get/set attribute calls is not supported.
+     *               Use an {@link AttributeInterceptor} to intercept get/set
+     *               attribute calls.
      */
     public InvokeOperationInterceptor(ObjectName mbean, String method) {
         this.mbeanName = mbean;
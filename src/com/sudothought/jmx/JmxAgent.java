@@ -36,19 +36,24 @@
 
 package com.sudothought.jmx;
 
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import javax.management.remote.JMXConnectorServer;
 import javax.management.remote.JMXConnectorServerFactory;
 import javax.management.remote.JMXServiceURL;
 import javax.management.remote.rmi.RMIConnectorServer;
 import javax.rmi.ssl.SslRMIClientSocketFactory;
-import javax.rmi.ssl.SslRMIServerSocketFactory;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.net.InetAddress;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * This CustomAgent will start an RMI Connector Server using only
@@ -61,6 +66,8 @@ public class JmxAgent {
     public static final String RMI_HOSTNAME  = "java.rmi.server.hostname";
     public static final String PORT_PROPERTY = "jmx.agent.port";
     public static final String DEFAULT_PORT  = "3412";
+    public static final String AGENT_DOMAIN  = "com.sudothought.jmx";
+    public static final String ASYNC_PROPERTY = "jmx.agent.async";
 
 
     private JmxAgent() {
@@ -70,16 +77,121 @@ public class JmxAgent {
         return Integer.parseInt(System.getProperty(PORT_PROPERTY, DEFAULT_PORT));
     }
 
+    /**
+     * Sets the system properties given in the agent args, as
+     * {@code name=value} pairs separated by ';'. The SSL properties of
+     * {@link Attach#SSL_PROPERTIES} are only set if they are not already
+     * set.
+     *
+     * @param agentArgs the agent args, may be null or empty.
+     */
+    public static void setPropertiesFromAgentArgs(String agentArgs) {
+        if (agentArgs == null || agentArgs.length() == 0) return;
+        final String[] args = agentArgs.split(";");
+        final List<String> ssl = Arrays.asList(Attach.SSL_PROPERTIES);
+        for (String s : args) {
+            final int eg = s.indexOf("=");
+            if (eg < 0) throw new IllegalArgumentException(s);
+            final String pn = s.substring(0, eg);
+            final String pv = s.substring(eg + 1);
+            if (!ssl.contains(pn)) {
+                System.setProperty(pn, pv);
+            }
+            else {
+                // if it's an SSL property - only set it if it's not already
+                // set...
+                final String v = System.getProperty(pn);
+                if (v == null || v.length() == 0)
+                    System.setProperty(pn, pv);
+            }
+        }
+    }
+
     public static void premain(String agentArgs) throws IOException {
 
-        final JMXConnectorServer cs = startAgent(agentArgs, false);
+        premain(agentArgs, false, true);
+    }
+
+    /**
+     * Starts the agent from premain or agentmain. With
+     * {@code jmx.agent.async=true}, the connector is started by a daemon
+     * thread and this method returns at once; failures are then only
+     * reported by the Startup MBean and on the console.
+     *
+     * @param agentArgs       the agent args, applied as system properties.
+     * @param createForwarder see {@link #startAgent(String, boolean)}.
+     * @param clean           whether to stop the agent once the calling
+     *                        (main) thread and the other application threads
+     *                        have ended, see {@link AgentLifecycle}.
+     */
+    static void premain(final String agentArgs, final boolean createForwarder, final boolean clean)
+            throws IOException {
+
+        final AgentStartup startup = new AgentStartup();
+        final Thread main = clean ? Thread.currentThread() : null;
+        setPropertiesFromAgentArgs(agentArgs);
+        startup.phase("agentArgs");
+
+        if (!Boolean.valueOf(System.getProperty(ASYNC_PROPERTY, "false")).booleanValue()) {
+            startAgent(createForwarder, startup, main);
+            startup.premainReturned();
+            return;
+        }
 
-        // Start the CleanThread daemon...
-        final Thread clean = new CleanThread(cs);
-        clean.start();
+        startup.setAsync(true);
+        final Thread starter = new Thread("JMX Agent Startup") {
+            public void run() {
+                try {
+                    startAgent(createForwarder, startup, main);
+                }
+                catch (Throwable x) {
+                    startup.failed(x);
+                    x.printStackTrace();
+                }
+            }
+        };
+        starter.setDaemon(true);
+        starter.start();
+        startup.premainReturned();
     }
 
     public static JMXConnectorServer startAgent(String agentArgs, final boolean createForwarder) throws IOException {
+        return startAgent(createForwarder, new AgentStartup(), null);
+    }
+
+    /**
+     * Starts the agent, recording the duration of each phase in
+     * {@code startup}, which is registered as
+     * {@code com.sudothought.jmx:type=Startup}.
+     * <p/>
+     * No host name is looked up: the connector is bound in the local
+     * registry through "localhost", and the service URL is only built when
+     * the Startup MBean is asked for it. Note that RMI itself looks up the
+     * local host name when it exports the first object, unless
+     * {@code java.rmi.server.hostname} is set.
+     *
+     * @param main if not null, the agent is stopped once this thread and
+     *             the other application threads have ended.
+     */
+    static JMXConnectorServer startAgent(final boolean createForwarder, final AgentStartup startup,
+                                         final Thread main) throws IOException {
+        try {
+            final JMXConnectorServer cs = doStartAgent(createForwarder, startup, main);
+            startup.started();
+            return cs;
+        }
+        catch (IOException x) {
+            startup.failed(x);
+            throw x;
+        }
+        catch (RuntimeException x) {
+            startup.failed(x);
+            throw x;
+        }
+    }
+
+    private static JMXConnectorServer doStartAgent(final boolean createForwarder, final AgentStartup startup,
+                                                   final Thread main) throws IOException {
 
         // Ensure cryptographically strong random number generator used
         // to choose the object number - see java.rmi.server.ObjID
@@ -87,6 +199,7 @@ public class JmxAgent {
 
         // Start an RMI registry on port specified by example.rmi.agent.port
         final int port = getServerPort();
+        startup.setPort(port);
         System.out.println("Create RMI registry on port " + port);
 
         // We create a couple of SslRMIClientSocketFactory and
@@ -97,8 +210,15 @@ public class JmxAgent {
         // use at least two ports, because two different RMI Socket Factories
         // cannot share the same port.
         //
-        final SslRMIClientSocketFactory csf = new SslRMIClientSocketFactory();
-        final SslRMIServerSocketFactory ssf = new SslRMIServerSocketFactory();
+        // The server factory carries the jmx.agent.tls configuration and
+        // counts handshakes. With jmx.agent.compress, both factories compress
+        // under TLS, and clients must compress alike.
+        //
+        final SslRMIClientSocketFactory csf = CompressingSslRMIClientSocketFactory.createFromProperties();
+        final AgentSslServerSocketFactory ssf = AgentSslServerSocketFactory.createFromProperties();
+        final ConnectionAccounting accounting = ConnectionAccounting.createFromProperties();
+        ssf.setAccounting(accounting);
+        startup.phase("ssl");
 
         // Create the RMI Registry using the SSL socket factories above.
         // In order to use a single port, we must use these factories
@@ -107,10 +227,19 @@ public class JmxAgent {
         // Otherwise, we wouldn't be able to use a single port.
         //
         final Registry registry = LocateRegistry.createRegistry(port, csf, ssf);
+        startup.phase("registry");
 
         // Retrieve the PlatformMBeanServer.
         //
         final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        startup.phase("mbeanServer");
+        registerAgentMBean(mbs, startup, "Startup");
+        registerAgentMBean(mbs, ssf.getStats(), "Tls");
+        if (ssf.getCompression() != null) {
+            Compression.STATS.setCompression(ssf.getCompression().toString());
+            registerAgentMBean(mbs, Compression.STATS, "Compression");
+            System.out.println("Compression ready (" + ssf.getCompression() + ")");
+        }
 
         // Environment map.
         // Specify the SSL Socket Factories:
@@ -138,30 +267,229 @@ public class JmxAgent {
         // of the URL, in "rmi://"+hostname+":"+port
         //
         //System.out.println("Create an RMI connector server");
-        final JMXServiceURL url = new JMXServiceURL(getServiceUrl(InetAddress.getLocalHost().getHostName(), port));
+        // The registry is local: binding through "localhost" avoids a
+        // lookup of the local host name.
+        //
+        final JMXServiceURL url = new JMXServiceURL(getServiceUrl("localhost", port));
 
         //System.out.println("Creating jmx proxy with URL: " + url);
 
-        // Now create the server from the JMXServiceURL
-        final JMXConnectorServer cs = JMXConnectorServerFactory.newJMXConnectorServer(url, env, mbs);
+        // Now create the server from the JMXServiceURL. With connection
+        // limits, the server is given an RMIServerImpl that enforces them,
+        // exported on the same port with the same factories.
+        //
+        final ConnectionLimiter limiter = ConnectionLimiter.createFromProperties();
+        final JMXConnectorServer cs =
+                limiter == null ? JMXConnectorServerFactory.newJMXConnectorServer(url, env, mbs)
+                                : new RMIConnectorServer(url, env, limiter.createServer(port, csf, ssf, env), mbs);
+        startup.phase("connector");
+
+        // The connection notifications tell the accounting which JMX
+        // connections each address has open.
+        //
+        if (accounting != null) {
+            cs.addNotificationListener(accounting, null, null);
+            registerAgentMBean(mbs, accounting, "Connections");
+            System.out.println("Connection accounting ready for " + ConnectionAccounting.MAX_ADDRESSES
+                               + " addresses");
+        }
+
+        // Stops the connector and the services started along with it, on
+        // JVM shutdown, when the application is done, or through the
+        // Stopper.
+        //
+        final AgentLifecycle lifecycle = new AgentLifecycle(cs, registry);
+        registerAgentMBean(mbs, lifecycle, "Lifecycle");
+
+        if (limiter != null) {
+            lifecycle.addService(limiter);
+            registerAgentMBean(mbs, limiter, "ConnectionLimiter");
+            System.out.println("Connection limiter ready with max " + limiter.getMaxConnections() + ", "
+                               + limiter.getMaxConnectionsPerAddress() + " per address, idle timeout "
+                               + limiter.getIdleTimeout() + "ms");
+        }
+
+        final Profiler profiler = Profiler.createFromProperties();
+        if (profiler != null) {
+            lifecycle.addService(profiler);
+            registerAgentMBean(mbs, profiler, "Profiler");
+            System.out.println("Profiler ready with an interval of " + profiler.getInterval() + "ms, "
+                               + profiler.getMaxDepth() + " frames per stack, " + profiler.getMaxNodes()
+                               + " nodes" + (profiler.isIncludeIdle() ? ", idle threads included" : ""));
+        }
+
+        // Innermost, so that the agent's own interceptors, caches and
+        // statistics apply to the mounted MBeans as well.
+        //
+        final Federation federation = Federation.createFromProperties();
+        if (federation != null) {
+            cs.setMBeanServerForwarder(new FederatingForwarder(federation));
+            lifecycle.addService(federation);
+            registerAgentMBean(mbs, federation, "Federation");
+            System.out.println("Federation mounting " + federation.getTargets().size() + " agents, timeout "
+                               + federation.getTimeout() + "ms");
+        }
+
+        // Installed next, so that the listeners the connector adds on behalf
+        // of its clients, which go through all the forwarders, share the hub.
+        //
+        final NotificationHub hub = NotificationHub.createFromProperties();
+        if (hub != null) {
+            cs.setMBeanServerForwarder(new NotificationForwarder(hub));
+            lifecycle.addService(hub);
+            registerAgentMBean(mbs, hub, "NotificationHub");
+            System.out.println("Notification hub ready with rings of " + hub.getCapacity() + ", batches of "
+                               + hub.getBatchSize() + " within " + hub.getBatchDelay() + "ms");
+        }
+
+        // Then the bounded executor, so that it only bounds the calls that
+        // reach the MBeans: the agent's own interceptors and cache hits run
+        // directly.
+        //
+        final BoundedExecutor bounded = BoundedExecutor.createFromProperties();
+        if (bounded != null) {
+            cs.setMBeanServerForwarder(new BoundedForwarder(bounded));
+            lifecycle.addService(bounded);
+            registerAgentMBean(mbs, bounded, "BoundedExecutor");
+            System.out.println("Bounded executor ready with " + bounded.getThreadType() + " threads, timeout "
+                               + bounded.getTimeout() + "ms");
+        }
+
+        // The interceptors configured below are applied by a single
+        // MBeanServerForwarder, which is only installed if needed.
+        //
+
+        final ForwardingInterceptor interceptor = new ForwardingInterceptor(null);
         if (createForwarder) {
-            cs.setMBeanServerForwarder(Stopper.createForwarderFor(cs, registry));
+            interceptor.addInterceptedCall(Stopper.createInterceptorFor(cs, registry,
+                                                                       Collections.singletonList(lifecycle)));
             System.out.println("Stopper ready for: " + Stopper.getDefaultStopperName());
         }
 
+        if (Boolean.valueOf(System.getProperty(Snapshot.SNAPSHOT_PROPERTY, "true")).booleanValue()) {
+            interceptor.addInterceptedCall(Snapshot.createInterceptorFor(interceptor, federation, mbs));
+            interceptor.addInterceptedCall(DeltaSnapshot.createInterceptorFor(interceptor));
+        }
+
+        final AttributeSampler sampler = AttributeSampler.createFromProperties(mbs);
+        if (sampler != null) {
+            interceptor.addInterceptedCall(AttributeSampler.createInterceptorFor(sampler));
+            registerAgentMBean(mbs, sampler, "Sampler");
+            lifecycle.addService(sampler);
+            sampler.start();
+            System.out.println("Sampler started for " + sampler.getSeries().size() + " series every "
+                               + sampler.getPeriod() + "ms");
+        }
+
+        final AttributeCache cache = AttributeCache.createFromProperties();
+        if (cache != null) {
+            interceptor.addInterceptedAttribute(cache);
+            registerAgentMBean(mbs, cache, "AttributeCache");
+            System.out.println("Attribute cache ready with TTL " + cache.getDefaultTtl() + "ms");
+        }
+
+        final QueryCache queryCache = createQueryCache(mbs);
+        if (queryCache != null) {
+            interceptor.setQueryCache(queryCache);
+            interceptor.setFederation(federation);
+            registerAgentMBean(mbs, queryCache, "QueryCache");
+            System.out.println("Query cache ready" + (federation == null ? ""
+                                                      : ", mounted MBeans are not cached"));
+        }
+
+        final RateLimiter rateLimiter = RateLimiter.createFromProperties();
+        if (rateLimiter != null) {
+            interceptor.setRateLimiter(rateLimiter);
+            registerAgentMBean(mbs, rateLimiter, "RateLimiter");
+            System.out.println("Rate limiter ready with rates " + rateLimiter.getRates());
+        }
+
+        if (!interceptor.getInterceptedCalls().isEmpty() || !interceptor.getInterceptedAttributes().isEmpty()
+            || interceptor.getQueryCache() != null || interceptor.getRateLimiter() != null)
+            cs.setMBeanServerForwarder(ForwardingInterceptor.newForwardingInterceptor(interceptor));
+
+        // Installed last, so that it wraps the other forwarders and the
+        // recorded latencies include their work.
+        //
+        final AgentStats stats = AgentStats.createFromProperties();
+        if (stats != null) {
+            cs.setMBeanServerForwarder(new StatsForwarder(stats));
+            registerAgentMBean(mbs, stats, "AgentStats");
+        }
+        startup.phase("forwarders");
+
         // Start the RMI connector server.
         System.out.println("RMI connector starting on port: " + port);
         cs.start();
+        startup.phase("start");
+
+        // The HTTP endpoint uses the connector's MBeanServer, which is the
+        // outermost forwarder installed above.
+        //
+        final HttpConnector http = HttpConnector.createFromProperties(cs.getMBeanServer(), ssf);
+        final MetricsExporter metrics = MetricsExporter.createFromProperties(cs.getMBeanServer());
+        if (metrics != null && http == null)
+            System.out.println("Metrics not served: " + HttpConnector.HTTP_PORT_PROPERTY + " is not set");
+        if (http != null) {
+            if (metrics != null) {
+                http.addContext(MetricsExporter.CONTEXT, metrics);
+                System.out.println("Metrics ready for " + metrics.getMetricCount() + " metrics");
+            }
+            http.start();
+            lifecycle.addService(http);
+            System.out.println("HTTP endpoint started on port: " + http.getAddress().getPort());
+            startup.phase("http");
+        }
 
-        final String hostname = System.getProperty(RMI_HOSTNAME) != null
-                                ? System.getProperty(RMI_HOSTNAME)
-                                : InetAddress.getLocalHost().getHostName();
+        if (main != null) lifecycle.watch(main);
 
-        System.out.println("Proxy started at: " + getServiceUrl(hostname, port));
+        if (System.getProperty(RMI_HOSTNAME) != null)
+            System.out.println("Proxy started at: " + startup.getServiceUrl());
+        else
+            System.out.println("Proxy started on port: " + port);
 
         return cs;
     }
 
+    private static QueryCache createQueryCache(MBeanServer mbs) throws IOException {
+        try {
+            return QueryCache.createFromProperties(mbs);
+        }
+        catch (InstanceNotFoundException x) {
+            throw new IOException("can't create query cache: " + x, x);
+        }
+    }
+
+    /**
+     * Returns the name under which the agent registers its own MBeans:
+     * {@code com.sudothought.jmx:type=<type>}.
+     */
+    public static ObjectName getAgentMBeanName(String type) {
+        try {
+            return ObjectName.getInstance(AGENT_DOMAIN + ":type=" + type);
+        }
+        catch (MalformedObjectNameException x) {
+            throw new IllegalArgumentException(type, x);
+        }
+    }
+
+    /**
+     * Registers one of the agent's own MBeans, replacing the MBean left
+     * behind by a previous agent (e.g. after a stop and a new attach).
+     */
+    public static ObjectName registerAgentMBean(MBeanServer mbs, Object mbean, String type) throws IOException {
+        final ObjectName name = getAgentMBeanName(type);
+        try {
+            if (mbs.isRegistered(name))
+                mbs.unregisterMBean(name);
+            mbs.registerMBean(mbean, name);
+            return name;
+        }
+        catch (JMException x) {
+            throw new IOException("can't register " + name + ": " + x, x);
+        }
+    }
+
     public static String getServiceUrl(final String hostname, final int port) {
         return "service:jmx:rmi://" + hostname + ":" + port + "/jndi/rmi://" + hostname + ":" + port + "/jmxrmi";
     }
@@ -172,7 +500,12 @@ public class JmxAgent {
      * by the presence of a started JMX RMI Connector Server. When no other
      * non-daemon threads remain, it stops the JMX RMI Connector Server,
      * allowing the application to terminate gracefully.
+     *
+     * @deprecated joins the application threads one by one and enumerates
+     *             all threads after each join; replaced by
+     *             {@link AgentLifecycle}.
      */
+    @Deprecated
     public static class CleanThread extends Thread {
         private final JMXConnectorServer cs;
 
@@ -34,8 +34,6 @@ package com.sudothought.jmx;
 
 import javax.management.MalformedObjectNameException;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
 
 /**
  * This StoppableAgent will start a secure RMI Connector Server using only
@@ -51,29 +49,11 @@ public class JmxStoppableAgent {
 
     public static void agentmain(String agentArgs) throws IOException, MalformedObjectNameException {
 
-        final String[] args = agentArgs.split(";");
-        final List<String> ssl = Arrays.asList(Attach.SSL_PROPERTIES);
-        for (String s : args) {
-            final int eg = s.indexOf("=");
-            if (eg < 0) throw new IllegalArgumentException(s);
-            final String pn = s.substring(0, eg);
-            final String pv = s.substring(eg + 1);
-            if (!ssl.contains(pn)) {
-                System.setProperty(pn, pv);
-            }
-            else {
-                // if it's an SSL property - only set it if it's not already
-                // set...
-                final String v = System.getProperty(pn);
-                if (v == null || v.length() == 0)
-                    System.setProperty(pn, pv);
-            }
-        }
         premain(agentArgs);
     }
 
     public static void premain(String agentArgs) throws IOException, MalformedObjectNameException {
 
-        JmxAgent.startAgent(agentArgs, true);
+        JmxAgent.premain(agentArgs, true, false);
     }
 }
@@ -0,0 +1,167 @@
+package com.sudothought.jmx;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A minimal streaming JSON encoder for the values returned by MBeans, used
+ * by the {@link HttpConnector}.
+ * <p/>
+ * Values are written as they are traversed, so a large TabularData or array
+ * is never converted to an intermediate tree or string: memory use is
+ * bounded by the Writer's buffer. Open types map as follows:
+ * CompositeData becomes an object, TabularData an array of row objects,
+ * arrays and collections arrays, ObjectName and other unknown types their
+ * string form. Non-finite numbers are written as null.
+ * <p/>
+ * The writer does not check that the calls produce well-formed JSON;
+ * {@link #name} must only be called inside an object.
+ */
+public class JsonWriter {
+
+    private final Writer out;
+    // Whether the next value of the current object/array needs a comma.
+    private boolean comma;
+
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        separate();
+        out.write('{');
+        comma = false;
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException {
+        out.write('}');
+        comma = true;
+        return this;
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        separate();
+        out.write('[');
+        comma = false;
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException {
+        out.write(']');
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Writes the name of the next member of the current object.
+     */
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        comma = false;
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (comma) out.write(',');
+    }
+
+    /**
+     * Writes a value, recursively.
+     */
+    public JsonWriter value(Object value) throws IOException {
+        if (value instanceof CompositeData) {
+            final CompositeData cd = (CompositeData)value;
+            beginObject();
+            for (String key : cd.getCompositeType().keySet())
+                name(key).value(cd.get(key));
+            return endObject();
+        }
+        if (value instanceof TabularData) {
+            beginArray();
+            for (Object row : ((TabularData)value).values())
+                value(row);
+            return endArray();
+        }
+        if (value instanceof Map<?, ?>) {
+            beginObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>)value).entrySet())
+                name(String.valueOf(e.getKey())).value(e.getValue());
+            return endObject();
+        }
+        if (value instanceof Collection<?>) {
+            beginArray();
+            for (Object o : (Collection<?>)value)
+                value(o);
+            return endArray();
+        }
+        if (value != null && value.getClass().isArray()) {
+            beginArray();
+            final int length = Array.getLength(value);
+            for (int i = 0; i < length; i++)
+                value(Array.get(value, i));
+            return endArray();
+        }
+
+        separate();
+        if (value == null) {
+            out.write("null");
+        }
+        else if (value instanceof Boolean) {
+            out.write(value.toString());
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            final double d = ((Number)value).doubleValue();
+            out.write(Double.isNaN(d) || Double.isInfinite(d) ? "null" : value.toString());
+        }
+        else if (value instanceof Number) {
+            out.write(value.toString());
+        }
+        else if (value instanceof Date) {
+            out.write(Long.toString(((Date)value).getTime()));
+        }
+        else if (value instanceof ObjectName) {
+            string(((ObjectName)value).getCanonicalName());
+        }
+        else {
+            string(value.toString());
+        }
+        comma = true;
+        return this;
+    }
+
+    private void string(String s) throws IOException {
+        out.write('"');
+        int start = 0;
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            final String escape;
+            if (c == '"') escape = "\\\"";
+            else if (c == '\\') escape = "\\\\";
+            else if (c == '\n') escape = "\\n";
+            else if (c == '\r') escape = "\\r";
+            else if (c == '\t') escape = "\\t";
+            else if (c < 0x20 || c == '\u2028' || c == '\u2029') escape = String.format("\\u%04x", (int)c);
+            else continue;
+            out.write(s, start, i - start);
+            out.write(escape);
+            start = i + 1;
+        }
+        out.write(s, start, length - start);
+        out.write('"');
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
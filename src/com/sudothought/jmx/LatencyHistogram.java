@@ -0,0 +1,147 @@
+package com.sudothought.jmx;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory, lock-free latency histogram.
+ * <p/>
+ * Values (in nanoseconds) are recorded in log-linear buckets: each power of
+ * two is split in 8 sub-buckets, which bounds the relative error of a
+ * reported percentile to 12.5%. Values above 2^40 ns (about 18 minutes) go
+ * to the last bucket.
+ * <p/>
+ * To limit contention, counts are striped: each thread records into one of
+ * a few bucket arrays, chosen by thread id, and the stripes are summed when
+ * the histogram is read. Recording a value does not allocate.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS  = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT     = 40;
+    public static final int BUCKET_COUNT      = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private static final int STRIPES = stripes();
+
+    // One row of BUCKET_COUNT buckets + 1 max cell per stripe.
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * (BUCKET_COUNT + 1));
+
+    private static int stripes() {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus && stripes < 8) stripes <<= 1;
+        return stripes;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds. Negative values count as 0.
+     */
+    public void record(long nanos) {
+        final int row = stripe() * (BUCKET_COUNT + 1);
+        counts.incrementAndGet(row + bucketOf(nanos));
+        final int maxCell = row + BUCKET_COUNT;
+        long max = counts.get(maxCell);
+        while (nanos > max && !counts.compareAndSet(maxCell, max, nanos))
+            max = counts.get(maxCell);
+    }
+
+    private static int stripe() {
+        final long id = Thread.currentThread().getId();
+        return (int)((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKET_COUNT) return nanos < 0 ? 0 : (int)nanos;
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+        final int sub = (int)(nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    // Highest value (in nanoseconds) that falls in the given bucket.
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) return bucket;
+        final int exponent = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final long sub = bucket % SUB_BUCKET_COUNT;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    /**
+     * Returns a consistent-enough copy of the histogram, summed across
+     * stripes.
+     */
+    public Snapshot snapshot() {
+        final long[] buckets = new long[BUCKET_COUNT];
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            final int row = s * (BUCKET_COUNT + 1);
+            for (int b = 0; b < BUCKET_COUNT; b++)
+                buckets[b] += counts.get(row + b);
+            max = Math.max(max, counts.get(row + BUCKET_COUNT));
+        }
+        return new Snapshot(buckets, max);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+    }
+
+    /**
+     * A point-in-time copy of a {@link LatencyHistogram}.
+     */
+    public static class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long max;
+
+        Snapshot(long[] buckets, long max) {
+            this.buckets = buckets;
+            long count = 0;
+            for (long b : buckets) count += b;
+            this.count = count;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The largest recorded value, in nanoseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * The value at the given percentile, in nanoseconds.
+         *
+         * @param percentile between 0 and 100.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) return 0;
+            final long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank) return Math.min(upperBoundOf(b), max);
+            }
+            return max;
+        }
+
+        public double getMean() {
+            if (count == 0) return 0;
+            double sum = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                if (buckets[b] == 0) continue;
+                final long low = b == 0 ? 0 : upperBoundOf(b - 1) + 1;
+                sum += buckets[b] * ((low + upperBoundOf(b)) / 2.0);
+            }
+            return sum / count;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.sudothought.jmx;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mix of calls through connections to an agent, to measure its
+ * throughput and latencies. Used by {@link TestClient}.
+ * <p/>
+ * The connections are opened up front, through the agent's registry
+ * ({@link TestClient#getJmxConnector} with useAgent) or through
+ * JMXConnectorFactory, or alternately through both. Worker threads share
+ * them round-robin, and pick each call from the weighted mix of
+ * {@link Operation}s, on the platform MBeans so that any JVM can be the
+ * target.
+ * <p/>
+ * With a rate, the calls are scheduled at fixed intervals from the start,
+ * and taken in turn by the workers (open loop). A call's response time is
+ * measured from its scheduled time, not from when a worker got to it, so
+ * that calls delayed behind slow ones count the wait: this corrects the
+ * coordinated omission of measuring from the actual start. Service times,
+ * from the actual start, are reported too; calls started more than 1ms
+ * late are counted, as a sign that the workers can't keep up. Without a
+ * rate, each worker makes its calls back to back (closed loop), and
+ * response and service times are the same.
+ * <p/>
+ * Calls made during the warmup are not recorded, and the schedule starts
+ * over after it, so that a backlog built while both sides warm up is not
+ * carried into the measurement.
+ */
+public class LoadGenerator {
+
+    private static final long LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The calls of the mix.
+     */
+    public enum Operation {
+        /**
+         * queryNames("java.lang:*", null).
+         */
+        QUERY,
+        /**
+         * getAttribute("java.lang:type=Runtime", "Uptime").
+         */
+        GET,
+        /**
+         * getAttributes("java.lang:type=Memory", heap, non-heap and
+         * pending finalization).
+         */
+        GETS,
+        /**
+         * invoke("java.lang:type=Threading", "getThreadCpuTime", 1).
+         */
+        INVOKE
+    }
+
+    /**
+     * How the connections are opened.
+     */
+    public enum Path {AGENT, FACTORY, BOTH}
+
+    private static final ObjectName JAVA_LANG = name("java.lang:*");
+    private static final ObjectName RUNTIME   = name("java.lang:type=Runtime");
+    private static final ObjectName MEMORY    = name("java.lang:type=Memory");
+    private static final ObjectName THREADING = name("java.lang:type=Threading");
+    private static final String[] MEMORY_ATTRIBUTES =
+            {"HeapMemoryUsage", "NonHeapMemoryUsage", "ObjectPendingFinalizationCount"};
+
+    private static ObjectName name(String name) {
+        try {
+            return ObjectName.getInstance(name);
+        }
+        catch (Exception x) {
+            throw new IllegalArgumentException(name, x);
+        }
+    }
+
+    /**
+     * The latencies and counts of one operation.
+     */
+    public static final class Counts {
+        private final LatencyHistogram response = new LatencyHistogram();
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder late = new LongAdder();
+
+        public LatencyHistogram.Snapshot getResponseTimes() {
+            return response.snapshot();
+        }
+
+        public LatencyHistogram.Snapshot getServiceTimes() {
+            return service.snapshot();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * Calls started more than 1ms after their scheduled time.
+         */
+        public long getLateStarts() {
+            return late.sum();
+        }
+    }
+
+    /**
+     * The outcome of a {@link #run}.
+     */
+    public static final class Result {
+        private final Map<Operation, Counts> counts;
+        private final long nanos;
+        private final LatencyHistogram.Snapshot connectTimes;
+        private final String firstError;
+
+        Result(Map<Operation, Counts> counts, long nanos, LatencyHistogram.Snapshot connectTimes,
+               String firstError) {
+            this.counts = counts;
+            this.nanos = nanos;
+            this.connectTimes = connectTimes;
+            this.firstError = firstError;
+        }
+
+        public Map<Operation, Counts> getCounts() {
+            return counts;
+        }
+
+        /**
+         * The measured time, warmup excluded, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public LatencyHistogram.Snapshot getConnectTimes() {
+            return connectTimes;
+        }
+
+        /**
+         * The first failed call, or null.
+         */
+        public String getFirstError() {
+            return firstError;
+        }
+
+        public long getCalls() {
+            long sum = 0;
+            for (Counts c : counts.values())
+                sum += c.service.snapshot().getCount();
+            return sum;
+        }
+
+        public double getThroughput() {
+            return getCalls() * 1e9 / nanos;
+        }
+    }
+
+    private final JMXServiceURL url;
+    private final Path path;
+    private final int connections;
+    private final int threads;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final Operation[] mix;
+
+    /**
+     * @param url         the agent.
+     * @param path        how the connections are opened.
+     * @param connections the number of connections.
+     * @param threads     the number of worker threads.
+     * @param rate        calls per second, or 0 for closed loop.
+     * @param duration    the measured time, in seconds.
+     * @param warmup      the time before measuring, in seconds.
+     * @param weights     the relative weight of each operation.
+     */
+    public LoadGenerator(JMXServiceURL url, Path path, int connections, int threads, double rate,
+                         double duration, double warmup, Map<Operation, Integer> weights) {
+        if (connections < 1) throw new IllegalArgumentException("invalid connections: " + connections);
+        if (threads < 1) throw new IllegalArgumentException("invalid threads: " + threads);
+        if (rate < 0 || Double.isNaN(rate)) throw new IllegalArgumentException("invalid rate: " + rate);
+        if (duration <= 0) throw new IllegalArgumentException("invalid duration: " + duration);
+        this.url = url;
+        this.path = path;
+        this.connections = connections;
+        this.threads = threads;
+        this.rate = rate;
+        this.durationNanos = (long)(duration * 1e9);
+        this.warmupNanos = (long)(warmup * 1e9);
+
+        // The mix, as a table of operations drawn from uniformly.
+        final List<Operation> table = new ArrayList<Operation>();
+        for (Map.Entry<Operation, Integer> e : weights.entrySet()) {
+            if (e.getValue().intValue() < 0) throw new IllegalArgumentException("invalid weight: " + e);
+            for (int i = 0; i < e.getValue().intValue(); i++)
+                table.add(e.getKey());
+        }
+        if (table.isEmpty()) throw new IllegalArgumentException("empty mix: " + weights);
+        this.mix = table.toArray(new Operation[table.size()]);
+    }
+
+    /**
+     * Parses a mix such as "query:1,get:5,gets:2,invoke:1".
+     */
+    public static Map<Operation, Integer> parseMix(String mix) {
+        final Map<Operation, Integer> weights = new EnumMap<Operation, Integer>(Operation.class);
+        for (String s : mix.trim().split("\\s*,\\s*")) {
+            final int colon = s.indexOf(':');
+            final Operation op = Operation.valueOf((colon < 0 ? s : s.substring(0, colon)).toUpperCase());
+            weights.put(op, colon < 0 ? 1 : Integer.valueOf(s.substring(colon + 1)));
+        }
+        return weights;
+    }
+
+    private JMXConnector connect(int i) throws Exception {
+        final boolean useAgent = path == Path.AGENT || (path == Path.BOTH && i % 2 == 0);
+        return TestClient.getJmxConnector(url, useAgent);
+    }
+
+    /**
+     * Opens the connections, runs the load and closes the connections.
+     */
+    public Result run() throws Exception {
+        final LatencyHistogram connectTimes = new LatencyHistogram();
+        final List<JMXConnector> connectors = new ArrayList<JMXConnector>();
+        try {
+            final List<MBeanServerConnection> mbscs = new ArrayList<MBeanServerConnection>();
+            for (int i = 0; i < connections; i++) {
+                final long start = System.nanoTime();
+                final JMXConnector c = connect(i);
+                connectors.add(c);
+                mbscs.add(c.getMBeanServerConnection());
+                connectTimes.record(System.nanoTime() - start);
+            }
+            return run(mbscs, connectTimes.snapshot());
+        }
+        finally {
+            for (JMXConnector c : connectors) {
+                try {
+                    c.close();
+                }
+                catch (IOException x) {
+                    // The agent may be gone.
+                }
+            }
+        }
+    }
+
+    private Result run(List<MBeanServerConnection> mbscs, LatencyHistogram.Snapshot connectTimes)
+            throws InterruptedException {
+        final Map<Operation, Counts> counts = new EnumMap<Operation, Counts>(Operation.class);
+        for (Operation op : Operation.values())
+            counts.put(op, new Counts());
+        final String[] firstError = new String[1];
+        if (warmupNanos > 0) runPhase(mbscs, warmupNanos, null, firstError);
+        final long start = System.nanoTime();
+        runPhase(mbscs, durationNanos, counts, firstError);
+        return new Result(counts, System.nanoTime() - start, connectTimes, firstError[0]);
+    }
+
+    /**
+     * Runs the workers for the given time, recording their calls into
+     * {@code counts} unless it is null.
+     */
+    private void runPhase(List<MBeanServerConnection> mbscs, long nanos, final Map<Operation, Counts> counts,
+                          final String[] firstError) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long end = start + nanos;
+        final double interval = rate == 0 ? 0 : 1e9 / rate;
+        final AtomicLong sequence = new AtomicLong();
+
+        final List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final MBeanServerConnection mbsc = mbscs.get(t % mbscs.size());
+            final Random random = new Random(t);
+            final Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        final long scheduled;
+                        if (interval > 0) {
+                            scheduled = start + (long)(sequence.getAndIncrement() * interval);
+                            if (scheduled >= end) return;
+                            long wait;
+                            while ((wait = scheduled - System.nanoTime()) > 0)
+                                LockSupport.parkNanos(wait);
+                        }
+                        else {
+                            scheduled = System.nanoTime();
+                            if (scheduled >= end) return;
+                        }
+                        final Operation op = mix[random.nextInt(mix.length)];
+                        final long began = System.nanoTime();
+                        boolean failed = false;
+                        try {
+                            call(mbsc, op);
+                        }
+                        catch (Exception x) {
+                            failed = true;
+                            synchronized (firstError) {
+                                if (firstError[0] == null) firstError[0] = op + ": " + x;
+                            }
+                        }
+                        final long done = System.nanoTime();
+                        if (counts == null) continue;
+                        final Counts c = counts.get(op);
+                        if (failed) c.errors.increment();
+                        else {
+                            c.response.record(done - scheduled);
+                            c.service.record(done - began);
+                        }
+                        if (began - scheduled > LATE_NANOS) c.late.increment();
+                    }
+                }
+            }, "TestClient Load " + (t + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+    }
+
+    private static void call(MBeanServerConnection mbsc, Operation op) throws Exception {
+        switch (op) {
+            case QUERY:
+                mbsc.queryNames(JAVA_LANG, null);
+                break;
+            case GET:
+                mbsc.getAttribute(RUNTIME, "Uptime");
+                break;
+            case GETS:
+                mbsc.getAttributes(MEMORY, MEMORY_ATTRIBUTES);
+                break;
+            case INVOKE:
+                mbsc.invoke(THREADING, "getThreadCpuTime", new Object[]{Long.valueOf(1)}, new String[]{"long"});
+                break;
+        }
+    }
+
+    private static String ms(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private static void printLatencies(PrintStream out, String label, Map<String, LatencyHistogram.Snapshot> rows) {
+        out.println(String.format("%-8s %9s %9s %9s %9s %9s %9s   %s", "op", "count", "p50", "p90", "p99",
+                                  "p99.9", "max", label));
+        for (Map.Entry<String, LatencyHistogram.Snapshot> e : rows.entrySet()) {
+            final LatencyHistogram.Snapshot s = e.getValue();
+            if (s.getCount() == 0) continue;
+            out.println(String.format("%-8s %9d %9s %9s %9s %9s %9s", e.getKey(), s.getCount(),
+                                      ms(s.getValueAtPercentile(50)), ms(s.getValueAtPercentile(90)),
+                                      ms(s.getValueAtPercentile(99)), ms(s.getValueAtPercentile(99.9)),
+                                      ms(s.getMax())));
+        }
+    }
+
+    /**
+     * Prints the throughput, and the latencies in milliseconds by
+     * operation.
+     */
+    public void print(Result result, PrintStream out) {
+        out.println("Load: " + connections + " connections (" + path.name().toLowerCase() + "), " + threads
+                    + " threads, " + (rate == 0 ? "closed loop" : "rate " + rate + "/s") + ", "
+                    + durationNanos / 1e9 + "s after " + warmupNanos / 1e9 + "s warmup");
+        out.println("Connect: mean " + ms((long)result.getConnectTimes().getMean()) + "ms, max "
+                    + ms(result.getConnectTimes().getMax()) + "ms");
+        long errors = 0;
+        long late = 0;
+        final Map<String, LatencyHistogram.Snapshot> responses = new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+        final Map<String, LatencyHistogram.Snapshot> services = new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+        for (Map.Entry<Operation, Counts> e : result.getCounts().entrySet()) {
+            final String op = e.getKey().name().toLowerCase();
+            responses.put(op, e.getValue().getResponseTimes());
+            services.put(op, e.getValue().getServiceTimes());
+            errors += e.getValue().getErrors();
+            late += e.getValue().getLateStarts();
+        }
+        out.println(String.format("Throughput: %.1f calls/s, %d calls, %d errors", result.getThroughput(),
+                                  result.getCalls(), errors));
+        if (result.getFirstError() != null) out.println("First error: " + result.getFirstError());
+        if (rate > 0) {
+            out.println("Late starts: " + late + (late > 0 ? " (add threads to keep up with the rate)" : ""));
+            printLatencies(out, "response time, ms, from the scheduled start", responses);
+        }
+        printLatencies(out, "service time, ms", services);
+    }
+}
@@ -0,0 +1,296 @@
+package com.sudothought.jmx;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 block codec in the style of LZ4, for the "fast" option of
+ * {@link Compression}: it only looks for 4 byte matches through a small
+ * hash table and has no entropy coding, so it compresses less than deflate
+ * but costs far less CPU.
+ * <p/>
+ * A block is a sequence of tokens: a byte with the literal length in its
+ * high nibble and the match length minus 4 in its low nibble (15 meaning
+ * that more length bytes follow, each adding up to 255), the literals, then
+ * the match offset on 2 bytes, little endian. The last token has literals
+ * only.
+ * <p/>
+ * The streams frame the blocks with a 2 byte uncompressed length and a 2
+ * byte compressed length, 0 for a block stored as is. A block is written
+ * when it is full or the stream is flushed.
+ */
+public final class LzCodec {
+
+    public static final int BLOCK = 65535;
+
+    private static final int MIN_MATCH  = 4;
+    private static final int HASH_BITS  = 13;
+    // The last bytes of a block are always literals.
+    private static final int LAST_LITERALS = 5;
+
+    private LzCodec() {
+    }
+
+    /**
+     * The size of the buffer {@link #compress} may need for {@code length}
+     * bytes.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+    }
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte)255;
+            length -= 255;
+        }
+        dst[op++] = (byte)length;
+        return op;
+    }
+
+    /**
+     * Compresses {@code src[0, length)} into {@code dst}, which must hold
+     * {@link #maxCompressedLength}(length) bytes.
+     *
+     * @param table a scratch table of {@code 1 << 13} entries.
+     * @return the compressed length.
+     */
+    public static int compress(byte[] src, int length, byte[] dst, int[] table) {
+        Arrays.fill(table, -1);
+        final int limit = length - LAST_LITERALS;
+        int anchor = 0;
+        int op = 0;
+        int i = 0;
+        while (i < limit) {
+            final int value = readInt(src, i);
+            final int h = hash(value);
+            final int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > 0xffff || readInt(src, ref) != value) {
+                i++;
+                continue;
+            }
+            int match = MIN_MATCH;
+            while (i + match < limit && src[ref + match] == src[i + match])
+                match++;
+
+            final int literals = i - anchor;
+            final int token = op++;
+            dst[token] = (byte)((Math.min(literals, 15) << 4) | Math.min(match - MIN_MATCH, 15));
+            if (literals >= 15) op = writeLength(dst, op, literals - 15);
+            System.arraycopy(src, anchor, dst, op, literals);
+            op += literals;
+            dst[op++] = (byte)(i - ref);
+            dst[op++] = (byte)((i - ref) >>> 8);
+            if (match - MIN_MATCH >= 15) op = writeLength(dst, op, match - MIN_MATCH - 15);
+
+            i += match;
+            anchor = i;
+        }
+        final int literals = length - anchor;
+        dst[op++] = (byte)(Math.min(literals, 15) << 4);
+        if (literals >= 15) op = writeLength(dst, op, literals - 15);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals;
+    }
+
+    /**
+     * Decompresses {@code src[0, length)} into {@code dst}.
+     *
+     * @return the decompressed length.
+     * @throws IOException if the block is corrupt or does not fit in
+     *                     {@code dst}.
+     */
+    public static int decompress(byte[] src, int length, byte[] dst) throws IOException {
+        int ip = 0;
+        int op = 0;
+        try {
+            while (true) {
+                final int token = src[ip++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (ip + literals > length) throw new IOException("corrupt block");
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == length) return op;
+
+                final int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+                ip += 2;
+                int match = token & 0xf;
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                if (offset == 0 || offset > op || op + match > dst.length) throw new IOException("corrupt block");
+                // Byte by byte: the match may overlap what it copies.
+                for (int k = 0; k < match; k++, op++)
+                    dst[op] = dst[op - offset];
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException x) {
+            throw new IOException("corrupt block", x);
+        }
+    }
+
+    /**
+     * Compresses what is written into blocks.
+     */
+    public static class LzOutputStream extends FilterOutputStream {
+        private final byte[] block = new byte[BLOCK];
+        private final byte[] compressed = new byte[maxCompressedLength(BLOCK) + 4];
+        private final int[] table = new int[1 << HASH_BITS];
+        private int count;
+
+        public LzOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == BLOCK) writeBlock();
+            block[count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == BLOCK) writeBlock();
+                final int n = Math.min(len, BLOCK - count);
+                System.arraycopy(b, off, block, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (count == 0) return;
+            final int length = compress(block, count, compressed, table);
+            final byte[] header = {(byte)(count >>> 8), (byte)count, 0, 0};
+            if (length < count) {
+                header[2] = (byte)(length >>> 8);
+                header[3] = (byte)length;
+                out.write(header);
+                out.write(compressed, 0, length);
+            }
+            else {
+                out.write(header);
+                out.write(block, 0, count);
+            }
+            count = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeBlock();
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads the blocks written by an {@link LzOutputStream}.
+     */
+    public static class LzInputStream extends FilterInputStream {
+        private final byte[] block = new byte[BLOCK];
+        private final byte[] compressed = new byte[BLOCK];
+        private final byte[] header = new byte[4];
+        private int count;
+        private int pos;
+
+        public LzInputStream(InputStream in) {
+            super(in);
+        }
+
+        private boolean readBlock() throws IOException {
+            if (in.read(header, 0, 1) < 0) return false;
+            readFully(header, 1, 3);
+            final int length = (header[0] & 0xff) << 8 | header[1] & 0xff;
+            final int stored = (header[2] & 0xff) << 8 | header[3] & 0xff;
+            if (stored == 0) {
+                readFully(block, 0, length);
+            }
+            else {
+                readFully(compressed, 0, stored);
+                if (decompress(compressed, stored, block) != length) throw new IOException("corrupt block");
+            }
+            count = length;
+            pos = 0;
+            return true;
+        }
+
+        private void readFully(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = in.read(b, off, len);
+                if (n < 0) throw new EOFException("truncated block");
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (pos == count) {
+                if (!readBlock()) return -1;
+            }
+            return block[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (pos == count) {
+                if (!readBlock()) return -1;
+            }
+            final int n = Math.min(len, count - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final byte[] b = new byte[(int)Math.min(n, 4096)];
+            long skipped = 0;
+            while (skipped < n) {
+                final int r = read(b, 0, (int)Math.min(b.length, n - skipped));
+                if (r < 0) break;
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return count - pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
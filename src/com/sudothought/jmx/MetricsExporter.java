@@ -0,0 +1,427 @@
+package com.sudothought.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders MBean attributes as Prometheus/OpenMetrics text, served at
+ * {@code /metrics} by the {@link HttpConnector}.
+ * <p/>
+ * What is exported is given by rules, one per line:
+ * <pre>
+ * &lt;metric name&gt; &lt;gauge|counter&gt; &lt;ObjectName pattern&gt; &lt;attribute&gt;[.&lt;CompositeData key&gt;]
+ *
+ * jvm_memory_heap_used_bytes gauge java.lang:type=Memory HeapMemoryUsage.used
+ * jvm_gc_collections counter java.lang:type=GarbageCollector,* CollectionCount
+ * </pre>
+ * The key properties that a pattern leaves open (e.g. {@code name} above)
+ * become labels. Numbers and booleans are exported, other values are
+ * skipped. Lines starting with {@code #} are comments.
+ * <p/>
+ * Rules are compiled once: metrics of the same name are grouped, and the
+ * attributes of each pattern are read with a single getAttributes call per
+ * MBean. The label set of each MBean is rendered once and cached. Scrapes
+ * are serialized, so that they render into the same buffers, which only
+ * grow. Each scrape also reports {@code jmx_scrape_duration_seconds},
+ * {@code jmx_scrape_series} and {@code jmx_scrape_errors}.
+ * <p/>
+ * Like the rest of the HTTP endpoint, MBeans are read through the
+ * connector's MBeanServer, i.e. through its caches and statistics.
+ * <pre>
+ * jmx.agent.metrics         true to serve /metrics on the HTTP endpoint
+ * jmx.agent.metrics.rules   file of rules (default: JVM memory, threads, GC, classes, uptime, load)
+ * </pre>
+ */
+public class MetricsExporter implements HttpHandler {
+
+    public static final String METRICS_PROPERTY = "jmx.agent.metrics";
+    public static final String RULES_PROPERTY   = "jmx.agent.metrics.rules";
+    public static final String CONTEXT          = "/metrics";
+    public static final String GAUGE            = "gauge";
+    public static final String COUNTER          = "counter";
+
+    private static final String OPENMETRICS_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String TEXT_TYPE        = "text/plain; version=0.0.4; charset=utf-8";
+    private static final int    MAX_LABELS       = 4096;
+
+    public static final String[] DEFAULT_RULES = {
+            "jvm_memory_heap_used_bytes gauge java.lang:type=Memory HeapMemoryUsage.used",
+            "jvm_memory_heap_committed_bytes gauge java.lang:type=Memory HeapMemoryUsage.committed",
+            "jvm_memory_nonheap_used_bytes gauge java.lang:type=Memory NonHeapMemoryUsage.used",
+            "jvm_threads gauge java.lang:type=Threading ThreadCount",
+            "jvm_threads_daemon gauge java.lang:type=Threading DaemonThreadCount",
+            "jvm_gc_collections counter java.lang:type=GarbageCollector,* CollectionCount",
+            "jvm_gc_collection_milliseconds counter java.lang:type=GarbageCollector,* CollectionTime",
+            "jvm_classes_loaded gauge java.lang:type=ClassLoading LoadedClassCount",
+            "jvm_uptime_milliseconds gauge java.lang:type=Runtime Uptime",
+            "os_system_load_average gauge java.lang:type=OperatingSystem SystemLoadAverage",
+    };
+
+    // The samples of one metric, rendered during a scrape.
+    private static final class Family {
+        final String name;
+        final String type;
+        final String sampleName;
+        final StringBuilder samples = new StringBuilder();
+
+        Family(String name, String type) {
+            this.name = name;
+            this.type = type;
+            this.sampleName = COUNTER.equals(type) ? name + "_total" : name;
+        }
+    }
+
+    // One value of an attribute, exported to a Family.
+    private static final class Value {
+        final int attribute;
+        final String key;
+        final Family family;
+
+        Value(int attribute, String key, Family family) {
+            this.attribute = attribute;
+            this.key = key;
+            this.family = family;
+        }
+    }
+
+    // The rules of one ObjectName pattern.
+    private static final class Source {
+        final ObjectName pattern;
+        final List<String> attributes = new ArrayList<String>();
+        final List<Value> values = new ArrayList<Value>();
+        String[] attributeArray;
+        final Map<ObjectName, String> labels = new HashMap<ObjectName, String>();
+
+        Source(ObjectName pattern) {
+            this.pattern = pattern;
+        }
+
+        int attribute(String name) {
+            final int i = attributes.indexOf(name);
+            if (i >= 0) return i;
+            attributes.add(name);
+            return attributes.size() - 1;
+        }
+    }
+
+    private final MBeanServer server;
+    private final Family[] families;
+    private final Source[] sources;
+    private final StringBuilder text = new StringBuilder(8192);
+    private byte[] bytes = new byte[8192];
+
+    /**
+     * Compiles the rules.
+     *
+     * @param server the MBeanServer to read.
+     * @param rules  the rules, see above.
+     * @throws IllegalArgumentException if a rule is invalid.
+     */
+    public MetricsExporter(MBeanServer server, List<String> rules) {
+        this.server = server;
+        final Map<String, Family> families = new LinkedHashMap<String, Family>();
+        final Map<ObjectName, Source> sources = new LinkedHashMap<ObjectName, Source>();
+        for (String rule : rules) {
+            rule = rule.trim();
+            if (rule.length() == 0 || rule.startsWith("#")) continue;
+
+            final int nameEnd = rule.indexOf(' ');
+            final int typeEnd = nameEnd < 0 ? -1 : rule.indexOf(' ', nameEnd + 1);
+            final int attributeStart = rule.lastIndexOf(' ');
+            if (typeEnd < 0 || attributeStart <= typeEnd)
+                throw new IllegalArgumentException("invalid metric rule: " + rule);
+            final String name = rule.substring(0, nameEnd);
+            final String type = rule.substring(nameEnd + 1, typeEnd);
+            final String pattern = rule.substring(typeEnd + 1, attributeStart).trim();
+            final String attribute = rule.substring(attributeStart + 1);
+
+            if (!isValidName(name) || (COUNTER.equals(type) && name.endsWith("_total")))
+                throw new IllegalArgumentException("invalid metric name: " + rule);
+            if (!GAUGE.equals(type) && !COUNTER.equals(type))
+                throw new IllegalArgumentException("invalid metric type: " + rule);
+            Family family = families.get(name);
+            if (family == null) {
+                family = new Family(name, type);
+                families.put(name, family);
+            }
+            else if (!family.type.equals(type)) {
+                throw new IllegalArgumentException("metric " + name + " is both a " + family.type + " and a " + type);
+            }
+
+            final ObjectName objectName;
+            try {
+                objectName = ObjectName.getInstance(pattern);
+            }
+            catch (MalformedObjectNameException x) {
+                throw new IllegalArgumentException("invalid metric rule: " + rule, x);
+            }
+            Source source = sources.get(objectName);
+            if (source == null) {
+                source = new Source(objectName);
+                sources.put(objectName, source);
+            }
+            final int dot = attribute.indexOf('.');
+            final String attributeName = dot < 0 ? attribute : attribute.substring(0, dot);
+            source.values.add(new Value(source.attribute(attributeName),
+                                        dot < 0 ? null : attribute.substring(dot + 1), family));
+        }
+        for (Source source : sources.values())
+            source.attributeArray = source.attributes.toArray(new String[source.attributes.size()]);
+        this.families = families.values().toArray(new Family[families.size()]);
+        this.sources = sources.values().toArray(new Source[sources.size()]);
+    }
+
+    /**
+     * Creates an exporter configured from the {@code jmx.agent.metrics}
+     * system properties, or returns null if it is not enabled.
+     *
+     * @param server the MBeanServer to read.
+     */
+    public static MetricsExporter createFromProperties(MBeanServer server) throws IOException {
+        if (!Boolean.valueOf(System.getProperty(METRICS_PROPERTY, "false")).booleanValue())
+            return null;
+        final String file = System.getProperty(RULES_PROPERTY);
+        if (file == null)
+            return new MetricsExporter(server, Arrays.asList(DEFAULT_RULES));
+
+        final List<String> rules = new ArrayList<String>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                rules.add(line);
+        }
+        finally {
+            in.close();
+        }
+        return new MetricsExporter(server, rules);
+    }
+
+    private static boolean isValidName(String name) {
+        if (name.length() == 0) return false;
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':' || i > 0 && c >= '0' && c <= '9'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The number of metrics defined by the rules.
+     */
+    public int getMetricCount() {
+        return families.length;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String accept = exchange.getRequestHeaders().getFirst("Accept");
+            final boolean openMetrics = accept != null && accept.contains("application/openmetrics-text");
+            synchronized (this) {
+                final int length = scrape(openMetrics);
+                exchange.getResponseHeaders().set("Content-Type", openMetrics ? OPENMETRICS_TYPE : TEXT_TYPE);
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(bytes, 0, length);
+                out.flush();
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders all metrics, as OpenMetrics text or as Prometheus text format
+     * 0.0.4.
+     *
+     * @return the rendered text.
+     */
+    public synchronized String render(boolean openMetrics) {
+        final int length = scrape(openMetrics);
+        try {
+            return new String(bytes, 0, length, "UTF-8");
+        }
+        catch (IOException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    // Renders into the bytes buffer, returns the length. Must be called
+    // with the lock held.
+    private int scrape(boolean openMetrics) {
+        final long start = System.nanoTime();
+        for (Family family : families)
+            family.samples.setLength(0);
+        long series = 0;
+        long errors = 0;
+
+        for (Source source : sources) {
+            final Set<ObjectName> names;
+            try {
+                names = server.queryNames(source.pattern, null);
+            }
+            catch (RuntimeException x) {
+                errors++;
+                continue;
+            }
+            if (source.labels.size() > MAX_LABELS) source.labels.clear();
+            for (ObjectName name : names) {
+                final AttributeList values;
+                try {
+                    values = server.getAttributes(name, source.attributeArray);
+                }
+                catch (Exception x) {
+                    errors++;
+                    continue;
+                }
+                String labels = source.labels.get(name);
+                if (labels == null) {
+                    labels = labels(source.pattern, name);
+                    source.labels.put(name, labels);
+                }
+                for (Attribute a : values.asList()) {
+                    final int attribute = source.attributes.indexOf(a.getName());
+                    for (Value v : source.values) {
+                        if (v.attribute == attribute && sample(v, labels, a.getValue())) series++;
+                    }
+                }
+            }
+        }
+
+        final StringBuilder out = text;
+        out.setLength(0);
+        for (Family family : families) {
+            if (family.samples.length() == 0) continue;
+            // OpenMetrics types the family, text 0.0.4 the samples (name_total).
+            out.append("# TYPE ").append(openMetrics ? family.name : family.sampleName)
+               .append(' ').append(family.type).append('\n');
+            out.append(family.samples);
+        }
+        out.append("# TYPE jmx_scrape_series gauge\n");
+        out.append("jmx_scrape_series ").append(series).append('\n');
+        out.append("# TYPE jmx_scrape_errors gauge\n");
+        out.append("jmx_scrape_errors ").append(errors).append('\n');
+        out.append("# TYPE jmx_scrape_duration_seconds gauge\n");
+        out.append("jmx_scrape_duration_seconds ").append((System.nanoTime() - start) / 1e9).append('\n');
+        if (openMetrics) out.append("# EOF\n");
+        return encode(out);
+    }
+
+    // Appends a sample, returns false if the value is not a number.
+    private static boolean sample(Value v, String labels, Object value) {
+        if (v.key != null) {
+            if (!(value instanceof CompositeData)) return false;
+            final CompositeData cd = (CompositeData)value;
+            if (!cd.containsKey(v.key)) return false;
+            value = cd.get(v.key);
+        }
+        final StringBuilder sb = v.family.samples;
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            sb.append(v.family.sampleName).append(labels).append(' ').append(((Number)value).longValue());
+        }
+        else if (value instanceof Number) {
+            final double d = ((Number)value).doubleValue();
+            sb.append(v.family.sampleName).append(labels).append(' ');
+            if (Double.isNaN(d)) sb.append("NaN");
+            else if (Double.isInfinite(d)) sb.append(d > 0 ? "+Inf" : "-Inf");
+            else sb.append(d);
+        }
+        else if (value instanceof Boolean) {
+            sb.append(v.family.sampleName).append(labels).append(' ').append(((Boolean)value).booleanValue() ? 1 : 0);
+        }
+        else {
+            return false;
+        }
+        sb.append('\n');
+        return true;
+    }
+
+    // The labels of an MBean: the key properties its pattern leaves open,
+    // and its domain if the domain is a pattern.
+    private static String labels(ObjectName pattern, ObjectName name) {
+        final StringBuilder sb = new StringBuilder();
+        if (pattern.isDomainPattern()) label(sb, "domain", name.getDomain());
+        final Map<String, String> fixed = pattern.getKeyPropertyList();
+        for (Map.Entry<String, String> e : name.getKeyPropertyList().entrySet()) {
+            final String key = e.getKey();
+            if (fixed.containsKey(key) && !pattern.isPropertyValuePattern(key)) continue;
+            final String value = e.getValue();
+            label(sb, key, value.startsWith("\"") ? ObjectName.unquote(value) : value);
+        }
+        if (sb.length() == 0) return "";
+        return sb.append('}').toString();
+    }
+
+    private static void label(StringBuilder sb, String name, String value) {
+        sb.append(sb.length() == 0 ? '{' : ',');
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            sb.append(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || i > 0 && c >= '0' && c <= '9' ? c : '_');
+        }
+        sb.append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\') sb.append("\\\\");
+            else if (c == '"') sb.append("\\\"");
+            else if (c == '\n') sb.append("\\n");
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    // UTF-8 encodes the text into the bytes buffer, growing it if needed.
+    private int encode(StringBuilder sb) {
+        final int length = sb.length();
+        if (bytes.length < length * 3) bytes = new byte[Math.max(length * 3, bytes.length * 2)];
+        final byte[] b = bytes;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = sb.charAt(i);
+            if (c < 0x80) {
+                b[n++] = (byte)c;
+            }
+            else if (c < 0x800) {
+                b[n++] = (byte)(0xc0 | c >> 6);
+                b[n++] = (byte)(0x80 | c & 0x3f);
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(sb.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, sb.charAt(++i));
+                b[n++] = (byte)(0xf0 | cp >> 18);
+                b[n++] = (byte)(0x80 | cp >> 12 & 0x3f);
+                b[n++] = (byte)(0x80 | cp >> 6 & 0x3f);
+                b[n++] = (byte)(0x80 | cp & 0x3f);
+            }
+            else {
+                b[n++] = (byte)(0xe0 | c >> 12);
+                b[n++] = (byte)(0x80 | c >> 6 & 0x3f);
+                b[n++] = (byte)(0x80 | c & 0x3f);
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,60 @@
+package com.sudothought.jmx;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * An MBeanServerForwarder that adds the notification listeners through a
+ * {@link NotificationHub}, so that each MBean has at most one listener of
+ * the agent however many listen to it.
+ * <p/>
+ * Listeners given by ObjectName are MBeans of their own and are forwarded
+ * directly, as are removals of listeners that were not added through the
+ * hub.
+ */
+public class NotificationForwarder extends DelegatingForwarder {
+
+    private final NotificationHub hub;
+
+    public NotificationForwarder(NotificationHub hub) {
+        if (hub == null) throw new IllegalArgumentException("hub is null");
+        this.hub = hub;
+    }
+
+    public NotificationHub getHub() {
+        return hub;
+    }
+
+    @Override
+    public void addNotificationListener(ObjectName name, NotificationListener listener,
+                                        NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException {
+        hub.addListener(getMBeanServer(), name, listener, filter, handback);
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        try {
+            hub.removeListener(name, listener);
+        }
+        catch (ListenerNotFoundException x) {
+            super.removeNotificationListener(name, listener);
+        }
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener,
+                                           NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        try {
+            hub.removeListener(name, listener, filter, handback);
+        }
+        catch (ListenerNotFoundException x) {
+            super.removeNotificationListener(name, listener, filter, handback);
+        }
+    }
+}
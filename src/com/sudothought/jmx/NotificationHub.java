@@ -0,0 +1,429 @@
+package com.sudothought.jmx;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares one listener per notification source among all the listeners
+ * added through a {@link NotificationForwarder}, published as
+ * {@code com.sudothought.jmx:type=NotificationHub}.
+ * <p/>
+ * However many listeners are added on an MBean, the hub registers a single
+ * listener of its own on it. Each source has its own bounded ring, which
+ * grows up to {@code ring} notifications, and each of its subscribers reads
+ * the ring from its own position: its notifications are delivered on the
+ * hub's threads, in batches, once {@code batch} of them are pending or the
+ * oldest has waited {@code delay} milliseconds. A subscriber has at most one
+ * delivery queued at a time. A subscriber that falls more than a ring
+ * behind loses the overwritten notifications, which are counted as dropped,
+ * so a slow consumer never makes the agent hold more than the rings.
+ * <p/>
+ * The hub listens to the unregistration of its sources: the listeners of an
+ * unregistered MBean are dropped, as the MBeanServer does, and an MBean
+ * registered again under the same name gets a new source.
+ * <p/>
+ * The RMI connector itself listens to the MBeans through its forwarders,
+ * with one listener per MBean shared by all remote clients, so remote
+ * clients get their notifications through the hub as well.
+ * <pre>
+ * jmx.agent.notifications           true to enable
+ * jmx.agent.notifications.ring      notifications kept per source (default 4096)
+ * jmx.agent.notifications.batch     batch size (default 64)
+ * jmx.agent.notifications.delay     max wait of a batch, in ms (default 50)
+ * jmx.agent.notifications.threads   delivery threads (default 2)
+ * </pre>
+ */
+public class NotificationHub implements NotificationHubMXBean, Closeable {
+
+    public static final String NOTIFICATIONS_PROPERTY = "jmx.agent.notifications";
+    public static final String RING_PROPERTY          = "jmx.agent.notifications.ring";
+    public static final String BATCH_PROPERTY         = "jmx.agent.notifications.batch";
+    public static final String DELAY_PROPERTY         = "jmx.agent.notifications.delay";
+    public static final String THREADS_PROPERTY       = "jmx.agent.notifications.threads";
+
+    private static final int INITIAL_RING = 16;
+
+    // The hub's listener on one MBean, the listeners it stands for, and the
+    // ring of its notifications.
+    private final class Source implements NotificationListener {
+        final ObjectName name;
+        final MBeanServer server;
+        final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+        // Guarded by this. The ring doubles while it is not full, up to
+        // capacity: notification n is in ring[n % ring.length].
+        Notification[] ring = new Notification[Math.min(INITIAL_RING, capacity)];
+        long head;
+
+        Source(ObjectName name, MBeanServer server) {
+            this.name = name;
+            this.server = server;
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            publish(this, notification);
+        }
+
+        synchronized long head() {
+            return head;
+        }
+    }
+
+    private final class Subscriber implements Runnable {
+        final Source source;
+        final NotificationListener listener;
+        final NotificationFilter filter;
+        final Object handback;
+        // Set while a delivery is queued.
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // The queued delivery, if it waits for the batch delay.
+        volatile ScheduledFuture<?> delayed;
+        final ReentrantLock draining = new ReentrantLock();
+        // Guarded by draining.
+        final Notification[] batch = new Notification[batchSize];
+        // Sequence number of the next notification to read.
+        volatile long cursor;
+
+        Subscriber(Source source, NotificationListener listener, NotificationFilter filter, Object handback,
+                   long cursor) {
+            this.source = source;
+            this.listener = listener;
+            this.filter = filter;
+            this.handback = handback;
+            this.cursor = cursor;
+        }
+
+        public void run() {
+            drain(this);
+        }
+    }
+
+    // Drops the sources of unregistered MBeans.
+    private final NotificationListener unregistrations = new NotificationListener() {
+        public void handleNotification(Notification notification, Object handback) {
+            if (!(notification instanceof MBeanServerNotification)) return;
+            final ObjectName name = ((MBeanServerNotification)notification).getMBeanName();
+            synchronized (sources) {
+                final Source source = sources.get(name);
+                if (source != null && source.server == handback) sources.remove(name);
+            }
+        }
+    };
+
+    private final int capacity;
+    private final int batchSize;
+    private volatile long batchDelay;
+    private final ConcurrentHashMap<ObjectName, Source> sources = new ConcurrentHashMap<ObjectName, Source>();
+    // The servers whose unregistrations are listened to, guarded by sources.
+    private final Set<MBeanServer> watched = Collections.newSetFromMap(new IdentityHashMap<MBeanServer, Boolean>());
+    private final ScheduledThreadPoolExecutor executor;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder overruns = new LongAdder();
+    private final LongAdder listenerErrors = new LongAdder();
+
+    /**
+     * @param capacity   notifications kept in the ring of each source.
+     * @param batchSize  pending notifications that trigger a delivery.
+     * @param batchDelay max wait of a batch, in milliseconds.
+     * @param threads    delivery threads.
+     */
+    public NotificationHub(int capacity, int batchSize, long batchDelay, int threads) {
+        if (capacity <= 0 || batchSize <= 0 || batchSize > capacity)
+            throw new IllegalArgumentException("invalid ring or batch size: " + capacity + ", " + batchSize);
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.batchDelay = batchDelay;
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "JMX Agent Notifications " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // Cancelled delays leave the queue, which then holds at most one
+        // delivery per subscriber.
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Creates a hub configured from the {@code jmx.agent.notifications}
+     * system properties, or returns null if it is not enabled.
+     */
+    public static NotificationHub createFromProperties() {
+        if (!Boolean.valueOf(System.getProperty(NOTIFICATIONS_PROPERTY, "false")).booleanValue())
+            return null;
+        return new NotificationHub(Integer.parseInt(System.getProperty(RING_PROPERTY, "4096")),
+                                   Integer.parseInt(System.getProperty(BATCH_PROPERTY, "64")),
+                                   Long.parseLong(System.getProperty(DELAY_PROPERTY, "50")),
+                                   Integer.parseInt(System.getProperty(THREADS_PROPERTY, "2")));
+    }
+
+    /**
+     * Adds a listener on an MBean, registering the hub's own listener on
+     * it if it is the first.
+     */
+    public void addListener(MBeanServer server, ObjectName name, NotificationListener listener,
+                            NotificationFilter filter, Object handback) throws InstanceNotFoundException {
+        synchronized (sources) {
+            if (!watched.contains(server)) {
+                final NotificationFilterSupport unregistered = new NotificationFilterSupport();
+                unregistered.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+                server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, unregistrations, unregistered,
+                                               server);
+                watched.add(server);
+            }
+            Source source = sources.get(name);
+            if (source == null) {
+                source = new Source(name, server);
+                server.addNotificationListener(name, source, null, null);
+                sources.put(name, source);
+            }
+            source.subscribers.add(new Subscriber(source, listener, filter, handback, source.head()));
+        }
+    }
+
+    /**
+     * Removes a listener, with any filter and handback.
+     */
+    public void removeListener(ObjectName name, NotificationListener listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        removeListener(name, listener, null, null, false);
+    }
+
+    /**
+     * Removes a listener added with the given filter and handback.
+     */
+    public void removeListener(ObjectName name, NotificationListener listener, NotificationFilter filter,
+                               Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        removeListener(name, listener, filter, handback, true);
+    }
+
+    private void removeListener(ObjectName name, NotificationListener listener, NotificationFilter filter,
+                                Object handback, boolean exact)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        synchronized (sources) {
+            final Source source = sources.get(name);
+            if (source == null) throw new ListenerNotFoundException("no listener on " + name);
+            final List<Subscriber> removed = new ArrayList<Subscriber>();
+            for (Subscriber s : source.subscribers) {
+                if (s.listener == listener && (!exact || s.filter == filter && s.handback == handback))
+                    removed.add(s);
+            }
+            if (removed.isEmpty()) throw new ListenerNotFoundException("listener not found on " + name);
+            source.subscribers.removeAll(removed);
+            if (source.subscribers.isEmpty()) {
+                sources.remove(name);
+                try {
+                    source.server.removeNotificationListener(name, source);
+                }
+                catch (ListenerNotFoundException x) {
+                    // the MBean was unregistered, which removed the listener
+                }
+                catch (InstanceNotFoundException x) {
+                    // same
+                }
+            }
+        }
+    }
+
+    private void publish(Source source, Notification notification) {
+        final long head;
+        synchronized (source) {
+            if (source.head == source.ring.length && source.ring.length < capacity) {
+                // Not wrapped yet: notification n is at n in the larger ring too.
+                final Notification[] ring = new Notification[Math.min(source.ring.length * 2, capacity)];
+                System.arraycopy(source.ring, 0, ring, 0, source.ring.length);
+                source.ring = ring;
+            }
+            source.ring[(int)(source.head % source.ring.length)] = notification;
+            head = ++source.head;
+        }
+        published.increment();
+        for (Subscriber s : source.subscribers) {
+            final boolean full = head - s.cursor >= batchSize;
+            if (s.scheduled.compareAndSet(false, true)) {
+                if (full) executor.execute(s);
+                else s.delayed = executor.schedule(s, batchDelay, TimeUnit.MILLISECONDS);
+            }
+            else if (full) {
+                // Deliver a waiting batch now, if it is still waiting.
+                final ScheduledFuture<?> delayed = s.delayed;
+                if (delayed != null && delayed.cancel(false)) executor.execute(s);
+            }
+        }
+    }
+
+    private void drain(Subscriber s) {
+        // Another thread is still delivering to this subscriber, which it
+        // may have finished reading: try again after the batch delay.
+        if (!s.draining.tryLock()) {
+            s.delayed = executor.schedule(s, Math.max(1, batchDelay), TimeUnit.MILLISECONDS);
+            return;
+        }
+        try {
+            s.delayed = null;
+            s.scheduled.set(false);
+            final Source source = s.source;
+            while (true) {
+                int n = 0;
+                synchronized (source) {
+                    final long oldest = source.head - source.ring.length;
+                    if (s.cursor < oldest) {
+                        dropped.add(oldest - s.cursor);
+                        overruns.increment();
+                        s.cursor = oldest;
+                    }
+                    long c = s.cursor;
+                    while (c < source.head && n < batchSize) {
+                        s.batch[n++] = source.ring[(int)(c % source.ring.length)];
+                        c++;
+                    }
+                    s.cursor = c;
+                }
+                if (n == 0) return;
+                for (int i = 0; i < n; i++) {
+                    final Notification notification = s.batch[i];
+                    s.batch[i] = null;
+                    try {
+                        if (s.filter != null && !s.filter.isNotificationEnabled(notification)) continue;
+                        s.listener.handleNotification(notification, s.handback);
+                        delivered.increment();
+                    }
+                    catch (RuntimeException x) {
+                        listenerErrors.increment();
+                    }
+                }
+            }
+        }
+        finally {
+            s.draining.unlock();
+        }
+    }
+
+    /**
+     * Removes the hub's listeners and stops delivering.
+     */
+    public void close() {
+        synchronized (sources) {
+            for (Source source : sources.values()) {
+                try {
+                    source.server.removeNotificationListener(source.name, source);
+                }
+                catch (Exception x) {
+                    // the MBean is gone
+                }
+            }
+            sources.clear();
+            for (MBeanServer server : watched) {
+                try {
+                    server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, unregistrations);
+                }
+                catch (Exception x) {
+                    // not listening
+                }
+            }
+            watched.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    public Map<String, Integer> getSources() {
+        final Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (Source source : sources.values())
+            result.put(source.name.getCanonicalName(), source.subscribers.size());
+        return result;
+    }
+
+    public int getSubscriberCount() {
+        int count = 0;
+        for (Source source : sources.values())
+            count += source.subscribers.size();
+        return count;
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getLaggingSubscribers() {
+        int lagging = 0;
+        for (Source source : sources.values()) {
+            final long head = source.head();
+            for (Subscriber s : source.subscribers) {
+                if (head - s.cursor > capacity / 2) lagging++;
+            }
+        }
+        return lagging;
+    }
+
+    public long getOverruns() {
+        return overruns.sum();
+    }
+
+    public long getListenerErrors() {
+        return listenerErrors.sum();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchDelay() {
+        return batchDelay;
+    }
+
+    public void setBatchDelay(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("invalid delay: " + millis);
+        this.batchDelay = millis;
+    }
+
+    public void resetCounters() {
+        published.reset();
+        delivered.reset();
+        dropped.reset();
+        overruns.reset();
+        listenerErrors.reset();
+    }
+}
@@ -0,0 +1,67 @@
+package com.sudothought.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link NotificationHub}, registered as
+ * {@code com.sudothought.jmx:type=NotificationHub}.
+ */
+public interface NotificationHubMXBean {
+
+    /**
+     * Number of subscribers, by source MBean.
+     */
+    Map<String, Integer> getSources();
+
+    int getSubscriberCount();
+
+    /**
+     * Notifications received from the sources.
+     */
+    long getPublished();
+
+    /**
+     * Notifications handed to subscribers.
+     */
+    long getDelivered();
+
+    /**
+     * Notifications overwritten in their source's ring before a subscriber
+     * got them.
+     */
+    long getDropped();
+
+    /**
+     * Subscribers currently more than half a ring behind their source.
+     */
+    int getLaggingSubscribers();
+
+    /**
+     * Times a subscriber was overtaken by the ring and lost notifications.
+     */
+    long getOverruns();
+
+    /**
+     * Exceptions thrown by subscribers' listeners.
+     */
+    long getListenerErrors();
+
+    /**
+     * Number of notifications kept in the ring of each source.
+     */
+    int getCapacity();
+
+    /**
+     * Number of pending notifications that triggers an immediate delivery.
+     */
+    int getBatchSize();
+
+    /**
+     * Maximum time a notification waits for its batch, in milliseconds.
+     */
+    long getBatchDelay();
+
+    void setBatchDelay(long millis);
+
+    void resetCounters();
+}
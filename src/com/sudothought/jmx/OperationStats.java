@@ -0,0 +1,60 @@
+package com.sudothought.jmx;
+
+/**
+ * Latency statistics of one kind of forwarded call, as published by
+ * {@link AgentStatsMXBean}. Latencies are in microseconds.
+ */
+public class OperationStats {
+
+    private final long count;
+    private final long errors;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    public OperationStats(LatencyHistogram.Snapshot snapshot, long errors) {
+        this.count = snapshot.getCount();
+        this.errors = errors;
+        this.mean = snapshot.getMean() / 1000.0;
+        this.p50 = snapshot.getValueAtPercentile(50.0) / 1000.0;
+        this.p99 = snapshot.getValueAtPercentile(99.0) / 1000.0;
+        this.p999 = snapshot.getValueAtPercentile(99.9) / 1000.0;
+        this.max = snapshot.getMax() / 1000.0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getP999() {
+        return p999;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + " errors=" + errors + " p50=" + p50 + "us p99=" + p99
+               + "us p999=" + p999 + "us max=" + max + "us";
+    }
+}
@@ -0,0 +1,395 @@
+package com.sudothought.jmx;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sampling profiler, published as {@code com.sudothought.jmx:type=Profiler}
+ * so that a misbehaving JVM can be profiled through the agent it was
+ * attached with, e.g. {@code Attach profile 30}.
+ * <p/>
+ * Once started, a thread samples the stacks of all the threads at a fixed
+ * interval, with ThreadMXBean.getThreadInfo: one VM operation per sample,
+ * without lock information, and with the stack depth bounded. By default
+ * only RUNNABLE threads are kept, and the sampling thread is skipped.
+ * <p/>
+ * The stacks are merged into a call tree of primitive arrays: each node is
+ * a frame ("class.method") under its parent node, with the number of
+ * samples that ended on it. Frames are interned to ints, and a node's
+ * children are found through an open-addressing table keyed by parent and
+ * frame, so adding a stack does not allocate once its frames are known.
+ * The number of nodes and of frames is capped: a stack that needs a node
+ * past the cap is counted on its deepest known node, and reported as
+ * truncated. {@link #collapsedStacks()} renders the tree for flame graphs.
+ * <p/>
+ * The CPU time of the sampling thread, and the time of each sample, are
+ * reported as the profiler's overhead.
+ * <pre>
+ * jmx.agent.profiler            true to register the profiler
+ * jmx.agent.profiler.interval   sampling interval in ms (default 10)
+ * jmx.agent.profiler.depth      max frames per stack (default 128)
+ * jmx.agent.profiler.nodes      max nodes of the call tree (default 100000)
+ * jmx.agent.profiler.idle       true to sample threads that are not running
+ * </pre>
+ */
+public class Profiler implements ProfilerMXBean, Closeable {
+
+    public static final String PROFILER_PROPERTY = "jmx.agent.profiler";
+    public static final String INTERVAL_PROPERTY = "jmx.agent.profiler.interval";
+    public static final String DEPTH_PROPERTY    = "jmx.agent.profiler.depth";
+    public static final String NODES_PROPERTY    = "jmx.agent.profiler.nodes";
+    public static final String IDLE_PROPERTY     = "jmx.agent.profiler.idle";
+
+    public static final long MAX_PROFILE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // The root frame of stacks that lost their outermost frames.
+    private static final String TRUNCATED_FRAME = "[truncated]";
+    private static final int INITIAL_NODES = 1024;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final int maxNodes;
+    private final ScheduledThreadPoolExecutor sampler;
+    private volatile long intervalMillis;
+    private volatile int maxDepth;
+    private volatile boolean includeIdle;
+
+    // The call tree, guarded by this. Node 0 is the root.
+    private int nodes;
+    private int[] parents;
+    private int[] frames;
+    private long[] counts;
+    // Children by parent and frame: keys are (parent << 32 | frame) + 1, so
+    // that 0 marks an empty slot.
+    private long[] childKeys;
+    private int[] childNodes;
+
+    // Interned frames, guarded by this.
+    private final Map<StackTraceElement, Integer> elementIds = new HashMap<StackTraceElement, Integer>();
+    private final Map<String, Integer> labelIds = new HashMap<String, Integer>();
+    private final List<String> labels = new ArrayList<String>();
+    private int truncatedFrame = -1;
+
+    // Counters, guarded by this.
+    private long samples;
+    private long stacks;
+    private long truncated;
+    private long sampleNanos;
+    private long cpuNanos;
+    private long runningNanos;
+    private long startedAt;
+
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param intervalMillis the sampling interval, in milliseconds.
+     * @param maxDepth       the max frames per stack.
+     * @param maxNodes       the max nodes of the call tree.
+     * @param includeIdle    whether threads that are not RUNNABLE are
+     *                       sampled.
+     */
+    public Profiler(long intervalMillis, int maxDepth, int maxNodes, boolean includeIdle) {
+        if (maxNodes < 2) throw new IllegalArgumentException("invalid max nodes: " + maxNodes);
+        setInterval(intervalMillis);
+        setMaxDepth(maxDepth);
+        setIncludeIdle(includeIdle);
+        this.maxNodes = maxNodes;
+        this.sampler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "JMX Agent Profiler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        clear();
+    }
+
+    /**
+     * Creates a Profiler configured from the {@code jmx.agent.profiler}
+     * system properties, or returns null if it is not enabled.
+     */
+    public static Profiler createFromProperties() {
+        if (!Boolean.valueOf(System.getProperty(PROFILER_PROPERTY, "false")).booleanValue())
+            return null;
+        return new Profiler(Long.parseLong(System.getProperty(INTERVAL_PROPERTY, "10")),
+                            Integer.parseInt(System.getProperty(DEPTH_PROPERTY, "128")),
+                            Integer.parseInt(System.getProperty(NODES_PROPERTY, "100000")),
+                            Boolean.valueOf(System.getProperty(IDLE_PROPERTY, "false")).booleanValue());
+    }
+
+    // Called with this locked.
+    private void clear() {
+        nodes = 1;
+        parents = new int[INITIAL_NODES];
+        frames = new int[INITIAL_NODES];
+        counts = new long[INITIAL_NODES];
+        childKeys = new long[INITIAL_NODES * 2];
+        childNodes = new int[INITIAL_NODES * 2];
+        parents[0] = -1;
+        frames[0] = -1;
+        elementIds.clear();
+        labelIds.clear();
+        labels.clear();
+        truncatedFrame = -1;
+        samples = 0;
+        stacks = 0;
+        truncated = 0;
+        sampleNanos = 0;
+        cpuNanos = 0;
+        runningNanos = 0;
+        if (task != null) startedAt = System.nanoTime();
+    }
+
+    public synchronized void start() {
+        if (task != null) return;
+        startedAt = System.nanoTime();
+        task = sampler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task == null) return;
+        task.cancel(false);
+        task = null;
+        runningNanos += System.nanoTime() - startedAt;
+    }
+
+    public synchronized boolean isRunning() {
+        return task != null;
+    }
+
+    public synchronized void reset() {
+        clear();
+    }
+
+    public String profile(long millis) throws InterruptedException {
+        if (millis <= 0 || millis > MAX_PROFILE_MILLIS)
+            throw new IllegalArgumentException("invalid time: " + millis + "ms");
+        synchronized (this) {
+            if (task != null) throw new IllegalStateException("already running");
+            clear();
+            start();
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        finally {
+            stop();
+        }
+        return collapsedStacks();
+    }
+
+    private void sample() {
+        final long start = System.nanoTime();
+        final long cpuStart = threads.getCurrentThreadCpuTime();
+        final long self = Thread.currentThread().getId();
+        final boolean idle = includeIdle;
+        final ThreadInfo[] infos = threads.getThreadInfo(threads.getAllThreadIds(), maxDepth);
+        synchronized (this) {
+            if (task == null) return;
+            for (ThreadInfo info : infos) {
+                if (info == null || info.getThreadId() == self) continue;
+                if (!idle && info.getThreadState() != Thread.State.RUNNABLE) continue;
+                final StackTraceElement[] stack = info.getStackTrace();
+                if (stack.length == 0) continue;
+                add(stack, stack.length == maxDepth);
+            }
+            samples++;
+            sampleNanos += System.nanoTime() - start;
+            if (cpuStart >= 0) cpuNanos += threads.getCurrentThreadCpuTime() - cpuStart;
+        }
+    }
+
+    // Adds a stack, leaf first, to the tree. Called with this locked.
+    private void add(StackTraceElement[] stack, boolean deep) {
+        int node = 0;
+        if (deep) {
+            if (truncatedFrame < 0) truncatedFrame = intern(TRUNCATED_FRAME);
+            node = child(0, truncatedFrame);
+        }
+        for (int i = stack.length - 1; i >= 0 && node >= 0; i--) {
+            final int frame = frameOf(stack[i]);
+            final int next = frame < 0 ? -1 : child(node, frame);
+            if (next < 0) {
+                truncated++;
+                break;
+            }
+            node = next;
+        }
+        if (node >= 0) counts[node]++;
+        stacks++;
+    }
+
+    // The id of a frame, or -1 if there are too many frames.
+    private int frameOf(StackTraceElement e) {
+        final Integer id = elementIds.get(e);
+        if (id != null) return id.intValue();
+        if (elementIds.size() >= maxNodes) return -1;
+        final int frame = intern(e.getClassName() + "." + e.getMethodName());
+        elementIds.put(e, Integer.valueOf(frame));
+        return frame;
+    }
+
+    private int intern(String label) {
+        final Integer id = labelIds.get(label);
+        if (id != null) return id.intValue();
+        final int frame = labels.size();
+        labels.add(label);
+        labelIds.put(label, Integer.valueOf(frame));
+        return frame;
+    }
+
+    // The child of a node for a frame, created if needed, or -1 if the tree
+    // is full.
+    private int child(int parent, int frame) {
+        final long key = ((long)parent << 32 | frame) + 1;
+        final int mask = childKeys.length - 1;
+        int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (childKeys[slot] != 0) {
+            if (childKeys[slot] == key) return childNodes[slot];
+            slot = (slot + 1) & mask;
+        }
+        if (nodes >= maxNodes) return -1;
+        if (nodes == parents.length) {
+            grow();
+            return child(parent, frame);
+        }
+        final int node = nodes++;
+        parents[node] = parent;
+        frames[node] = frame;
+        childKeys[slot] = key;
+        childNodes[slot] = node;
+        return node;
+    }
+
+    // Doubles the node arrays and rehashes the children, keeping the table
+    // at most half full.
+    private void grow() {
+        final int capacity = Math.min(parents.length * 2, maxNodes);
+        parents = Arrays.copyOf(parents, capacity);
+        frames = Arrays.copyOf(frames, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        int size = childKeys.length;
+        while (size < capacity * 2) size <<= 1;
+        childKeys = new long[size];
+        childNodes = new int[size];
+        final int mask = size - 1;
+        for (int node = 1; node < nodes; node++) {
+            final long key = ((long)parents[node] << 32 | frames[node]) + 1;
+            int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (childKeys[slot] != 0)
+                slot = (slot + 1) & mask;
+            childKeys[slot] = key;
+            childNodes[slot] = node;
+        }
+    }
+
+    public synchronized String collapsedStacks() {
+        final StringBuilder sb = new StringBuilder();
+        final int[] path = new int[nodes];
+        for (int node = 1; node < nodes; node++) {
+            if (counts[node] == 0) continue;
+            int depth = 0;
+            for (int n = node; n > 0; n = parents[n])
+                path[depth++] = frames[n];
+            for (int i = depth - 1; i >= 0; i--) {
+                sb.append(labels.get(path[i]));
+                if (i > 0) sb.append(';');
+            }
+            sb.append(' ').append(counts[node]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public long getInterval() {
+        return intervalMillis;
+    }
+
+    public void setInterval(long millis) {
+        if (millis < 1) throw new IllegalArgumentException("invalid interval: " + millis);
+        this.intervalMillis = millis;
+    }
+
+    public boolean isIncludeIdle() {
+        return includeIdle;
+    }
+
+    public void setIncludeIdle(boolean includeIdle) {
+        this.includeIdle = includeIdle;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int depth) {
+        if (depth < 1) throw new IllegalArgumentException("invalid depth: " + depth);
+        this.maxDepth = depth;
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public synchronized int getNodes() {
+        return nodes;
+    }
+
+    public synchronized int getFrames() {
+        return labels.size();
+    }
+
+    /**
+     * The node arrays and the children table, plus a rough 100 bytes per
+     * frame for the interning maps and the labels.
+     */
+    public synchronized long getMemoryUsage() {
+        return parents.length * (4L + 4 + 8) + childKeys.length * (8L + 4) + elementIds.size() * 100L;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    public synchronized long getStacks() {
+        return stacks;
+    }
+
+    public synchronized long getTruncatedStacks() {
+        return truncated;
+    }
+
+    public synchronized long getSamplingCpuTime() {
+        return TimeUnit.NANOSECONDS.toMillis(cpuNanos);
+    }
+
+    public synchronized double getMeanSampleTime() {
+        return samples == 0 ? 0 : sampleNanos / 1000.0 / samples;
+    }
+
+    public synchronized double getOverhead() {
+        final long running = runningNanos + (task != null ? System.nanoTime() - startedAt : 0);
+        return running == 0 ? 0 : (double)cpuNanos / running;
+    }
+
+    /**
+     * Stops sampling and the sampling thread.
+     */
+    public void close() {
+        stop();
+        sampler.shutdownNow();
+    }
+}
@@ -0,0 +1,106 @@
+package com.sudothought.jmx;
+
+/**
+ * Management interface of the {@link Profiler}, registered as
+ * {@code com.sudothought.jmx:type=Profiler}.
+ */
+public interface ProfilerMXBean {
+
+    /**
+     * Starts sampling, adding to the call tree. Does nothing if sampling
+     * has already started.
+     */
+    void start();
+
+    void stop();
+
+    boolean isRunning();
+
+    /**
+     * Forgets the call tree and the counters.
+     */
+    void reset();
+
+    /**
+     * Resets, samples for the given time, then returns the collapsed stacks.
+     *
+     * @param millis the sampling time, at most 10 minutes.
+     */
+    String profile(long millis) throws InterruptedException;
+
+    /**
+     * The call tree, one line per distinct stack, with its frames from the
+     * root separated by ';', then a space and the number of samples that
+     * ended on it: the input of flamegraph.pl and similar tools.
+     */
+    String collapsedStacks();
+
+    /**
+     * The sampling interval, in milliseconds. Takes effect on start.
+     */
+    long getInterval();
+
+    void setInterval(long millis);
+
+    /**
+     * Whether threads that are not RUNNABLE are sampled too.
+     */
+    boolean isIncludeIdle();
+
+    void setIncludeIdle(boolean includeIdle);
+
+    /**
+     * Maximum number of frames kept per stack; deeper stacks lose their
+     * outermost frames. Takes effect on start.
+     */
+    int getMaxDepth();
+
+    void setMaxDepth(int depth);
+
+    /**
+     * Maximum number of nodes of the call tree, and of distinct frames,
+     * which bounds its memory.
+     */
+    int getMaxNodes();
+
+    int getNodes();
+
+    int getFrames();
+
+    /**
+     * Estimated memory used by the call tree and the frames, in bytes.
+     */
+    long getMemoryUsage();
+
+    /**
+     * Samples taken, each of all the threads.
+     */
+    long getSamples();
+
+    /**
+     * Thread stacks added to the call tree.
+     */
+    long getStacks();
+
+    /**
+     * Stacks that were cut short because the call tree was full.
+     */
+    long getTruncatedStacks();
+
+    /**
+     * CPU time of the sampling thread, in milliseconds.
+     */
+    long getSamplingCpuTime();
+
+    /**
+     * Mean time to take a sample and add it to the call tree, in
+     * microseconds.
+     */
+    double getMeanSampleTime();
+
+    /**
+     * CPU time of the sampling thread over the sampling time, as a fraction
+     * of one CPU.
+     */
+    double getOverhead();
+}
@@ -0,0 +1,239 @@
+package com.sudothought.jmx;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache for the results of {@code queryNames} and {@code queryMBeans}
+ * calls without a QueryExp, keyed by ObjectName pattern.
+ * <p/>
+ * The cache listens to the registration and unregistration notifications
+ * of {@code JMImplementation:type=MBeanServerDelegate} and applies them to
+ * every cached result, so it never serves stale results. The delegate sends
+ * these notifications before {@code registerMBean} or
+ * {@code unregisterMBean} returns. A result computed while a notification
+ * is being applied is returned but not cached.
+ * <p/>
+ * Queries with a QueryExp are never cached, since QueryExp instances can't
+ * be compared.
+ */
+public class QueryCache implements NotificationListener, MBeanRegistration, QueryCacheMXBean {
+
+    public static final String QUERY_CACHE_PROPERTY      = "jmx.agent.querycache";
+    public static final String QUERY_CACHE_SIZE_PROPERTY = "jmx.agent.querycache.size";
+    public static final String DEFAULT_QUERY_CACHE_SIZE  = "256";
+
+    private final MBeanServer server;
+    private final int maxSize;
+    private final Map<ObjectName, Set<ObjectName>> names = new ConcurrentHashMap<ObjectName, Set<ObjectName>>();
+    private final Map<ObjectName, Set<ObjectInstance>> instances = new ConcurrentHashMap<ObjectName, Set<ObjectInstance>>();
+
+    // Incremented under the lock for each notification, used to detect a
+    // registration change that happened while a query was running.
+    private final Object lock = new Object();
+    private volatile long generation = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+
+    public QueryCache(MBeanServer server, int maxSize) throws InstanceNotFoundException {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize: " + maxSize);
+        this.server = server;
+        this.maxSize = maxSize;
+        final NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+    }
+
+    /**
+     * Creates a QueryCache for the given server if the
+     * {@code jmx.agent.querycache} system property is true, returns null
+     * otherwise.
+     */
+    public static QueryCache createFromProperties(MBeanServer server) throws InstanceNotFoundException {
+        if (!Boolean.valueOf(System.getProperty(QUERY_CACHE_PROPERTY, "false")).booleanValue())
+            return null;
+        final int size = Integer.parseInt(System.getProperty(QUERY_CACHE_SIZE_PROPERTY, DEFAULT_QUERY_CACHE_SIZE));
+        return new QueryCache(server, size);
+    }
+
+    public MBeanServer getMBeanServer() {
+        return server;
+    }
+
+    public Set<ObjectName> queryNames(ObjectName pattern) {
+        final ObjectName key = pattern == null ? ObjectName.WILDCARD : pattern;
+        final Set<ObjectName> cached = names.get(key);
+        if (cached != null) {
+            hits.increment();
+            return new HashSet<ObjectName>(cached);
+        }
+        misses.increment();
+        final long gen = generation;
+        final Set<ObjectName> result = server.queryNames(pattern, null);
+        synchronized (lock) {
+            if (gen == generation && makeRoom(names))
+                names.put(key, newSet(result));
+        }
+        return result;
+    }
+
+    public Set<ObjectInstance> queryMBeans(ObjectName pattern) {
+        final ObjectName key = pattern == null ? ObjectName.WILDCARD : pattern;
+        final Set<ObjectInstance> cached = instances.get(key);
+        if (cached != null) {
+            hits.increment();
+            return new HashSet<ObjectInstance>(cached);
+        }
+        misses.increment();
+        final long gen = generation;
+        final Set<ObjectInstance> result = server.queryMBeans(pattern, null);
+        synchronized (lock) {
+            if (gen == generation && makeRoom(instances))
+                instances.put(key, newSet(result));
+        }
+        return result;
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if (!(notification instanceof MBeanServerNotification)) return;
+        final ObjectName name = ((MBeanServerNotification)notification).getMBeanName();
+        final boolean registered = MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType());
+        synchronized (lock) {
+            generation++;
+            updates.increment();
+            for (Map.Entry<ObjectName, Set<ObjectName>> e : names.entrySet()) {
+                if (!e.getKey().apply(name)) continue;
+                if (registered) e.getValue().add(name);
+                else e.getValue().remove(name);
+            }
+            ObjectInstance instance = null;
+            for (Iterator<Map.Entry<ObjectName, Set<ObjectInstance>>> i = instances.entrySet().iterator(); i.hasNext(); ) {
+                final Map.Entry<ObjectName, Set<ObjectInstance>> e = i.next();
+                if (!e.getKey().apply(name)) continue;
+                if (!registered) {
+                    removeInstance(e.getValue(), name);
+                    continue;
+                }
+                if (instance == null) {
+                    try {
+                        instance = server.getObjectInstance(name);
+                    }
+                    catch (InstanceNotFoundException x) {
+                        // already unregistered: the unregistration
+                        // notification will follow.
+                        continue;
+                    }
+                }
+                e.getValue().add(instance);
+            }
+        }
+    }
+
+    private static void removeInstance(Set<ObjectInstance> set, ObjectName name) {
+        for (Iterator<ObjectInstance> i = set.iterator(); i.hasNext(); ) {
+            if (i.next().getObjectName().equals(name)) {
+                i.remove();
+                return;
+            }
+        }
+    }
+
+    private static <T> Set<T> newSet(Set<T> content) {
+        final Set<T> set = ConcurrentHashMap.newKeySet(content.size());
+        set.addAll(content);
+        return set;
+    }
+
+    private <T> boolean makeRoom(Map<ObjectName, Set<T>> map) {
+        final Iterator<ObjectName> i = map.keySet().iterator();
+        while (map.size() >= maxSize && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+        return map.size() < maxSize;
+    }
+
+    /**
+     * Stops listening to registration notifications and empties the cache.
+     */
+    public void close() {
+        try {
+            server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+        }
+        catch (InstanceNotFoundException x) {
+            // server is gone.
+        }
+        catch (ListenerNotFoundException x) {
+            // already closed.
+        }
+        clear();
+    }
+
+    public ObjectName preRegister(MBeanServer server, ObjectName name) {
+        return name;
+    }
+
+    public void postRegister(Boolean registrationDone) {
+    }
+
+    public void preDeregister() {
+    }
+
+    // A new agent replaces this MBean when it restarts: the replaced cache
+    // must stop listening.
+    public void postDeregister() {
+        close();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double)h / total;
+    }
+
+    public int getSize() {
+        return names.size() + instances.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            generation++;
+            names.clear();
+            instances.clear();
+        }
+    }
+}
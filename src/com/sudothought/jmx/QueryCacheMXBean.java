@@ -0,0 +1,29 @@
+package com.sudothought.jmx;
+
+/**
+ * Management interface of the {@link QueryCache}, registered as
+ * {@code com.sudothought.jmx:type=QueryCache}.
+ */
+public interface QueryCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    /**
+     * Number of cached query results.
+     */
+    int getSize();
+
+    int getMaxSize();
+
+    /**
+     * Number of MBean registrations and unregistrations applied to the
+     * cached results.
+     */
+    long getUpdates();
+
+    void clear();
+}
@@ -0,0 +1,337 @@
+package com.sudothought.jmx;
+
+import javax.management.JMRuntimeException;
+import javax.security.auth.Subject;
+import java.lang.reflect.Method;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
+import java.security.AccessController;
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of the calls of each client of the connector, applied by
+ * a {@link ForwardingInterceptor} and published as
+ * {@code com.sudothought.jmx:type=RateLimiter}.
+ * <p/>
+ * Calls are split in four operation classes: queries (queryNames,
+ * queryMBeans), reads (getAttribute(s)), writes (setAttribute(s)) and
+ * operations (invoke). Each client has its own budget per class, which is a
+ * token bucket refilled at the class's rate, holding at most
+ * {@code burstSeconds} worth of calls. A call over budget is delayed until
+ * the bucket refills, if that takes less than {@code maxDelay}, otherwise
+ * it is rejected with a JMRuntimeException.
+ * <p/>
+ * A client is identified by its host, as seen by RMI, and by the principals
+ * of its authenticated Subject - the first two parts of the JMX connection
+ * IDs of its connections. Calls that are not received through RMI (e.g.
+ * through the HTTP endpoint) share the {@code "<local>"} client. The number
+ * of tracked clients is bounded; further clients share the
+ * {@code "<other>"} budget.
+ * <p/>
+ * Calls on the agent's own MBeans, in the {@code com.sudothought.jmx}
+ * domain, are not limited, so that a throttled client can still stop the
+ * agent or change the rates. Neither are operations and attribute reads
+ * answered by an interceptor, such as those of the "fake" JMImplementation
+ * MBeans (the Stopper, Snapshot and Sampler) and cached attributes; the
+ * reads made by a snapshot are charged one per MBean.
+ * <p/>
+ * The buckets are kept as "virtual scheduling" times in an AtomicLongArray
+ * and updated by compare-and-set; rates can be changed at any time and
+ * apply to the next call.
+ * <pre>
+ * jmx.agent.ratelimit               true to enable
+ * jmx.agent.ratelimit.query         queries per second per client (default 50)
+ * jmx.agent.ratelimit.read          reads per second per client (default 1000)
+ * jmx.agent.ratelimit.write         writes per second per client (default 100)
+ * jmx.agent.ratelimit.invoke        operations per second per client (default 100)
+ * jmx.agent.ratelimit.burst         seconds worth of calls of a burst (default 1)
+ * jmx.agent.ratelimit.delay         max delay of a call over budget, in ms (default 0)
+ * </pre>
+ * A rate of 0 means unlimited.
+ */
+public class RateLimiter implements RateLimiterMXBean {
+
+    public static final String RATELIMIT_PROPERTY = "jmx.agent.ratelimit";
+    public static final String BURST_PROPERTY     = "jmx.agent.ratelimit.burst";
+    public static final String DELAY_PROPERTY     = "jmx.agent.ratelimit.delay";
+    public static final int    MAX_CLIENTS        = 256;
+    public static final String LOCAL_CLIENT       = "<local>";
+    public static final String OTHER_CLIENT       = "<other>";
+
+    /**
+     * The operation classes, each with its own budget.
+     */
+    public enum OpClass {
+        QUERY("query", 50),
+        READ("read", 1000),
+        WRITE("write", 100),
+        INVOKE("invoke", 100);
+
+        private final String className;
+        private final double defaultRate;
+
+        OpClass(String className, double defaultRate) {
+            this.className = className;
+            this.defaultRate = defaultRate;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public static OpClass forName(String className) {
+            for (OpClass c : values()) {
+                if (c.className.equalsIgnoreCase(className)) return c;
+            }
+            throw new IllegalArgumentException("unknown operation class: " + className);
+        }
+    }
+
+    private static final OpClass[] CLASSES = OpClass.values();
+
+    // Subject.current() exists from Java 18 on, and replaces
+    // Subject.getSubject(AccessController.getContext()).
+    private static final Method CURRENT_SUBJECT;
+
+    static {
+        Method m;
+        try {
+            m = Subject.class.getMethod("current");
+        }
+        catch (NoSuchMethodException x) {
+            m = null;
+        }
+        CURRENT_SUBJECT = m;
+    }
+
+    private static final class Client {
+        // Per class, the time at which the bucket is full again.
+        final AtomicLongArray tats = new AtomicLongArray(CLASSES.length);
+        final LongAdder admitted = new LongAdder();
+        final LongAdder delayed = new LongAdder();
+        final LongAdder[] rejected = new LongAdder[CLASSES.length];
+
+        Client() {
+            final long now = System.nanoTime();
+            for (int i = 0; i < CLASSES.length; i++) {
+                tats.set(i, now);
+                rejected[i] = new LongAdder();
+            }
+        }
+    }
+
+    // Per class, the interval between two calls in ns, 0 if unlimited.
+    private final AtomicLongArray intervals = new AtomicLongArray(CLASSES.length);
+    private volatile long burstNanos;
+    private volatile long maxDelayNanos;
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param rates        calls per second per client, by operation class; 0
+     *                     or a missing class means unlimited.
+     * @param burstSeconds seconds worth of calls of a burst.
+     * @param maxDelay     max delay of a call over budget, in milliseconds.
+     */
+    public RateLimiter(Map<OpClass, Double> rates, double burstSeconds, long maxDelay) {
+        for (Map.Entry<OpClass, Double> e : rates.entrySet())
+            setRate(e.getKey(), e.getValue().doubleValue());
+        setBurstSeconds(burstSeconds);
+        setMaxDelay(maxDelay);
+    }
+
+    /**
+     * Creates a RateLimiter configured from the {@code jmx.agent.ratelimit}
+     * system properties, or returns null if it is not enabled.
+     */
+    public static RateLimiter createFromProperties() {
+        if (!Boolean.valueOf(System.getProperty(RATELIMIT_PROPERTY, "false")).booleanValue())
+            return null;
+        final Map<OpClass, Double> rates = new LinkedHashMap<OpClass, Double>();
+        for (OpClass c : CLASSES) {
+            final String rate = System.getProperty(RATELIMIT_PROPERTY + "." + c.getClassName());
+            rates.put(c, rate != null ? Double.valueOf(rate) : Double.valueOf(c.defaultRate));
+        }
+        return new RateLimiter(rates,
+                               Double.parseDouble(System.getProperty(BURST_PROPERTY, "1")),
+                               Long.parseLong(System.getProperty(DELAY_PROPERTY, "0")));
+    }
+
+    /**
+     * Takes one call of the given class from the current client's budget,
+     * waiting for it if allowed.
+     *
+     * @throws JMRuntimeException if the client is over budget.
+     */
+    public void acquire(OpClass c) {
+        final int i = c.ordinal();
+        final long interval = intervals.get(i);
+        if (interval == 0) {
+            admitted.increment();
+            return;
+        }
+        final String key = currentClient();
+        final Client client = client(key);
+        final long tolerance = burstNanos;
+        final long maxDelay = maxDelayNanos;
+
+        long wait;
+        while (true) {
+            final long now = System.nanoTime();
+            final long tat = client.tats.get(i);
+            final long base = tat - now > 0 ? tat : now;
+            wait = base - now - tolerance;
+            if (wait > maxDelay) {
+                client.rejected[i].increment();
+                rejected.increment();
+                throw new JMRuntimeException("rate limit exceeded for " + c.getClassName() + " calls of " + key);
+            }
+            if (client.tats.compareAndSet(i, tat, base + interval)) break;
+        }
+
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new JMRuntimeException("interrupted while delayed by the rate limit");
+            }
+            client.delayed.increment();
+            delayed.increment();
+        }
+        client.admitted.increment();
+        admitted.increment();
+    }
+
+    /**
+     * The client the current thread is serving a call for.
+     */
+    static String currentClient() {
+        String host;
+        try {
+            host = RemoteServer.getClientHost();
+        }
+        catch (ServerNotActiveException x) {
+            return LOCAL_CLIENT;
+        }
+        final Subject subject = currentSubject();
+        if (subject == null || subject.getPrincipals().isEmpty()) return host;
+        final StringBuilder sb = new StringBuilder(host);
+        for (Principal p : subject.getPrincipals())
+            sb.append(' ').append(p.getName());
+        return sb.toString();
+    }
+
+    @SuppressWarnings({"deprecation", "removal"})
+    private static Subject currentSubject() {
+        if (CURRENT_SUBJECT != null) {
+            try {
+                return (Subject)CURRENT_SUBJECT.invoke(null);
+            }
+            catch (Exception x) {
+                return null;
+            }
+        }
+        return Subject.getSubject(AccessController.getContext());
+    }
+
+    private Client client(String key) {
+        final Client c = clients.get(key);
+        if (c != null) return c;
+        synchronized (clients) {
+            if (clients.size() >= MAX_CLIENTS && !clients.containsKey(key)) key = OTHER_CLIENT;
+            Client created = clients.get(key);
+            if (created == null) {
+                created = new Client();
+                clients.put(key, created);
+            }
+            return created;
+        }
+    }
+
+    public void setRate(OpClass c, double perSecond) {
+        if (perSecond < 0 || Double.isNaN(perSecond))
+            throw new IllegalArgumentException("invalid rate: " + perSecond);
+        intervals.set(c.ordinal(), perSecond == 0 ? 0 : Math.max(1, (long)(1e9 / perSecond)));
+    }
+
+    public void setRate(String operationClass, double perSecond) {
+        setRate(OpClass.forName(operationClass), perSecond);
+    }
+
+    public Map<String, Double> getRates() {
+        final Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (OpClass c : CLASSES) {
+            final long interval = intervals.get(c.ordinal());
+            result.put(c.getClassName(), interval == 0 ? 0 : 1e9 / interval);
+        }
+        return result;
+    }
+
+    public double getBurstSeconds() {
+        return burstNanos / 1e9;
+    }
+
+    public void setBurstSeconds(double seconds) {
+        if (seconds < 0 || Double.isNaN(seconds))
+            throw new IllegalArgumentException("invalid burst: " + seconds);
+        this.burstNanos = (long)(seconds * 1e9);
+    }
+
+    public long getMaxDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(maxDelayNanos);
+    }
+
+    public void setMaxDelay(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("invalid delay: " + millis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getDelayed() {
+        return delayed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public Map<String, ClientRateStats> getClients() {
+        final Map<String, ClientRateStats> result = new TreeMap<String, ClientRateStats>();
+        for (Map.Entry<String, Client> e : clients.entrySet()) {
+            final Client c = e.getValue();
+            result.put(e.getKey(), new ClientRateStats(c.admitted.sum(), c.delayed.sum(),
+                                                       c.rejected[OpClass.QUERY.ordinal()].sum(),
+                                                       c.rejected[OpClass.READ.ordinal()].sum(),
+                                                       c.rejected[OpClass.WRITE.ordinal()].sum(),
+                                                       c.rejected[OpClass.INVOKE.ordinal()].sum()));
+        }
+        return result;
+    }
+
+    /**
+     * Resets the counters and forgets the clients, along with their
+     * budgets.
+     */
+    public void resetCounters() {
+        admitted.reset();
+        delayed.reset();
+        rejected.reset();
+        synchronized (clients) {
+            clients.clear();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.sudothought.jmx;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link RateLimiter}, registered as
+ * {@code com.sudothought.jmx:type=RateLimiter}.
+ */
+public interface RateLimiterMXBean {
+
+    /**
+     * Calls per second allowed to each client, by operation class ("query",
+     * "read", "write", "invoke"). 0 means unlimited.
+     */
+    Map<String, Double> getRates();
+
+    /**
+     * Sets the calls per second allowed to each client for an operation
+     * class. Takes effect on the next call.
+     *
+     * @param operationClass "query", "read", "write" or "invoke".
+     * @param perSecond      the rate, or 0 for unlimited.
+     */
+    void setRate(String operationClass, double perSecond);
+
+    /**
+     * Seconds worth of calls a client may burst above its rate.
+     */
+    double getBurstSeconds();
+
+    void setBurstSeconds(double seconds);
+
+    /**
+     * Maximum time a call over budget is delayed before it is rejected, in
+     * milliseconds. 0 rejects calls over budget immediately.
+     */
+    long getMaxDelay();
+
+    void setMaxDelay(long millis);
+
+    long getAdmitted();
+
+    long getDelayed();
+
+    long getRejected();
+
+    /**
+     * Counters by client, for the clients seen since the last reset.
+     */
+    Map<String, ClientRateStats> getClients();
+
+    void resetCounters();
+}
@@ -0,0 +1,47 @@
+package com.sudothought.jmx;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts events per second over the last minute, for rates that are
+ * recorded far less often than read, e.g. accepted sockets or opened
+ * connections.
+ */
+class RateWindow {
+
+    static final int SECONDS = 60;
+
+    private final long[] seconds = new long[SECONDS];
+    private final long[] counts = new long[SECONDS];
+
+    static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+
+    synchronized void record(long second) {
+        final int i = (int)Math.floorMod(second, (long)SECONDS);
+        if (seconds[i] != second) {
+            seconds[i] = second;
+            counts[i] = 0;
+        }
+        counts[i]++;
+    }
+
+    /**
+     * Events per second over the minute before {@code second}.
+     */
+    synchronized double rate(long second) {
+        long sum = 0;
+        for (int i = 0; i < SECONDS; i++) {
+            if (second - seconds[i] < SECONDS) sum += counts[i];
+        }
+        return (double)sum / SECONDS;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < SECONDS; i++) {
+            seconds[i] = 0;
+            counts[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.sudothought.jmx;
+
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Samples pulled from an {@link AttributeSampler}: for each sample, its
+ * sequence number and time, and the value of every series at that time.
+ * <p/>
+ * Sequence numbers increase by one per sample, so a client pulls only the
+ * new samples by passing {@link #getNextSequence()} to its next pull. If
+ * {@link #getFirstSequence()} is greater than the sequence the client asked
+ * for, the samples in between were overwritten before they were pulled.
+ * <p/>
+ * On the wire, samples are sent as {@link CompositeData} (see
+ * {@link #toCompositeData()}), so that any JMX client can read them
+ * without this class.
+ */
+public class SampleSeries implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] ITEMS = {"series", "firstSequence", "timestamps", "values"};
+
+    static final CompositeType TYPE;
+
+    static {
+        try {
+            TYPE = new CompositeType("SampleSeries", "Samples pulled from the sampler", ITEMS,
+                                     new String[]{"The names of the series",
+                                                  "The sequence number of the first sample",
+                                                  "The time of each sample, in ms since the epoch",
+                                                  "The values, by series then by sample"},
+                                     new OpenType<?>[]{ArrayType.getArrayType(SimpleType.STRING), SimpleType.LONG,
+                                                       ArrayType.getPrimitiveArrayType(long[].class),
+                                                       ArrayType.getPrimitiveArrayType(double[][].class)});
+        }
+        catch (OpenDataException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private final List<String> series;
+    private final long firstSequence;
+    private final long[] timestamps;
+    private final double[][] values;
+
+    /**
+     * @param series        the names of the series.
+     * @param firstSequence the sequence number of the first sample.
+     * @param timestamps    the time of each sample, in ms since the epoch.
+     * @param values        the values, by series then by sample.
+     */
+    public SampleSeries(String[] series, long firstSequence, long[] timestamps, double[][] values) {
+        this.series = Collections.unmodifiableList(Arrays.asList(series));
+        this.firstSequence = firstSequence;
+        this.timestamps = timestamps;
+        this.values = values;
+    }
+
+    /**
+     * The series, named {@code <ObjectName> <attribute>[.<key>]}.
+     */
+    public List<String> getSeries() {
+        return series;
+    }
+
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * The sequence number to pass to the next pull.
+     */
+    public long getNextSequence() {
+        return firstSequence + timestamps.length;
+    }
+
+    public int getSampleCount() {
+        return timestamps.length;
+    }
+
+    /**
+     * The time of each sample, in milliseconds since the epoch.
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * The values of a series, one per sample. NaN where the attribute could
+     * not be read or was not a number.
+     *
+     * @param index the index of the series in {@link #getSeries()}.
+     */
+    public double[] getValues(int index) {
+        return values[index];
+    }
+
+    /**
+     * The values of a series, one per sample, or null if there is no such
+     * series.
+     */
+    public double[] getValues(String name) {
+        final int index = series.indexOf(name);
+        return index < 0 ? null : values[index];
+    }
+
+    /**
+     * Encodes these samples with Open types only.
+     */
+    public CompositeData toCompositeData() {
+        try {
+            return new CompositeDataSupport(TYPE, ITEMS,
+                                            new Object[]{series.toArray(new String[series.size()]), firstSequence,
+                                                         timestamps, values});
+        }
+        catch (OpenDataException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /**
+     * Decodes samples encoded by {@link #toCompositeData()}.
+     */
+    public static SampleSeries from(CompositeData data) {
+        return new SampleSeries((String[])data.get("series"), (Long)data.get("firstSequence"),
+                                (long[])data.get("timestamps"), (double[][])data.get("values"));
+    }
+
+    @Override
+    public String toString() {
+        return "SampleSeries[" + series.size() + " series, " + timestamps.length + " samples from #"
+               + firstSequence + "]";
+    }
+}
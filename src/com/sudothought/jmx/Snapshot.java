@@ -0,0 +1,189 @@
+package com.sudothought.jmx;
+
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The Snapshot class provides an interceptor that reads the attributes of
+ * every MBean matching a pattern in a single remote call, by invoking the
+ * snapshot() operation on a "fake" MBean.
+ * <p/>
+ * Without it, a collector needs one {@code queryNames} plus one
+ * {@code getAttributes} per MBean - each of them a separate round trip.
+ * <p/>
+ * The name of the "fake" MBean is
+ * {@code JMImplementation:type=JMXAgentSnapshot}. As with the {@link Stopper}
+ * MBean, it is only recognized by the MBeanServerForwarder and does not
+ * appear in queryNames().
+ * <p/>
+ * Reads go through the {@link ForwardingInterceptor}, so that configured
+ * {@link AttributeInterceptor}s (such as the {@link AttributeCache}) apply.
+ * An MBean that cannot be read is reported in
+ * {@link SnapshotResult#getFailures()} and does not fail the whole snapshot.
+ * The operation returns the result as {@link SnapshotResult#toCompositeData()
+ * CompositeData}, which {@link #snapshot(MBeanServerConnection, ObjectName,
+ * String...)} decodes.
+ * <p/>
+ * The same MBean has a {@code delta} operation, which only returns what
+ * changed since a previous scrape, see {@link DeltaSnapshot}.
+ */
+public class Snapshot {
+
+    public static String SNAPSHOT_PROPERTY = "jmx.agent.snapshot";
+    public static String SNAPSHOT          = "snapshot";
+
+    private static final String[] SIGNATURE = {
+            ObjectName.class.getName(),
+            String[].class.getName()
+    };
+
+    /**
+     * Creates an interceptor for the {@code snapshot(ObjectName, String[])}
+     * operation of the "fake" Snapshot MBean.
+     *
+     * @param owner the ForwardingInterceptor used to read the attributes.
+     * @return the snapshot interceptor.
+     */
+    public static InvokeOperationInterceptor createInterceptorFor(final ForwardingInterceptor owner) {
+        return createInterceptorFor(owner, null, null);
+    }
+
+    /**
+     * Creates an interceptor for the {@code snapshot(ObjectName, String[])}
+     * operation of the "fake" Snapshot MBean, that reads the MBeans mounted
+     * by {@code federation} from all their agents at once.
+     *
+     * @param owner      the ForwardingInterceptor used to read the attributes.
+     * @param federation the mounted agents, or null.
+     * @param local      the local MBeanServer, below the federation; only
+     *                   used with a federation.
+     * @return the snapshot interceptor.
+     */
+    public static InvokeOperationInterceptor createInterceptorFor(final ForwardingInterceptor owner,
+                                                                  final Federation federation,
+                                                                  final MBeanServer local) {
+
+        return new InvokeOperationInterceptor(getSnapshotName(), SNAPSHOT) {
+
+            @Override
+            public Object intercept(MBeanServer server, ObjectName mbean,
+                                    String invoke, Object[] args, String[] signature) throws Exception {
+                if (args == null || args.length != 2)
+                    throw new IllegalArgumentException("Expected (ObjectName pattern, String[] attributes)");
+                final SnapshotResult result = federation == null
+                                              ? snapshot(owner, (ObjectName)args[0], (String[])args[1])
+                                              : snapshot(owner, federation, local, (ObjectName)args[0],
+                                                         (String[])args[1]);
+                return result.toCompositeData();
+            }
+
+            @Override
+            public ClassLoader getClassLoaderFor(MBeanServer server, ObjectName mbean) {
+                return Snapshot.class.getClassLoader();
+            }
+        };
+    }
+
+    /**
+     * Reads the given attributes of every MBean matching the pattern. If
+     * {@code attributes} is null or empty, all readable attributes of each
+     * MBean are read.
+     */
+    public static SnapshotResult snapshot(ForwardingInterceptor owner, ObjectName pattern, String[] attributes) {
+        final MBeanServer server = owner.getMBeanServer();
+        final SnapshotResult result = new SnapshotResult(System.currentTimeMillis());
+        final Set<ObjectName> names = owner.queryNames(pattern, null);
+        for (ObjectName name : names) {
+            try {
+                final String[] read = attributes == null || attributes.length == 0
+                                      ? getReadableAttributes(server, name)
+                                      : attributes;
+                final AttributeList values = owner.getAttributes(name, read);
+                result.addValues(name, values);
+            }
+            catch (Exception x) {
+                result.addFailure(name, x);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the given attributes of every MBean matching the pattern, local
+     * MBeans through {@code owner}, and mounted MBeans from all their agents
+     * at once through {@code federation}. Local MBeans are listed by
+     * {@code local}, so that the mounted agents are not queried twice.
+     */
+    public static SnapshotResult snapshot(ForwardingInterceptor owner, Federation federation, MBeanServer local,
+                                          ObjectName pattern, String[] attributes) {
+        final SnapshotResult result = federation.snapshot(pattern, attributes);
+        if (!federation.includesLocal(pattern)) return result;
+        final MBeanServer server = owner.getMBeanServer();
+        for (ObjectName name : local.queryNames(pattern, null)) {
+            try {
+                final String[] read = attributes == null || attributes.length == 0
+                                      ? getReadableAttributes(server, name)
+                                      : attributes;
+                result.addValues(name, owner.getAttributes(name, read));
+            }
+            catch (Exception x) {
+                result.addFailure(name, x);
+            }
+        }
+        return result;
+    }
+
+    static String[] getReadableAttributes(MBeanServer server, ObjectName name) throws JMException {
+        final MBeanAttributeInfo[] infos = server.getMBeanInfo(name).getAttributes();
+        final List<String> readable = new ArrayList<String>(infos.length);
+        for (MBeanAttributeInfo info : infos) {
+            if (info.isReadable()) readable.add(info.getName());
+        }
+        return readable.toArray(new String[readable.size()]);
+    }
+
+    /**
+     * Get the "fake" snapshot MBean name.
+     *
+     * @return {@code JMImplementation:type=JMXAgentSnapshot}
+     */
+    public static ObjectName getSnapshotName() {
+        try {
+            return ObjectName.getInstance("JMImplementation:type=JMXAgentSnapshot");
+        }
+        catch (MalformedObjectNameException x) {
+            throw new IllegalArgumentException(x);
+        }
+    }
+
+    /**
+     * Reads the given attributes of every MBean matching {@code pattern} on
+     * the server to which {@code c} is connected, in a single round trip.
+     * Works only if the server was configured with a snapshot interceptor.
+     *
+     * @param c          a connection to the agent.
+     * @param pattern    the MBeans to read.
+     * @param attributes the attributes to read, all readable attributes if
+     *                   none are given.
+     */
+    public static SnapshotResult snapshot(MBeanServerConnection c, ObjectName pattern, String... attributes)
+            throws IOException {
+        try {
+            return SnapshotResult.from((CompositeData)c.invoke(getSnapshotName(), SNAPSHOT,
+                                                               new Object[]{pattern, attributes}, SIGNATURE));
+        }
+        catch (JMException x) {
+            throw new IOException("can't take snapshot: " + x, x);
+        }
+    }
+}
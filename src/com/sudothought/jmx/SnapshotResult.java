@@ -0,0 +1,218 @@
+package com.sudothought.jmx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The result of a {@link Snapshot}: the attribute values of every MBean
+ * matched by the snapshot pattern, and the MBeans that could not be read.
+ * <p/>
+ * Attributes that could not be read are simply missing from the MBean's
+ * AttributeList, as with {@code MBeanServer.getAttributes}.
+ * <p/>
+ * On the wire, the result is sent as {@link CompositeData} (see
+ * {@link #toCompositeData()}), so that any JMX client can read it without
+ * this class. Each attribute value is sent as a string with its class name;
+ * {@link #from(CompositeData)} restores numbers, booleans, strings and
+ * ObjectNames, and leaves other values as strings. CompositeData values are
+ * flattened into one attribute per item, named {@code <attribute>.<key>}.
+ */
+public class SnapshotResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final TabularType VALUES_TYPE;
+    static final TabularType FAILURES_TYPE;
+    static final CompositeType TYPE;
+
+    static {
+        try {
+            final CompositeType value = new CompositeType(
+                    "SnapshotValue", "An attribute value",
+                    new String[]{"mbean", "attribute", "type", "value"},
+                    new String[]{"The MBean", "The attribute", "The class of the value", "The value"},
+                    new OpenType<?>[]{SimpleType.OBJECTNAME, SimpleType.STRING, SimpleType.STRING,
+                                      SimpleType.STRING});
+            VALUES_TYPE = new TabularType("SnapshotValues", "The attribute values read",
+                                          value, new String[]{"mbean", "attribute"});
+            final CompositeType failure = new CompositeType(
+                    "SnapshotFailure", "An MBean that could not be read",
+                    new String[]{"mbean", "reason"},
+                    new String[]{"The MBean", "Why it could not be read"},
+                    new OpenType<?>[]{SimpleType.OBJECTNAME, SimpleType.STRING});
+            FAILURES_TYPE = new TabularType("SnapshotFailures", "The MBeans that could not be read",
+                                            failure, new String[]{"mbean"});
+            TYPE = new CompositeType("Snapshot", "The result of a snapshot",
+                                     new String[]{"timestamp", "values", "failures"},
+                                     new String[]{"Time of the snapshot, in ms since the epoch",
+                                                  "The attribute values read",
+                                                  "The MBeans that could not be read"},
+                                     new OpenType<?>[]{SimpleType.LONG, VALUES_TYPE, FAILURES_TYPE});
+        }
+        catch (OpenDataException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private final long timestamp;
+    private final Map<ObjectName, AttributeList> values;
+    private final Map<ObjectName, String> failures;
+
+    public SnapshotResult(long timestamp) {
+        this.timestamp = timestamp;
+        this.values = new LinkedHashMap<ObjectName, AttributeList>();
+        this.failures = new LinkedHashMap<ObjectName, String>();
+    }
+
+    /**
+     * The time the snapshot was taken, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The attribute values read, by MBean.
+     */
+    public Map<ObjectName, AttributeList> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * The MBeans that could not be read, with the reason.
+     */
+    public Map<ObjectName, String> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    void addValues(ObjectName name, AttributeList attributes) {
+        values.put(name, attributes);
+    }
+
+    void addFailure(ObjectName name, Throwable cause) {
+        failures.put(name, String.valueOf(cause));
+    }
+
+    void addFailure(ObjectName name, String reason) {
+        failures.put(name, reason);
+    }
+
+    /**
+     * Encodes this result with Open types only.
+     */
+    public CompositeData toCompositeData() {
+        try {
+            return new CompositeDataSupport(TYPE, new String[]{"timestamp", "values", "failures"},
+                                            new Object[]{timestamp, encodeValues(), encodeFailures()});
+        }
+        catch (OpenDataException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /**
+     * Decodes a result encoded by {@link #toCompositeData()}.
+     */
+    public static SnapshotResult from(CompositeData data) {
+        final SnapshotResult result = new SnapshotResult((Long)data.get("timestamp"));
+        result.decode(data);
+        return result;
+    }
+
+    TabularData encodeValues() throws OpenDataException {
+        final TabularData table = new TabularDataSupport(VALUES_TYPE);
+        for (Map.Entry<ObjectName, AttributeList> e : values.entrySet()) {
+            for (Attribute a : e.getValue().asList())
+                encode(table, e.getKey(), a.getName(), a.getValue());
+        }
+        return table;
+    }
+
+    TabularData encodeFailures() throws OpenDataException {
+        final TabularData table = new TabularDataSupport(FAILURES_TYPE);
+        for (Map.Entry<ObjectName, String> e : failures.entrySet()) {
+            table.put(new CompositeDataSupport(FAILURES_TYPE.getRowType(), new String[]{"mbean", "reason"},
+                                               new Object[]{e.getKey(), e.getValue()}));
+        }
+        return table;
+    }
+
+    private static void encode(TabularData table, ObjectName name, String attribute, Object value)
+            throws OpenDataException {
+        if (value instanceof CompositeData) {
+            final CompositeData cd = (CompositeData)value;
+            for (String key : cd.getCompositeType().keySet())
+                encode(table, name, attribute + "." + key, cd.get(key));
+            return;
+        }
+        table.put(new CompositeDataSupport(VALUES_TYPE.getRowType(),
+                                           new String[]{"mbean", "attribute", "type", "value"},
+                                           new Object[]{name, attribute,
+                                                        value == null ? null : value.getClass().getName(),
+                                                        value == null ? null : String.valueOf(value)}));
+    }
+
+    void decode(CompositeData data) {
+        for (Object row : ((TabularData)data.get("values")).values()) {
+            final CompositeData cd = (CompositeData)row;
+            final ObjectName name = (ObjectName)cd.get("mbean");
+            AttributeList list = values.get(name);
+            if (list == null) {
+                list = new AttributeList();
+                values.put(name, list);
+            }
+            list.add(new Attribute((String)cd.get("attribute"),
+                                   decode((String)cd.get("type"), (String)cd.get("value"))));
+        }
+        for (Object row : ((TabularData)data.get("failures")).values()) {
+            final CompositeData cd = (CompositeData)row;
+            failures.put((ObjectName)cd.get("mbean"), (String)cd.get("reason"));
+        }
+    }
+
+    private static Object decode(String type, String value) {
+        if (type == null || value == null) return value;
+        try {
+            if (type.equals(Long.class.getName())) return Long.valueOf(value);
+            if (type.equals(Integer.class.getName())) return Integer.valueOf(value);
+            if (type.equals(Double.class.getName())) return Double.valueOf(value);
+            if (type.equals(Float.class.getName())) return Float.valueOf(value);
+            if (type.equals(Short.class.getName())) return Short.valueOf(value);
+            if (type.equals(Byte.class.getName())) return Byte.valueOf(value);
+            if (type.equals(Boolean.class.getName())) return Boolean.valueOf(value);
+            if (type.equals(Character.class.getName()) && value.length() == 1) return value.charAt(0);
+            if (type.equals(BigInteger.class.getName())) return new BigInteger(value);
+            if (type.equals(BigDecimal.class.getName())) return new BigDecimal(value);
+            if (type.equals(ObjectName.class.getName())) return ObjectName.getInstance(value);
+        }
+        catch (NumberFormatException x) {
+            // keep the string
+        }
+        catch (MalformedObjectNameException x) {
+            // keep the string
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotResult[" + values.size() + " MBeans, " + failures.size() + " failures]";
+    }
+}
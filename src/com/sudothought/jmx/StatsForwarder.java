@@ -0,0 +1,586 @@
+package com.sudothought.jmx;
+
+import com.sudothought.jmx.AgentStats.Op;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.OperationsException;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.loading.ClassLoaderRepository;
+import java.io.ObjectInputStream;
+import java.util.Set;
+
+/**
+ * An MBeanServerForwarder that times every MBeanServer method call and
+ * records it in an {@link AgentStats}. Calls that throw are counted as
+ * errors.
+ * <p/>
+ * It is meant to be the outermost forwarder of the connector, so that the
+ * recorded latencies include the work done by the other forwarders.
+ */
+public class StatsForwarder extends DelegatingForwarder {
+
+    private final AgentStats stats;
+
+    public StatsForwarder(AgentStats stats) {
+        if (stats == null) throw new IllegalArgumentException("stats is null");
+        this.stats = stats;
+    }
+
+    public AgentStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInstance result = super.createMBean(className, name);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.CREATE_MBEAN, name, start, ok);
+        }
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException, InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInstance result = super.createMBean(className, name, loaderName);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.CREATE_MBEAN, name, start, ok);
+        }
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInstance result = super.createMBean(className, name, params, signature);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.CREATE_MBEAN, name, start, ok);
+        }
+    }
+
+    @Override
+    public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName,
+                                      Object[] params, String[] signature)
+            throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+                   MBeanException, NotCompliantMBeanException, InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInstance result = super.createMBean(className, name, loaderName, params, signature);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.CREATE_MBEAN, name, start, ok);
+        }
+    }
+
+    @Override
+    public ObjectInstance registerMBean(Object object, ObjectName name)
+            throws InstanceAlreadyExistsException, MBeanRegistrationException, NotCompliantMBeanException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInstance result = super.registerMBean(object, name);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.REGISTER_MBEAN, name, start, ok);
+        }
+    }
+
+    @Override
+    public void unregisterMBean(ObjectName name)
+            throws InstanceNotFoundException, MBeanRegistrationException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            super.unregisterMBean(name);
+            ok = true;
+        }
+        finally {
+            stats.record(Op.UNREGISTER_MBEAN, name, start, ok);
+        }
+    }
+
+    @Override
+    public ObjectInstance getObjectInstance(ObjectName name)
+            throws InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInstance result = super.getObjectInstance(name);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_OBJECT_INSTANCE, name, start, ok);
+        }
+    }
+
+    @Override
+    public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Set<ObjectInstance> result = super.queryMBeans(name, query);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.QUERY_MBEANS, name, start, ok);
+        }
+    }
+
+    @Override
+    public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Set<ObjectName> result = super.queryNames(name, query);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.QUERY_NAMES, name, start, ok);
+        }
+    }
+
+    @Override
+    public boolean isRegistered(ObjectName name) {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final boolean result = super.isRegistered(name);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.IS_REGISTERED, name, start, ok);
+        }
+    }
+
+    @Override
+    public Integer getMBeanCount() {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Integer result = super.getMBeanCount();
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_MBEAN_COUNT, null, start, ok);
+        }
+    }
+
+    @Override
+    public Object getAttribute(ObjectName name, String attribute)
+            throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Object result = super.getAttribute(name, attribute);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_ATTRIBUTE, name, start, ok);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(ObjectName name, String[] attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final AttributeList result = super.getAttributes(name, attributes);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_ATTRIBUTES, name, start, ok);
+        }
+    }
+
+    @Override
+    public void setAttribute(ObjectName name, Attribute attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException,
+                   MBeanException, ReflectionException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            super.setAttribute(name, attribute);
+            ok = true;
+        }
+        finally {
+            stats.record(Op.SET_ATTRIBUTE, name, start, ok);
+        }
+    }
+
+    @Override
+    public AttributeList setAttributes(ObjectName name, AttributeList attributes)
+            throws InstanceNotFoundException, ReflectionException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final AttributeList result = super.setAttributes(name, attributes);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.SET_ATTRIBUTES, name, start, ok);
+        }
+    }
+
+    @Override
+    public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+            throws InstanceNotFoundException, MBeanException, ReflectionException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Object result = super.invoke(name, operationName, params, signature);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.INVOKE, name, start, ok);
+        }
+    }
+
+    @Override
+    public String getDefaultDomain() {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final String result = super.getDefaultDomain();
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_DEFAULT_DOMAIN, null, start, ok);
+        }
+    }
+
+    @Override
+    public String[] getDomains() {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final String[] result = super.getDomains();
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_DOMAINS, null, start, ok);
+        }
+    }
+
+    @Override
+    public void addNotificationListener(ObjectName name, NotificationListener listener,
+                                        NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            super.addNotificationListener(name, listener, filter, handback);
+            ok = true;
+        }
+        finally {
+            stats.record(Op.ADD_NOTIFICATION_LISTENER, name, start, ok);
+        }
+    }
+
+    @Override
+    public void addNotificationListener(ObjectName name, ObjectName listener,
+                                        NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            super.addNotificationListener(name, listener, filter, handback);
+            ok = true;
+        }
+        finally {
+            stats.record(Op.ADD_NOTIFICATION_LISTENER, name, start, ok);
+        }
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, ObjectName listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            super.removeNotificationListener(name, listener);
+            ok = true;
+        }
+        finally {
+            stats.record(Op.REMOVE_NOTIFICATION_LISTENER, name, start, ok);
+        }
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, ObjectName listener,
+                                           NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            super.removeNotificationListener(name, listener, filter, handback);
+            ok = true;
+        }
+        finally {
+            stats.record(Op.REMOVE_NOTIFICATION_LISTENER, name, start, ok);
+        }
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            super.removeNotificationListener(name, listener);
+            ok = true;
+        }
+        finally {
+            stats.record(Op.REMOVE_NOTIFICATION_LISTENER, name, start, ok);
+        }
+    }
+
+    @Override
+    public void removeNotificationListener(ObjectName name, NotificationListener listener,
+                                           NotificationFilter filter, Object handback)
+            throws InstanceNotFoundException, ListenerNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            super.removeNotificationListener(name, listener, filter, handback);
+            ok = true;
+        }
+        finally {
+            stats.record(Op.REMOVE_NOTIFICATION_LISTENER, name, start, ok);
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(ObjectName name)
+            throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final MBeanInfo result = super.getMBeanInfo(name);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_MBEAN_INFO, name, start, ok);
+        }
+    }
+
+    @Override
+    public boolean isInstanceOf(ObjectName name, String className)
+            throws InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final boolean result = super.isInstanceOf(name, className);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.IS_INSTANCE_OF, name, start, ok);
+        }
+    }
+
+    @Override
+    public Object instantiate(String className)
+            throws ReflectionException, MBeanException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Object result = super.instantiate(className);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.INSTANTIATE, null, start, ok);
+        }
+    }
+
+    @Override
+    public Object instantiate(String className, ObjectName loaderName)
+            throws ReflectionException, MBeanException, InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Object result = super.instantiate(className, loaderName);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.INSTANTIATE, null, start, ok);
+        }
+    }
+
+    @Override
+    public Object instantiate(String className, Object[] params, String[] signature)
+            throws ReflectionException, MBeanException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Object result = super.instantiate(className, params, signature);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.INSTANTIATE, null, start, ok);
+        }
+    }
+
+    @Override
+    public Object instantiate(String className, ObjectName loaderName, Object[] params, String[] signature)
+            throws ReflectionException, MBeanException, InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final Object result = super.instantiate(className, loaderName, params, signature);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.INSTANTIATE, null, start, ok);
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ObjectInputStream deserialize(ObjectName name, byte[] data)
+            throws InstanceNotFoundException, OperationsException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInputStream result = super.deserialize(name, data);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.DESERIALIZE, name, start, ok);
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ObjectInputStream deserialize(String className, byte[] data)
+            throws OperationsException, ReflectionException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInputStream result = super.deserialize(className, data);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.DESERIALIZE, null, start, ok);
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ObjectInputStream deserialize(String className, ObjectName loaderName, byte[] data)
+            throws InstanceNotFoundException, OperationsException, ReflectionException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ObjectInputStream result = super.deserialize(className, loaderName, data);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.DESERIALIZE, null, start, ok);
+        }
+    }
+
+    @Override
+    public ClassLoader getClassLoaderFor(ObjectName mbeanName)
+            throws InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ClassLoader result = super.getClassLoaderFor(mbeanName);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_CLASS_LOADER_FOR, mbeanName, start, ok);
+        }
+    }
+
+    @Override
+    public ClassLoader getClassLoader(ObjectName loaderName)
+            throws InstanceNotFoundException {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ClassLoader result = super.getClassLoader(loaderName);
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_CLASS_LOADER, null, start, ok);
+        }
+    }
+
+    @Override
+    public ClassLoaderRepository getClassLoaderRepository() {
+        final long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            final ClassLoaderRepository result = super.getClassLoaderRepository();
+            ok = true;
+            return result;
+        }
+        finally {
+            stats.record(Op.GET_CLASS_LOADER_REPOSITORY, null, start, ok);
+        }
+    }
+}
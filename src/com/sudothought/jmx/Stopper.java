@@ -39,9 +39,12 @@ import javax.management.ObjectName;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorServer;
 import javax.management.remote.MBeanServerForwarder;
+import java.io.Closeable;
 import java.io.IOException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Collection;
+import java.util.Collections;
 
 /**
  * The Stopper class creates an MBeanServerForwarder that can intercept
@@ -102,8 +105,41 @@ public class Stopper {
      * @return
      */
     public static MBeanServerForwarder createForwarderFor(final JMXConnectorServer connector, final Registry registry) {
+        return ForwardingInterceptor.newForwardingInterceptor(createInterceptorFor(connector, registry));
+    }
+
+    /**
+     * Creates the interceptor used by {@link #createForwarderFor}, so that
+     * it can be added to a {@link ForwardingInterceptor} along with other
+     * interceptors.
+     *
+     * @param connector the connector to stop.
+     * @param registry  the registry to unexport.
+     * @return an interceptor for the {@code stop()} operation of the "fake"
+     *         Stopper MBean.
+     */
+    public static InvokeOperationInterceptor createInterceptorFor(final JMXConnectorServer connector,
+                                                                  final Registry registry) {
+        return createInterceptorFor(connector, registry, Collections.<Closeable>emptyList());
+    }
 
-        final InvokeOperationInterceptor interceptor = new InvokeOperationInterceptor(getDefaultStopperName(), STOP) {
+    /**
+     * Creates an interceptor for the {@code stop()} operation of the "fake"
+     * Stopper MBean, that also closes the given services (e.g. an
+     * {@link HttpConnector}) after the connector is stopped.
+     *
+     * @param connector the connector to stop.
+     * @param registry  the registry to unexport.
+     * @param services  the services to close. The collection is read when
+     *                  stop() is called, so services may be added later.
+     * @return an interceptor for the {@code stop()} operation of the "fake"
+     *         Stopper MBean.
+     */
+    public static InvokeOperationInterceptor createInterceptorFor(final JMXConnectorServer connector,
+                                                                  final Registry registry,
+                                                                  final Collection<? extends Closeable> services) {
+
+        return new InvokeOperationInterceptor(getDefaultStopperName(), STOP) {
 
             @Override
             public Object intercept(MBeanServer server, ObjectName mbean,
@@ -118,6 +154,9 @@ public class Stopper {
                 //
                 if (registry != null)
                     UnicastRemoteObject.unexportObject(registry, false);
+
+                for (Closeable service : services)
+                    service.close();
                 System.out.println("Agent stopped");
                 return null;
             }
@@ -127,8 +166,6 @@ public class Stopper {
                 return null;
             }
         };
-
-        return ForwardingInterceptor.newForwardingInterceptor(interceptor);
     }
 
     /**
@@ -18,30 +18,75 @@ public class TestClient {
     public static void main(String[] args) throws Exception {
 
         String jmxUrl = null;
-        boolean useAgent = true;
+        String useAgent = "true";
+        String connections = null;
+        String threads = null;
+        String rate = null;
+        String duration = null;
+        String warmup = null;
+        String mix = null;
 
         for (final String arg : args) {
             if (arg.startsWith("-url="))
                 jmxUrl = arg.replace("-url=", "");
 
             if (arg.startsWith("-useagent="))
-                useAgent = Boolean.valueOf(arg.replace("-useagent=", ""));
+                useAgent = arg.replace("-useagent=", "");
+
+            if (arg.startsWith("-connections="))
+                connections = arg.replace("-connections=", "");
+
+            if (arg.startsWith("-threads="))
+                threads = arg.replace("-threads=", "");
+
+            if (arg.startsWith("-rate="))
+                rate = arg.replace("-rate=", "");
+
+            if (arg.startsWith("-duration="))
+                duration = arg.replace("-duration=", "");
+
+            if (arg.startsWith("-warmup="))
+                warmup = arg.replace("-warmup=", "");
+
+            if (arg.startsWith("-mix="))
+                mix = arg.replace("-mix=", "");
         }
 
         if (jmxUrl == null) {
             System.out.println("usage: java com.sudothought.jmx.TestClient "
-                               + "-url:jmxurl -useagent:(true|false)");
+                               + "-url=jmxurl -useagent=(true|false)");
+            System.out.println("   or: java com.sudothought.jmx.TestClient "
+                               + "-url=jmxurl -useagent=(true|false|both) [-connections=1] [-threads=8] "
+                               + "[-rate=0] [-duration=10] [-warmup=2] [-mix=query:1,get:4,gets:2,invoke:1]");
             return;
         }
 
         final JMXServiceURL url = new JMXServiceURL(jmxUrl);
 
-        if (!useAgent)
+        // Load mode: any of the load options.
+        if (connections != null || threads != null || rate != null || duration != null || warmup != null
+            || mix != null) {
+            final LoadGenerator.Path path = "both".equalsIgnoreCase(useAgent) ? LoadGenerator.Path.BOTH
+                                            : Boolean.valueOf(useAgent) ? LoadGenerator.Path.AGENT
+                                            : LoadGenerator.Path.FACTORY;
+            final int n = connections == null ? 1 : Integer.parseInt(connections);
+            final LoadGenerator load =
+                    new LoadGenerator(url, path, n, threads == null ? Math.max(n, 8) : Integer.parseInt(threads),
+                                      rate == null ? 0 : Double.parseDouble(rate),
+                                      duration == null ? 10 : Double.parseDouble(duration),
+                                      warmup == null ? 2 : Double.parseDouble(warmup),
+                                      LoadGenerator.parseMix(mix == null ? "query:1,get:4,gets:2,invoke:1" : mix));
+            System.out.println("Loading " + url);
+            load.print(load.run(), System.out);
+            return;
+        }
+
+        if (!Boolean.valueOf(useAgent))
             System.out.println("Connecting to JMX with " + url);
         else
             System.out.println("Connecting to JmxAgent with " + url.getHost() + ":" + url.getPort());
 
-        final JMXConnector jmxc = getJmxConnector(url, useAgent);
+        final JMXConnector jmxc = getJmxConnector(url, Boolean.valueOf(useAgent));
         final MBeanServerConnection mbsc = jmxc.getMBeanServerConnection();
 
         System.out.println("Bean count " + mbsc.getMBeanCount());
@@ -52,11 +97,14 @@ public class TestClient {
                                                final boolean useAgent) throws IOException, NotBoundException {
 
         if (!useAgent) {
-            return JMXConnectorFactory.connect(url);
+            // The registry lookup needs the agent's client socket factory.
+            final HashMap<String, Object> env = new HashMap<String, Object>();
+            env.put("com.sun.jndi.rmi.factory.socket", CompressingSslRMIClientSocketFactory.createFromProperties());
+            return JMXConnectorFactory.connect(url, env);
         }
         else {
             final HashMap<String, Object> env = new HashMap<String, Object>();
-            final SslRMIClientSocketFactory csf = new SslRMIClientSocketFactory();
+            final SslRMIClientSocketFactory csf = CompressingSslRMIClientSocketFactory.createFromProperties();
             final Registry registry = LocateRegistry.getRegistry(url.getHost(), url.getPort(), csf);
             final String path = url.getURLPath();
             final String endpoint = path.contains("/") ? path.substring(path.lastIndexOf("/") + 1, path.length()) : "jmxrmi";
@@ -0,0 +1,112 @@
+package com.sudothought.jmx;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.rmi.ssl.SslRMIClientSocketFactory;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * An SslRMIClientSocketFactory that measures how long it takes to open a
+ * socket and to complete its TLS handshake. Used by {@link AgentClient} for
+ * the registry lookup, which is the first connection made to a target.
+ * <p/>
+ * RMI caches its endpoints by factory equality and may keep using the first
+ * instance it saw, so timings are not stored in the factory: a thread that
+ * wants them calls {@link #begin()}, makes its calls, then {@link #end()}.
+ * Sockets opened in between by this thread are recorded in the returned
+ * {@link Timing}. If RMI reuses an already open socket, nothing is
+ * recorded.
+ * <p/>
+ * The handshake is started explicitly, rather than on the first write, so
+ * that it can be timed. As RMI does for its own handshake, it is bounded by
+ * {@code sun.rmi.transport.tcp.handshakeTimeout} (default 60000ms), so that
+ * an agent that accepts connections but does not answer can't block the
+ * caller. A handshake is considered resumed when the negotiated session
+ * was created before the handshake started.
+ */
+public class TimingSslRMIClientSocketFactory extends SslRMIClientSocketFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String HANDSHAKE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.handshakeTimeout";
+
+    private static final ThreadLocal<Timing> TIMING = new ThreadLocal<Timing>();
+
+    /**
+     * Timings of the last socket opened by a thread.
+     */
+    public static final class Timing {
+        private long connectNanos = -1;
+        private long handshakeNanos = -1;
+        private boolean resumed = false;
+
+        /**
+         * Time spent opening the socket, in nanoseconds, or -1 if no socket
+         * was opened.
+         */
+        public long getConnectNanos() {
+            return connectNanos;
+        }
+
+        /**
+         * Time spent in the TLS handshake, in nanoseconds, or -1 if no
+         * socket was opened.
+         */
+        public long getHandshakeNanos() {
+            return handshakeNanos;
+        }
+
+        /**
+         * Whether the handshake resumed an existing TLS session.
+         */
+        public boolean isResumed() {
+            return resumed;
+        }
+    }
+
+    /**
+     * Starts recording the sockets opened by the current thread.
+     */
+    public static Timing begin() {
+        final Timing timing = new Timing();
+        TIMING.set(timing);
+        return timing;
+    }
+
+    /**
+     * Stops recording the sockets opened by the current thread.
+     */
+    public static void end() {
+        TIMING.remove();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        final Timing timing = TIMING.get();
+        if (timing == null) return super.createSocket(host, port);
+
+        final long start = System.nanoTime();
+        final Socket socket = super.createSocket(host, port);
+        final long connected = System.nanoTime();
+        timing.connectNanos = connected - start;
+        if (socket instanceof SSLSocket) {
+            final SSLSocket ssl = (SSLSocket)socket;
+            final long startMillis = System.currentTimeMillis();
+            final int timeout = ssl.getSoTimeout();
+            try {
+                ssl.setSoTimeout(Integer.getInteger(HANDSHAKE_TIMEOUT_PROPERTY, 60000).intValue());
+                ssl.startHandshake();
+                ssl.setSoTimeout(timeout);
+            }
+            catch (IOException x) {
+                ssl.close();
+                throw x;
+            }
+            timing.handshakeNanos = System.nanoTime() - connected;
+            final SSLSession session = ssl.getSession();
+            timing.resumed = session.getCreationTime() < startMillis;
+        }
+        return socket;
+    }
+}
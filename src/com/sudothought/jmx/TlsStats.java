@@ -0,0 +1,88 @@
+package com.sudothought.jmx;
+
+import javax.net.ssl.SSLSessionContext;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handshake counters of an {@link AgentSslServerSocketFactory}, published
+ * as {@code com.sudothought.jmx:type=Tls} together with the factory's TLS
+ * configuration. The session cache settings can be changed at runtime.
+ */
+public class TlsStats implements TlsStatsMXBean {
+
+    private final AgentSslServerSocketFactory factory;
+    private final LongAdder full = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram handshakeTimes = new LatencyHistogram();
+
+    TlsStats(AgentSslServerSocketFactory factory) {
+        this.factory = factory;
+    }
+
+    void handshakeCompleted(long nanos, boolean resumption) {
+        handshakeTimes.record(nanos);
+        if (resumption) resumed.increment();
+        else full.increment();
+    }
+
+    void handshakeFailed(long nanos) {
+        handshakeTimes.record(nanos);
+        failed.increment();
+    }
+
+    public long getFullHandshakes() {
+        return full.sum();
+    }
+
+    public long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    public long getFailedHandshakes() {
+        return failed.sum();
+    }
+
+    public OperationStats getHandshakeTimes() {
+        return new OperationStats(handshakeTimes.snapshot(), failed.sum());
+    }
+
+    public String[] getProtocols() {
+        return factory.getEnabledProtocols();
+    }
+
+    public String[] getCipherSuites() {
+        return factory.getEnabledCipherSuites();
+    }
+
+    public boolean isResumptionEnabled() {
+        return factory.isResumptionEnabled();
+    }
+
+    public int getSessionCacheSize() {
+        return sessionContext().getSessionCacheSize();
+    }
+
+    public void setSessionCacheSize(int size) {
+        sessionContext().setSessionCacheSize(size);
+    }
+
+    public int getSessionTimeout() {
+        return sessionContext().getSessionTimeout();
+    }
+
+    public void setSessionTimeout(int seconds) {
+        sessionContext().setSessionTimeout(seconds);
+    }
+
+    private SSLSessionContext sessionContext() {
+        return factory.getSSLContext().getServerSessionContext();
+    }
+
+    public void reset() {
+        full.reset();
+        resumed.reset();
+        failed.reset();
+        handshakeTimes.reset();
+    }
+}
@@ -0,0 +1,53 @@
+package com.sudothought.jmx;
+
+/**
+ * Management interface of the {@link TlsStats}, registered as
+ * {@code com.sudothought.jmx:type=Tls}.
+ */
+public interface TlsStatsMXBean {
+
+    /**
+     * Handshakes that negotiated a new TLS session.
+     */
+    long getFullHandshakes();
+
+    /**
+     * Handshakes that resumed a TLS session from the server session cache
+     * or from a session ticket.
+     */
+    long getResumedHandshakes();
+
+    long getFailedHandshakes();
+
+    /**
+     * Duration of the server side of the handshakes, in microseconds. The
+     * error count is the number of failed handshakes.
+     */
+    OperationStats getHandshakeTimes();
+
+    /**
+     * The enabled protocols, or null for the JVM defaults.
+     */
+    String[] getProtocols();
+
+    /**
+     * The enabled cipher suites, in order of preference, or null for the
+     * JVM defaults.
+     */
+    String[] getCipherSuites();
+
+    boolean isResumptionEnabled();
+
+    int getSessionCacheSize();
+
+    void setSessionCacheSize(int size);
+
+    /**
+     * Session timeout, in seconds.
+     */
+    int getSessionTimeout();
+
+    void setSessionTimeout(int seconds);
+
+    void reset();
+}